@@ -0,0 +1,73 @@
+package com.caiya.session;
+
+import java.util.Collection;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Non-blocking variant of the {@link SessionManager} operations, for callers running on an
+ * event loop or a small worker pool. The returned stages may be completed by a thread of
+ * the implementation, dependent actions should not block.
+ *
+ * @param <S> the session type
+ * @author wangnan
+ * @since 1.1
+ */
+public interface AsyncSessionManager<S extends Session> {
+
+    /**
+     * Creates and writes a new session with a generated id.
+     *
+     * @return the new session
+     * @see SessionManager#createSession()
+     */
+    CompletionStage<S> createSession();
+
+    /**
+     * Creates and writes a new session with the given id.
+     *
+     * @param sessionId the session id
+     * @return the new session, completed exceptionally if the id is taken
+     * @see SessionManager#createSession(String)
+     */
+    CompletionStage<S> createSession(String sessionId);
+
+    /**
+     * @param id the session id
+     * @return the session, or {@code null} if not found
+     * @see SessionManager#findById(String)
+     */
+    CompletionStage<S> findById(String id);
+
+    /**
+     * Writes the pending changes of the session. A session is saved by one caller at a time.
+     *
+     * @param session the session
+     * @return completed once written
+     * @see SessionManager#save(Session)
+     */
+    CompletionStage<Void> save(S session);
+
+    /**
+     * Changes the id of the session to a generated one.
+     *
+     * @param session the session
+     * @return the new id
+     * @see SessionManager#changeSessionId(Session)
+     */
+    CompletionStage<String> changeSessionId(S session);
+
+    /**
+     * @param id the session id
+     * @return true if the session existed
+     * @see SessionManager#deleteById(String)
+     */
+    CompletionStage<Boolean> deleteById(String id);
+
+    /**
+     * @param ids the session ids
+     * @return the number of sessions which existed
+     * @see SessionManager#deleteByIds(Collection)
+     */
+    CompletionStage<Integer> deleteByIds(Collection<String> ids);
+
+}
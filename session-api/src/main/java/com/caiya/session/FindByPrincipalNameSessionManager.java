@@ -0,0 +1,35 @@
+package com.caiya.session;
+
+import java.util.Map;
+
+/**
+ * A {@link SessionManager} able to find the sessions of a user, e.g. to log the user out
+ * everywhere once the password has changed. The sessions are identified by the value of
+ * their {@link #PRINCIPAL_NAME_ATTRIBUTE} attribute, which the application sets on login.
+ *
+ * @param <S> the session type
+ * @author wangnan
+ * @since 1.1
+ */
+public interface FindByPrincipalNameSessionManager<S extends Session> extends SessionManager<S> {
+
+    /**
+     * The name of the session attribute holding the principal name, as a {@link String}.
+     */
+    String PRINCIPAL_NAME_ATTRIBUTE = FindByPrincipalNameSessionManager.class.getName() + ".PRINCIPAL_NAME";
+
+    /**
+     * @param principalName the principal name
+     * @return the active sessions of the principal by session id, empty if none
+     */
+    Map<String, S> findByPrincipalName(String principalName);
+
+    /**
+     * Deletes all the sessions of the principal.
+     *
+     * @param principalName the principal name
+     * @return the number of sessions which existed
+     */
+    int deleteByPrincipalName(String principalName);
+
+}
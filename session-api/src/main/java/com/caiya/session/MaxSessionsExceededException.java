@@ -0,0 +1,24 @@
+package com.caiya.session;
+
+/**
+ * Thrown when a session cannot be bound to a principal which already has the maximum
+ * number of sessions.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public class MaxSessionsExceededException extends SessionException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String principalName;
+
+    public MaxSessionsExceededException(String principalName, int maxSessions) {
+        super("the principal already has " + maxSessions + " sessions: " + principalName);
+        this.principalName = principalName;
+    }
+
+    public String getPrincipalName() {
+        return principalName;
+    }
+}
@@ -0,0 +1,20 @@
+package com.caiya.session;
+
+/**
+ * Session Expired Listener Interface.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+@FunctionalInterface
+public interface SessionExpiredListener<S extends Session> {
+
+    /**
+     * Notified after the session has expired and has been removed from the store. The
+     * session is a snapshot of its last saved state and must not be modified.
+     *
+     * @param session the expired session
+     */
+    void sessionExpired(S session);
+
+}
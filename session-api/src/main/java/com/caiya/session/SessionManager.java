@@ -1,6 +1,8 @@
 package com.caiya.session;
 
 import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
 
 /**
  * Session Manager Interface.
@@ -26,6 +28,15 @@ public interface SessionManager<S extends Session> {
      */
     void add(S session);
 
+    /**
+     * Write the pending changes of the given Session to the backing store. Depending
+     * on the implementation, changes may have already been written when they were
+     * made, in which case this does nothing.
+     *
+     * @param session the Session to save
+     */
+    void save(S session);
+
     /**
      * Change the session ID of the current session to a new randomly generated
      * session ID.
@@ -119,14 +130,63 @@ public interface SessionManager<S extends Session> {
      */
     S findById(String id);
 
+    /**
+     * Return the active Session with the specified session id, loading at least the
+     * given attributes with it. Implementations may load the other attributes on first
+     * access; by default all the attributes are loaded.
+     *
+     * @param id             The session id for the session to be returned
+     * @param attributeNames The names of the attributes the caller is going to read
+     * @return the request session or {@code null} if a session with the
+     * requested ID could not be found
+     */
+    default S findById(String id, String... attributeNames) {
+        return findById(id);
+    }
+
+    /**
+     * Return the first active Session among the given candidate ids, e.g. the values of
+     * duplicate session cookies. Implementations may check all the candidates at once; by
+     * default they are looked up one after the other.
+     *
+     * @param ids The candidate session ids, in order of preference
+     * @return the first session found or {@code null} if none of the ids is valid
+     */
+    default S findFirstById(List<String> ids) {
+        for (String id : ids) {
+            S session = findById(id);
+            if (session != null) {
+                return session;
+            }
+        }
+        return null;
+    }
+
 
     /**
      * Deletes the {@link Session} with the given {@link Session#getId()} or does nothing
      * if the {@link Session} is not found.
      *
      * @param id the {@link Session#getId()} to delete
+     * @return true if the session existed
+     */
+    boolean deleteById(String id);
+
+    /**
+     * Deletes the sessions with the given ids, ignoring the ones which are not found.
+     *
+     * @param ids the session ids
+     * @return the number of sessions which existed
      */
-    void deleteById(String id);
+    default int deleteByIds(Collection<String> ids) {
+        int deleted = 0;
+        for (String id : ids) {
+            if (deleteById(id)) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
 
 
 }
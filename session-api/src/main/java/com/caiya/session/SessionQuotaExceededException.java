@@ -0,0 +1,17 @@
+package com.caiya.session;
+
+/**
+ * Thrown when a session cannot be created because the sessions of its namespace, or of all
+ * the namespaces together, have reached their hard limit.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public class SessionQuotaExceededException extends SessionException {
+
+    private static final long serialVersionUID = 1L;
+
+    public SessionQuotaExceededException(String msg) {
+        super(msg);
+    }
+}
@@ -0,0 +1,38 @@
+package com.caiya.session.codec;
+
+/**
+ * Session Attribute Codec Interface.
+ * <p>
+ * The first byte of every encoded value is the {@link #getId()} of the codec which wrote
+ * it, so that {@link AttributeCodecs} can pick the right codec to decode a stored value
+ * whatever codec is configured now. Implementations must be thread-safe.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public interface AttributeCodec {
+
+    /**
+     * @return the identifier of this codec, written as the first byte of each encoded value
+     */
+    byte getId();
+
+    /**
+     * Encodes an attribute value.
+     *
+     * @param value the value, may be null
+     * @return the encoded value, starting with {@link #getId()}
+     * @throws com.caiya.session.SessionException if the value cannot be encoded
+     */
+    byte[] encode(Object value);
+
+    /**
+     * Decodes an attribute value.
+     *
+     * @param bytes the encoded value, starting with {@link #getId()}
+     * @return the value, may be null
+     * @throws com.caiya.session.SessionException if the value cannot be decoded
+     */
+    Object decode(byte[] bytes);
+
+}
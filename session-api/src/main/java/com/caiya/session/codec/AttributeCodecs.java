@@ -0,0 +1,354 @@
+package com.caiya.session.codec;
+
+import com.caiya.session.SessionException;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Selects the {@link AttributeCodec} of each session attribute: by attribute name first,
+ * then by the type of the value (the exact class, then the registered supertypes in
+ * registration order), then the default codec.
+ * <p>
+ * Any value encoded by a registered codec can be decoded, whatever codec is selected for
+ * its attribute now, so the selection can be changed without losing stored sessions.
+ * Codecs are registered at configuration time, before the instance is shared.
+ * <p>
+ * Encoded values of at least the compression threshold are compressed, see
+ * {@link #setCompression(AttributeCompressor, int)}. A compressed value starts with
+ * {@link #COMPRESSED}, the compressor id and the original length, so compressed and
+ * uncompressed values coexist.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public class AttributeCodecs {
+
+    /**
+     * The first byte of the compressed values, not available as a codec id.
+     */
+    public static final byte COMPRESSED = 0x7F;
+
+    private final AttributeCodec defaultCodec;
+
+    private final Map<String, AttributeCodec> codecsByName = new ConcurrentHashMap<>();
+
+    private final Map<Class<?>, AttributeCodec> codecsByType = new LinkedHashMap<>();
+
+    private final Map<Class<?>, AttributeCodec> resolvedCodecsByType = new ConcurrentHashMap<>();
+
+    private final AttributeCodec[] codecsById = new AttributeCodec[256];
+
+    private final AttributeCompressor[] compressorsById = new AttributeCompressor[256];
+
+    private AttributeCompressor compressor;
+
+    private int compressionThreshold = Integer.MAX_VALUE;
+
+    private final LongAdder compressedValues = new LongAdder();
+
+    private final LongAdder bytesBeforeCompression = new LongAdder();
+
+    private final LongAdder bytesAfterCompression = new LongAdder();
+
+    private final LongAdder compressionNanos = new LongAdder();
+
+    private final LongAdder decompressedValues = new LongAdder();
+
+    private final LongAdder decompressionNanos = new LongAdder();
+
+    /**
+     * Creates a new instance.
+     *
+     * @param defaultCodec the codec of the attributes without a specific one
+     */
+    public AttributeCodecs(AttributeCodec defaultCodec) {
+        if (defaultCodec == null)
+            throw new IllegalArgumentException("defaultCodec cannot be null");
+
+        this.defaultCodec = defaultCodec;
+        addCodec(defaultCodec);
+    }
+
+    /**
+     * Returns an instance using the {@link CompactAttributeCodec} by default. That codec
+     * writes a shared reference once per reference, so the copies are no longer the same
+     * object once decoded, and rejects cyclic object graphs. Only use this default when the
+     * attribute values are trees, and {@link #register(String, AttributeCodec) register}
+     * a {@link JdkAttributeCodec} for the other attributes.
+     *
+     * @return an instance using the {@link CompactAttributeCodec} by default, and able to
+     * decode the values of the {@link JdkAttributeCodec}
+     */
+    public static AttributeCodecs compact() {
+        AttributeCodecs attributeCodecs = new AttributeCodecs(new CompactAttributeCodec());
+        attributeCodecs.addCodec(new JdkAttributeCodec());
+        return attributeCodecs;
+    }
+
+    /**
+     * Uses the given codec for the attribute with the given name.
+     *
+     * @param attributeName the attribute name
+     * @param codec         the codec
+     * @return this instance
+     */
+    public AttributeCodecs register(String attributeName, AttributeCodec codec) {
+        if (attributeName == null)
+            throw new IllegalArgumentException("attributeName cannot be null");
+
+        addCodec(codec);
+        codecsByName.put(attributeName, codec);
+        return this;
+    }
+
+    /**
+     * Uses the given codec for the values of the given type or of its subtypes.
+     *
+     * @param type  the type
+     * @param codec the codec
+     * @return this instance
+     */
+    public AttributeCodecs register(Class<?> type, AttributeCodec codec) {
+        if (type == null)
+            throw new IllegalArgumentException("type cannot be null");
+
+        addCodec(codec);
+        synchronized (codecsByType) {
+            codecsByType.put(type, codec);
+        }
+        resolvedCodecsByType.clear();
+        return this;
+    }
+
+    /**
+     * Compresses the encoded values of at least the given size with the given compressor,
+     * unless compression does not make them smaller.
+     *
+     * @param compressor the compressor, or null to stop compressing
+     * @param threshold  the minimum size in bytes of the values to compress
+     * @return this instance
+     */
+    public AttributeCodecs setCompression(AttributeCompressor compressor, int threshold) {
+        if (threshold < 0)
+            throw new IllegalArgumentException("threshold cannot be negative");
+
+        if (compressor != null) {
+            addCompressor(compressor);
+        }
+        this.compressor = compressor;
+        this.compressionThreshold = compressor != null ? threshold : Integer.MAX_VALUE;
+        return this;
+    }
+
+    /**
+     * Makes the values compressed by the given compressor decodable without compressing
+     * new values with it.
+     *
+     * @param compressor the compressor
+     * @return this instance
+     */
+    public AttributeCodecs addCompressor(AttributeCompressor compressor) {
+        if (compressor == null)
+            throw new IllegalArgumentException("compressor cannot be null");
+
+        compressorsById[compressor.getId() & 0xFF] = compressor;
+        return this;
+    }
+
+    /**
+     * Makes the values of the given codec decodable without selecting it for any attribute.
+     *
+     * @param codec the codec
+     * @return this instance
+     */
+    public AttributeCodecs addCodec(AttributeCodec codec) {
+        if (codec == null)
+            throw new IllegalArgumentException("codec cannot be null");
+        if (codec.getId() == COMPRESSED)
+            throw new IllegalArgumentException("codec id " + COMPRESSED + " is reserved for the compressed values");
+        AttributeCodec existing = codecsById[codec.getId() & 0xFF];
+        if (existing != null && existing.getClass() != codec.getClass())
+            throw new IllegalArgumentException("codec id " + codec.getId() + " already used by " + existing.getClass().getName());
+
+        codecsById[codec.getId() & 0xFF] = codec;
+        return this;
+    }
+
+    /**
+     * Encodes the value of an attribute.
+     *
+     * @param attributeName the attribute name
+     * @param value         the value, may be null
+     * @return the encoded value
+     */
+    public byte[] encode(String attributeName, Object value) {
+        byte[] bytes = encodeUncompressed(attributeName, value);
+        AttributeCompressor compressor = this.compressor;
+        if (bytes.length < compressionThreshold || compressor == null) {
+            return bytes;
+        }
+
+        long start = System.nanoTime();
+        byte[] compressed = compressor.compress(bytes);
+        int headerLength = 2 + varIntLength(bytes.length);
+        if (compressed.length + headerLength >= bytes.length) {
+            compressionNanos.add(System.nanoTime() - start);
+            return bytes;
+        }
+        byte[] result = new byte[headerLength + compressed.length];
+        result[0] = COMPRESSED;
+        result[1] = compressor.getId();
+        int position = 2;
+        for (int length = bytes.length; ; length >>>= 7) {
+            if ((length & ~0x7F) == 0) {
+                result[position++] = (byte) length;
+                break;
+            }
+            result[position++] = (byte) ((length & 0x7F) | 0x80);
+        }
+        System.arraycopy(compressed, 0, result, position, compressed.length);
+        compressionNanos.add(System.nanoTime() - start);
+        compressedValues.increment();
+        bytesBeforeCompression.add(bytes.length);
+        bytesAfterCompression.add(result.length);
+        return result;
+    }
+
+    /**
+     * Encodes the value of an attribute, whatever its size.
+     *
+     * @param attributeName the attribute name
+     * @param value         the value, may be null
+     * @return the encoded value
+     */
+    public byte[] encodeUncompressed(String attributeName, Object value) {
+        return select(attributeName, value).encode(value);
+    }
+
+    /**
+     * Decodes the value of an attribute.
+     *
+     * @param bytes the encoded value
+     * @return the value, may be null
+     * @throws SessionException if no registered codec wrote the value
+     */
+    public Object decode(byte[] bytes) {
+        if (bytes != null && bytes.length > 0 && bytes[0] == COMPRESSED) {
+            bytes = decompress(bytes);
+        }
+        AttributeCodec codec = codecFor(bytes);
+        if (codec == null)
+            throw new SessionException("no attribute codec found for the stored value");
+
+        return codec.decode(bytes);
+    }
+
+    /**
+     * @param bytes a stored value
+     * @return true if the value has been written by a registered codec
+     */
+    public boolean isDecodable(byte[] bytes) {
+        if (bytes != null && bytes.length > 1 && bytes[0] == COMPRESSED) {
+            return compressorsById[bytes[1] & 0xFF] != null;
+        }
+        return codecFor(bytes) != null;
+    }
+
+    private byte[] decompress(byte[] bytes) {
+        AttributeCompressor compressor = bytes.length > 1 ? compressorsById[bytes[1] & 0xFF] : null;
+        if (compressor == null)
+            throw new SessionException("no attribute compressor found for the stored value");
+
+        int originalLength = 0;
+        int position = 2;
+        for (int shift = 0; ; shift += 7) {
+            if (position >= bytes.length || shift > 28)
+                throw new SessionException("malformed compressed attribute value");
+
+            byte b = bytes[position++];
+            originalLength |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        long start = System.nanoTime();
+        byte[] decompressed = compressor.decompress(bytes, position, originalLength);
+        decompressionNanos.add(System.nanoTime() - start);
+        decompressedValues.increment();
+        return decompressed;
+    }
+
+    private static int varIntLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * @return the number of values written compressed
+     */
+    public long getCompressedValues() {
+        return compressedValues.sum();
+    }
+
+    /**
+     * @return the size of the values written compressed, divided by their compressed size,
+     * or 1 if none has been compressed yet
+     */
+    public double getCompressionRatio() {
+        long after = bytesAfterCompression.sum();
+        return after == 0 ? 1 : (double) bytesBeforeCompression.sum() / after;
+    }
+
+    /**
+     * @return the time spent compressing, including the values left uncompressed because
+     * compression did not make them smaller
+     */
+    public long getCompressionNanos() {
+        return compressionNanos.sum();
+    }
+
+    public long getDecompressedValues() {
+        return decompressedValues.sum();
+    }
+
+    public long getDecompressionNanos() {
+        return decompressionNanos.sum();
+    }
+
+    private AttributeCodec codecFor(byte[] bytes) {
+        return bytes == null || bytes.length == 0 ? null : codecsById[bytes[0] & 0xFF];
+    }
+
+    private AttributeCodec select(String attributeName, Object value) {
+        AttributeCodec codec = attributeName != null ? codecsByName.get(attributeName) : null;
+        if (codec != null) {
+            return codec;
+        }
+        if (value == null || codecsByType.isEmpty()) {
+            return defaultCodec;
+        }
+        return resolvedCodecsByType.computeIfAbsent(value.getClass(), this::resolve);
+    }
+
+    private AttributeCodec resolve(Class<?> type) {
+        synchronized (codecsByType) {
+            AttributeCodec codec = codecsByType.get(type);
+            if (codec != null) {
+                return codec;
+            }
+            for (Map.Entry<Class<?>, AttributeCodec> entry : codecsByType.entrySet()) {
+                if (entry.getKey().isAssignableFrom(type)) {
+                    return entry.getValue();
+                }
+            }
+            return defaultCodec;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.caiya.session.codec;
+
+/**
+ * Session Attribute Compressor Interface, used by {@link AttributeCodecs} for the encoded
+ * values above its compression threshold. Implementations must be thread-safe.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public interface AttributeCompressor {
+
+    /**
+     * @return the identifier of this compressor, written with each compressed value
+     */
+    byte getId();
+
+    /**
+     * Compresses an encoded value.
+     *
+     * @param bytes the encoded value
+     * @return the compressed bytes
+     */
+    byte[] compress(byte[] bytes);
+
+    /**
+     * Decompresses a value compressed by this compressor.
+     *
+     * @param bytes          the bytes containing the compressed value
+     * @param offset         the offset of the compressed value
+     * @param originalLength the length of the value before compression
+     * @return the encoded value
+     * @throws com.caiya.session.SessionException if the value cannot be decompressed
+     */
+    byte[] decompress(byte[] bytes, int offset, int originalLength);
+
+}
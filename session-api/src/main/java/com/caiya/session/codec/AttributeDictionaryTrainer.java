@@ -0,0 +1,130 @@
+package com.caiya.session.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.util.*;
+
+/**
+ * Builds a preset dictionary for the {@link DeflateAttributeCompressor} from sampled
+ * encoded attribute values, e.g. dumped from a redis replica. Meant to be run offline:
+ * <pre>
+ * byte[] dictionary = AttributeDictionaryTrainer.train(samples, 16 * 1024);
+ * </pre>
+ * The dictionary is made of the byte sequences found in the most samples, the most common
+ * ones last since deflate encodes closer matches in fewer bits.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public final class AttributeDictionaryTrainer {
+
+    /**
+     * Length of the sequences counted in the samples.
+     */
+    private static final int GRAM_LENGTH = 8;
+
+    /**
+     * Length of the segment copied into the dictionary around a common sequence.
+     */
+    private static final int SEGMENT_LENGTH = 32;
+
+    /**
+     * Only the beginning of larger samples is read.
+     */
+    private static final int MAX_SAMPLE_LENGTH = 32 * 1024;
+
+    private AttributeDictionaryTrainer() {
+    }
+
+    /**
+     * Builds a dictionary.
+     *
+     * @param samples        the encoded attribute values
+     * @param dictionarySize the maximum size of the dictionary, deflate uses at most 32 KB
+     * @return the dictionary, empty if the samples have nothing in common
+     */
+    public static byte[] train(Collection<byte[]> samples, int dictionarySize) {
+        if (samples == null || samples.isEmpty())
+            throw new IllegalArgumentException("samples cannot be empty");
+        if (dictionarySize <= 0)
+            throw new IllegalArgumentException("dictionarySize must be positive");
+
+        // number of samples containing each sequence, and where it was first seen
+        Map<Long, Gram> grams = new HashMap<>();
+        List<byte[]> sampleList = new ArrayList<>(samples);
+        for (int s = 0; s < sampleList.size(); s++) {
+            byte[] sample = sampleList.get(s);
+            int end = Math.min(sample.length, MAX_SAMPLE_LENGTH) - GRAM_LENGTH;
+            Set<Long> seen = new HashSet<>();
+            for (int i = 0; i <= end; i++) {
+                long key = gram(sample, i);
+                if (seen.add(key)) {
+                    Gram gram = grams.get(key);
+                    if (gram == null) {
+                        grams.put(key, new Gram(s, i));
+                    } else {
+                        gram.samples++;
+                    }
+                }
+            }
+        }
+
+        List<Map.Entry<Long, Gram>> common = new ArrayList<>();
+        for (Map.Entry<Long, Gram> entry : grams.entrySet()) {
+            if (entry.getValue().samples > 1) {
+                common.add(entry);
+            }
+        }
+        common.sort((a, b) -> Integer.compare(b.getValue().samples, a.getValue().samples));
+
+        // most common first, reversed at the end
+        List<byte[]> segments = new ArrayList<>();
+        Set<Long> covered = new HashSet<>();
+        int size = 0;
+        for (Map.Entry<Long, Gram> entry : common) {
+            if (size >= dictionarySize) {
+                break;
+            }
+            if (covered.contains(entry.getKey())) {
+                continue;
+            }
+            Gram gram = entry.getValue();
+            byte[] sample = sampleList.get(gram.sample);
+            int from = Math.max(0, gram.offset - (SEGMENT_LENGTH - GRAM_LENGTH) / 2);
+            int to = Math.min(sample.length, Math.min(from + SEGMENT_LENGTH, from + dictionarySize - size));
+            byte[] segment = Arrays.copyOfRange(sample, from, to);
+            for (int i = 0; i + GRAM_LENGTH <= segment.length; i++) {
+                covered.add(gram(segment, i));
+            }
+            segments.add(segment);
+            size += segment.length;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            out.write(segments.get(i), 0, segments.get(i).length);
+        }
+        return out.toByteArray();
+    }
+
+    private static long gram(byte[] bytes, int offset) {
+        long key = 0;
+        for (int i = 0; i < GRAM_LENGTH; i++) {
+            key = (key << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return key;
+    }
+
+    private static final class Gram {
+
+        private final int sample;
+
+        private final int offset;
+
+        private int samples = 1;
+
+        Gram(int sample, int offset) {
+            this.sample = sample;
+            this.offset = offset;
+        }
+    }
+}
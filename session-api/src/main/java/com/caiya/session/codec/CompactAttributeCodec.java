@@ -0,0 +1,638 @@
+package com.caiya.session.codec;
+
+import com.caiya.session.SessionException;
+
+import java.io.Externalizable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact binary attribute codec.
+ * <p>
+ * Every value is written as a one byte tag followed by its payload. Numbers are variable
+ * length, strings are UTF-8, the common collections and arrays are written element by
+ * element, and other objects field by field: the class name and the field names are only
+ * written once per encoded value. A class may gain or lose fields, the unknown fields are
+ * skipped and the missing ones keep their default value.
+ * <p>
+ * Objects are written field by field only if their class has a no-argument constructor
+ * and no custom serialization ({@code writeObject}, {@code readObject},
+ * {@code writeReplace}, {@code readResolve} or {@link Externalizable}); other values fall
+ * back to the JDK serialization. Shared references are written as many times as they are
+ * referenced, and cyclic object graphs are rejected: register a {@link JdkAttributeCodec}
+ * for such attributes.
+ * <p>
+ * Encoding reuses a buffer per thread, only the result is allocated. Classes are looked up
+ * by name once per codec instance, with the thread context class loader of the first lookup.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public class CompactAttributeCodec implements AttributeCodec {
+
+    public static final byte ID = 0x01;
+
+    private static final int MAX_DEPTH = 64;
+
+    /**
+     * Larger thread buffers are not kept after use.
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte SHORT = 5;
+    private static final byte BYTE = 6;
+    private static final byte CHAR = 7;
+    private static final byte FLOAT = 8;
+    private static final byte DOUBLE = 9;
+    private static final byte STRING = 10;
+    private static final byte BYTES = 11;
+    private static final byte DATE = 12;
+    private static final byte INSTANT = 13;
+    private static final byte BIG_DECIMAL = 14;
+    private static final byte BIG_INTEGER = 15;
+    private static final byte ENUM = 16;
+    private static final byte ARRAY_LIST = 17;
+    private static final byte HASH_SET = 18;
+    private static final byte LINKED_HASH_SET = 19;
+    private static final byte HASH_MAP = 20;
+    private static final byte LINKED_HASH_MAP = 21;
+    private static final byte INT_ARRAY = 22;
+    private static final byte LONG_ARRAY = 23;
+    private static final byte OBJECT = 24;
+    private static final byte JAVA = 25;
+
+    private final ThreadLocal<Output> outputs = ThreadLocal.withInitial(Output::new);
+
+    private final Map<Class<?>, ClassInfo> classInfos = new ConcurrentHashMap<>();
+
+    /**
+     * The classes already looked up by name when decoding.
+     */
+    private final Map<String, Class<?>> classesByName = new ConcurrentHashMap<>();
+
+    private final JdkAttributeCodec fallbackCodec = new JdkAttributeCodec();
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        Output out = outputs.get();
+        try {
+            out.writeByte(ID);
+            writeValue(out, value, 0);
+            return Arrays.copyOf(out.buffer, out.position);
+        } finally {
+            out.reset();
+            if (out.buffer.length > MAX_RETAINED_BUFFER_SIZE) {
+                outputs.remove();
+            }
+        }
+    }
+
+    @Override
+    public Object decode(byte[] bytes) {
+        if (bytes == null || bytes.length == 0 || bytes[0] != ID)
+            throw new SessionException("not a value of the compact attribute codec");
+
+        Input in = new Input(bytes);
+        in.position = 1;
+        try {
+            return readValue(in);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new SessionException("truncated attribute value", e);
+        }
+    }
+
+    // ---------------------------------------------------------------- encoding
+
+    private void writeValue(Output out, Object value, int depth) {
+        if (depth > MAX_DEPTH)
+            throw new SessionException("attribute value nested too deep, cyclic references are not supported");
+
+        if (value == null) {
+            out.writeByte(NULL);
+            return;
+        }
+        Class<?> type = value.getClass();
+        if (type == String.class) {
+            out.writeByte(STRING);
+            out.writeString((String) value);
+        } else if (type == Integer.class) {
+            out.writeByte(INT);
+            out.writeVarLong(zigZag((Integer) value));
+        } else if (type == Long.class) {
+            out.writeByte(LONG);
+            out.writeVarLong(zigZag((Long) value));
+        } else if (type == Boolean.class) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (type == Double.class) {
+            out.writeByte(DOUBLE);
+            out.writeLong(Double.doubleToRawLongBits((Double) value));
+        } else if (type == Float.class) {
+            out.writeByte(FLOAT);
+            out.writeInt(Float.floatToRawIntBits((Float) value));
+        } else if (type == Short.class) {
+            out.writeByte(SHORT);
+            out.writeVarLong(zigZag((Short) value));
+        } else if (type == Byte.class) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        } else if (type == Character.class) {
+            out.writeByte(CHAR);
+            out.writeVarLong((Character) value);
+        } else if (type == byte[].class) {
+            byte[] bytes = (byte[]) value;
+            out.writeByte(BYTES);
+            out.writeVarLong(bytes.length);
+            out.writeBytes(bytes, 0, bytes.length);
+        } else if (type == int[].class) {
+            int[] ints = (int[]) value;
+            out.writeByte(INT_ARRAY);
+            out.writeVarLong(ints.length);
+            for (int i : ints) {
+                out.writeVarLong(zigZag(i));
+            }
+        } else if (type == long[].class) {
+            long[] longs = (long[]) value;
+            out.writeByte(LONG_ARRAY);
+            out.writeVarLong(longs.length);
+            for (long l : longs) {
+                out.writeVarLong(zigZag(l));
+            }
+        } else if (type == Date.class) {
+            out.writeByte(DATE);
+            out.writeVarLong(zigZag(((Date) value).getTime()));
+        } else if (type == Instant.class) {
+            Instant instant = (Instant) value;
+            out.writeByte(INSTANT);
+            out.writeVarLong(zigZag(instant.getEpochSecond()));
+            out.writeVarLong(instant.getNano());
+        } else if (type == BigDecimal.class) {
+            out.writeByte(BIG_DECIMAL);
+            out.writeString(value.toString());
+        } else if (type == BigInteger.class) {
+            byte[] bytes = ((BigInteger) value).toByteArray();
+            out.writeByte(BIG_INTEGER);
+            out.writeVarLong(bytes.length);
+            out.writeBytes(bytes, 0, bytes.length);
+        } else if (value instanceof Enum) {
+            out.writeByte(ENUM);
+            out.writeString(((Enum<?>) value).getDeclaringClass().getName());
+            out.writeString(((Enum<?>) value).name());
+        } else if (type == ArrayList.class) {
+            out.writeByte(ARRAY_LIST);
+            writeElements(out, (Collection<?>) value, depth);
+        } else if (type == HashSet.class) {
+            out.writeByte(HASH_SET);
+            writeElements(out, (Collection<?>) value, depth);
+        } else if (type == LinkedHashSet.class) {
+            out.writeByte(LINKED_HASH_SET);
+            writeElements(out, (Collection<?>) value, depth);
+        } else if (type == HashMap.class) {
+            out.writeByte(HASH_MAP);
+            writeEntries(out, (Map<?, ?>) value, depth);
+        } else if (type == LinkedHashMap.class) {
+            out.writeByte(LINKED_HASH_MAP);
+            writeEntries(out, (Map<?, ?>) value, depth);
+        } else {
+            ClassInfo classInfo = classInfos.computeIfAbsent(type, ClassInfo::new);
+            if (classInfo.fieldByField) {
+                writeObject(out, value, classInfo, depth);
+            } else {
+                byte[] bytes = fallbackCodec.encode(value);
+                out.writeByte(JAVA);
+                out.writeVarLong(bytes.length);
+                out.writeBytes(bytes, 0, bytes.length);
+            }
+        }
+    }
+
+    private void writeElements(Output out, Collection<?> elements, int depth) {
+        out.writeVarLong(elements.size());
+        for (Object element : elements) {
+            writeValue(out, element, depth + 1);
+        }
+    }
+
+    private void writeEntries(Output out, Map<?, ?> entries, int depth) {
+        out.writeVarLong(entries.size());
+        for (Map.Entry<?, ?> entry : entries.entrySet()) {
+            writeValue(out, entry.getKey(), depth + 1);
+            writeValue(out, entry.getValue(), depth + 1);
+        }
+    }
+
+    private void writeObject(Output out, Object value, ClassInfo classInfo, int depth) {
+        out.writeByte(OBJECT);
+        int index = out.classes.indexOf(classInfo);
+        if (index >= 0) {
+            out.writeVarLong(index);
+        } else {
+            out.writeVarLong(out.classes.size());
+            out.classes.add(classInfo);
+            out.writeString(classInfo.type.getName());
+            out.writeVarLong(classInfo.fields.length);
+            for (Field field : classInfo.fields) {
+                out.writeString(field.getName());
+            }
+        }
+        try {
+            for (Field field : classInfo.fields) {
+                writeValue(out, field.get(value), depth + 1);
+            }
+        } catch (IllegalAccessException e) {
+            throw new SessionException("cannot read the fields of " + classInfo.type.getName(), e);
+        }
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    // ---------------------------------------------------------------- decoding
+
+    private Object readValue(Input in) {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case INT:
+                return (int) unZigZag(in.readVarLong());
+            case LONG:
+                return unZigZag(in.readVarLong());
+            case SHORT:
+                return (short) unZigZag(in.readVarLong());
+            case BYTE:
+                return in.readByte();
+            case CHAR:
+                return (char) in.readVarLong();
+            case FLOAT:
+                return Float.intBitsToFloat(in.readInt());
+            case DOUBLE:
+                return Double.longBitsToDouble(in.readLong());
+            case STRING:
+                return in.readString();
+            case BYTES:
+                return in.readBytes((int) in.readVarLong());
+            case DATE:
+                return new Date(unZigZag(in.readVarLong()));
+            case INSTANT:
+                return Instant.ofEpochSecond(unZigZag(in.readVarLong()), in.readVarLong());
+            case BIG_DECIMAL:
+                return new BigDecimal(in.readString());
+            case BIG_INTEGER:
+                return new BigInteger(in.readBytes((int) in.readVarLong()));
+            case ENUM:
+                return readEnum(in);
+            case ARRAY_LIST:
+                return readElements(in, new ArrayList<>());
+            case HASH_SET:
+                return readElements(in, new HashSet<>());
+            case LINKED_HASH_SET:
+                return readElements(in, new LinkedHashSet<>());
+            case HASH_MAP:
+                return readEntries(in, new HashMap<>());
+            case LINKED_HASH_MAP:
+                return readEntries(in, new LinkedHashMap<>());
+            case INT_ARRAY:
+                int[] ints = new int[(int) in.readVarLong()];
+                for (int i = 0; i < ints.length; i++) {
+                    ints[i] = (int) unZigZag(in.readVarLong());
+                }
+                return ints;
+            case LONG_ARRAY:
+                long[] longs = new long[(int) in.readVarLong()];
+                for (int i = 0; i < longs.length; i++) {
+                    longs[i] = unZigZag(in.readVarLong());
+                }
+                return longs;
+            case OBJECT:
+                return readObject(in);
+            case JAVA:
+                return fallbackCodec.decode(in.readBytes((int) in.readVarLong()));
+            default:
+                throw new SessionException("unknown tag in attribute value: " + tag);
+        }
+    }
+
+    private Collection<Object> readElements(Input in, Collection<Object> elements) {
+        int size = (int) in.readVarLong();
+        for (int i = 0; i < size; i++) {
+            elements.add(readValue(in));
+        }
+        return elements;
+    }
+
+    private Map<Object, Object> readEntries(Input in, Map<Object, Object> entries) {
+        int size = (int) in.readVarLong();
+        for (int i = 0; i < size; i++) {
+            entries.put(readValue(in), readValue(in));
+        }
+        return entries;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Object readEnum(Input in) {
+        Class<?> type = loadClass(in.readString());
+        return Enum.valueOf((Class) type, in.readString());
+    }
+
+    private Object readObject(Input in) {
+        int index = (int) in.readVarLong();
+        ClassLayout layout;
+        if (index < in.classes.size()) {
+            layout = in.classes.get(index);
+        } else {
+            ClassInfo classInfo = classInfos.computeIfAbsent(loadClass(in.readString()), ClassInfo::new);
+            if (!classInfo.fieldByField)
+                throw new SessionException("cannot decode " + classInfo.type.getName() + " field by field");
+
+            Field[] fields = new Field[(int) in.readVarLong()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = classInfo.fieldsByName.get(in.readString());
+            }
+            layout = new ClassLayout(classInfo, fields);
+            in.classes.add(layout);
+        }
+
+        Object value;
+        try {
+            value = layout.classInfo.constructor.newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new SessionException("cannot instantiate " + layout.classInfo.type.getName(), e);
+        }
+        for (Field field : layout.fields) {
+            Object fieldValue = readValue(in);
+            if (field == null) {
+                // removed since the value was written
+                continue;
+            }
+            try {
+                field.set(value, fieldValue);
+            } catch (IllegalArgumentException e) {
+                // the type of the field changed since the value was written, keep the default
+            } catch (IllegalAccessException e) {
+                throw new SessionException("cannot write the fields of " + layout.classInfo.type.getName(), e);
+            }
+        }
+        return value;
+    }
+
+    private Class<?> loadClass(String name) {
+        Class<?> type = classesByName.get(name);
+        if (type != null) {
+            return type;
+        }
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        try {
+            type = Class.forName(name, false, classLoader != null ? classLoader : getClass().getClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw new SessionException("class of the attribute value not found: " + name, e);
+        }
+        classesByName.put(name, type);
+        return type;
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    // ---------------------------------------------------------------- support
+
+    /**
+     * How the objects of a class are written, computed once per class.
+     */
+    private static final class ClassInfo {
+
+        private final Class<?> type;
+
+        private final boolean fieldByField;
+
+        private final Constructor<?> constructor;
+
+        private final Field[] fields;
+
+        private final Map<String, Field> fieldsByName = new HashMap<>();
+
+        ClassInfo(Class<?> type) {
+            this.type = type;
+            Constructor<?> constructor = null;
+            List<Field> fields = new ArrayList<>();
+            // the internals of the jdk classes are left to their own serialization
+            boolean fieldByField = !type.isArray() && !type.getName().startsWith("java.")
+                    && !Externalizable.class.isAssignableFrom(type) && !type.isSynthetic();
+            if (fieldByField) {
+                try {
+                    constructor = type.getDeclaredConstructor();
+                    constructor.setAccessible(true);
+                } catch (NoSuchMethodException | SecurityException e) {
+                    fieldByField = false;
+                }
+            }
+            for (Class<?> current = type; fieldByField && current != Object.class; current = current.getSuperclass()) {
+                if (hasCustomSerialization(current)) {
+                    fieldByField = false;
+                    break;
+                }
+                Field[] declaredFields = current.getDeclaredFields();
+                Arrays.sort(declaredFields, Comparator.comparing(Field::getName));
+                for (Field field : declaredFields) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                        continue;
+                    }
+                    if (fieldsByName.containsKey(field.getName())) {
+                        // shadowed field names cannot be told apart
+                        fieldByField = false;
+                        break;
+                    }
+                    field.setAccessible(true);
+                    fields.add(field);
+                    fieldsByName.put(field.getName(), field);
+                }
+            }
+            this.fieldByField = fieldByField;
+            this.constructor = constructor;
+            this.fields = fields.toArray(new Field[0]);
+        }
+
+        private static boolean hasCustomSerialization(Class<?> type) {
+            for (Method method : type.getDeclaredMethods()) {
+                switch (method.getName()) {
+                    case "writeObject":
+                    case "readObject":
+                    case "writeReplace":
+                    case "readResolve":
+                        return true;
+                    default:
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The fields of a class as written in a value, null where the field no longer exists.
+     */
+    private static final class ClassLayout {
+
+        private final ClassInfo classInfo;
+
+        private final Field[] fields;
+
+        ClassLayout(ClassInfo classInfo, Field[] fields) {
+            this.classInfo = classInfo;
+            this.fields = fields;
+        }
+    }
+
+    private static final class Output {
+
+        private byte[] buffer = new byte[256];
+
+        private int position;
+
+        private final List<ClassInfo> classes = new ArrayList<>(4);
+
+        void reset() {
+            position = 0;
+            classes.clear();
+        }
+
+        private void ensure(int length) {
+            if (position + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + length));
+            }
+        }
+
+        void writeByte(int value) {
+            ensure(1);
+            buffer[position++] = (byte) value;
+        }
+
+        void writeBytes(byte[] bytes, int offset, int length) {
+            ensure(length);
+            System.arraycopy(bytes, offset, buffer, position, length);
+            position += length;
+        }
+
+        void writeInt(int value) {
+            ensure(4);
+            buffer[position++] = (byte) (value >>> 24);
+            buffer[position++] = (byte) (value >>> 16);
+            buffer[position++] = (byte) (value >>> 8);
+            buffer[position++] = (byte) value;
+        }
+
+        void writeLong(long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeString(String value) {
+            int length = value.length();
+            int i = 0;
+            while (i < length && value.charAt(i) < 0x80) {
+                i++;
+            }
+            if (i == length) {
+                // ascii only, one byte per char
+                writeVarLong(length);
+                ensure(length);
+                for (int j = 0; j < length; j++) {
+                    buffer[position++] = (byte) value.charAt(j);
+                }
+            } else {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                writeVarLong(bytes.length);
+                writeBytes(bytes, 0, bytes.length);
+            }
+        }
+    }
+
+    private static final class Input {
+
+        private final byte[] buffer;
+
+        private int position;
+
+        private final List<ClassLayout> classes = new ArrayList<>(4);
+
+        Input(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        byte readByte() {
+            return buffer[position++];
+        }
+
+        byte[] readBytes(int length) {
+            if (length < 0 || position + length > buffer.length)
+                throw new SessionException("truncated attribute value");
+
+            byte[] bytes = Arrays.copyOfRange(buffer, position, position + length);
+            position += length;
+            return bytes;
+        }
+
+        int readInt() {
+            return ((buffer[position++] & 0xFF) << 24) | ((buffer[position++] & 0xFF) << 16)
+                    | ((buffer[position++] & 0xFF) << 8) | (buffer[position++] & 0xFF);
+        }
+
+        long readLong() {
+            return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = buffer[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new SessionException("malformed variable length number in attribute value");
+        }
+
+        String readString() {
+            int length = (int) readVarLong();
+            if (length < 0 || position + length > buffer.length)
+                throw new SessionException("truncated attribute value");
+
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.caiya.session.codec;
+
+import com.caiya.session.SessionException;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Attribute compressor using the deflate (zlib) format of the JDK.
+ * <p>
+ * A preset dictionary, e.g. one trained offline on sampled session payloads with
+ * {@link AttributeDictionaryTrainer}, greatly improves the ratio of small and similar
+ * values. The values are compressed with the first dictionary; the zlib stream records
+ * the checksum of its dictionary, so values compressed with any of the given dictionaries
+ * can be decompressed, which allows to roll out a new dictionary while keeping the old one.
+ * <p>
+ * The native deflaters and inflaters are reused per thread.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public class DeflateAttributeCompressor implements AttributeCompressor {
+
+    public static final byte ID = 0x01;
+
+    private final int level;
+
+    private final byte[] dictionary;
+
+    private final Map<Integer, byte[]> dictionariesById = new HashMap<>();
+
+    private final ThreadLocal<Deflater> deflaters;
+
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    public DeflateAttributeCompressor() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param level        the compression level, from 0 to 9 or -1 for the default
+     * @param dictionaries the preset dictionaries, the first one is used to compress
+     */
+    public DeflateAttributeCompressor(int level, byte[]... dictionaries) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("level must be between -1 and 9");
+
+        this.level = level;
+        this.dictionary = dictionaries.length > 0 ? dictionaries[0] : null;
+        for (byte[] dictionary : dictionaries) {
+            if (dictionary == null || dictionary.length == 0)
+                throw new IllegalArgumentException("dictionary cannot be empty");
+
+            Adler32 adler32 = new Adler32();
+            adler32.update(dictionary);
+            dictionariesById.put((int) adler32.getValue(), dictionary);
+        }
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(this.level));
+    }
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public byte[] compress(byte[] bytes) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(bytes);
+        deflater.finish();
+        byte[] buffer = new byte[Math.max(64, bytes.length / 2)];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        return length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+    }
+
+    @Override
+    public byte[] decompress(byte[] bytes, int offset, int originalLength) {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(bytes, offset, bytes.length - offset);
+        byte[] result = new byte[originalLength];
+        int length = 0;
+        try {
+            while (length < originalLength && !inflater.finished()) {
+                int inflated = inflater.inflate(result, length, originalLength - length);
+                if (inflated == 0 && inflater.needsDictionary()) {
+                    byte[] dictionary = dictionariesById.get(inflater.getAdler());
+                    if (dictionary == null)
+                        throw new SessionException("the dictionary of the compressed attribute value is unknown");
+
+                    inflater.setDictionary(dictionary);
+                } else if (inflated == 0 && inflater.needsInput()) {
+                    throw new SessionException("truncated compressed attribute value");
+                }
+                length += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new SessionException("corrupted compressed attribute value", e);
+        }
+        if (length != originalLength)
+            throw new SessionException("unexpected length of the decompressed attribute value");
+
+        return result;
+    }
+}
@@ -0,0 +1,65 @@
+package com.caiya.session.codec;
+
+import com.caiya.session.SessionException;
+
+import java.io.*;
+
+/**
+ * Attribute codec using the JDK serialization. The encoded value is a plain serialization
+ * stream, whose first byte (0xAC) is the identifier of this codec.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public class JdkAttributeCodec implements AttributeCodec {
+
+    public static final byte ID = (byte) 0xAC;
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream oos = new ObjectOutputStream(out)) {
+            oos.writeObject(value);
+        } catch (IOException e) {
+            throw new SessionException("cannot serialize the attribute value", e);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] bytes) {
+        try (ObjectInputStream ois = new ContextObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return ois.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new SessionException("cannot deserialize the attribute value", e);
+        }
+    }
+
+    /**
+     * Resolves the classes with the thread context class loader, as web applications expect.
+     */
+    private static final class ContextObjectInputStream extends ObjectInputStream {
+
+        ContextObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+            if (classLoader != null) {
+                try {
+                    return Class.forName(desc.getName(), false, classLoader);
+                } catch (ClassNotFoundException ignored) {
+                    // fall back to the default resolution
+                }
+            }
+            return super.resolveClass(desc);
+        }
+    }
+}
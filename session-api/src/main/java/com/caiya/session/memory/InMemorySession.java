@@ -0,0 +1,202 @@
+package com.caiya.session.memory;
+
+import com.caiya.session.Session;
+import com.caiya.session.SessionException;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Session of an {@link InMemorySessionManager}. The manager hands out the stored instance
+ * itself, so its changes are visible to the other requests at once and saving it writes
+ * nothing; it is safe for concurrent use.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public class InMemorySession implements Session<InMemorySessionManager> {
+
+    /**
+     * The access count saturates here, it only orders the sessions for eviction.
+     */
+    private static final int MAX_HITS = 15;
+
+    private volatile String id;
+
+    private volatile String originalId;
+
+    private final Instant creationTime;
+
+    private volatile long lastAccessedTime;
+
+    private volatile long maxInactiveIntervalMillis;
+
+    private final ConcurrentMap<String, Object> attributes = new ConcurrentHashMap<>();
+
+    private volatile InMemorySessionManager manager;
+
+    // ---------------------------------------------------------------- bookkeeping of the manager
+
+    final TimerWheel.Node<InMemorySession> timerNode = new TimerWheel.Node<>(this);
+
+    /**
+     * The neighbours in the probation queue of the manager, guarded by its lock.
+     */
+    InMemorySession probationPrev;
+
+    InMemorySession probationNext;
+
+    /**
+     * Set once the manager has scheduled the session the first time, guarded by its lock.
+     */
+    boolean admitted;
+
+    /**
+     * Set once the session is removed from the manager.
+     */
+    volatile boolean removed;
+
+    /**
+     * The accesses since the session was created, a lossy count.
+     */
+    volatile int hits;
+
+    InMemorySession(String id, long now, Duration maxInactiveInterval, InMemorySessionManager manager) {
+        this.id = id;
+        this.originalId = id;
+        this.creationTime = Instant.ofEpochMilli(now);
+        this.lastAccessedTime = now;
+        this.maxInactiveIntervalMillis = maxInactiveInterval == null ? 0 : maxInactiveInterval.toMillis();
+        this.manager = manager;
+    }
+
+    @Override
+    public Instant getCreationTime() {
+        return creationTime;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    void setId(String id) {
+        this.id = id;
+    }
+
+    /**
+     * Changes the id of the stored session.
+     *
+     * @throws SessionException if a session with the new id exists
+     */
+    @Override
+    public void changeId(String newId) {
+        if (!manager.changeSessionId(this, newId))
+            throw new SessionException("session id already exists: " + newId);
+    }
+
+    /**
+     * @return the id of the session when it was created or last saved
+     */
+    @Override
+    public String getOriginalId() {
+        return originalId;
+    }
+
+    void saved() {
+        originalId = id;
+    }
+
+    @Override
+    public Instant getLastAccessedTime() {
+        return Instant.ofEpochMilli(lastAccessedTime);
+    }
+
+    /**
+     * Only a volatile write: the manager finds out about the new expiration time when the
+     * old one is due.
+     */
+    @Override
+    public void setLastAccessedTime(Instant lastAccessedTime) {
+        this.lastAccessedTime = lastAccessedTime.toEpochMilli();
+    }
+
+    /**
+     * @return the time left before the session expires, as the TTL of a redis session;
+     * -1 second if it never expires
+     */
+    @Override
+    public Duration getIdleTime() {
+        long interval = maxInactiveIntervalMillis;
+        if (interval <= 0) {
+            return Duration.ofSeconds(-1);
+        }
+        return Duration.ofMillis(Math.max(0, lastAccessedTime + interval - manager.now()));
+    }
+
+    @Override
+    public void setMaxInactiveInterval(Duration interval) {
+        this.maxInactiveIntervalMillis = interval == null ? 0 : interval.toMillis();
+        manager.rescheduled(this);
+    }
+
+    @Override
+    public Duration getMaxInactiveInterval() {
+        return Duration.ofMillis(maxInactiveIntervalMillis);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T getAttribute(String name) {
+        return (T) attributes.get(name);
+    }
+
+    @Override
+    public Set<String> getAttributeNames() {
+        return Collections.unmodifiableSet(attributes.keySet());
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (value == null) {
+            attributes.remove(name);
+        } else {
+            attributes.put(name, value);
+        }
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+        attributes.remove(name);
+    }
+
+    @Override
+    public InMemorySessionManager getManager() {
+        return manager;
+    }
+
+    @Override
+    public void setManager(InMemorySessionManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * @return the time the session expires at in milliseconds, or {@link Long#MAX_VALUE}
+     * if it never expires
+     */
+    long expiresAt() {
+        long interval = maxInactiveIntervalMillis;
+        return interval > 0 ? lastAccessedTime + interval : Long.MAX_VALUE;
+    }
+
+    void recordHit() {
+        int count = hits;
+        if (count < MAX_HITS) {
+            hits = count + 1;
+        }
+    }
+}
@@ -0,0 +1,588 @@
+package com.caiya.session.memory;
+
+import com.caiya.session.SessionException;
+import com.caiya.session.SessionExpiredListener;
+import com.caiya.session.SessionIdGenerator;
+import com.caiya.session.SessionManager;
+import com.caiya.session.util.StandardSessionIdGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Session manager keeping the sessions in the memory of a single node, e.g. for a service
+ * without a redis cluster or as the baseline of the benchmarks.
+ * <p>
+ * The sessions live in a {@link ConcurrentHashMap}, reading one is a map lookup and a
+ * volatile write, without any lock. The expiration times are kept by a hierarchical
+ * {@link TimerWheel} rather than a timer per session or a scan of all the sessions; touching
+ * a session does not move it in the wheel, it is rescheduled when its old time is due. The
+ * changes the wheel must know of (new, removed and reconfigured sessions) go through
+ * striped buffers, drained under a lock by whichever thread fills one, so the writers do
+ * not queue on that lock.
+ * <p>
+ * The number of sessions is bounded by {@link #setMaxSessions(int)}. The sessions never
+ * requested again after their creation, most of them by crawlers and clients without
+ * cookies, are evicted first, oldest first; then the least requested among the ones
+ * expiring soonest.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public class InMemorySessionManager implements SessionManager<InMemorySession> {
+
+    private static final Logger logger = LoggerFactory.getLogger(InMemorySessionManager.class);
+
+    /**
+     * Default {@link #setDefaultMaxInactiveInterval(Duration)} (30 minutes).
+     */
+    public static final int DEFAULT_MAX_INACTIVE_INTERVAL_SECONDS = 1800;
+
+    /**
+     * Default {@link #setMaxSessions(int)}.
+     */
+    public static final int DEFAULT_MAX_SESSIONS = 100_000;
+
+    /**
+     * The changes buffered by a stripe before it is drained.
+     */
+    private static final int DRAIN_THRESHOLD = 64;
+
+    /**
+     * The longest time between two drains, as long as there are writes.
+     */
+    private static final long MAINTENANCE_INTERVAL_MILLIS = 1000;
+
+    /**
+     * The number of the soonest expiring sessions the victim is chosen among, once the
+     * probation queue is empty.
+     */
+    private static final int EVICTION_SAMPLE = 16;
+
+    private final LongSupplier clock;
+
+    private final ConcurrentHashMap<String, InMemorySession> sessions = new ConcurrentHashMap<>();
+
+    private final WriteBuffer[] writeBuffers;
+
+    /**
+     * Guards the timer wheel and the probation queue.
+     */
+    private final ReentrantLock maintenanceLock = new ReentrantLock();
+
+    private final TimerWheel<InMemorySession> timerWheel;
+
+    /**
+     * The sessions not requested since their creation, in order of creation.
+     */
+    private InMemorySession probationHead;
+
+    private InMemorySession probationTail;
+
+    private volatile long nextMaintenanceAt;
+
+    private final List<SessionExpiredListener<InMemorySession>> listeners = new CopyOnWriteArrayList<>();
+
+    private final LongAdder expirations = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private volatile int maxSessions = DEFAULT_MAX_SESSIONS;
+
+    private volatile Duration defaultMaxInactiveInterval = Duration.ofSeconds(DEFAULT_MAX_INACTIVE_INTERVAL_SECONDS);
+
+    private volatile SessionIdGenerator sessionIdGenerator = new StandardSessionIdGenerator();
+
+    public InMemorySessionManager() {
+        this(System::currentTimeMillis);
+    }
+
+    InMemorySessionManager(LongSupplier clock) {
+        this.clock = clock;
+        int stripes = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1;
+        this.writeBuffers = new WriteBuffer[stripes];
+        for (int i = 0; i < stripes; i++) {
+            writeBuffers[i] = new WriteBuffer();
+        }
+        long now = clock.getAsLong();
+        this.timerWheel = new TimerWheel<>(now);
+        this.nextMaintenanceAt = now + MAINTENANCE_INTERVAL_MILLIS;
+    }
+
+    @Override
+    public SessionIdGenerator getSessionIdGenerator() {
+        return sessionIdGenerator;
+    }
+
+    @Override
+    public void setSessionIdGenerator(SessionIdGenerator sessionIdGenerator) {
+        if (sessionIdGenerator == null)
+            throw new IllegalArgumentException("sessionIdGenerator cannot be null");
+
+        this.sessionIdGenerator = sessionIdGenerator;
+    }
+
+    @Override
+    public void setDefaultMaxInactiveInterval(Duration defaultMaxInactiveInterval) {
+        this.defaultMaxInactiveInterval = defaultMaxInactiveInterval;
+    }
+
+    public Duration getDefaultMaxInactiveInterval() {
+        return defaultMaxInactiveInterval;
+    }
+
+    /**
+     * Sets the maximum number of sessions, zero or less for no limit. The bound is
+     * approximate: the threads creating a session at the same time may exceed it by one
+     * each.
+     *
+     * @param maxSessions the maximum number of sessions
+     */
+    public void setMaxSessions(int maxSessions) {
+        this.maxSessions = maxSessions;
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    /**
+     * Adds a listener notified of the sessions which expired, not of the evicted or
+     * deleted ones. It is called by the thread which found out, usually a request thread,
+     * so it should be quick.
+     *
+     * @param listener the listener
+     */
+    public void addListener(SessionExpiredListener<InMemorySession> listener) {
+        if (listener == null)
+            throw new IllegalArgumentException("listener cannot be null");
+
+        listeners.add(listener);
+    }
+
+    @Override
+    public void add(InMemorySession session) {
+        session.setManager(this);
+    }
+
+    /**
+     * Does nothing but keep the id as the original one: the session is the stored
+     * instance.
+     */
+    @Override
+    public void save(InMemorySession session) {
+        session.saved();
+    }
+
+    @Override
+    public InMemorySession createSession(String sessionId, Duration maxInactiveInterval) {
+        if (sessionId == null || sessionId.isEmpty())
+            throw new IllegalArgumentException("session id can not be empty");
+
+        InMemorySession session = new InMemorySession(sessionId, now(), maxInactiveInterval, this);
+        if (!insert(session))
+            throw new SessionException("session id already exists: " + sessionId);
+        return session;
+    }
+
+    @Override
+    public InMemorySession createSession(String sessionId) {
+        return createSession(sessionId, defaultMaxInactiveInterval);
+    }
+
+    @Override
+    public InMemorySession createSession() {
+        int maxTryTimes = 0;
+        do {
+            maxTryTimes++;
+            InMemorySession session = new InMemorySession(sessionIdGenerator.generateSessionId(), now(),
+                    defaultMaxInactiveInterval, this);
+            if (insert(session)) {
+                return session;
+            }
+        } while (maxTryTimes <= 3);
+
+        // should seldom reach
+        throw new IllegalStateException("unfortunately, this time does not generate a valid session id, may try again");
+    }
+
+    /**
+     * Looks the session up without touching it; a session found expired is removed.
+     */
+    @Override
+    public InMemorySession findById(String id) {
+        InMemorySession session = sessions.get(id);
+        if (session == null || expireIfDue(session, now())) {
+            return null;
+        }
+        session.recordHit();
+        return session;
+    }
+
+    @Override
+    public boolean deleteById(String id) {
+        InMemorySession session = sessions.get(id);
+        if (session == null) {
+            return false;
+        }
+        synchronized (session) {
+            if (session.removed || !id.equals(session.getId())) {
+                return false;
+            }
+            sessions.remove(id, session);
+            session.removed = true;
+        }
+        afterWrite(session);
+        return true;
+    }
+
+    @Override
+    public String changeSessionId(InMemorySession session) {
+        int maxTryTimes = 0;
+        do {
+            maxTryTimes++;
+            String newId = sessionIdGenerator.generateSessionId();
+            if (changeSessionId(session, newId)) {
+                return newId;
+            }
+        } while (maxTryTimes <= 3);
+
+        // should seldom reach
+        throw new IllegalStateException("unfortunately, this time does not generate a valid session id, may try again");
+    }
+
+    /**
+     * @return false if a session with the new id exists
+     * @throws SessionException if the session no longer exists
+     */
+    @Override
+    public boolean changeSessionId(InMemorySession session, String newId) {
+        if (session == null)
+            throw new IllegalArgumentException("session cannot be null");
+        if (newId == null || newId.isEmpty())
+            throw new IllegalArgumentException("new session id can not be empty");
+
+        synchronized (session) {
+            if (session.removed)
+                throw new SessionException("session not found, id:" + session.getId());
+
+            String oldId = session.getId();
+            if (oldId.equals(newId)) {
+                return true;
+            }
+            if (sessions.putIfAbsent(newId, session) != null) {
+                return false;
+            }
+            session.setId(newId);
+            sessions.remove(oldId, session);
+        }
+        return true;
+    }
+
+    /**
+     * Expires the sessions which are due. The sessions are expired as the requests create
+     * and delete sessions; when those are rare this may be scheduled, e.g. every minute,
+     * so that the expired sessions do not hold on to their memory.
+     *
+     * @return the number of sessions expired
+     */
+    public int expireSessions() {
+        List<InMemorySession> expired;
+        maintenanceLock.lock();
+        try {
+            expired = maintain(now());
+        } finally {
+            maintenanceLock.unlock();
+        }
+        notifyListeners(expired);
+        return expired.size();
+    }
+
+    /**
+     * @return the number of sessions, including the expired ones not removed yet
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * @return the number of sessions removed because they expired
+     */
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    /**
+     * @return the number of sessions removed to keep under the maximum number of sessions
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    long now() {
+        return clock.getAsLong();
+    }
+
+    /**
+     * Called when the max inactive interval of the session changed, which may bring its
+     * expiration forward.
+     */
+    void rescheduled(InMemorySession session) {
+        if (!session.removed && session.getManager() == this) {
+            afterWrite(session);
+        }
+    }
+
+    private boolean insert(InMemorySession session) {
+        int max = maxSessions;
+        if (max > 0 && sessions.size() >= max) {
+            evict(max);
+        }
+        for (; ; ) {
+            InMemorySession existing = sessions.putIfAbsent(session.getId(), session);
+            if (existing == null) {
+                afterWrite(session);
+                return true;
+            }
+            if (!expireIfDue(existing, session.getCreationTime().toEpochMilli())) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return true if the session is expired, in which case it has been removed
+     */
+    private boolean expireIfDue(InMemorySession session, long now) {
+        if (session.expiresAt() > now) {
+            return false;
+        }
+        if (remove(session)) {
+            expirations.increment();
+            afterWrite(session);
+            notifyListeners(Collections.singletonList(session));
+        }
+        return true;
+    }
+
+    private boolean remove(InMemorySession session) {
+        synchronized (session) {
+            if (session.removed) {
+                return false;
+            }
+            sessions.remove(session.getId(), session);
+            session.removed = true;
+            return true;
+        }
+    }
+
+    private void afterWrite(InMemorySession session) {
+        WriteBuffer buffer = writeBuffers[(int) Thread.currentThread().getId() & (writeBuffers.length - 1)];
+        buffer.queue.add(session);
+        if (buffer.size.incrementAndGet() >= DRAIN_THRESHOLD || now() >= nextMaintenanceAt) {
+            tryMaintain();
+        }
+    }
+
+    /**
+     * Drains the buffers unless another thread is already doing it.
+     */
+    private void tryMaintain() {
+        if (!maintenanceLock.tryLock()) {
+            return;
+        }
+        List<InMemorySession> expired;
+        try {
+            expired = maintain(now());
+        } finally {
+            maintenanceLock.unlock();
+        }
+        notifyListeners(expired);
+    }
+
+    /**
+     * Called with the lock held.
+     *
+     * @return the sessions expired
+     */
+    private List<InMemorySession> maintain(long now) {
+        nextMaintenanceAt = now + MAINTENANCE_INTERVAL_MILLIS;
+        for (WriteBuffer buffer : writeBuffers) {
+            InMemorySession session;
+            while ((session = buffer.queue.poll()) != null) {
+                buffer.size.decrementAndGet();
+                drained(session);
+            }
+        }
+
+        List<InMemorySession> expired = new ArrayList<>();
+        timerWheel.advance(now, node -> {
+            InMemorySession session = node.value;
+            if (session.removed) {
+                return true;
+            }
+            long expiresAt = session.expiresAt();
+            if (expiresAt == Long.MAX_VALUE) {
+                return true;
+            }
+            if (expiresAt > now) {
+                // touched since scheduled
+                node.time = expiresAt;
+                return false;
+            }
+            if (remove(session)) {
+                unlinkProbation(session);
+                expirations.increment();
+                expired.add(session);
+            }
+            return true;
+        });
+        return expired;
+    }
+
+    private void drained(InMemorySession session) {
+        if (session.removed) {
+            timerWheel.deschedule(session.timerNode);
+            unlinkProbation(session);
+            return;
+        }
+        long expiresAt = session.expiresAt();
+        if (expiresAt == Long.MAX_VALUE) {
+            timerWheel.deschedule(session.timerNode);
+        } else if (!session.timerNode.isScheduled() || expiresAt < session.timerNode.time) {
+            // a later time is left to the wheel, which finds it out when the earlier one is due
+            timerWheel.schedule(session.timerNode, expiresAt);
+        }
+        if (!session.admitted) {
+            session.admitted = true;
+            if (session.hits == 0) {
+                linkProbation(session);
+            }
+        }
+    }
+
+    private void evict(int max) {
+        List<InMemorySession> expired;
+        maintenanceLock.lock();
+        try {
+            expired = maintain(now());
+            while (sessions.size() >= max) {
+                InMemorySession victim = victim();
+                if (victim == null) {
+                    break;
+                }
+                timerWheel.deschedule(victim.timerNode);
+                unlinkProbation(victim);
+                if (remove(victim)) {
+                    evictions.increment();
+                }
+            }
+        } finally {
+            maintenanceLock.unlock();
+        }
+        notifyListeners(expired);
+        if (logger.isDebugEnabled() && sessions.size() >= max) {
+            logger.debug("no session to evict, sessions:{}, maxSessions:{}", sessions.size(), max);
+        }
+    }
+
+    /**
+     * Called with the lock held.
+     *
+     * @return the session to evict, or null if none is found
+     */
+    private InMemorySession victim() {
+        // the sessions not requested since their creation, oldest first; the others leave
+        // the queue for good
+        InMemorySession session;
+        while ((session = probationHead) != null) {
+            unlinkProbation(session);
+            if (!session.removed && session.hits == 0) {
+                return session;
+            }
+        }
+
+        // the least requested among the ones expiring soonest, the others age
+        List<InMemorySession> sample = new ArrayList<>(EVICTION_SAMPLE);
+        timerWheel.visitEarliest(EVICTION_SAMPLE, node -> {
+            if (!node.value.removed) {
+                sample.add(node.value);
+            }
+        });
+        InMemorySession victim = null;
+        for (InMemorySession candidate : sample) {
+            if (victim == null || candidate.hits < victim.hits) {
+                victim = candidate;
+            }
+        }
+        for (InMemorySession candidate : sample) {
+            if (candidate != victim) {
+                candidate.hits = candidate.hits >> 1;
+            }
+        }
+        return victim;
+    }
+
+    private void linkProbation(InMemorySession session) {
+        session.probationPrev = probationTail;
+        session.probationNext = null;
+        if (probationTail == null) {
+            probationHead = session;
+        } else {
+            probationTail.probationNext = session;
+        }
+        probationTail = session;
+    }
+
+    private void unlinkProbation(InMemorySession session) {
+        if (session.probationPrev == null && probationHead != session) {
+            return;
+        }
+        if (session.probationPrev == null) {
+            probationHead = session.probationNext;
+        } else {
+            session.probationPrev.probationNext = session.probationNext;
+        }
+        if (session.probationNext == null) {
+            probationTail = session.probationPrev;
+        } else {
+            session.probationNext.probationPrev = session.probationPrev;
+        }
+        session.probationPrev = null;
+        session.probationNext = null;
+    }
+
+    private void notifyListeners(List<InMemorySession> expired) {
+        for (InMemorySession session : expired) {
+            for (SessionExpiredListener<InMemorySession> listener : listeners) {
+                try {
+                    listener.sessionExpired(session);
+                } catch (RuntimeException e) {
+                    logger.error("session expired listener failed, id:" + session.getId(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A stripe of the changes to apply to the timer wheel, picked by the thread id.
+     */
+    private static final class WriteBuffer {
+
+        final Queue<InMemorySession> queue = new ConcurrentLinkedQueue<>();
+
+        final AtomicInteger size = new AtomicInteger();
+    }
+}
@@ -0,0 +1,184 @@
+package com.caiya.session.memory;
+
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Hierarchical timer wheel (Varghese and Lauck) of expiration times in milliseconds. Each
+ * level is a ring of 64 buckets, whose tick is 64 times the one of the level below: about
+ * one second, one minute, one hour and three days; times further away go to a single
+ * overflow bucket. Scheduling and descheduling are O(1), advancing the wheel only visits
+ * the buckets whose tick has passed, and the entries of a higher level cascade down as
+ * their time gets closer.
+ * <p>
+ * Not thread-safe, the owner serializes the calls.
+ *
+ * @param <T> the type of the scheduled values
+ * @author wangnan
+ * @since 1.1
+ */
+final class TimerWheel<T> {
+
+    private static final int[] BUCKETS = {64, 64, 64, 64, 1};
+
+    /**
+     * The tick of each level as a power of two of milliseconds: 1.02 seconds, 1.09 minutes,
+     * 1.17 hours, 3.1 days, and 199 days for the overflow bucket.
+     */
+    private static final int[] SHIFTS = {10, 16, 22, 28, 34};
+
+    private final Node<T>[][] wheel;
+
+    private long time;
+
+    @SuppressWarnings("unchecked")
+    TimerWheel(long now) {
+        wheel = new Node[BUCKETS.length][];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new Node[BUCKETS[i]];
+            for (int j = 0; j < wheel[i].length; j++) {
+                wheel[i][j] = new Node<>(null);
+            }
+        }
+        time = now;
+    }
+
+    /**
+     * Schedules the node at the given time, moving it if already scheduled.
+     *
+     * @param node the node
+     * @param at   the time, in milliseconds
+     */
+    void schedule(Node<T> node, long at) {
+        deschedule(node);
+        node.time = at;
+        link(bucket(at), node);
+    }
+
+    void deschedule(Node<T> node) {
+        if (node.next != null) {
+            node.next.prev = node.prev;
+            node.prev.next = node.next;
+            node.next = null;
+            node.prev = null;
+        }
+    }
+
+    /**
+     * Advances the wheel to the given time. The nodes whose time has passed are given to
+     * the expiry, which returns true if they are done with; otherwise they are scheduled
+     * again at their time, which the expiry may have moved.
+     *
+     * @param now    the current time, in milliseconds
+     * @param expiry the expiry of the nodes due
+     */
+    void advance(long now, Predicate<Node<T>> expiry) {
+        long previous = time;
+        if (now <= previous) {
+            return;
+        }
+        time = now;
+        for (int i = 0; i < SHIFTS.length; i++) {
+            long previousTicks = previous >>> SHIFTS[i];
+            long currentTicks = now >>> SHIFTS[i];
+            if (currentTicks == previousTicks) {
+                // the higher levels have not ticked either
+                break;
+            }
+            expire(i, previousTicks, currentTicks - previousTicks, expiry);
+        }
+    }
+
+    private void expire(int level, long previousTicks, long delta, Predicate<Node<T>> expiry) {
+        Node<T>[] buckets = wheel[level];
+        int mask = buckets.length - 1;
+        int steps = (int) Math.min(delta + 1, buckets.length);
+        int start = (int) (previousTicks & mask);
+        for (int i = start; i < start + steps; i++) {
+            Node<T> sentinel = buckets[i & mask];
+            Node<T> node = sentinel.next;
+            sentinel.next = sentinel;
+            sentinel.prev = sentinel;
+            while (node != sentinel) {
+                Node<T> next = node.next;
+                node.next = null;
+                node.prev = null;
+                if (node.time > time || !expiry.test(node)) {
+                    link(bucket(node.time), node);
+                }
+                node = next;
+            }
+        }
+    }
+
+    /**
+     * Visits the scheduled nodes roughly from the earliest time, up to the given number.
+     *
+     * @param limit   the maximum number of nodes visited
+     * @param visitor the visitor of the nodes
+     * @return the number of nodes visited
+     */
+    int visitEarliest(int limit, Consumer<Node<T>> visitor) {
+        int visited = 0;
+        for (int i = 0; i < wheel.length && visited < limit; i++) {
+            Node<T>[] buckets = wheel[i];
+            int mask = buckets.length - 1;
+            int start = (int) ((time >>> SHIFTS[i]) & mask);
+            for (int j = start; j < start + buckets.length && visited < limit; j++) {
+                Node<T> sentinel = buckets[j & mask];
+                for (Node<T> node = sentinel.next; node != sentinel && visited < limit; node = node.next) {
+                    visitor.accept(node);
+                    visited++;
+                }
+            }
+        }
+        return visited;
+    }
+
+    private Node<T> bucket(long at) {
+        // a time already passed goes to the current bucket, due on the next tick
+        at = Math.max(at, time);
+        long duration = at - time;
+        for (int i = 0; i < SHIFTS.length - 1; i++) {
+            if (duration < 1L << SHIFTS[i + 1]) {
+                Node<T>[] buckets = wheel[i];
+                return buckets[(int) ((at >>> SHIFTS[i]) & (buckets.length - 1))];
+            }
+        }
+        return wheel[wheel.length - 1][0];
+    }
+
+    private static <T> void link(Node<T> sentinel, Node<T> node) {
+        node.prev = sentinel.prev;
+        node.next = sentinel;
+        sentinel.prev.next = node;
+        sentinel.prev = node;
+    }
+
+    /**
+     * An entry of the wheel, in the doubly linked list of its bucket.
+     */
+    static final class Node<T> {
+
+        final T value;
+
+        long time;
+
+        Node<T> prev;
+
+        Node<T> next;
+
+        Node(T value) {
+            this.value = value;
+            // a sentinel is an empty circular list
+            if (value == null) {
+                prev = this;
+                next = this;
+            }
+        }
+
+        boolean isScheduled() {
+            return next != null;
+        }
+    }
+}
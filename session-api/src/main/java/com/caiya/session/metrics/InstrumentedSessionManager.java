@@ -0,0 +1,204 @@
+package com.caiya.session.metrics;
+
+import com.caiya.session.Session;
+import com.caiya.session.SessionIdGenerator;
+import com.caiya.session.SessionManager;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * {@link SessionManager} timing the operations of another one, e.g.
+ * <pre>
+ * new SessionRepositoryFilter&lt;&gt;(new InstrumentedSessionManager&lt;&gt;(sessionManager, metrics))
+ * </pre>
+ * The operations of the delegate are called as they are, so its own optimized lookups and
+ * bulk deletes are kept. Timing allocates nothing.
+ *
+ * @param <S> the session type
+ * @author wangnan
+ * @since 1.1
+ */
+public class InstrumentedSessionManager<S extends Session> implements SessionManager<S> {
+
+    private final SessionManager<S> delegate;
+
+    private final SessionMetrics metrics;
+
+    public InstrumentedSessionManager(SessionManager<S> delegate, SessionMetrics metrics) {
+        if (delegate == null)
+            throw new IllegalArgumentException("delegate cannot be null");
+        if (metrics == null)
+            throw new IllegalArgumentException("metrics cannot be null");
+
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    public SessionManager<S> getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public SessionIdGenerator getSessionIdGenerator() {
+        return delegate.getSessionIdGenerator();
+    }
+
+    @Override
+    public void setSessionIdGenerator(SessionIdGenerator sessionIdGenerator) {
+        delegate.setSessionIdGenerator(sessionIdGenerator);
+    }
+
+    @Override
+    public void add(S session) {
+        delegate.add(session);
+    }
+
+    @Override
+    public void save(S session) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.save(session);
+            failed = false;
+        } finally {
+            metrics.recordOperation(SessionOperation.SAVE, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public String changeSessionId(S session) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            String newId = delegate.changeSessionId(session);
+            failed = false;
+            return newId;
+        } finally {
+            metrics.recordOperation(SessionOperation.CHANGE_SESSION_ID, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public boolean changeSessionId(S session, String newId) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean changed = delegate.changeSessionId(session, newId);
+            failed = false;
+            return changed;
+        } finally {
+            metrics.recordOperation(SessionOperation.CHANGE_SESSION_ID, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public void setDefaultMaxInactiveInterval(Duration defaultMaxInactiveInterval) {
+        delegate.setDefaultMaxInactiveInterval(defaultMaxInactiveInterval);
+    }
+
+    @Override
+    public S createSession(String sessionId, Duration maxInactiveInterval) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            S session = delegate.createSession(sessionId, maxInactiveInterval);
+            failed = false;
+            return session;
+        } finally {
+            metrics.recordOperation(SessionOperation.CREATE_SESSION, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public S createSession(String sessionId) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            S session = delegate.createSession(sessionId);
+            failed = false;
+            return session;
+        } finally {
+            metrics.recordOperation(SessionOperation.CREATE_SESSION, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public S createSession() {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            S session = delegate.createSession();
+            failed = false;
+            return session;
+        } finally {
+            metrics.recordOperation(SessionOperation.CREATE_SESSION, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public S findById(String id) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            S session = delegate.findById(id);
+            failed = false;
+            return session;
+        } finally {
+            metrics.recordOperation(SessionOperation.FIND_BY_ID, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public S findById(String id, String... attributeNames) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            S session = delegate.findById(id, attributeNames);
+            failed = false;
+            return session;
+        } finally {
+            metrics.recordOperation(SessionOperation.FIND_BY_ID, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public S findFirstById(List<String> ids) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            S session = delegate.findFirstById(ids);
+            failed = false;
+            return session;
+        } finally {
+            metrics.recordOperation(SessionOperation.FIND_BY_ID, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public boolean deleteById(String id) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean existed = delegate.deleteById(id);
+            failed = false;
+            return existed;
+        } finally {
+            metrics.recordOperation(SessionOperation.DELETE_BY_ID, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public int deleteByIds(Collection<String> ids) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            int deleted = delegate.deleteByIds(ids);
+            failed = false;
+            return deleted;
+        } finally {
+            metrics.recordOperation(SessionOperation.DELETE_BY_ID, System.nanoTime() - start, failed);
+        }
+    }
+}
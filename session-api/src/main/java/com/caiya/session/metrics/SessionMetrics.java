@@ -0,0 +1,44 @@
+package com.caiya.session.metrics;
+
+/**
+ * Receives the measurements of the session layer, to be bridged to the metrics library of
+ * the application. The methods are called on the request threads, so implementations
+ * should be cheap and thread-safe, and should not allocate; all of them do nothing by
+ * default.
+ *
+ * @author wangnan
+ * @since 1.1
+ * @see SimpleSessionMetrics
+ */
+public interface SessionMetrics {
+
+    /**
+     * Records a session manager operation.
+     *
+     * @param operation the operation
+     * @param nanos     how long it took, in nanoseconds
+     * @param failed    true if it threw an exception
+     */
+    default void recordOperation(SessionOperation operation, long nanos, boolean failed) {
+    }
+
+    /**
+     * Records a command sent to the store.
+     *
+     * @param command      the command name, a constant
+     * @param bytesWritten the size of its keys and arguments
+     * @param bytesRead    the size of its reply
+     */
+    default void recordCommand(String command, long bytesWritten, long bytesRead) {
+    }
+
+    /**
+     * Records the size of the attribute values written because they changed, to be compared
+     * with the bytes written to tell the write amplification.
+     *
+     * @param bytes the size of the changed values
+     */
+    default void recordBytesChanged(long bytes) {
+    }
+
+}
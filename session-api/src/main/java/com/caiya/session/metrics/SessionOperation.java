@@ -0,0 +1,22 @@
+package com.caiya.session.metrics;
+
+/**
+ * The {@link com.caiya.session.SessionManager} operations timed by an
+ * {@link InstrumentedSessionManager}.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public enum SessionOperation {
+
+    CREATE_SESSION,
+
+    FIND_BY_ID,
+
+    SAVE,
+
+    CHANGE_SESSION_ID,
+
+    DELETE_BY_ID
+
+}
@@ -0,0 +1,155 @@
+package com.caiya.session.metrics;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link SessionMetrics} keeping the measurements in memory, for applications without a
+ * metrics library or to be read by one. Latencies are counted in histograms of power of two
+ * buckets, so the percentiles are upper bounds within a factor of two. Recording allocates
+ * nothing, except the first time a command name is seen.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public class SimpleSessionMetrics implements SessionMetrics {
+
+    private static final int BUCKETS = 64;
+
+    private final OperationStats[] operations = new OperationStats[SessionOperation.values().length];
+
+    private final ConcurrentMap<String, CommandStats> commands = new ConcurrentHashMap<>();
+
+    private final LongAdder bytesWritten = new LongAdder();
+
+    private final LongAdder bytesRead = new LongAdder();
+
+    private final LongAdder bytesChanged = new LongAdder();
+
+    public SimpleSessionMetrics() {
+        for (int i = 0; i < operations.length; i++) {
+            operations[i] = new OperationStats();
+        }
+    }
+
+    @Override
+    public void recordOperation(SessionOperation operation, long nanos, boolean failed) {
+        OperationStats stats = operations[operation.ordinal()];
+        stats.count.increment();
+        stats.totalNanos.add(nanos);
+        if (failed) {
+            stats.failures.increment();
+        }
+        // bucket i holds the latencies in [2^(i-1), 2^i), bucket 0 the zero ones
+        stats.buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(Math.max(nanos, 0)));
+    }
+
+    @Override
+    public void recordCommand(String command, long bytesWritten, long bytesRead) {
+        CommandStats stats = commands.get(command);
+        if (stats == null) {
+            stats = commands.computeIfAbsent(command, name -> new CommandStats());
+        }
+        stats.count.increment();
+        this.bytesWritten.add(bytesWritten);
+        this.bytesRead.add(bytesRead);
+    }
+
+    @Override
+    public void recordBytesChanged(long bytes) {
+        bytesChanged.add(bytes);
+    }
+
+    public long getCount(SessionOperation operation) {
+        return operations[operation.ordinal()].count.sum();
+    }
+
+    public long getFailures(SessionOperation operation) {
+        return operations[operation.ordinal()].failures.sum();
+    }
+
+    public long getTotalNanos(SessionOperation operation) {
+        return operations[operation.ordinal()].totalNanos.sum();
+    }
+
+    /**
+     * @param operation  the operation
+     * @param percentile the percentile, in (0, 1]
+     * @return an upper bound of the latency percentile in nanoseconds, 0 if never recorded
+     */
+    public long getPercentileNanos(SessionOperation operation, double percentile) {
+        if (percentile <= 0 || percentile > 1)
+            throw new IllegalArgumentException("percentile must be in (0, 1]");
+
+        AtomicLongArray buckets = operations[operation.ordinal()].buckets;
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += buckets.get(i);
+        }
+        long rank = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank && seen > 0) {
+                return (1L << i) - 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the names of the commands recorded so far
+     */
+    public Set<String> getCommands() {
+        return Collections.unmodifiableSet(commands.keySet());
+    }
+
+    /**
+     * @param command the command name
+     * @return the number of times the command was sent
+     */
+    public long getCommandCount(String command) {
+        CommandStats stats = commands.get(command);
+        return stats != null ? stats.count.sum() : 0;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getBytesChanged() {
+        return bytesChanged.sum();
+    }
+
+    /**
+     * @return the bytes written for each byte of changed attribute values, 0 if none changed
+     */
+    public double getWriteAmplification() {
+        long changed = bytesChanged.sum();
+        return changed > 0 ? (double) bytesWritten.sum() / changed : 0;
+    }
+
+    private static final class OperationStats {
+
+        private final LongAdder count = new LongAdder();
+
+        private final LongAdder failures = new LongAdder();
+
+        private final LongAdder totalNanos = new LongAdder();
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    }
+
+    private static final class CommandStats {
+
+        private final LongAdder count = new LongAdder();
+    }
+}
@@ -0,0 +1,108 @@
+package com.caiya.session.util;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Deterministic random bit generator in the manner of the NIST CTR_DRBG (SP 800-90A,
+ * without derivation function nor additional input): the key stream of AES-128 in counter
+ * mode, under a key and an initial counter drawn from a seed source and drawn again every
+ * {@link #RESEED_INTERVAL} bytes. After each request, the update step takes the next blocks
+ * of the key stream as the new key and counter, so that the bytes already returned cannot
+ * be recovered from the state.
+ * <p>
+ * Not thread-safe, each thread has its own.
+ *
+ * @author wangnan
+ * @since 1.1
+ * @see SecureRandomStrategy#AES_CTR_DRBG
+ */
+final class AesCtrRandom {
+
+    private static final int RESEED_INTERVAL = 1 << 20;
+
+    private static final int BLOCK_LENGTH = 16;
+
+    /**
+     * The length of the key and the counter, taken from the seed or the key stream.
+     */
+    private static final int SEED_LENGTH = 32;
+
+    private final SecureRandom seedSource;
+
+    private final Cipher cipher;
+
+    /**
+     * The plain text, whose cipher text is the key stream.
+     */
+    private final byte[] zeros = new byte[64];
+
+    /**
+     * The rest of the last block used and the next key and counter, see {@link #update(int)}.
+     */
+    private final byte[] state = new byte[BLOCK_LENGTH + SEED_LENGTH];
+
+    private int generated;
+
+    AesCtrRandom(SecureRandom seedSource) {
+        this.seedSource = seedSource;
+        try {
+            this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES/CTR/NoPadding is not available", e);
+        }
+        reseed();
+    }
+
+    void nextBytes(byte[] bytes) {
+        if (generated >= RESEED_INTERVAL) {
+            reseed();
+        }
+        try {
+            for (int offset = 0; offset < bytes.length; offset += zeros.length) {
+                int length = Math.min(zeros.length, bytes.length - offset);
+                cipher.update(zeros, 0, length, bytes, offset);
+            }
+            generated += bytes.length;
+            // the rest of the last block is discarded, as the generator works on whole blocks
+            update((BLOCK_LENGTH - bytes.length % BLOCK_LENGTH) % BLOCK_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("generating random bytes failed", e);
+        }
+    }
+
+    /**
+     * The update step: the key and the counter are replaced by the next blocks of the key
+     * stream, which are never returned.
+     *
+     * @param rest the number of bytes left in the last block used
+     */
+    private void update(int rest) throws GeneralSecurityException {
+        cipher.update(zeros, 0, rest + SEED_LENGTH, state, 0);
+        rekey(state, rest);
+        Arrays.fill(state, (byte) 0);
+    }
+
+    private void reseed() {
+        byte[] seed = new byte[SEED_LENGTH];
+        synchronized (seedSource) {
+            seedSource.nextBytes(seed);
+        }
+        try {
+            rekey(seed, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("seeding AES/CTR/NoPadding failed", e);
+        }
+        Arrays.fill(seed, (byte) 0);
+        generated = 0;
+    }
+
+    private void rekey(byte[] material, int offset) throws GeneralSecurityException {
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(material, offset, BLOCK_LENGTH, "AES"),
+                new IvParameterSpec(material, offset + BLOCK_LENGTH, BLOCK_LENGTH));
+    }
+}
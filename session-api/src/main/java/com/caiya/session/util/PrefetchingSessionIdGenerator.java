@@ -0,0 +1,364 @@
+package com.caiya.session.util;
+
+import com.caiya.session.SessionIdGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Session id generator handing out ids generated in advance by a background thread, so
+ * that a wave of new sessions, e.g. a campaign or a crawler, does not pay for the secure
+ * random on the request threads. The ids are kept in a bounded ring buffer, refilled to
+ * the full when it falls to half; when it is empty the ids are generated on the calling
+ * thread, as without this generator.
+ * <pre>
+ * PrefetchingSessionIdGenerator sessionIdGenerator =
+ *         new PrefetchingSessionIdGenerator(new StandardSessionIdGenerator(), 4096);
+ * sessionIdGenerator.start();
+ * sessionManager.setSessionIdGenerator(sessionIdGenerator);
+ * </pre>
+ * The ids are only prefetched for the default route, the ones for another route are
+ * generated when asked for. Changing the route or the length of the ids bumps a
+ * generation, with which each buffered id is stamped, so that an id generated with the
+ * old settings is never handed out, even if it was being generated meanwhile. The
+ * generation is bumped both before and after the settings of the delegate change, and
+ * no buffered id is handed out in between. The generator must be
+ * {@link #close() closed} to stop the thread.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public class PrefetchingSessionIdGenerator implements SessionIdGenerator, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PrefetchingSessionIdGenerator.class);
+
+    /**
+     * Default capacity of the buffer.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * The longest time the refill thread sleeps without being woken up.
+     */
+    private static final long CHECK_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final SessionIdGenerator delegate;
+
+    private final AtomicReferenceArray<PrefetchedId> ids;
+
+    private final int mask;
+
+    /**
+     * The index of the next id to take, advanced by the request threads.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * The index of the next id to put, only written by the refill thread.
+     */
+    private volatile long tail;
+
+    /**
+     * The generation of the settings of the delegate, odd while they change.
+     */
+    private final AtomicInteger generation = new AtomicInteger();
+
+    /**
+     * When the buffer was first found at half or less since the last refill, 0 if not.
+     */
+    private final AtomicLong lowSince = new AtomicLong();
+
+    private volatile Thread refillThread;
+
+    private volatile boolean running;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder refills = new LongAdder();
+
+    private volatile long lastRefillLagNanos;
+
+    private volatile long maxRefillLagNanos;
+
+    public PrefetchingSessionIdGenerator(SessionIdGenerator delegate) {
+        this(delegate, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param delegate the generator of the ids
+     * @param capacity the maximum number of ids generated in advance, rounded up to a
+     *                 power of two
+     */
+    public PrefetchingSessionIdGenerator(SessionIdGenerator delegate, int capacity) {
+        if (delegate == null)
+            throw new IllegalArgumentException("delegate cannot be null");
+        if (capacity < 2 || capacity > 1 << 20)
+            throw new IllegalArgumentException("capacity must be in [2, 2^20]");
+
+        this.delegate = delegate;
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.ids = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Starts the refill thread, which fills the buffer at once.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        Thread thread = new Thread(this::refillLoop, "session-id-prefetch");
+        thread.setDaemon(true);
+        refillThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Stops the refill thread, and waits for it to end so that it never runs along with
+     * the one of a later {@link #start()}; the ids left in the buffer are still handed out.
+     */
+    @Override
+    public synchronized void close() {
+        running = false;
+        Thread thread = refillThread;
+        if (thread != null) {
+            refillThread = null;
+            LockSupport.unpark(thread);
+            boolean interrupted = false;
+            while (thread.isAlive() && thread != Thread.currentThread()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public String getJvmRoute() {
+        return delegate.getJvmRoute();
+    }
+
+    /**
+     * Changes the route of the delegate and discards the ids generated for the old one.
+     */
+    @Override
+    public synchronized void setJvmRoute(String jvmRoute) {
+        generation.incrementAndGet();
+        delegate.setJvmRoute(jvmRoute);
+        settingsChanged();
+    }
+
+    @Override
+    public int getSessionIdLength() {
+        return delegate.getSessionIdLength();
+    }
+
+    /**
+     * Changes the length of the delegate and discards the ids generated with the old one.
+     */
+    @Override
+    public synchronized void setSessionIdLength(int sessionIdLength) {
+        generation.incrementAndGet();
+        delegate.setSessionIdLength(sessionIdLength);
+        settingsChanged();
+    }
+
+    @Override
+    public String generateSessionId() {
+        String id = poll();
+        if (id != null) {
+            hits.increment();
+            return id;
+        }
+        misses.increment();
+        return delegate.generateSessionId();
+    }
+
+    @Override
+    public String generateSessionId(String route) {
+        if (route == null || route.isEmpty() || route.equals(delegate.getJvmRoute())) {
+            return generateSessionId();
+        }
+        return delegate.generateSessionId(route);
+    }
+
+    private String poll() {
+        for (; ; ) {
+            long h = head.get();
+            long size = tail - h;
+            if (size <= 0) {
+                lowWater();
+                return null;
+            }
+            // the slot is not overwritten before the head moves past it, so the id read is
+            // the one at h if the head is still there
+            PrefetchedId prefetched = ids.get((int) h & mask);
+            if (head.compareAndSet(h, h + 1)) {
+                if (size - 1 <= mask >> 1) {
+                    lowWater();
+                }
+                if ((prefetched.generation & 1) == 0 && prefetched.generation == generation.get()) {
+                    return prefetched.id;
+                }
+                // generated with the old settings, or while they changed
+            }
+        }
+    }
+
+    /**
+     * Wakes the refill thread up, once until it refilled.
+     */
+    private void lowWater() {
+        if (lowSince.get() == 0 && lowSince.compareAndSet(0, System.nanoTime())) {
+            Thread thread = refillThread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    /**
+     * Bumps the generation again, after the settings of the delegate changed, and skips
+     * the ids buffered so far. An id being generated meanwhile is still put, with an old
+     * generation, and dropped when polled.
+     */
+    private void settingsChanged() {
+        generation.incrementAndGet();
+        for (; ; ) {
+            long h = head.get();
+            long t = tail;
+            if (h >= t || head.compareAndSet(h, t)) {
+                return;
+            }
+        }
+    }
+
+    private void refillLoop() {
+        while (isRefillThread()) {
+            try {
+                refill();
+            } catch (RuntimeException e) {
+                logger.error("prefetching session ids failed", e);
+            }
+            LockSupport.parkNanos(this, CHECK_INTERVAL_NANOS);
+        }
+    }
+
+    /**
+     * @return true if the calling thread is the refill thread of the last start, not one
+     * left over from before a close
+     */
+    private boolean isRefillThread() {
+        return running && refillThread == Thread.currentThread();
+    }
+
+    private void refill() {
+        long t = tail;
+        if (t - head.get() > mask >> 1) {
+            return;
+        }
+        while (isRefillThread() && t - head.get() <= mask) {
+            // read before generating, so that a change of the settings meanwhile drops the id
+            int stamp = generation.get();
+            ids.set((int) t & mask, new PrefetchedId(delegate.generateSessionId(), stamp));
+            tail = ++t;
+        }
+        refills.increment();
+        long since = lowSince.getAndSet(0);
+        if (since != 0) {
+            long lag = System.nanoTime() - since;
+            lastRefillLagNanos = lag;
+            if (lag > maxRefillLagNanos) {
+                maxRefillLagNanos = lag;
+            }
+        }
+    }
+
+    /**
+     * @return the number of ids generated in advance and not handed out yet
+     */
+    public int getSize() {
+        return (int) Math.max(0, tail - head.get());
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return the number of ids handed out from the buffer
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of ids generated on the calling thread because the buffer was
+     * empty
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the share of the ids handed out from the buffer, 0 if none was asked for
+     */
+    public double getHitRate() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * @return the number of times the buffer was refilled
+     */
+    public long getRefills() {
+        return refills.sum();
+    }
+
+    /**
+     * @return the time from the buffer falling to half to it being full again, for the
+     * last refill, in nanoseconds
+     */
+    public long getLastRefillLagNanos() {
+        return lastRefillLagNanos;
+    }
+
+    /**
+     * @return the longest time from the buffer falling to half to it being full again, in
+     * nanoseconds
+     */
+    public long getMaxRefillLagNanos() {
+        return maxRefillLagNanos;
+    }
+
+    /**
+     * An id with the generation of the settings it was generated with.
+     */
+    private static final class PrefetchedId {
+
+        final String id;
+
+        final int generation;
+
+        PrefetchedId(String id, int generation) {
+            this.id = id;
+            this.generation = generation;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.caiya.session.util;
+
+import java.security.SecureRandom;
+
+/**
+ * Specifies how a {@link SessionIdGeneratorBase} shares its random number generators
+ * between the threads generating session ids.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public enum SecureRandomStrategy {
+
+    /**
+     * The {@link SecureRandom} instances are taken from a queue and given back after each
+     * use, a new one is created when the queue is empty. This is the default and the
+     * behavior of the previous versions.
+     */
+    POOLED,
+
+    /**
+     * Each thread has its own {@link SecureRandom} instance, created on its first session
+     * id. There is no contention and no allocation per id, but as many instances as
+     * threads, and the instances of a web application held by the container threads after
+     * it is undeployed.
+     */
+    THREAD_LOCAL,
+
+    /**
+     * A single {@code NativePRNGNonBlocking} instance, reading {@code /dev/urandom}, which
+     * never blocks for entropy nor has to be seeded on a request. Where it is not
+     * available, e.g. on Windows, the configured algorithm is used instead.
+     */
+    NATIVE_NON_BLOCKING,
+
+    /**
+     * Each thread has its own deterministic generator, AES-128 in counter mode keyed from
+     * a shared {@link SecureRandom}, reseeded every megabyte of output and rekeyed from its
+     * own key stream after each session id, as the CTR_DRBG update step. The cheapest per
+     * session id with AES-NI; otherwise as {@link #THREAD_LOCAL}.
+     */
+    AES_CTR_DRBG
+
+}
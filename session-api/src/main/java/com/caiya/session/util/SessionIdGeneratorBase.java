@@ -36,7 +36,8 @@ public abstract class SessionIdGeneratorBase implements SessionIdGenerator {
      * identifiers. If the queue is empty when a random number generator is
      * required, a new random number generator object is created. This is
      * designed this way since random number generators use a sync to make them
-     * thread-safe and the sync makes using a a single object slow(er).
+     * thread-safe and the sync makes using a a single object slow(er). Used by
+     * the {@link SecureRandomStrategy#POOLED} strategy.
      */
     private final Queue<SecureRandom> randoms = new ConcurrentLinkedQueue<>();
 
@@ -46,6 +47,17 @@ public abstract class SessionIdGeneratorBase implements SessionIdGenerator {
 
     private String secureRandomProvider = null;
 
+    private volatile SecureRandomStrategy secureRandomStrategy = SecureRandomStrategy.POOLED;
+
+    private final ThreadLocal<SecureRandom> threadRandoms = ThreadLocal.withInitial(this::createSecureRandom);
+
+    private final ThreadLocal<AesCtrRandom> drbgs = ThreadLocal.withInitial(() -> new AesCtrRandom(sharedRandom()));
+
+    /**
+     * The generator shared by the threads: the native one, or the seed source of the DRBGs.
+     */
+    private volatile SecureRandom sharedRandom;
+
     @Override
     public String getJvmRoute() {
         return jvmRoute;
@@ -99,14 +111,68 @@ public abstract class SessionIdGeneratorBase implements SessionIdGenerator {
         this.secureRandomAlgorithm = secureRandomAlgorithm;
     }
 
+    public SecureRandomStrategy getSecureRandomStrategy() {
+        return secureRandomStrategy;
+    }
+
+    /**
+     * Specify how the random number generators are shared by the threads generating
+     * session IDs. Defaults to {@link SecureRandomStrategy#POOLED}.
+     *
+     * @param secureRandomStrategy The strategy
+     */
+    public void setSecureRandomStrategy(SecureRandomStrategy secureRandomStrategy) {
+        if (secureRandomStrategy == null)
+            throw new IllegalArgumentException("secureRandomStrategy cannot be null");
+
+        this.secureRandomStrategy = secureRandomStrategy;
+    }
+
     protected void getRandomBytes(byte bytes[]) {
+        switch (secureRandomStrategy) {
+            case THREAD_LOCAL:
+                threadRandoms.get().nextBytes(bytes);
+                break;
+            case NATIVE_NON_BLOCKING:
+                sharedRandom().nextBytes(bytes);
+                break;
+            case AES_CTR_DRBG:
+                drbgs.get().nextBytes(bytes);
+                break;
+            default:
+                SecureRandom random = randoms.poll();
+                if (random == null) {
+                    random = createSecureRandom();
+                }
+                random.nextBytes(bytes);
+                randoms.add(random);
+        }
+    }
+
+    private SecureRandom sharedRandom() {
+        SecureRandom result = sharedRandom;
+        if (result == null) {
+            synchronized (this) {
+                result = sharedRandom;
+                if (result == null) {
+                    result = createNativeRandom();
+                    sharedRandom = result;
+                }
+            }
+        }
+        return result;
+    }
 
-        SecureRandom random = randoms.poll();
-        if (random == null) {
-            random = createSecureRandom();
+    private SecureRandom createNativeRandom() {
+        try {
+            SecureRandom result = SecureRandom.getInstance("NativePRNGNonBlocking");
+            result.nextInt();
+            return result;
+        } catch (NoSuchAlgorithmException e) {
+            logger.warn("sessionIdGeneratorBase.nativeRandom, NativePRNGNonBlocking not available, secureRandomAlgorithm:{}",
+                    secureRandomAlgorithm);
+            return createSecureRandom();
         }
-        random.nextBytes(bytes);
-        randoms.add(random);
     }
 
 
@@ -0,0 +1,151 @@
+package com.caiya.session.codec;
+
+import org.junit.Test;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * CompactAttributeCodec and AttributeCodecs tests.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public class CompactAttributeCodecTest {
+
+    private final CompactAttributeCodec codec = new CompactAttributeCodec();
+
+    @Test
+    public void roundTripsCommonValues() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("roles", new ArrayList<>(Arrays.asList("admin", "user")));
+        map.put("price", new BigDecimal("12.30"));
+        map.put("login", Instant.ofEpochSecond(1540000000L, 123));
+        map.put("date", new Date(1540000000000L));
+        map.put("unit", TimeUnit.SECONDS);
+        map.put("name", "王楠");
+
+        for (Object value : Arrays.asList(null, true, 42, -1L, 3.5d, 'c', (short) 7, "", map,
+                new HashSet<>(Arrays.asList(1, 2, 3)), new TreeMap<>(Collections.singletonMap("a", 1)))) {
+            Object decoded = codec.decode(codec.encode(value));
+            assertEquals(value, decoded);
+        }
+        long[] scores = {1L, -2L, Long.MAX_VALUE};
+        assertArrayEquals(scores, (long[]) codec.decode(codec.encode(scores)));
+    }
+
+    @Test
+    public void roundTripsObjectsFieldByField() {
+        User user = new User(1L, "zhangsan");
+        List<User> users = new ArrayList<>(Arrays.asList(user, new User(2L, "lisi"), user));
+
+        byte[] bytes = codec.encode(users);
+        assertEquals(users, codec.decode(bytes));
+        assertTrue(bytes.length < new JdkAttributeCodec().encode(users).length / 2);
+    }
+
+    @Test(expected = com.caiya.session.SessionException.class)
+    public void rejectsCyclicValues() {
+        List<Object> list = new ArrayList<>();
+        list.add(list);
+        codec.encode(list);
+    }
+
+    @Test
+    public void selectsCodecByNameThenType() {
+        AttributeCodec jdk = new JdkAttributeCodec();
+        AttributeCodecs attributeCodecs = AttributeCodecs.compact()
+                .register("legacy", jdk)
+                .register(Number.class, jdk);
+
+        assertEquals(JdkAttributeCodec.ID, attributeCodecs.encode("legacy", "a")[0]);
+        assertEquals(JdkAttributeCodec.ID, attributeCodecs.encode("count", 1)[0]);
+        assertEquals(CompactAttributeCodec.ID, attributeCodecs.encode("name", "a")[0]);
+        assertEquals(1, attributeCodecs.decode(attributeCodecs.encode("count", 1)));
+        assertFalse(attributeCodecs.isDecodable(new byte[]{99}));
+    }
+
+    @Test
+    public void compressesValuesAboveThreshold() {
+        AttributeCodecs attributeCodecs = AttributeCodecs.compact().setCompression(new DeflateAttributeCompressor(), 1024);
+        List<String> cart = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            cart.add("sku-" + (i % 50) + ":quantity=1");
+        }
+
+        byte[] bytes = attributeCodecs.encode("cart", cart);
+        assertEquals(AttributeCodecs.COMPRESSED, bytes[0]);
+        assertEquals(cart, attributeCodecs.decode(bytes));
+        assertEquals(CompactAttributeCodec.ID, attributeCodecs.encode("name", "zhangsan")[0]);
+        assertEquals(1, attributeCodecs.getCompressedValues());
+        assertTrue(attributeCodecs.getCompressionRatio() > 5);
+        assertTrue(attributeCodecs.getCompressionNanos() > 0);
+
+        // still readable once compression is turned off
+        attributeCodecs.setCompression(null, 0);
+        assertEquals(cart, attributeCodecs.decode(bytes));
+    }
+
+    @Test
+    public void dictionaryImprovesSmallValues() {
+        List<byte[]> samples = new ArrayList<>();
+        for (long i = 0; i < 200; i++) {
+            samples.add(codec.encode(new User(i, "user" + i)));
+        }
+        byte[] dictionary = AttributeDictionaryTrainer.train(samples, 4096);
+        byte[] value = codec.encode(new User(1000L, "zhangsan"));
+
+        DeflateAttributeCompressor plain = new DeflateAttributeCompressor();
+        DeflateAttributeCompressor trained = new DeflateAttributeCompressor(-1, dictionary);
+        byte[] compressed = trained.compress(value);
+        assertTrue(compressed.length < plain.compress(value).length);
+
+        // values compressed with the previous dictionary stay readable
+        DeflateAttributeCompressor rotated = new DeflateAttributeCompressor(-1, "other".getBytes(), dictionary);
+        assertArrayEquals(value, rotated.decompress(compressed, 0, value.length));
+    }
+
+    enum TimeUnit {
+        SECONDS
+    }
+
+    static class User implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private Long id;
+
+        private String name;
+
+        private int loginCount;
+
+        private transient String password = "secret";
+
+        User() {
+        }
+
+        User(Long id, String name) {
+            this.id = id;
+            this.name = name;
+            this.loginCount = 3;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof User)) {
+                return false;
+            }
+            User user = (User) obj;
+            return Objects.equals(id, user.id) && Objects.equals(name, user.name) && loginCount == user.loginCount;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(id, name, loginCount);
+        }
+    }
+}
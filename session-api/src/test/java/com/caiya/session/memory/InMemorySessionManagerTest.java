@@ -0,0 +1,156 @@
+package com.caiya.session.memory;
+
+import com.caiya.session.SessionException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * InMemorySessionManager tests, on a manual clock.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public class InMemorySessionManagerTest {
+
+    private final AtomicLong clock = new AtomicLong(1_540_000_000_000L);
+
+    private InMemorySessionManager sessionManager;
+
+    private final List<String> expired = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        sessionManager = new InMemorySessionManager(clock::get);
+        sessionManager.addListener(session -> expired.add(session.getId()));
+    }
+
+    @Test
+    public void createsFindsAndDeletes() {
+        InMemorySession session = sessionManager.createSession();
+        session.setAttribute("user", "wangnan");
+
+        InMemorySession found = sessionManager.findById(session.getId());
+        assertSame(session, found);
+        assertEquals("wangnan", found.getAttribute("user"));
+        assertEquals(Duration.ofSeconds(InMemorySessionManager.DEFAULT_MAX_INACTIVE_INTERVAL_SECONDS), found.getIdleTime());
+
+        try {
+            sessionManager.createSession(session.getId());
+            fail("the id is taken");
+        } catch (SessionException expected) {
+        }
+
+        assertTrue(sessionManager.deleteById(session.getId()));
+        assertFalse(sessionManager.deleteById(session.getId()));
+        assertNull(sessionManager.findById(session.getId()));
+        assertEquals(0, sessionManager.size());
+    }
+
+    @Test
+    public void changesSessionId() {
+        InMemorySession session = sessionManager.createSession("a");
+        InMemorySession other = sessionManager.createSession("b");
+
+        assertFalse(sessionManager.changeSessionId(session, "b"));
+        assertEquals("a", session.getId());
+
+        session.changeId("c");
+        assertNull(sessionManager.findById("a"));
+        assertSame(session, sessionManager.findById("c"));
+        assertEquals("a", session.getOriginalId());
+        sessionManager.save(session);
+        assertEquals("c", session.getOriginalId());
+
+        String newId = sessionManager.changeSessionId(other);
+        assertSame(other, sessionManager.findById(newId));
+        assertEquals(2, sessionManager.size());
+
+        sessionManager.deleteById("c");
+        try {
+            session.changeId("d");
+            fail("the session is deleted");
+        } catch (SessionException expected) {
+        }
+    }
+
+    @Test
+    public void expiresOnTheTimerWheel() {
+        InMemorySession idle = sessionManager.createSession("idle", Duration.ofMinutes(30));
+        InMemorySession active = sessionManager.createSession("active", Duration.ofMinutes(30));
+        InMemorySession forever = sessionManager.createSession("forever", Duration.ZERO);
+
+        clock.addAndGet(Duration.ofMinutes(20).toMillis());
+        active.setLastAccessedTime(Instant.ofEpochMilli(clock.get()));
+        assertEquals(0, sessionManager.expireSessions());
+
+        clock.addAndGet(Duration.ofMinutes(15).toMillis());
+        assertEquals(1, sessionManager.expireSessions());
+        assertEquals(1, sessionManager.getExpirations());
+        assertEquals("[idle]", expired.toString());
+        assertTrue(idle.removed);
+
+        // the touch deferred the expiration of the other one
+        assertSame(active, sessionManager.findById("active"));
+        clock.addAndGet(Duration.ofMinutes(20).toMillis());
+        assertEquals(1, sessionManager.expireSessions());
+        assertEquals("[idle, active]", expired.toString());
+
+        clock.addAndGet(Duration.ofDays(400).toMillis());
+        assertEquals(0, sessionManager.expireSessions());
+        assertSame(forever, sessionManager.findById("forever"));
+        assertEquals(Duration.ofSeconds(-1), forever.getIdleTime());
+    }
+
+    @Test
+    public void findsExpiredSessionBeforeTheWheel() {
+        sessionManager.createSession("a", Duration.ofSeconds(10));
+
+        clock.addAndGet(10_000);
+        assertNull(sessionManager.findById("a"));
+        assertEquals("[a]", expired.toString());
+        assertEquals(0, sessionManager.size());
+
+        // the id is free again
+        assertNotNull(sessionManager.createSession("a"));
+    }
+
+    @Test
+    public void shortenedIntervalIsRescheduled() {
+        InMemorySession session = sessionManager.createSession("a", Duration.ofHours(2));
+        session.setMaxInactiveInterval(Duration.ofMinutes(1));
+
+        clock.addAndGet(Duration.ofMinutes(2).toMillis());
+        assertEquals(1, sessionManager.expireSessions());
+    }
+
+    @Test
+    public void evictsSessionsNeverRequestedAgainFirst() {
+        sessionManager.setMaxSessions(4);
+        sessionManager.createSession("returning1");
+        sessionManager.createSession("crawler1");
+        sessionManager.createSession("returning2");
+        sessionManager.createSession("crawler2");
+        sessionManager.findById("returning1");
+        sessionManager.findById("returning2");
+
+        sessionManager.createSession("new1");
+        sessionManager.createSession("new2");
+
+        assertEquals(4, sessionManager.size());
+        assertEquals(2, sessionManager.getEvictions());
+        assertNull(sessionManager.findById("crawler1"));
+        assertNull(sessionManager.findById("crawler2"));
+        assertNotNull(sessionManager.findById("returning1"));
+        assertNotNull(sessionManager.findById("returning2"));
+        // evictions are not expirations
+        assertTrue(expired.isEmpty());
+    }
+}
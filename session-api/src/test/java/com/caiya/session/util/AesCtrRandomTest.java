@@ -0,0 +1,64 @@
+package com.caiya.session.util;
+
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * AesCtrRandom tests, against AES/CTR/NoPadding keyed by hand.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public class AesCtrRandomTest {
+
+    private static final byte[] SEED = new byte[32];
+
+    static {
+        for (int i = 0; i < SEED.length; i++) {
+            SEED[i] = (byte) i;
+        }
+    }
+
+    private static AesCtrRandom seeded() {
+        return new AesCtrRandom(new SecureRandom() {
+            @Override
+            public void nextBytes(byte[] bytes) {
+                System.arraycopy(SEED, 0, bytes, 0, bytes.length);
+            }
+        });
+    }
+
+    private static byte[] keyStream(byte[] keyAndCounter, int offset, int length) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keyAndCounter, offset, 16, "AES"),
+                new IvParameterSpec(keyAndCounter, offset + 16, 16));
+        return cipher.update(new byte[length]);
+    }
+
+    @Test
+    public void rekeysFromTheKeyStreamAfterEachRequest() throws Exception {
+        AesCtrRandom random = seeded();
+        byte[] first = new byte[16];
+        byte[] second = new byte[10];
+        byte[] third = new byte[16];
+        random.nextBytes(first);
+        random.nextBytes(second);
+        random.nextBytes(third);
+
+        // the output, then the next key and counter
+        byte[] stream = keyStream(SEED, 0, 48);
+        assertArrayEquals(Arrays.copyOf(stream, 16), first);
+        stream = keyStream(stream, 16, 48);
+        assertArrayEquals(Arrays.copyOf(stream, 10), second);
+        // the rest of the partial block is skipped
+        stream = keyStream(stream, 16, 16);
+        assertArrayEquals(stream, third);
+    }
+}
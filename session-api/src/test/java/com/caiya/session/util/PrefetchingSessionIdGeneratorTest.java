@@ -0,0 +1,170 @@
+package com.caiya.session.util;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * PrefetchingSessionIdGenerator tests.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public class PrefetchingSessionIdGeneratorTest {
+
+    @Test
+    public void fallsBackWhenNotStarted() {
+        PrefetchingSessionIdGenerator sessionIdGenerator = new PrefetchingSessionIdGenerator(new StandardSessionIdGenerator(), 8);
+
+        assertTrue(sessionIdGenerator.generateSessionId().matches("[0-9A-F]{32}"));
+        assertEquals(0, sessionIdGenerator.getHits());
+        assertEquals(1, sessionIdGenerator.getMisses());
+        assertEquals(0, sessionIdGenerator.getHitRate(), 0);
+    }
+
+    @Test
+    public void handsOutPrefetchedIds() throws InterruptedException {
+        try (PrefetchingSessionIdGenerator sessionIdGenerator = new PrefetchingSessionIdGenerator(new StandardSessionIdGenerator(), 100)) {
+            assertEquals(128, sessionIdGenerator.getCapacity());
+            sessionIdGenerator.start();
+            awaitFull(sessionIdGenerator);
+
+            Set<String> ids = new HashSet<>();
+            for (int i = 0; i < 1000; i++) {
+                ids.add(sessionIdGenerator.generateSessionId());
+            }
+            assertEquals(1000, ids.size());
+            assertEquals(1000, sessionIdGenerator.getHits() + sessionIdGenerator.getMisses());
+            assertTrue(sessionIdGenerator.getHits() >= 128);
+
+            awaitFull(sessionIdGenerator);
+            assertTrue(sessionIdGenerator.getRefills() > 1);
+            assertTrue(sessionIdGenerator.getMaxRefillLagNanos() > 0);
+
+            // the ids of the old route are discarded
+            sessionIdGenerator.setJvmRoute("node1");
+            assertTrue(sessionIdGenerator.generateSessionId().endsWith(".node1"));
+            assertTrue(sessionIdGenerator.generateSessionId("node2").endsWith(".node2"));
+        }
+    }
+
+    @Test
+    public void dropsTheIdsGeneratedWhileTheRouteChanged() throws InterruptedException {
+        CountDownLatch generating = new CountDownLatch(1);
+        CountDownLatch routeChanged = new CountDownLatch(1);
+        StandardSessionIdGenerator delegate = new StandardSessionIdGenerator() {
+
+            private boolean first = true;
+
+            @Override
+            public String generateSessionId() {
+                String id = super.generateSessionId();
+                if (first) {
+                    // the first id is generated for the old route, then the route changes
+                    first = false;
+                    generating.countDown();
+                    try {
+                        routeChanged.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return id;
+            }
+        };
+        delegate.setJvmRoute("node1");
+        try (PrefetchingSessionIdGenerator sessionIdGenerator = new PrefetchingSessionIdGenerator(delegate, 4)) {
+            sessionIdGenerator.start();
+            assertTrue(generating.await(5, TimeUnit.SECONDS));
+            sessionIdGenerator.setJvmRoute("node2");
+            routeChanged.countDown();
+            awaitFull(sessionIdGenerator);
+
+            for (int i = 0; i < 8; i++) {
+                assertTrue(sessionIdGenerator.generateSessionId().endsWith(".node2"));
+            }
+        }
+    }
+
+    @Test
+    public void handsOutNoBufferedIdWhileTheRouteChanges() throws Exception {
+        CountDownLatch changing = new CountDownLatch(1);
+        CountDownLatch polled = new CountDownLatch(1);
+        StandardSessionIdGenerator delegate = new StandardSessionIdGenerator() {
+            @Override
+            public void setJvmRoute(String jvmRoute) {
+                super.setJvmRoute(jvmRoute);
+                if ("node2".equals(jvmRoute)) {
+                    // the route of the delegate changed, the generation not bumped again yet
+                    changing.countDown();
+                    try {
+                        polled.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+        delegate.setJvmRoute("node1");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (PrefetchingSessionIdGenerator sessionIdGenerator = new PrefetchingSessionIdGenerator(delegate, 8)) {
+            sessionIdGenerator.start();
+            awaitFull(sessionIdGenerator);
+
+            Future<?> routeChanged = executor.submit(() -> sessionIdGenerator.setJvmRoute("node2"));
+            assertTrue(changing.await(5, TimeUnit.SECONDS));
+            String id = sessionIdGenerator.generateSessionId();
+            polled.countDown();
+            routeChanged.get(5, TimeUnit.SECONDS);
+            assertTrue(id, id.endsWith(".node2"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void closeWaitsForTheRefillThreadToStop() throws InterruptedException {
+        AtomicInteger generating = new AtomicInteger();
+        AtomicInteger maxGenerating = new AtomicInteger();
+        StandardSessionIdGenerator delegate = new StandardSessionIdGenerator() {
+            @Override
+            public String generateSessionId() {
+                maxGenerating.accumulateAndGet(generating.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(1);
+                    return super.generateSessionId();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return super.generateSessionId();
+                } finally {
+                    generating.decrementAndGet();
+                }
+            }
+        };
+        PrefetchingSessionIdGenerator sessionIdGenerator = new PrefetchingSessionIdGenerator(delegate, 64);
+        for (int i = 0; i < 20; i++) {
+            sessionIdGenerator.start();
+            Thread.sleep(2);
+            sessionIdGenerator.close();
+            assertEquals(0, generating.get());
+        }
+        // the refill threads of successive starts never ran together
+        assertEquals(1, maxGenerating.get());
+    }
+
+    private static void awaitFull(PrefetchingSessionIdGenerator sessionIdGenerator) throws InterruptedException {
+        for (int i = 0; i < 500 && sessionIdGenerator.getSize() < sessionIdGenerator.getCapacity(); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(sessionIdGenerator.getCapacity(), sessionIdGenerator.getSize());
+    }
+}
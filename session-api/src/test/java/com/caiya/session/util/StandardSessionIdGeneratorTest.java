@@ -0,0 +1,44 @@
+package com.caiya.session.util;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * StandardSessionIdGenerator tests, for each secure random strategy.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public class StandardSessionIdGeneratorTest {
+
+    @Test
+    public void generatesUniqueHexIds() {
+        for (SecureRandomStrategy strategy : SecureRandomStrategy.values()) {
+            StandardSessionIdGenerator sessionIdGenerator = new StandardSessionIdGenerator();
+            sessionIdGenerator.setSecureRandomStrategy(strategy);
+
+            Set<String> ids = new HashSet<>();
+            for (int i = 0; i < 1000; i++) {
+                String id = sessionIdGenerator.generateSessionId();
+                assertTrue(strategy + ": " + id, id.matches("[0-9A-F]{32}"));
+                ids.add(id);
+            }
+            assertEquals(strategy.toString(), 1000, ids.size());
+        }
+    }
+
+    @Test
+    public void appendsRoute() {
+        StandardSessionIdGenerator sessionIdGenerator = new StandardSessionIdGenerator();
+        sessionIdGenerator.setSessionIdLength(20);
+        assertTrue(sessionIdGenerator.generateSessionId("node1").matches("[0-9A-F]{40}\\.node1"));
+
+        sessionIdGenerator.setJvmRoute("node2");
+        assertTrue(sessionIdGenerator.generateSessionId().matches("[0-9A-F]{40}\\.node2"));
+        assertTrue(sessionIdGenerator.generateSessionId("").matches("[0-9A-F]{40}\\.node2"));
+    }
+}
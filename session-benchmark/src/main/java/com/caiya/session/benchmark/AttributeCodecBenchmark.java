@@ -0,0 +1,125 @@
+package com.caiya.session.benchmark;
+
+import com.caiya.session.benchmark.pojo.User;
+import com.caiya.session.codec.AttributeCodecs;
+import com.caiya.session.codec.DeflateAttributeCompressor;
+import com.caiya.session.codec.JdkAttributeCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode time of the attribute codecs for typical session values, and of the
+ * compression of the large ones. The encoded size of each value is reported as the
+ * secondary <code>encodedBytes</code> result of each benchmark.
+ * <pre>
+ * java -jar target/benchmarks.jar AttributeCodecBenchmark -prof gc
+ * </pre>
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AttributeCodecBenchmark {
+
+    /**
+     * Values of at least this size are compressed by the "deflate" codecs.
+     */
+    private static final int COMPRESSION_THRESHOLD = 4 * 1024;
+
+    @Param({"jdk", "compact", "compact+deflate"})
+    private String codecName;
+
+    @Param({"user", "users", "string", "map", "cart"})
+    private String valueName;
+
+    private AttributeCodecs codecs;
+
+    private Object value;
+
+    private byte[] encoded;
+
+    @Setup
+    public void setUp() {
+        codecs = "jdk".equals(codecName) ? new AttributeCodecs(new JdkAttributeCodec()) : AttributeCodecs.compact();
+        if (codecName.endsWith("+deflate")) {
+            codecs.setCompression(new DeflateAttributeCompressor(), COMPRESSION_THRESHOLD);
+        }
+        value = value(valueName);
+        encoded = codecs.encode(valueName, value);
+        if (!value.equals(codecs.decode(encoded)))
+            throw new IllegalStateException("value changed by the codec: " + valueName);
+    }
+
+    @Benchmark
+    public byte[] encode(EncodedSize encodedSize) {
+        return codecs.encode(valueName, value);
+    }
+
+    @Benchmark
+    public Object decode(EncodedSize encodedSize) {
+        return codecs.decode(encoded);
+    }
+
+    /**
+     * Reports the encoded size of the value, set before each iteration so that nothing is
+     * done for it during the measurement.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class EncodedSize {
+
+        public long encodedBytes;
+
+        @Setup(Level.Iteration)
+        public void setUp(AttributeCodecBenchmark benchmark) {
+            encodedBytes = benchmark.encoded.length;
+        }
+    }
+
+    static Object value(String name) {
+        switch (name) {
+            case "user":
+                return new User(10001L, "zhangsan", "zhangsan@caiya.com", "e10adc3949ba59abbe56e057f20f883e");
+            case "users":
+                List<User> users = new ArrayList<>();
+                for (long i = 0; i < 10; i++) {
+                    users.add(new User(10001L + i, "user" + i, "user" + i + "@caiya.com", "e10adc3949ba59abbe56e057f20f883e"));
+                }
+                return users;
+            case "string":
+                return "3f2b8c1e-0d6a-4c5e-9a1b-7f3e2d1c0b9a";
+            case "map":
+                Map<String, Object> map = new HashMap<>();
+                map.put("locale", "zh_CN");
+                map.put("cartSize", 3);
+                map.put("lastOrderId", 9876543210L);
+                map.put("vip", Boolean.TRUE);
+                return map;
+            case "cart":
+                // a shopping cart with a few hundred lines, around 40 KB
+                List<Map<String, Object>> cart = new ArrayList<>();
+                for (int i = 0; i < 300; i++) {
+                    Map<String, Object> line = new HashMap<>();
+                    line.put("skuId", 100000L + i * 7);
+                    line.put("title", "商品名称 " + i + " 规格: 默认, 颜色: 黑色, 尺码: XL");
+                    line.put("quantity", 1 + i % 3);
+                    line.put("price", "199.00");
+                    line.put("selected", i % 5 != 0);
+                    cart.add(line);
+                }
+                return cart;
+            default:
+                throw new IllegalArgumentException("unknown value: " + name);
+        }
+    }
+}
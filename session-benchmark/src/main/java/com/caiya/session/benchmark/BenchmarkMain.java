@@ -0,0 +1,33 @@
+package com.caiya.session.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entry point of <code>benchmarks.jar</code>: the JMH command line, with the GC profiler
+ * added unless another profiler is given, so that each suite reports its allocation rate
+ * (<code>gc.alloc.rate.norm</code>, in bytes per operation) next to its throughput.
+ * <pre>
+ * java -jar target/benchmarks.jar SessionFilterBenchmark
+ * java -jar target/benchmarks.jar SessionIdGeneratorBenchmark -prof stack
+ * </pre>
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public final class BenchmarkMain {
+
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+        if (!options.contains("-prof") && !options.contains("-h") && !options.contains("-l")
+                && !options.contains("-lp") && !options.contains("-lprof")) {
+            options.add("-prof");
+            options.add("gc");
+        }
+        org.openjdk.jmh.Main.main(options.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,77 @@
+package com.caiya.session.benchmark;
+
+import com.caiya.session.util.StandardSessionIdGenerator;
+import com.caiya.session.web.http.CookieSerializer;
+import com.caiya.session.web.http.DefaultCookieSerializer;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.http.Cookie;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link DefaultCookieSerializer} reading the session id among the cookies
+ * a browser typically sends, and writing the session cookie, with and without the base64
+ * encoding of the value.
+ * <pre>
+ * java -jar target/benchmarks.jar CookieSerializerBenchmark
+ * </pre>
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CookieSerializerBenchmark {
+
+    @Param({"false", "true"})
+    private boolean base64;
+
+    private DefaultCookieSerializer cookieSerializer;
+
+    private MockHttpServletRequest request;
+
+    private MockHttpServletResponse response;
+
+    private String sessionId;
+
+    @Setup
+    public void setUp() {
+        cookieSerializer = new DefaultCookieSerializer();
+        cookieSerializer.setUseBase64Encoding(base64);
+        sessionId = new StandardSessionIdGenerator().generateSessionId();
+
+        request = new MockHttpServletRequest("GET", "/cart");
+        request.setContextPath("");
+        request.setCookies(
+                new Cookie("Hm_lvt_9a3f", "1539830000,1539830100"),
+                new Cookie("JSESSIONID", "5C0A8E1F7D"),
+                new Cookie("SESSION", base64 ? Base64.getEncoder().encodeToString(sessionId.getBytes()) : sessionId),
+                new Cookie("locale", "zh_CN"));
+        response = new MockHttpServletResponse();
+
+        List<String> sessionIds = cookieSerializer.readCookieValues(request);
+        if (!sessionIds.equals(Collections.singletonList(sessionId)))
+            throw new IllegalStateException("session id not read: " + sessionIds);
+    }
+
+    @Benchmark
+    public List<String> read() {
+        return cookieSerializer.readCookieValues(request);
+    }
+
+    @Benchmark
+    public MockHttpServletResponse write() {
+        response.reset();
+        cookieSerializer.writeCookieValue(new CookieSerializer.CookieValue(request, response, sessionId));
+        return response;
+    }
+}
@@ -0,0 +1,88 @@
+package com.caiya.session.benchmark;
+
+import com.caiya.session.redis.RedisScriptExecutor;
+import com.caiya.session.redis.RedisSession;
+import com.caiya.session.redis.RedisSessionManager;
+import com.caiya.session.redis.support.InMemoryRedis;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of {@link RedisSessionManager#findById(String)} with and without a
+ * {@link RedisScriptExecutor}, against the in-process {@link InMemoryRedis} with a
+ * simulated round trip of 200 microseconds: the plain commands take two round trips
+ * (<code>TTL</code> + <code>HGETALL</code>), the script one. The number of round trips
+ * per call is checked at the end of each trial.
+ * <pre>
+ * java -jar target/benchmarks.jar FindByIdBenchmark
+ * </pre>
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FindByIdBenchmark {
+
+    private static final int SESSIONS = 128;
+
+    private static final Duration ROUND_TRIP_LATENCY = Duration.ofNanos(200_000);
+
+    @Param({"commands", "script"})
+    private String access;
+
+    private InMemoryRedis redis;
+
+    private RedisSessionManager sessionManager;
+
+    private String[] ids;
+
+    private int next;
+
+    private long calls;
+
+    private long roundTrips;
+
+    @Setup
+    public void setUp() {
+        redis = new InMemoryRedis();
+        sessionManager = new RedisSessionManager(redis.cacheApi());
+        ids = new String[SESSIONS];
+        for (int i = 0; i < SESSIONS; i++) {
+            RedisSession session = sessionManager.createSession();
+            session.setAttribute("user", "user-" + i);
+            session.setAttribute("cart", new long[64]);
+            ids[i] = session.getId();
+        }
+        if ("script".equals(access)) {
+            sessionManager.setScriptExecutor(redis.scriptExecutor());
+        }
+        redis.setRoundTripLatency(ROUND_TRIP_LATENCY);
+        roundTrips = redis.getRoundTrips();
+    }
+
+    @Benchmark
+    public RedisSession findById() {
+        calls++;
+        return sessionManager.findById(nextId());
+    }
+
+    @TearDown
+    public void tearDown() {
+        long expected = "script".equals(access) ? 1 : 2;
+        if (redis.getRoundTrips() - roundTrips != calls * expected)
+            throw new IllegalStateException("expected " + expected + " round trip(s) per findById with " + access);
+    }
+
+    private String nextId() {
+        String id = ids[next];
+        next = (next + 1) & (SESSIONS - 1);
+        return id;
+    }
+}
@@ -0,0 +1,80 @@
+package com.caiya.session.benchmark;
+
+import com.caiya.session.memory.InMemorySession;
+import com.caiya.session.memory.InMemorySessionManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the {@link InMemorySessionManager} shared by one, a few and as many threads
+ * as there are processors, for a mix of 90% requests touching an existing session and 10%
+ * creating one, over a manager kept full so that the creations evict. Close to linear
+ * scaling of the mix is the point of the manager.
+ * <pre>
+ * java -jar target/benchmarks.jar InMemorySessionManagerBenchmark
+ * </pre>
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InMemorySessionManagerBenchmark {
+
+    private static final int SESSIONS = 1 << 16;
+
+    private InMemorySessionManager sessionManager;
+
+    private String[] ids;
+
+    @Setup
+    public void setUp() {
+        sessionManager = new InMemorySessionManager();
+        sessionManager.setMaxSessions(SESSIONS);
+        ids = new String[SESSIONS];
+        for (int i = 0; i < SESSIONS; i++) {
+            ids[i] = sessionManager.createSession().getId();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public InMemorySession oneThread() {
+        return request();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public InMemorySession eightThreads() {
+        return request();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public InMemorySession allProcessors() {
+        return request();
+    }
+
+    private InMemorySession request() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(SESSIONS);
+        if (random.nextInt(10) == 0) {
+            InMemorySession session = sessionManager.createSession();
+            // a racy write, the benchmark only needs ids which mostly exist
+            ids[i] = session.getId();
+            return session;
+        }
+        InMemorySession session = sessionManager.findById(ids[i]);
+        if (session != null) {
+            session.setLastAccessedTime(Instant.now());
+        }
+        return session;
+    }
+}
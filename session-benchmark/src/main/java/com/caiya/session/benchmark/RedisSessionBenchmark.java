@@ -0,0 +1,92 @@
+package com.caiya.session.benchmark;
+
+import com.caiya.session.benchmark.pojo.User;
+import com.caiya.session.redis.RedisFlushMode;
+import com.caiya.session.redis.RedisSession;
+import com.caiya.session.redis.RedisSessionManager;
+import com.caiya.session.redis.support.InMemoryRedis;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of loading and saving a {@link RedisSession} against the in-process
+ * {@link InMemoryRedis}, without network round trips, so that only the work of the
+ * session manager is measured: key building, encoding and decoding of the attributes,
+ * delta tracking. Sessions are loaded with the plain commands, with the scripts, and with
+ * the scripts and lazy attribute loading.
+ * <pre>
+ * java -jar target/benchmarks.jar RedisSessionBenchmark
+ * </pre>
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RedisSessionBenchmark {
+
+    private static final int SESSIONS = 1024;
+
+    @Param({"commands", "script", "script+lazy"})
+    private String access;
+
+    private RedisSessionManager sessionManager;
+
+    private String[] ids;
+
+    private int next;
+
+    private long visits;
+
+    @Setup
+    public void setUp() {
+        InMemoryRedis redis = new InMemoryRedis();
+        sessionManager = new RedisSessionManager(redis.cacheApi());
+        if (access.startsWith("script")) {
+            sessionManager.setScriptExecutor(redis.scriptExecutor());
+        }
+        sessionManager.setLazyAttributeLoading(access.endsWith("+lazy"));
+
+        ids = new String[SESSIONS];
+        for (int i = 0; i < SESSIONS; i++) {
+            RedisSession session = sessionManager.createSession();
+            session.setAttribute("user", AttributeCodecBenchmark.value("user"));
+            session.setAttribute("preferences", AttributeCodecBenchmark.value("map"));
+            session.setAttribute("lastVisit", 0L);
+            ids[i] = session.getId();
+        }
+        // the attributes are written on save from now on
+        sessionManager.setFlushMode(RedisFlushMode.ON_COMMIT);
+    }
+
+    /**
+     * Loads a session and reads the attribute most requests need.
+     */
+    @Benchmark
+    public User load() {
+        RedisSession session = sessionManager.findById(nextId());
+        return session.getAttribute("user");
+    }
+
+    /**
+     * Loads a session, changes one attribute and saves it.
+     */
+    @Benchmark
+    public RedisSession loadAndSave() {
+        RedisSession session = sessionManager.findById(nextId());
+        session.setAttribute("lastVisit", ++visits);
+        sessionManager.save(session);
+        return session;
+    }
+
+    private String nextId() {
+        String id = ids[next];
+        next = (next + 1) & (SESSIONS - 1);
+        return id;
+    }
+}
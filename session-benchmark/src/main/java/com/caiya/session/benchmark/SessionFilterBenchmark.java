@@ -0,0 +1,137 @@
+package com.caiya.session.benchmark;
+
+import com.caiya.session.redis.RedisFlushMode;
+import com.caiya.session.redis.RedisSession;
+import com.caiya.session.redis.RedisSessionManager;
+import com.caiya.session.redis.support.InMemoryRedis;
+import com.caiya.session.web.http.SessionRepositoryFilter;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of a whole request through the {@link SessionRepositoryFilter}, backed by a
+ * {@link RedisSessionManager} on the in-process {@link InMemoryRedis}, with mock servlet
+ * requests and responses:
+ * <ul>
+ * <li>anonymous: no session cookie, the application does not use the session</li>
+ * <li>create: no session cookie, the application creates a session on login</li>
+ * <li>read: a session cookie, the application reads an attribute</li>
+ * <li>write: a session cookie, the application changes an attribute</li>
+ * </ul>
+ * The {@link #baseline()} request goes through the same mocks without the filter; its
+ * allocation rate is the one of the mocks, to subtract from the others.
+ * <pre>
+ * java -jar target/benchmarks.jar SessionFilterBenchmark
+ * </pre>
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionFilterBenchmark {
+
+    private static final int SESSIONS = 1024;
+
+    @Param({"anonymous", "create", "read", "write"})
+    private String scenario;
+
+    private SessionRepositoryFilter<RedisSession> filter;
+
+    private FilterChain application;
+
+    private Cookie[] cookies;
+
+    private int next;
+
+    private long visits;
+
+    /**
+     * Starts each iteration on an empty redis, so that the sessions created by the
+     * "create" scenario do not pile up.
+     */
+    @Setup(Level.Iteration)
+    public void setUp() {
+        InMemoryRedis redis = new InMemoryRedis();
+        RedisSessionManager sessionManager = new RedisSessionManager(redis.cacheApi());
+        sessionManager.setScriptExecutor(redis.scriptExecutor());
+
+        cookies = new Cookie[SESSIONS];
+        for (int i = 0; i < SESSIONS; i++) {
+            RedisSession session = sessionManager.createSession();
+            session.setAttribute("user", AttributeCodecBenchmark.value("user"));
+            session.setAttribute("lastVisit", 0L);
+            cookies[i] = new Cookie("SESSION", session.getId());
+        }
+        sessionManager.setFlushMode(RedisFlushMode.ON_COMMIT);
+        filter = new SessionRepositoryFilter<>(sessionManager);
+        application = application();
+    }
+
+    private FilterChain application() {
+        switch (scenario) {
+            case "anonymous":
+                return (request, response) -> {
+                };
+            case "create":
+                return (request, response) -> {
+                    HttpSession session = ((HttpServletRequest) request).getSession();
+                    session.setAttribute("user", AttributeCodecBenchmark.value("user"));
+                };
+            case "read":
+                return (request, response) -> {
+                    HttpSession session = ((HttpServletRequest) request).getSession(false);
+                    if (session == null || session.getAttribute("user") == null)
+                        throw new IllegalStateException("session not found");
+                };
+            case "write":
+                return (request, response) -> {
+                    HttpSession session = ((HttpServletRequest) request).getSession(false);
+                    if (session == null)
+                        throw new IllegalStateException("session not found");
+                    session.setAttribute("lastVisit", ++visits);
+                };
+            default:
+                throw new IllegalArgumentException("unknown scenario: " + scenario);
+        }
+    }
+
+    @Benchmark
+    public MockHttpServletResponse request() throws IOException, ServletException {
+        MockHttpServletRequest request = newRequest();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, application);
+        return response;
+    }
+
+    @Benchmark
+    public MockHttpServletResponse baseline() throws IOException, ServletException {
+        MockHttpServletRequest request = newRequest();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        new MockFilterChain().doFilter(request, response);
+        return response;
+    }
+
+    private MockHttpServletRequest newRequest() {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/cart");
+        if ("read".equals(scenario) || "write".equals(scenario)) {
+            request.setCookies(cookies[next]);
+            next = (next + 1) & (SESSIONS - 1);
+        }
+        return request;
+    }
+}
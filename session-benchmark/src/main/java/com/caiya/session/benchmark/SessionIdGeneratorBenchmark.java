@@ -0,0 +1,73 @@
+package com.caiya.session.benchmark;
+
+import com.caiya.session.util.SecureRandomStrategy;
+import com.caiya.session.util.StandardSessionIdGenerator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link StandardSessionIdGenerator#generateSessionId()} shared by 1 to 256
+ * threads, for each {@link SecureRandomStrategy}, i.e. how the random number generators
+ * behave under the contention of a wave of new sessions. The threads beyond the number of
+ * processors stand for the request threads of a container, most of them waiting.
+ * <pre>
+ * java -jar target/benchmarks.jar SessionIdGeneratorBenchmark
+ * java -jar target/benchmarks.jar SessionIdGeneratorBenchmark -p strategy=THREAD_LOCAL,AES_CTR_DRBG
+ * </pre>
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionIdGeneratorBenchmark {
+
+    @Param({"POOLED", "THREAD_LOCAL", "NATIVE_NON_BLOCKING", "AES_CTR_DRBG"})
+    private SecureRandomStrategy strategy;
+
+    private StandardSessionIdGenerator sessionIdGenerator;
+
+    @Setup
+    public void setUp() {
+        sessionIdGenerator = new StandardSessionIdGenerator();
+        sessionIdGenerator.setSecureRandomStrategy(strategy);
+        // creates the first secure random out of the measurement, the per thread ones
+        // during the warmup
+        sessionIdGenerator.generateSessionId();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String oneThread() {
+        return sessionIdGenerator.generateSessionId();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String eightThreads() {
+        return sessionIdGenerator.generateSessionId();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public String sixtyFourThreads() {
+        return sessionIdGenerator.generateSessionId();
+    }
+
+    @Benchmark
+    @Threads(256)
+    public String twoHundredFiftySixThreads() {
+        return sessionIdGenerator.generateSessionId();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String allProcessors() {
+        return sessionIdGenerator.generateSessionId();
+    }
+}
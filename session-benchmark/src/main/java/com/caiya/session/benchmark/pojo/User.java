@@ -0,0 +1,57 @@
+package com.caiya.session.benchmark.pojo;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Same fields as the User of session-test, which is stored in the session on login.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public class User implements Serializable {
+
+    private static final long serialVersionUID = -8741794542106019386L;
+
+    private Long id;
+
+    private String name;
+
+    private String loginCode;
+
+    private String password;
+
+    public User() {
+    }
+
+    public User(Long id, String name, String loginCode, String password) {
+        this.id = id;
+        this.name = name;
+        this.loginCode = loginCode;
+        this.password = password;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof User)) {
+            return false;
+        }
+
+        User param = (User) obj;
+        return Objects.equals(id, param.id) && Objects.equals(name, param.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, name);
+    }
+
+}
@@ -0,0 +1,118 @@
+package com.caiya.session.redis;
+
+import com.caiya.session.SessionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Base class of the jedis backed {@link RedisScriptExecutor}s: key prefixing, argument
+ * encoding and value serialization.
+ * <p>
+ * Values are serialized with JDK serialization, which matches the
+ * <code>JdkSerializationSerializer</code> usually set as hash value serializer of the
+ * cache; override {@link #serializeValue(Object)} and {@link #deserializeValue(byte[])}
+ * otherwise.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public abstract class AbstractJedisScriptExecutor implements RedisScriptExecutor {
+
+    private final byte[] keyPrefix;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param keyPrefix the key prefix of the cache, may be null
+     */
+    protected AbstractJedisScriptExecutor(byte[] keyPrefix) {
+        this.keyPrefix = keyPrefix == null ? new byte[0] : keyPrefix;
+    }
+
+    @Override
+    public byte[] serializeValue(Object value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        try (ObjectOutputStream oos = new ObjectOutputStream(out)) {
+            oos.writeObject(value);
+        } catch (IOException e) {
+            throw new SessionException("cannot serialize value of type " + value.getClass().getName(), e);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public Object deserializeValue(byte[] bytes) {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return ois.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new SessionException("cannot deserialize value", e);
+        }
+    }
+
+    /**
+     * @param keys the keys, without prefix
+     * @param args the arguments
+     * @return the prefixed keys followed by the encoded arguments
+     */
+    protected byte[][] params(List<String> keys, List<?> args) {
+        if (keys == null || keys.isEmpty())
+            throw new IllegalArgumentException("a script must be executed with at least one key");
+
+        byte[][] params = new byte[keys.size() + (args == null ? 0 : args.size())][];
+        int i = 0;
+        for (String key : keys) {
+            params[i++] = rawKey(key);
+        }
+        if (args != null) {
+            for (Object arg : args) {
+                params[i++] = rawArg(arg);
+            }
+        }
+        return params;
+    }
+
+    protected static byte[] sha1(RedisScript<?> script) {
+        return script.getSha1().getBytes(StandardCharsets.UTF_8);
+    }
+
+    protected static byte[] source(RedisScript<?> script) {
+        return script.getSource().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param result a reply or an exception
+     * @return true if redis replied that it does not know the script
+     */
+    protected static boolean isNoScript(Object result) {
+        return result instanceof JedisDataException && ((JedisDataException) result).getMessage() != null
+                && ((JedisDataException) result).getMessage().startsWith("NOSCRIPT");
+    }
+
+    private byte[] rawKey(String key) {
+        byte[] raw = key.getBytes(StandardCharsets.UTF_8);
+        if (keyPrefix.length == 0) {
+            return raw;
+        }
+        byte[] prefixed = new byte[keyPrefix.length + raw.length];
+        System.arraycopy(keyPrefix, 0, prefixed, 0, keyPrefix.length);
+        System.arraycopy(raw, 0, prefixed, keyPrefix.length, raw.length);
+        return prefixed;
+    }
+
+    private static byte[] rawArg(Object arg) {
+        if (arg instanceof byte[]) {
+            return (byte[]) arg;
+        }
+        return String.valueOf(arg).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,137 @@
+package com.caiya.session.redis;
+
+import com.caiya.session.metrics.SessionMetrics;
+
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * {@link RedisScriptExecutor} recording each script call of another one as a command of
+ * the {@link SessionMetrics}, named after the script, with the size of its keys and
+ * arguments and of its reply. The sizes are the ones of the payloads, without the protocol
+ * framing nor the key prefix. Recording allocates nothing.
+ * <p>
+ * With a script executor, the hot path of the {@link RedisSessionManager} only goes through
+ * scripts; the commands it still sends with the {@link com.caiya.cache.CacheApi}, e.g. to
+ * migrate the sessions of the legacy key layout, are not recorded.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public class InstrumentedRedisScriptExecutor implements RedisScriptExecutor {
+
+    private final RedisScriptExecutor delegate;
+
+    private final SessionMetrics metrics;
+
+    public InstrumentedRedisScriptExecutor(RedisScriptExecutor delegate, SessionMetrics metrics) {
+        if (delegate == null)
+            throw new IllegalArgumentException("delegate cannot be null");
+        if (metrics == null)
+            throw new IllegalArgumentException("metrics cannot be null");
+
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public <T> T execute(RedisScript<T> script, List<String> keys, List<?> args) {
+        T result = delegate.execute(script, keys, args);
+        metrics.recordCommand(script.getName(), sizeOf(keys) + sizeOf(args), sizeOf(result));
+        return result;
+    }
+
+    @Override
+    public List<Object> executePipelined(List<RedisScriptCall<?>> calls) {
+        List<Object> results = delegate.executePipelined(calls);
+        for (int i = 0; i < calls.size(); i++) {
+            RedisScriptCall<?> call = calls.get(i);
+            Object result = i < results.size() ? results.get(i) : null;
+            metrics.recordCommand(call.getScript().getName(), sizeOf(call.getKeys()) + sizeOf(call.getArgs()),
+                    result instanceof RuntimeException ? 0 : sizeOf(result));
+        }
+        return results;
+    }
+
+    @Override
+    public boolean isPipelining() {
+        return delegate.isPipelining();
+    }
+
+    @Override
+    public boolean isCluster() {
+        return delegate.isCluster();
+    }
+
+    @Override
+    public byte[] serializeValue(Object value) {
+        return delegate.serializeValue(value);
+    }
+
+    @Override
+    public Object deserializeValue(byte[] bytes) {
+        return delegate.deserializeValue(bytes);
+    }
+
+    /**
+     * @return the size of a script argument or reply as sent over the wire, without framing
+     */
+    static long sizeOf(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        }
+        if (value instanceof String) {
+            return utf8Length((String) value);
+        }
+        if (value instanceof Long || value instanceof Integer) {
+            return decimalLength(((Number) value).longValue());
+        }
+        if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            long size = 0;
+            if (list instanceof RandomAccess) {
+                for (int i = 0; i < list.size(); i++) {
+                    size += sizeOf(list.get(i));
+                }
+            } else {
+                for (Object item : list) {
+                    size += sizeOf(item);
+                }
+            }
+            return size;
+        }
+        return utf8Length(String.valueOf(value));
+    }
+
+    private static long utf8Length(String value) {
+        long length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static long decimalLength(long value) {
+        if (value == Long.MIN_VALUE) {
+            return 20;
+        }
+        long length = value < 0 ? 2 : 1;
+        for (long rest = Math.abs(value); rest >= 10; rest /= 10) {
+            length++;
+        }
+        return length;
+    }
+}
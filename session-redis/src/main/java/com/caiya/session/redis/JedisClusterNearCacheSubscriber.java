@@ -0,0 +1,135 @@
+package com.caiya.session.redis;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPubSub;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Subscribes a {@link RedisSessionNearCache} to the invalidation channel of its
+ * {@link RedisSessionManager} with a {@link JedisCluster}. The subscription blocks, so
+ * {@link #run()} is meant to be run by a dedicated thread, and ends on {@link #close()}.
+ * <p>
+ * The messages published while not subscribed are lost, so the near cache is cleared and
+ * caches nothing from the moment the subscription is lost until it is made again, see
+ * {@link RedisSessionNearCache#onUnsubscribed()}. A lost subscription is made again after
+ * a delay doubling from {@value #MIN_BACKOFF_MILLIS} ms up to {@value #MAX_BACKOFF_MILLIS}
+ * ms while it keeps failing.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public class JedisClusterNearCacheSubscriber extends JedisPubSub implements Runnable, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(JedisClusterNearCacheSubscriber.class);
+
+    private static final long MIN_BACKOFF_MILLIS = 100;
+
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final JedisCluster jedisCluster;
+
+    private final String channel;
+
+    private final RedisSessionNearCache nearCache;
+
+    private final Object lock = new Object();
+
+    /**
+     * Guarded by {@link #lock}.
+     */
+    private boolean closed;
+
+    private volatile long backoffMillis = MIN_BACKOFF_MILLIS;
+
+    private final LongAdder subscriptions = new LongAdder();
+
+    public JedisClusterNearCacheSubscriber(JedisCluster jedisCluster, RedisSessionManager sessionManager,
+                                           RedisSessionNearCache nearCache) {
+        if (jedisCluster == null)
+            throw new IllegalArgumentException("jedisCluster cannot be null");
+        if (sessionManager == null)
+            throw new IllegalArgumentException("sessionManager cannot be null");
+        if (nearCache == null)
+            throw new IllegalArgumentException("nearCache cannot be null");
+
+        this.jedisCluster = jedisCluster;
+        this.channel = sessionManager.getInvalidationChannel();
+        this.nearCache = nearCache;
+    }
+
+    @Override
+    public void run() {
+        while (!isClosed()) {
+            logger.info("subscribing to session invalidations, channel:{}", channel);
+            try {
+                jedisCluster.subscribe(this, channel);
+            } catch (RuntimeException e) {
+                logger.warn("session invalidation subscription lost, channel:{}", channel, e);
+            }
+            nearCache.onUnsubscribed();
+            long delay = backoffMillis;
+            backoffMillis = Math.min(delay * 2, MAX_BACKOFF_MILLIS);
+            synchronized (lock) {
+                if (closed) {
+                    return;
+                }
+                try {
+                    lock.wait(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onSubscribe(String channel, int subscribedChannels) {
+        // the messages published before are lost
+        nearCache.onSubscribed();
+        backoffMillis = MIN_BACKOFF_MILLIS;
+        subscriptions.increment();
+        if (isClosed()) {
+            // closed while subscribing
+            unsubscribe();
+        }
+    }
+
+    @Override
+    public void onMessage(String channel, String message) {
+        nearCache.onInvalidationMessage(message);
+    }
+
+    private boolean isClosed() {
+        synchronized (lock) {
+            return closed;
+        }
+    }
+
+    /**
+     * @return the number of times the channel was subscribed to, the first time included
+     */
+    public long getSubscriptions() {
+        return subscriptions.sum();
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        if (isSubscribed()) {
+            try {
+                unsubscribe();
+            } catch (RuntimeException e) {
+                // the connection is lost already
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.caiya.session.redis;
+
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.List;
+
+/**
+ * {@link RedisScriptExecutor} backed by a {@link JedisCluster}.
+ * <p>
+ * Scripts are called with <code>EVALSHA</code>, and loaded on the node owning the
+ * first key only when that node replies with NOSCRIPT. {@link JedisCluster} does not
+ * pipeline, so pipelined calls are executed one after the other.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public class JedisClusterScriptExecutor extends AbstractJedisScriptExecutor {
+
+    private final JedisCluster jedisCluster;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param jedisCluster the jedis cluster, cannot be null
+     * @param keyPrefix    the key prefix of the cache, may be null
+     */
+    public JedisClusterScriptExecutor(JedisCluster jedisCluster, byte[] keyPrefix) {
+        super(keyPrefix);
+        if (jedisCluster == null)
+            throw new IllegalArgumentException("jedisCluster cannot be null");
+
+        this.jedisCluster = jedisCluster;
+    }
+
+    @Override
+    public <T> T execute(RedisScript<T> script, List<String> keys, List<?> args) {
+        byte[][] params = params(keys, args);
+        byte[] sha1 = sha1(script);
+        Object result;
+        try {
+            result = jedisCluster.evalsha(sha1, keys.size(), params);
+        } catch (JedisDataException e) {
+            if (!isNoScript(e)) {
+                throw e;
+            }
+            // load on the node owning the keys, then call by sha1 again
+            jedisCluster.scriptLoad(source(script), params[0]);
+            result = jedisCluster.evalsha(sha1, keys.size(), params);
+        }
+        return script.getResultType().cast(result);
+    }
+
+    @Override
+    public boolean isCluster() {
+        return true;
+    }
+}
@@ -0,0 +1,118 @@
+package com.caiya.session.redis;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link RedisScriptExecutor} backed by a {@link JedisPool} of a standalone (or sentinel
+ * managed) redis server.
+ * <p>
+ * Scripts are called with <code>EVALSHA</code>, and loaded only when the server replies
+ * with NOSCRIPT. Pipelined calls are sent on one connection before reading any reply.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public class JedisScriptExecutor extends AbstractJedisScriptExecutor {
+
+    private final JedisPool jedisPool;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param jedisPool the pool of the redis server, cannot be null
+     * @param keyPrefix the key prefix of the cache, may be null
+     */
+    public JedisScriptExecutor(JedisPool jedisPool, byte[] keyPrefix) {
+        super(keyPrefix);
+        if (jedisPool == null)
+            throw new IllegalArgumentException("jedisPool cannot be null");
+
+        this.jedisPool = jedisPool;
+    }
+
+    @Override
+    public <T> T execute(RedisScript<T> script, List<String> keys, List<?> args) {
+        byte[][] params = params(keys, args);
+        byte[] sha1 = sha1(script);
+        Object result;
+        try (Jedis jedis = jedisPool.getResource()) {
+            try {
+                result = jedis.evalsha(sha1, keys.size(), params);
+            } catch (JedisDataException e) {
+                if (!isNoScript(e)) {
+                    throw e;
+                }
+                jedis.scriptLoad(source(script));
+                result = jedis.evalsha(sha1, keys.size(), params);
+            }
+        }
+        return script.getResultType().cast(result);
+    }
+
+    @Override
+    public boolean isPipelining() {
+        return true;
+    }
+
+    @Override
+    public List<Object> executePipelined(List<RedisScriptCall<?>> calls) {
+        List<byte[][]> params = new ArrayList<>(calls.size());
+        for (RedisScriptCall<?> call : calls) {
+            params.add(params(call.getKeys(), call.getArgs()));
+        }
+        try (Jedis jedis = jedisPool.getResource()) {
+            List<Object> results = pipeline(jedis, calls, params);
+            // load the unknown scripts and send their calls again, seldom more than once per script
+            List<Integer> retries = new ArrayList<>();
+            for (int i = 0; i < results.size(); i++) {
+                if (isNoScript(results.get(i))) {
+                    jedis.scriptLoad(source(calls.get(i).getScript()));
+                    retries.add(i);
+                }
+            }
+            if (!retries.isEmpty()) {
+                List<RedisScriptCall<?>> retryCalls = new ArrayList<>(retries.size());
+                List<byte[][]> retryParams = new ArrayList<>(retries.size());
+                for (int i : retries) {
+                    retryCalls.add(calls.get(i));
+                    retryParams.add(params.get(i));
+                }
+                List<Object> retryResults = pipeline(jedis, retryCalls, retryParams);
+                for (int i = 0; i < retries.size(); i++) {
+                    results.set(retries.get(i), retryResults.get(i));
+                }
+            }
+            for (int i = 0; i < results.size(); i++) {
+                if (!(results.get(i) instanceof RuntimeException)) {
+                    results.set(i, calls.get(i).getScript().getResultType().cast(results.get(i)));
+                }
+            }
+            return results;
+        }
+    }
+
+    private static List<Object> pipeline(Jedis jedis, List<RedisScriptCall<?>> calls, List<byte[][]> params) {
+        Pipeline pipeline = jedis.pipelined();
+        List<Response<Object>> responses = new ArrayList<>(calls.size());
+        for (int i = 0; i < calls.size(); i++) {
+            responses.add(pipeline.evalsha(sha1(calls.get(i).getScript()), calls.get(i).getKeys().size(), params.get(i)));
+        }
+        pipeline.sync();
+        List<Object> results = new ArrayList<>(responses.size());
+        for (Response<Object> response : responses) {
+            try {
+                results.add(response.get());
+            } catch (JedisDataException e) {
+                results.add(e);
+            }
+        }
+        return results;
+    }
+}
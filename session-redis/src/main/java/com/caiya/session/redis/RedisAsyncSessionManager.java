@@ -0,0 +1,354 @@
+package com.caiya.session.redis;
+
+import com.caiya.session.AsyncSessionManager;
+import com.caiya.session.MaxSessionsExceededException;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link AsyncSessionManager} backed by a {@link RedisSessionManager} and its
+ * {@link RedisScriptExecutor}. Each operation is a single script call; the calls of all the
+ * callers are queued and sent in pipelined batches by one thread, so concurrent operations
+ * share round trips instead of each holding a thread while waiting for redis. The replies
+ * are decoded, and the returned stages completed, by a separate completion executor.
+ * <p>
+ * This requires a script executor which pipelines its calls, see
+ * {@link RedisScriptExecutor#isPipelining()}. The {@link JedisClusterScriptExecutor} does
+ * not: {@link redis.clients.jedis.JedisCluster} has no pipeline, so each batch would cost
+ * one round trip per call, and it is rejected when the manager is created. With a redis
+ * cluster, use the blocking methods of the {@link RedisSessionManager}.
+ * <p>
+ * The sessions are the ones of the {@link RedisSessionManager}, whose own methods remain
+ * blocking: use {@link RedisFlushMode#ON_COMMIT} so that changing a session does not write
+ * it, and write the changes with {@link #save(RedisSession)}. Sessions are fully loaded. The
+ * few operations which still need blocking commands, looking up a session stored with the
+ * legacy key layout, pruning the principal index when a principal reaches its maximum
+ * number of sessions and refreshing the counts of the {@link RedisSessionQuota}, run on a
+ * separate blocking executor, never on the completion executor.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public class RedisAsyncSessionManager implements AsyncSessionManager<RedisSession> {
+
+    /**
+     * The default maximum number of calls sent in one batch.
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 128;
+
+    private static final int MAX_CHANGE_ID_ATTEMPTS = 4;
+
+    private final RedisSessionManager sessionManager;
+
+    private final RedisScriptPipeline pipeline;
+
+    private final Executor blockingExecutor;
+
+    /**
+     * Creates a new instance sending the batches with a dedicated daemon thread, stopped
+     * when idle, completing the stages with the common fork join pool and running the
+     * blocking commands with dedicated daemon threads.
+     *
+     * @param sessionManager the session manager, with a pipelining script executor
+     */
+    public RedisAsyncSessionManager(RedisSessionManager sessionManager) {
+        this(sessionManager, defaultExecutor(), DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * Creates a new instance completing the stages with the common fork join pool and
+     * running the blocking commands with dedicated daemon threads.
+     *
+     * @param sessionManager the session manager, with a pipelining script executor
+     * @param executor       the executor sending the batches, one task at a time
+     * @param maxBatchSize   the maximum number of calls sent in one batch
+     */
+    public RedisAsyncSessionManager(RedisSessionManager sessionManager, Executor executor, int maxBatchSize) {
+        this(sessionManager, executor, ForkJoinPool.commonPool(), maxBatchSize);
+    }
+
+    /**
+     * Creates a new instance running the blocking commands with dedicated daemon threads.
+     *
+     * @param sessionManager     the session manager, with a pipelining script executor
+     * @param executor           the executor sending the batches, one task at a time
+     * @param completionExecutor the executor decoding the replies and completing the stages
+     * @param maxBatchSize       the maximum number of calls sent in one batch
+     */
+    public RedisAsyncSessionManager(RedisSessionManager sessionManager, Executor executor, Executor completionExecutor,
+                                    int maxBatchSize) {
+        this(sessionManager, executor, completionExecutor, defaultBlockingExecutor(), maxBatchSize);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param sessionManager     the session manager, with a pipelining script executor
+     * @param executor           the executor sending the batches, one task at a time
+     * @param completionExecutor the executor decoding the replies and completing the stages
+     * @param blockingExecutor   the executor running the few operations which wait for redis
+     * @param maxBatchSize       the maximum number of calls sent in one batch
+     */
+    public RedisAsyncSessionManager(RedisSessionManager sessionManager, Executor executor, Executor completionExecutor,
+                                    Executor blockingExecutor, int maxBatchSize) {
+        if (sessionManager == null)
+            throw new IllegalArgumentException("sessionManager cannot be null");
+        if (sessionManager.getScriptExecutor() == null)
+            throw new IllegalArgumentException("the session manager must have a script executor");
+        if (!sessionManager.getScriptExecutor().isPipelining())
+            throw new IllegalArgumentException("the script executor of the session manager must pipeline its calls, "
+                    + sessionManager.getScriptExecutor().getClass().getSimpleName()
+                    + " does not (a JedisCluster has no pipeline), use the blocking session manager instead");
+        if (executor == null)
+            throw new IllegalArgumentException("executor cannot be null");
+        if (completionExecutor == null)
+            throw new IllegalArgumentException("completionExecutor cannot be null");
+        if (blockingExecutor == null)
+            throw new IllegalArgumentException("blockingExecutor cannot be null");
+        if (maxBatchSize <= 0)
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+
+        this.sessionManager = sessionManager;
+        this.pipeline = new RedisScriptPipeline(sessionManager.getScriptExecutor(), executor, completionExecutor, maxBatchSize);
+        this.blockingExecutor = blockingExecutor;
+    }
+
+    private static Executor defaultExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                daemonThreads("redis-session-pipeline"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static Executor defaultBlockingExecutor() {
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                daemonThreads("redis-session-blocking"));
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    public RedisSessionManager getSessionManager() {
+        return sessionManager;
+    }
+
+    @Override
+    public CompletionStage<RedisSession> createSession() {
+        return create(null);
+    }
+
+    @Override
+    public CompletionStage<RedisSession> createSession(String sessionId) {
+        if (sessionId == null || sessionId.isEmpty())
+            throw new IllegalArgumentException("session id can not be empty");
+
+        return create(sessionId);
+    }
+
+    private CompletionStage<RedisSession> create(String sessionId) {
+        if (sessionManager.getQuota() != null) {
+            // admitting the session may count the sessions first
+            return CompletableFuture.supplyAsync(() -> sessionManager.newSession(sessionId,
+                    sessionManager.getDefaultMaxInactiveInterval()), blockingExecutor)
+                    .thenCompose(session -> save(session).thenApply(saved -> session));
+        }
+        RedisSession session = sessionManager.newSession(sessionId, sessionManager.getDefaultMaxInactiveInterval());
+        return save(session).thenApply(saved -> session);
+    }
+
+    @Override
+    public CompletionStage<RedisSession> findById(String id) {
+        RedisSession cached = sessionManager.findCachedById(id);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        long stamp = sessionManager.nearCacheStamp();
+        return pipeline.submit(sessionManager.findSessionCall(id)).thenCompose(reply -> {
+            RedisSession session = sessionManager.sessionFound(id, reply, stamp, false);
+            if (session != null || !sessionManager.isLegacyKeyFallback()) {
+                return CompletableFuture.completedFuture(session);
+            }
+            return CompletableFuture.supplyAsync(() -> sessionManager.findLegacyById(id), blockingExecutor);
+        });
+    }
+
+    @Override
+    public CompletionStage<Void> save(RedisSession session) {
+        session.detectChangedAttributes();
+        RedisSession.PendingWrite write = session.prepareWrite();
+        if (write == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        RedisScriptCall<List> bindCall = sessionManager.bindPrincipalCall(session, write, false);
+        if (bindCall == null) {
+            return write(session, write, 0);
+        }
+        // added to the index of the new principal before the name is written
+        return pipeline.submit(bindCall).thenCompose(reply -> {
+            if (!sessionManager.isPrincipalFull(reply)) {
+                return CompletableFuture.completedFuture(reply);
+            }
+            return CompletableFuture.runAsync(() -> sessionManager.prunePrincipalIndex(write.principalName), blockingExecutor)
+                    .thenCompose(pruned -> pipeline.submit(sessionManager.bindPrincipalCall(session, write, true)));
+        }).thenCompose(reply -> {
+            List<String> evicted = sessionManager.principalBound(write, reply);
+            if (evicted == null) {
+                session.principalNameRejected(write);
+                return write(session, write, 0).thenCompose(written -> {
+                    CompletableFuture<Void> rejected = new CompletableFuture<>();
+                    rejected.completeExceptionally(new MaxSessionsExceededException(write.principalName,
+                            sessionManager.getMaxSessionsPerPrincipal()));
+                    return rejected;
+                });
+            }
+            CompletionStage<Integer> deleted = evicted.isEmpty() ? CompletableFuture.completedFuture(0) : deleteByIds(evicted);
+            return write(session, write, 0).thenCombine(deleted, (written, count) -> null);
+        });
+    }
+
+    private CompletableFuture<Void> write(RedisSession session, RedisSession.PendingWrite write, int collisions) {
+        long stamp = sessionManager.nearCacheStamp();
+        boolean claim = session.isNew();
+        RedisScriptCall<Long> call = sessionManager.saveDeltaCall(session, write, claim);
+        RedisScriptCall<Long> expirationCall = sessionManager.savedExpirationCall(session, write.fieldsToSet);
+        CompletableFuture<Long> saved = pipeline.submit(call);
+        // batched with the save, unless the id has to be claimed first
+        CompletableFuture<Void> savedIndexed = expirationCall == null || claim ? null
+                : pipeline.submit(expirationCall).thenApply(indexed -> null);
+        return saved.thenCompose(result -> {
+            if (result != null && result < 0) {
+                // the id of the new session is taken
+                String boundId = session.getId();
+                session.setId(sessionManager.regenerateSessionId(session, collisions + 1));
+                RedisScriptCall<Long> rebindCall = sessionManager.principalRebindCall(session, write, boundId);
+                CompletableFuture<Void> written = write(session, write, collisions + 1);
+                return rebindCall == null ? written : written.thenCombine(pipeline.submit(rebindCall), (done, moved) -> null);
+            }
+            CompletableFuture<Void> indexed = savedIndexed != null ? savedIndexed : expirationCall == null
+                    ? CompletableFuture.completedFuture(null) : pipeline.submit(expirationCall).thenApply(done -> null);
+            RedisScriptCall<Long> indexCall = sessionManager.principalIndexCall(session, write);
+            if (indexCall != null) {
+                indexed = indexed.thenCombine(pipeline.submit(indexCall), (done, updated) -> null);
+            }
+            sessionManager.recordBytesChanged(write);
+            session.written(write);
+            sessionManager.onSessionSaved(session, stamp);
+            return indexed;
+        });
+    }
+
+    @Override
+    public CompletionStage<String> changeSessionId(RedisSession session) {
+        if (session.isNew()) {
+            // not written yet, nothing to rename
+            return CompletableFuture.completedFuture(sessionManager.changeSessionId(session));
+        }
+        return rename(session, 1);
+    }
+
+    private CompletableFuture<String> rename(RedisSession session, int attempt) {
+        String newId = sessionManager.generateSessionId(session);
+        if (newId == null) {
+            return attempt < MAX_CHANGE_ID_ATTEMPTS ? rename(session, attempt + 1) : changeIdFailed();
+        }
+        return pipeline.submit(sessionManager.renameSessionCall(session, newId)).thenCompose(result -> {
+            if (!sessionManager.sessionRenamed(session, result)) {
+                return attempt < MAX_CHANGE_ID_ATTEMPTS ? rename(session, attempt + 1) : changeIdFailed();
+            }
+            String oldId = session.getId();
+            session.setId(newId);
+            CompletableFuture<Void> indexed = indexExpiration(session);
+            RedisScriptCall<Long> call = sessionManager.principalRenameCall(session, oldId);
+            if (call != null) {
+                indexed = indexed.thenCombine(pipeline.submit(call), (done, replaced) -> null);
+            }
+            return indexed.thenApply(done -> newId);
+        });
+    }
+
+    private static CompletableFuture<String> changeIdFailed() {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        future.completeExceptionally(new IllegalStateException("unfortunately, this time does not generate a valid session id, may try again"));
+        return future;
+    }
+
+    private CompletableFuture<Void> indexExpiration(RedisSession session) {
+        RedisScriptCall<Long> call = sessionManager.indexExpirationCall(session);
+        return call == null ? CompletableFuture.completedFuture(null) : pipeline.submit(call).thenApply(indexed -> null);
+    }
+
+    @Override
+    public CompletionStage<Boolean> deleteById(String id) {
+        if (id == null)
+            throw new IllegalArgumentException("id cannot be null");
+
+        return deleteSessions(Collections.singletonList(id)).thenApply(existed -> existed > 0);
+    }
+
+    @Override
+    public CompletionStage<Integer> deleteByIds(Collection<String> ids) {
+        if (ids == null)
+            throw new IllegalArgumentException("ids cannot be null");
+        if (ids.isEmpty()) {
+            return CompletableFuture.completedFuture(0);
+        }
+
+        CompletableFuture<Integer> deleted = CompletableFuture.completedFuture(0);
+        for (List<String> slotIds : sessionManager.groupBySlot(ids)) {
+            deleted = deleted.thenCombine(deleteSessions(slotIds), Integer::sum);
+        }
+        return deleted;
+    }
+
+    /**
+     * Deletes the sessions, and their keys in the legacy layout while they are looked up.
+     *
+     * @param ids the session ids, in the same cluster slot in the hash tagged layout
+     * @return the number of sessions which existed
+     */
+    private CompletableFuture<Integer> deleteSessions(Collection<String> ids) {
+        CompletableFuture<Integer> deleted = pipeline.submit(sessionManager.deleteSessionsCall(ids))
+                .thenApply(existed -> existed != null ? existed.intValue() : 0);
+        if (!sessionManager.isLegacyKeyFallback()) {
+            return deleted;
+        }
+        List<RedisScriptCall<Long>> legacyCalls = sessionManager.deleteLegacySessionsCalls(ids);
+        for (int i = 0; i < legacyCalls.size(); i++) {
+            // only the expires keys count the sessions
+            boolean expiresKey = i < ids.size();
+            deleted = deleted.thenCombine(pipeline.submit(legacyCalls.get(i)),
+                    (total, count) -> total + (expiresKey && count != null ? count.intValue() : 0));
+        }
+        return deleted;
+    }
+
+    /**
+     * @return the number of pipelined batches sent so far
+     */
+    public long getBatches() {
+        return pipeline.getBatches();
+    }
+
+    /**
+     * @return the number of script calls sent so far
+     */
+    public long getCalls() {
+        return pipeline.getCalls();
+    }
+}
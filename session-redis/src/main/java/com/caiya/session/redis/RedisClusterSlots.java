@@ -0,0 +1,108 @@
+package com.caiya.session.redis;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Redis cluster slots of the session ids, used with the {@link RedisKeyLayout#HASH_TAGGED}
+ * layout where the slot of both session keys is the slot of the session id.
+ * <p>
+ * A script can only access the keys of a single slot, so an id is renamed atomically only
+ * if the new id maps to the same slot as the current one, see {@link #withSlotOf(String, String)}.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+final class RedisClusterSlots {
+
+    static final int SLOTS = 16384;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Number of trailing characters replaced to choose the slot, 16 bits for 14 bits of slot.
+     */
+    private static final int ADJUSTED_CHARS = 4;
+
+    /**
+     * CRC16-CCITT (XModem) table, the checksum used by redis cluster.
+     */
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            CRC16_TABLE[i] = crc & 0xFFFF;
+        }
+    }
+
+    private RedisClusterSlots() {
+    }
+
+    /**
+     * @param sessionId the session id
+     * @return the slot of the keys of the session in the hash tagged layout
+     */
+    static int slot(String sessionId) {
+        byte[] bytes = sessionId.getBytes(StandardCharsets.UTF_8);
+        return crc16(0, bytes, 0, bytes.length) & (SLOTS - 1);
+    }
+
+    /**
+     * Replaces the last hexadecimal characters of the given id, before the jvm route if any,
+     * so that it maps to the same slot as the reference id. The id keeps 112 random bits
+     * out of the 128 of the default generator.
+     *
+     * @param sessionId a new session id
+     * @param reference the current session id
+     * @return the adjusted id, or null if the id is too short or no replacement matches
+     */
+    static String withSlotOf(String sessionId, String reference) {
+        int target = slot(reference);
+        byte[] bytes = sessionId.getBytes(StandardCharsets.UTF_8);
+        int route = sessionId.indexOf('.');
+        int end = route >= 0 ? route : bytes.length;
+        int start = end - ADJUSTED_CHARS;
+        if (start < 0 || bytes.length != sessionId.length()) {
+            return null;
+        }
+        if ((crc16(0, bytes, 0, bytes.length) & (SLOTS - 1)) == target) {
+            return sessionId;
+        }
+
+        int prefixCrc = crc16(0, bytes, 0, start);
+        for (int c0 = 0; c0 < HEX.length; c0++) {
+            int crc0 = update(prefixCrc, HEX[c0]);
+            for (int c1 = 0; c1 < HEX.length; c1++) {
+                int crc1 = update(crc0, HEX[c1]);
+                for (int c2 = 0; c2 < HEX.length; c2++) {
+                    int crc2 = update(crc1, HEX[c2]);
+                    for (int c3 = 0; c3 < HEX.length; c3++) {
+                        int crc = crc16(update(crc2, HEX[c3]), bytes, end, bytes.length);
+                        if ((crc & (SLOTS - 1)) == target) {
+                            bytes[start] = (byte) HEX[c0];
+                            bytes[start + 1] = (byte) HEX[c1];
+                            bytes[start + 2] = (byte) HEX[c2];
+                            bytes[start + 3] = (byte) HEX[c3];
+                            return new String(bytes, StandardCharsets.US_ASCII);
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private static int crc16(int crc, byte[] bytes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            crc = update(crc, bytes[i]);
+        }
+        return crc;
+    }
+
+    private static int update(int crc, int b) {
+        return ((crc << 8) ^ CRC16_TABLE[((crc >>> 8) ^ b) & 0xFF]) & 0xFFFF;
+    }
+}
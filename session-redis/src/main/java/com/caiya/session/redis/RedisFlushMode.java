@@ -0,0 +1,27 @@
+package com.caiya.session.redis;
+
+import com.caiya.session.SessionManager;
+
+/**
+ * Specifies when to write to the backing Redis instance.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public enum RedisFlushMode {
+
+    /**
+     * Every update to the {@link RedisSession} is written to Redis as soon as it
+     * happens. This is the default and the behavior of the previous versions.
+     */
+    IMMEDIATE,
+
+    /**
+     * Updates are kept in the {@link RedisSession} and only written to Redis when
+     * {@link SessionManager#save} is invoked. In a web environment this is done by the
+     * {@link com.caiya.session.web.http.SessionRepositoryFilter} when the request is
+     * committed, so a request touching several attributes costs a single write.
+     */
+    ON_COMMIT
+
+}
@@ -0,0 +1,26 @@
+package com.caiya.session.redis;
+
+/**
+ * Specifies how the redis keys of a session are built from its id.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public enum RedisKeyLayout {
+
+    /**
+     * <code>namespace:sessions:id</code> and <code>namespace:sessions:expires:id</code>.
+     * This is the default and the layout of the previous versions. In a redis cluster the
+     * keys of a session usually land in different slots, so it cannot be used with a
+     * {@link RedisScriptExecutor} targeting a cluster.
+     */
+    LEGACY,
+
+    /**
+     * <code>namespace:sessions:{id}</code> and <code>namespace:sessions:expires:{id}</code>.
+     * The session id is a hash tag, so in a redis cluster all the keys of a session are in
+     * the same slot and can be used together in one script.
+     */
+    HASH_TAGGED
+
+}
@@ -0,0 +1,27 @@
+package com.caiya.session.redis;
+
+import com.caiya.session.MaxSessionsExceededException;
+
+/**
+ * What to do when a session is bound to a principal which already has the maximum number
+ * of sessions, see {@link RedisSessionManager#setMaxSessionsPerPrincipal(int)}.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public enum RedisMaxSessionsPolicy {
+
+    /**
+     * The sessions of the principal expiring first, i.e. the least recently accessed ones
+     * when they have the same max inactive interval, are deleted to make room. This is the
+     * default.
+     */
+    EVICT_OLDEST,
+
+    /**
+     * The principal name is not written and a {@link MaxSessionsExceededException} is
+     * thrown; the other changes of the session are written.
+     */
+    REJECT
+
+}
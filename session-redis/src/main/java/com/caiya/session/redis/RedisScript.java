@@ -0,0 +1,87 @@
+package com.caiya.session.redis;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A lua script executed on the redis server by a {@link RedisScriptExecutor}.
+ * The SHA1 digest of the script is computed once, so that executors can call
+ * the script with <code>EVALSHA</code> and only load it when the server does not know it.
+ *
+ * @param <T> the type of the script result
+ * @author wangnan
+ * @since 1.1
+ */
+public final class RedisScript<T> {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final String name;
+
+    private final String source;
+
+    private final String sha1;
+
+    private final Class<T> resultType;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param name       the script name, used for logging
+     * @param source     the lua source
+     * @param resultType the type of the script result, one of {@link Long},
+     *                   {@code byte[]} or {@link java.util.List}
+     */
+    public RedisScript(String name, String source, Class<T> resultType) {
+        if (name == null || name.isEmpty())
+            throw new IllegalArgumentException("name cannot be empty");
+        if (source == null || source.isEmpty())
+            throw new IllegalArgumentException("source cannot be empty");
+        if (resultType == null)
+            throw new IllegalArgumentException("resultType cannot be null");
+
+        this.name = name;
+        this.source = source;
+        this.sha1 = sha1(source);
+        this.resultType = resultType;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @return the lower case hex SHA1 digest of the script source
+     */
+    public String getSha1() {
+        return sha1;
+    }
+
+    public Class<T> getResultType() {
+        return resultType;
+    }
+
+    private static String sha1(String source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(source.getBytes(StandardCharsets.UTF_8));
+            char[] chars = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                chars[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0x0f];
+                chars[i * 2 + 1] = HEX_DIGITS[digest[i] & 0x0f];
+            }
+            return new String(chars);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not supported", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RedisScript{name='" + name + "', sha1='" + sha1 + "'}";
+    }
+}
@@ -0,0 +1,62 @@
+package com.caiya.session.redis;
+
+import java.util.List;
+
+/**
+ * A call of a {@link RedisScript} with its keys and arguments, to be sent with other calls
+ * by {@link RedisScriptExecutor#executePipelined(List)}.
+ *
+ * @param <T> the type of the script result
+ * @author wangnan
+ * @since 1.1
+ */
+public final class RedisScriptCall<T> {
+
+    private final RedisScript<T> script;
+
+    private final List<String> keys;
+
+    private final List<?> args;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param script the script to execute
+     * @param keys   the keys passed to the script, without any prefix
+     * @param args   the arguments passed to the script
+     */
+    public RedisScriptCall(RedisScript<T> script, List<String> keys, List<?> args) {
+        if (script == null)
+            throw new IllegalArgumentException("script cannot be null");
+        if (keys == null || keys.isEmpty())
+            throw new IllegalArgumentException("a script must be executed with at least one key");
+        if (args == null)
+            throw new IllegalArgumentException("args cannot be null");
+
+        this.script = script;
+        this.keys = keys;
+        this.args = args;
+    }
+
+    public RedisScript<T> getScript() {
+        return script;
+    }
+
+    public List<String> getKeys() {
+        return keys;
+    }
+
+    public List<?> getArgs() {
+        return args;
+    }
+
+    /**
+     * Executes this call alone.
+     *
+     * @param executor the script executor
+     * @return the script result
+     */
+    public T execute(RedisScriptExecutor executor) {
+        return executor.execute(script, keys, args);
+    }
+}
@@ -0,0 +1,94 @@
+package com.caiya.session.redis;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Executes {@link RedisScript}s against the same redis server (or cluster) that backs
+ * the {@link com.caiya.cache.CacheApi} of a {@link RedisSessionManager}. When set on the
+ * manager, operations that otherwise need several sequential commands are done in a
+ * single round trip.
+ * <p>
+ * Implementations must encode keys exactly like the {@link com.caiya.cache.CacheApi}
+ * does (including its key prefix), so that both see the same data. Arguments of type
+ * {@code byte[]} are sent as they are, any other argument is sent as the UTF-8 bytes of
+ * its {@link String#valueOf(Object)}.
+ * <p>
+ * Results are returned as they come from redis: integer replies as {@link Long}, bulk
+ * replies as {@code byte[]}, multi bulk replies as {@link List} and nil as {@code null}.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public interface RedisScriptExecutor {
+
+    /**
+     * Executes the given script. Implementations should call the script by its
+     * {@link RedisScript#getSha1()} and only load it when redis replies with NOSCRIPT.
+     *
+     * @param script the script to execute
+     * @param keys   the keys passed to the script, without any prefix
+     * @param args   the arguments passed to the script
+     * @param <T>    the type of the script result
+     * @return the script result
+     */
+    <T> T execute(RedisScript<T> script, List<String> keys, List<?> args);
+
+    /**
+     * Executes the given calls, in order. Implementations should send them all before
+     * reading the replies, so that they take a single round trip; by default they are
+     * executed one after the other.
+     * <p>
+     * A call failing with an error does not fail the other ones, the exception is returned
+     * in place of its result.
+     *
+     * @param calls the calls to execute
+     * @return the results of the calls, in the same order
+     */
+    default List<Object> executePipelined(List<RedisScriptCall<?>> calls) {
+        List<Object> results = new ArrayList<>(calls.size());
+        for (RedisScriptCall<?> call : calls) {
+            try {
+                results.add(call.execute(this));
+            } catch (RuntimeException e) {
+                results.add(e);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return true if {@link #executePipelined(List)} sends all the calls before reading
+     * any reply, false if it executes them one after the other
+     */
+    default boolean isPipelining() {
+        return false;
+    }
+
+    /**
+     * @return true if the scripts are sent to a redis cluster, where all the keys of a
+     * script must be in the same slot
+     */
+    default boolean isCluster() {
+        return false;
+    }
+
+    /**
+     * Serializes a hash value the same way the hash value serializer of the
+     * {@link com.caiya.cache.CacheApi} does.
+     *
+     * @param value the value to serialize
+     * @return the serialized value
+     */
+    byte[] serializeValue(Object value);
+
+    /**
+     * Deserializes a hash value the same way the hash value serializer of the
+     * {@link com.caiya.cache.CacheApi} does.
+     *
+     * @param bytes the serialized value
+     * @return the value
+     */
+    Object deserializeValue(byte[] bytes);
+
+}
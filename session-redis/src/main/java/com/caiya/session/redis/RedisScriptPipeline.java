@@ -0,0 +1,149 @@
+package com.caiya.session.redis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends the submitted script calls with {@link RedisScriptExecutor#executePipelined(List)},
+ * one batch at a time: the calls submitted while a batch is in flight are sent together
+ * with the next one, so the number of round trips follows the load rather than the number
+ * of calls. Callers never block; the futures are completed by the completion executor, so
+ * that their dependent stages do not hold up the thread sending the batches.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+final class RedisScriptPipeline {
+
+    private final RedisScriptExecutor scriptExecutor;
+
+    private final Executor executor;
+
+    private final Executor completionExecutor;
+
+    private final int maxBatchSize;
+
+    private final Queue<PendingCall<?>> queue = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    private final LongAdder batches = new LongAdder();
+
+    private final LongAdder calls = new LongAdder();
+
+    RedisScriptPipeline(RedisScriptExecutor scriptExecutor, Executor executor, Executor completionExecutor, int maxBatchSize) {
+        this.scriptExecutor = scriptExecutor;
+        this.executor = executor;
+        this.completionExecutor = completionExecutor;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    <T> CompletableFuture<T> submit(RedisScriptCall<T> call) {
+        PendingCall<T> pending = new PendingCall<>(call);
+        queue.add(pending);
+        if (draining.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                draining.set(false);
+                PendingCall<?> rejected;
+                while ((rejected = queue.poll()) != null) {
+                    rejected.future.completeExceptionally(e);
+                }
+            }
+        }
+        return pending.future;
+    }
+
+    private void drain() {
+        List<PendingCall<?>> batch = new ArrayList<>();
+        while (true) {
+            PendingCall<?> pending;
+            while (batch.size() < maxBatchSize && (pending = queue.poll()) != null) {
+                batch.add(pending);
+            }
+            if (batch.isEmpty()) {
+                draining.set(false);
+                // a call may have been queued after the last poll, by a caller which saw the flag still set
+                if (queue.isEmpty() || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+            send(batch);
+            batch.clear();
+        }
+    }
+
+    private void send(List<PendingCall<?>> batch) {
+        List<RedisScriptCall<?>> batchCalls = new ArrayList<>(batch.size());
+        for (PendingCall<?> pending : batch) {
+            batchCalls.add(pending.call);
+        }
+        batches.increment();
+        calls.add(batch.size());
+        List<Object> results;
+        try {
+            results = scriptExecutor.executePipelined(batchCalls);
+        } catch (RuntimeException e) {
+            results = Collections.nCopies(batch.size(), e);
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            PendingCall<?> pending = batch.get(i);
+            Object result = i < results.size() ? results.get(i) : null;
+            try {
+                completionExecutor.execute(() -> pending.complete(result));
+            } catch (RejectedExecutionException e) {
+                pending.complete(result);
+            }
+        }
+    }
+
+    /**
+     * @return the number of batches sent so far
+     */
+    long getBatches() {
+        return batches.sum();
+    }
+
+    /**
+     * @return the number of calls sent so far
+     */
+    long getCalls() {
+        return calls.sum();
+    }
+
+    private static final class PendingCall<T> {
+
+        private final RedisScriptCall<T> call;
+
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        PendingCall(RedisScriptCall<T> call) {
+            this.call = call;
+        }
+
+        void complete(Object result) {
+            if (result instanceof Throwable) {
+                future.completeExceptionally((Throwable) result);
+                return;
+            }
+            T value;
+            try {
+                value = call.getScript().getResultType().cast(result);
+            } catch (ClassCastException e) {
+                future.completeExceptionally(e);
+                return;
+            }
+            future.complete(value);
+        }
+    }
+}
@@ -2,14 +2,22 @@ package com.caiya.session.redis;
 
 import com.caiya.cache.CacheApi;
 import com.caiya.cache.RedisConstant;
+import com.caiya.session.FindByPrincipalNameSessionManager;
+import com.caiya.session.MaxSessionsExceededException;
 import com.caiya.session.Session;
+import com.caiya.session.SessionException;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.time.temporal.TemporalAccessor;
 import java.util.*;
 
 /**
  * Redis Session implementation of the <b>Session</b> interface.
+ * <p>
+ * The writes of a {@link RedisAsyncSessionManager} complete on other threads than the
+ * ones changing the session, so the attributes and the pending changes are guarded by the
+ * monitor of the session, which is not held while calling redis.
  *
  * @author wangnan
  * @since 1.0
@@ -21,14 +29,52 @@ public class RedisSession implements Session<RedisSessionManager> {
      */
     public static final int DEFAULT_MAX_INACTIVE_INTERVAL_SECONDS = 1800;
 
-    private String id;
+    private volatile String id;
     private String originalId;
 
-    private Duration maxInactiveInterval = Duration.ofSeconds(DEFAULT_MAX_INACTIVE_INTERVAL_SECONDS);
+    private volatile Duration maxInactiveInterval = Duration.ofSeconds(DEFAULT_MAX_INACTIVE_INTERVAL_SECONDS);
     private Instant creationTime = Instant.now();
-    private Instant lastAccessedTime = this.creationTime;
+    private volatile Instant lastAccessedTime = this.creationTime;
     private Map<String, Object> sessionAttrs = new HashMap<>();
 
+    /**
+     * The changes not written to redis yet, a {@code null} value means the field is removed.
+     */
+    private final Map<String, Object> delta = new HashMap<>();
+
+    /**
+     * The last accessed time as last written to redis, {@code null} if never written.
+     */
+    private volatile Instant lastWrittenAccessedTime;
+
+    /**
+     * Names of the attributes whose state is known locally, only used if not all the
+     * attributes were loaded with the session.
+     */
+    private Set<String> loadedAttrNames;
+
+    /**
+     * Whether the session has never been written to redis.
+     */
+    private volatile boolean isNew;
+
+    /**
+     * Whether the id has been generated by the manager rather than given by the caller, so
+     * that it can be replaced if it turns out to be taken when the session is first written.
+     */
+    private boolean idGenerated;
+
+    /**
+     * Fingerprints of the stored form of the mutable attributes read or written, only
+     * used with dirty checking.
+     */
+    private Map<String, Long> fingerprints;
+
+    /**
+     * The principal name the session is indexed under, as last loaded or written.
+     */
+    private volatile String indexedPrincipalName;
+
     private CacheApi<String, Object> sessionCache;
 
     private RedisSessionManager redisSessionManager;
@@ -43,7 +89,8 @@ public class RedisSession implements Session<RedisSessionManager> {
         this.originalId = id;
     }
 
-    RedisSession(CacheApi<String, Object> sessionCache, String id, Duration maxInactiveInterval, RedisSessionManager sessionManager) {
+    RedisSession(CacheApi<String, Object> sessionCache, String id, Duration maxInactiveInterval, boolean idGenerated,
+                 RedisSessionManager sessionManager) {
         // set local value
         this.sessionCache = sessionCache;
         if (id != null && !id.trim().isEmpty()) {
@@ -56,16 +103,31 @@ public class RedisSession implements Session<RedisSessionManager> {
             this.maxInactiveInterval = maxInactiveInterval;
         }
         this.redisSessionManager = sessionManager;
+        this.isNew = true;
+        this.idGenerated = idGenerated;
         // set redis value
-        Map<String, Object> delta = new HashMap<>();
-        delta.put(RedisSessionManager.CREATION_TIME_ATTR, getCreationTime().toEpochMilli());
-        delta.put(RedisSessionManager.MAX_INACTIVE_ATTR, getMaxInactiveInterval().getSeconds());
-        delta.put(RedisSessionManager.LAST_ACCESSED_ATTR, getLastAccessedTime().toEpochMilli());
-        saveDelta(delta);
+        this.delta.put(RedisSessionManager.CREATION_TIME_ATTR, getCreationTime().toEpochMilli());
+        this.delta.put(RedisSessionManager.MAX_INACTIVE_ATTR, getMaxInactiveInterval().getSeconds());
+        this.delta.put(RedisSessionManager.LAST_ACCESSED_ATTR, getLastAccessedTime().toEpochMilli());
     }
 
     RedisSession(CacheApi<String, Object> sessionCache, String id, Map<String, Object> entries, RedisSessionManager sessionManager) {
+        this(sessionCache, id, entries, null, sessionManager);
+    }
+
+    /**
+     * Creates a session from its loaded entries.
+     *
+     * @param loadedAttrNames the names of the attributes which were loaded (or found missing),
+     *                        {@code null} if all the attributes were loaded. The other
+     *                        attributes are loaded on first access.
+     */
+    RedisSession(CacheApi<String, Object> sessionCache, String id, Map<String, Object> entries,
+                 Collection<String> loadedAttrNames, RedisSessionManager sessionManager) {
         this(sessionCache, id);
+        if (loadedAttrNames != null) {
+            this.loadedAttrNames = new HashSet<>(loadedAttrNames);
+        }
 
         for (Map.Entry<String, Object> entry : entries.entrySet()) {
             String key = entry.getKey();
@@ -75,22 +137,253 @@ public class RedisSession implements Session<RedisSessionManager> {
                 this.maxInactiveInterval = Duration.ofSeconds((long) entry.getValue());
             } else if (RedisSessionManager.LAST_ACCESSED_ATTR.equals(key)) {
                 this.lastAccessedTime = Instant.ofEpochMilli((long) entry.getValue());
+                this.lastWrittenAccessedTime = this.lastAccessedTime;
             } else if (key.startsWith(RedisSessionManager.SESSION_ATTR_PREFIX)) {
                 this.sessionAttrs.put(key.substring(RedisSessionManager.SESSION_ATTR_PREFIX.length()),
                         entry.getValue());
             }
         }
+        this.indexedPrincipalName = principalName(this.sessionAttrs.get(FindByPrincipalNameSessionManager.PRINCIPAL_NAME_ATTRIBUTE));
 
         this.redisSessionManager = sessionManager;
     }
 
-    private void saveDelta(Map<String, Object> delta) {
-        if (delta != null && !delta.isEmpty()) {
+    private void putDelta(String key, Object value) {
+        synchronized (this) {
+            this.delta.put(key, value);
+        }
+        flushImmediateIfNecessary();
+    }
+
+    private void flushImmediateIfNecessary() {
+        if (redisSessionManager.getFlushMode() == RedisFlushMode.IMMEDIATE) {
+            save();
+        }
+    }
+
+    /**
+     * Writes the whole session to redis, whatever the flush mode.
+     */
+    void saveAll() {
+        synchronized (this) {
+            this.delta.putAll(getWrittenEntries());
+        }
+        save();
+    }
+
+    /**
+     * Writes the pending changes to redis, including the attributes changed in place if
+     * dirty checking is enabled.
+     */
+    void commit() {
+        detectChangedAttributes();
+        save();
+    }
+
+    /**
+     * Adds the attributes changed in place to the pending changes, if dirty checking is
+     * enabled.
+     */
+    synchronized void detectChangedAttributes() {
+        if (redisSessionManager.isDirtyChecking() && this.fingerprints != null) {
+            for (Map.Entry<String, Long> entry : this.fingerprints.entrySet()) {
+                String key = RedisSessionManager.getSessionAttrNameKey(entry.getKey());
+                Object value = this.sessionAttrs.get(entry.getKey());
+                if (value == null || this.delta.containsKey(key)) {
+                    continue;
+                }
+                long fingerprint = redisSessionManager.fingerprint(entry.getKey(), value);
+                if (fingerprint != entry.getValue()) {
+                    // the fingerprint is updated when written
+                    this.delta.put(key, value);
+                    redisSessionManager.onChangedAttributeDetected();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the pending changes to redis, does nothing if there is no change.
+     *
+     * @throws MaxSessionsExceededException if the principal name cannot be written, the
+     *                                      principal having too many sessions
+     */
+    void save() {
+        PendingWrite write = prepareWrite();
+        if (write == null) {
+            return;
+        }
+
+        if (redisSessionManager.getScriptExecutor() != null) {
+            long stamp = redisSessionManager.nearCacheStamp();
+            boolean rejected = !redisSessionManager.bindPrincipal(this, write);
+            if (rejected) {
+                principalNameRejected(write);
+            }
+            // hash set, hash delete and expire operations in one atomic script, which also
+            // claims the id of a new session
+            int collisions = 0;
+            while (!redisSessionManager.saveDelta(this, write, this.isNew)) {
+                String boundId = this.id;
+                this.id = redisSessionManager.regenerateSessionId(this, ++collisions);
+                redisSessionManager.rebindPrincipal(this, write, boundId);
+            }
+            redisSessionManager.recordBytesChanged(write);
+            redisSessionManager.indexPrincipal(this, write);
+            written(write);
+            redisSessionManager.onSessionSaved(this, stamp);
+            if (rejected)
+                throw new MaxSessionsExceededException(write.principalName, redisSessionManager.getMaxSessionsPerPrincipal());
+            return;
+        }
+        if (this.isNew) {
+            // check if exists, attention this is not atomic without a script executor
+            int collisions = 0;
+            while (sessionCache.exists(redisSessionManager.getSessionKey(id))) {
+                this.id = redisSessionManager.regenerateSessionId(this, ++collisions);
+            }
+        }
+        String sessionKey = redisSessionManager.getSessionKey(id);
+        if (!write.fieldsToDelete.isEmpty()) {
+            sessionCache.hDel(sessionKey, write.fieldsToDelete.toArray(new String[0]));
+        }
+        if (!write.fieldsToSet.isEmpty()) {
             // hash set operation
-            sessionCache.hMSet(redisSessionManager.getSessionKey(id), delta);
+            sessionCache.hMSet(sessionKey, write.fieldsToSet);
+            // expire operation
+            redisSessionManager.redisSessionExpirationPolicy.onExpirationUpdated(this);
+        }
+        redisSessionManager.indexPrincipal(this, write);
+        written(write);
+    }
+
+    /**
+     * Encodes the pending changes to be written.
+     *
+     * @return the hash fields to write, or null if there is no change
+     */
+    synchronized PendingWrite prepareWrite() {
+        if (redisSessionManager.isDirtyChecking()) {
+            skipUnchangedAttributes();
+        }
+        if (this.delta.isEmpty()) {
+            return null;
+        }
+
+        PendingWrite write = new PendingWrite(new HashMap<>(this.delta));
+        for (Map.Entry<String, Object> entry : this.delta.entrySet()) {
+            if (entry.getValue() == null) {
+                write.fieldsToDelete.add(entry.getKey());
+            } else {
+                write.fieldsToSet.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (!write.fieldsToSet.isEmpty() && !this.lastAccessedTime.equals(this.lastWrittenAccessedTime)) {
+            // the expiration is refreshed anyway, so write the skipped touch as well
+            write.fieldsToSet.put(RedisSessionManager.LAST_ACCESSED_ATTR, this.lastAccessedTime.toEpochMilli());
+        }
+        if (write.fieldsToSet.containsKey(RedisSessionManager.LAST_ACCESSED_ATTR)) {
+            this.lastWrittenAccessedTime = this.lastAccessedTime;
+        }
+        String principalKey = RedisSessionManager.getSessionAttrNameKey(FindByPrincipalNameSessionManager.PRINCIPAL_NAME_ATTRIBUTE);
+        if (write.delta.containsKey(principalKey)) {
+            write.principalName = principalName(write.delta.get(principalKey));
+            write.principalNameChanged = !Objects.equals(write.principalName, this.indexedPrincipalName);
+        }
+        return write;
+    }
+
+    /**
+     * Drops the written changes from the pending ones, unless changed again in the meantime.
+     *
+     * @param write the written changes
+     */
+    synchronized void written(PendingWrite write) {
+        for (Map.Entry<String, Object> entry : write.delta.entrySet()) {
+            this.delta.remove(entry.getKey(), entry.getValue());
+        }
+        if (write.principalNameChanged) {
+            this.indexedPrincipalName = write.principalName;
+        }
+        this.isNew = false;
+    }
+
+    /**
+     * Drops the principal name from the changes to write and restores the previous one,
+     * the session having been rejected by its new principal.
+     *
+     * @param write the changes about to be written
+     */
+    synchronized void principalNameRejected(PendingWrite write) {
+        String key = RedisSessionManager.getSessionAttrNameKey(FindByPrincipalNameSessionManager.PRINCIPAL_NAME_ATTRIBUTE);
+        this.delta.remove(key, write.delta.remove(key));
+        write.fieldsToSet.remove(key);
+        write.fieldsToDelete.remove(key);
+        write.principalNameChanged = false;
+        if (this.indexedPrincipalName != null) {
+            this.sessionAttrs.put(FindByPrincipalNameSessionManager.PRINCIPAL_NAME_ATTRIBUTE, this.indexedPrincipalName);
+        } else {
+            this.sessionAttrs.remove(FindByPrincipalNameSessionManager.PRINCIPAL_NAME_ATTRIBUTE);
+        }
+    }
+
+    /**
+     * Drops the pending attribute writes whose stored form would not change, and records
+     * the fingerprints of the mutable attributes about to be written.
+     */
+    private void skipUnchangedAttributes() {
+        Iterator<Map.Entry<String, Object>> iterator = this.delta.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Object> entry = iterator.next();
+            if (!entry.getKey().startsWith(RedisSessionManager.SESSION_ATTR_PREFIX)) {
+                continue;
+            }
+            String name = entry.getKey().substring(RedisSessionManager.SESSION_ATTR_PREFIX.length());
+            if (entry.getValue() == null) {
+                if (this.fingerprints != null) {
+                    this.fingerprints.remove(name);
+                }
+                continue;
+            }
+            Long stored = this.fingerprints != null ? this.fingerprints.get(name) : null;
+            if (stored == null && isImmutable(entry.getValue())) {
+                continue;
+            }
+            long fingerprint = redisSessionManager.fingerprint(name, entry.getValue());
+            if (stored != null && stored == fingerprint) {
+                iterator.remove();
+                redisSessionManager.onUnchangedAttributeSkipped();
+            } else {
+                putFingerprint(name, fingerprint);
+            }
         }
-        // expire operation
-        redisSessionManager.redisSessionExpirationPolicy.onExpirationUpdated(this);
+    }
+
+    /**
+     * Records the fingerprint of an attribute as stored, unless already known or immutable.
+     */
+    private void recordFingerprint(String name, Object value) {
+        if (isImmutable(value) || (this.fingerprints != null && this.fingerprints.containsKey(name))) {
+            return;
+        }
+        putFingerprint(name, redisSessionManager.fingerprint(name, value));
+    }
+
+    private void putFingerprint(String name, long fingerprint) {
+        if (this.fingerprints == null) {
+            this.fingerprints = new HashMap<>();
+        }
+        this.fingerprints.put(name, fingerprint);
+    }
+
+    /**
+     * @return true if the value cannot be changed in place
+     */
+    private static boolean isImmutable(Object value) {
+        String className = value.getClass().getName();
+        return value instanceof String || value instanceof Boolean
+                || value instanceof Number && (className.startsWith("java.lang.") || className.startsWith("java.math.")) || value instanceof Character || value instanceof Enum
+                || value instanceof TemporalAccessor && className.startsWith("java.time.");
     }
 
     @Override
@@ -103,18 +396,64 @@ public class RedisSession implements Session<RedisSessionManager> {
         return this.id;
     }
 
+    boolean isIdGenerated() {
+        return this.idGenerated;
+    }
+
+    boolean isNew() {
+        return this.isNew;
+    }
+
+    /**
+     * Sets the id after the keys have been renamed, or before the session is first written.
+     */
+    void setId(String id) {
+        this.id = id;
+    }
+
     @Override
     public void changeId(String newId) {
+        if (!changeIdIfAbsent(newId))
+            throw new SessionException("session id already exists: " + newId);
+    }
+
+    /**
+     * Changes the id, unless a session with the new id exists. Only checked with a script
+     * executor, which renames both keys atomically; otherwise the caller checks beforehand.
+     *
+     * @param newId the new id
+     * @return false if the new id is taken
+     */
+    boolean changeIdIfAbsent(String newId) {
         if (this.id.equals(newId))
-            return;
+            return true;
+
+        if (this.isNew) {
+            // not written to redis yet, the pending changes will be saved with the new id
+            this.id = newId;
+            return true;
+        }
+
+        if (redisSessionManager.getScriptExecutor() != null) {
+            if (!redisSessionManager.renameSession(this, newId)) {
+                return false;
+            }
+            String oldId = this.id;
+            this.id = newId;
+            redisSessionManager.indexExpiration(this);
+            redisSessionManager.reindexPrincipal(this, oldId);
+            return true;
+        }
 
         // set redis value
         String originalSessionIdKey = redisSessionManager.getSessionKey(this.id);
         String sessionIdKey = redisSessionManager.getSessionKey(newId);
         sessionCache.rename(originalSessionIdKey, sessionIdKey, RedisConstant.Operation.HASH);
         redisSessionManager.saveChangeSessionId(newId, this.id);
+        redisSessionManager.invalidateNearCache(this.id);
         // set local value
         this.id = newId;
+        return true;
     }
 
     @Override
@@ -129,12 +468,12 @@ public class RedisSession implements Session<RedisSessionManager> {
 
     @Override
     public void setLastAccessedTime(Instant lastAccessedTime) {
-        // set redis value
-        Map<String, Object> delta = new HashMap<>();
-        delta.put(RedisSessionManager.LAST_ACCESSED_ATTR, lastAccessedTime.toEpochMilli());
-        saveDelta(delta);
         // set local value
         this.lastAccessedTime = lastAccessedTime;
+        // set redis value, unless within the touch interval
+        if (redisSessionManager.shouldWriteTouch(this, this.lastWrittenAccessedTime, lastAccessedTime)) {
+            putDelta(RedisSessionManager.LAST_ACCESSED_ATTR, lastAccessedTime.toEpochMilli());
+        }
     }
 
     @Override
@@ -147,9 +486,7 @@ public class RedisSession implements Session<RedisSessionManager> {
         // set local value(first!)
         this.maxInactiveInterval = interval;
         // set redis value
-        Map<String, Object> delta = new HashMap<>();
-        delta.put(RedisSessionManager.MAX_INACTIVE_ATTR, interval.getSeconds());
-        saveDelta(delta);
+        putDelta(RedisSessionManager.MAX_INACTIVE_ATTR, interval.getSeconds());
     }
 
     @Override
@@ -157,14 +494,86 @@ public class RedisSession implements Session<RedisSessionManager> {
         return this.maxInactiveInterval;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * If the attributes are loaded lazily, the first read of an attribute costs one round
+     * trip, see {@link #loadAttributes(String...)} to load several at once.
+     */
     @Override
     @SuppressWarnings("unchecked")
     public <T> T getAttribute(String name) {
-        return (T) this.sessionAttrs.get(name);
+        if (this.loadedAttrNames != null && !this.loadedAttrNames.contains(name)) {
+            loadAttributes(name);
+        }
+        synchronized (this) {
+            Object value = this.sessionAttrs.get(name);
+            if (value != null && redisSessionManager.isDirtyChecking()) {
+                // before the caller can change it
+                recordFingerprint(name, value);
+            }
+            return (T) value;
+        }
+    }
+
+    /**
+     * Loads the given attributes in one round trip, unless all of them are loaded already.
+     * Does nothing if the attributes were loaded with the session.
+     *
+     * @param names the attribute names
+     */
+    public void loadAttributes(String... names) {
+        if (this.loadedAttrNames == null) {
+            return;
+        }
+        List<String> missing = new ArrayList<>(names.length);
+        synchronized (this) {
+            if (this.loadedAttrNames == null) {
+                return;
+            }
+            for (String name : names) {
+                if (!this.loadedAttrNames.contains(name) && !missing.contains(name)) {
+                    missing.add(name);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        Map<String, Object> values = redisSessionManager.loadAttributes(this, missing);
+        synchronized (this) {
+            for (String name : missing) {
+                if (this.loadedAttrNames == null || !this.loadedAttrNames.add(name)) {
+                    // set or loaded by another thread in the meantime
+                    continue;
+                }
+                Object value = values.get(name);
+                if (value != null) {
+                    this.sessionAttrs.put(name, value);
+                }
+                if (FindByPrincipalNameSessionManager.PRINCIPAL_NAME_ATTRIBUTE.equals(name)) {
+                    this.indexedPrincipalName = principalName(value);
+                }
+            }
+        }
     }
 
     @Override
     public Set<String> getAttributeNames() {
+        if (this.loadedAttrNames != null) {
+            // names are not known without the whole hash, so load the rest at once
+            Map<String, Object> values = redisSessionManager.loadAttributes(this);
+            synchronized (this) {
+                if (this.loadedAttrNames != null) {
+                    for (Map.Entry<String, Object> entry : values.entrySet()) {
+                        if (!this.loadedAttrNames.contains(entry.getKey())) {
+                            this.sessionAttrs.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                    this.loadedAttrNames = null;
+                }
+            }
+        }
         return this.sessionAttrs.keySet();
     }
 
@@ -173,21 +582,41 @@ public class RedisSession implements Session<RedisSessionManager> {
         if (value == null) {
             removeAttribute(name);
         } else {
-            // set redis value
-            Map<String, Object> delta = new HashMap<>();
-            delta.put(RedisSessionManager.getSessionAttrNameKey(name), value);
-            saveDelta(delta);
-            // set local value
-            this.sessionAttrs.put(name, value);
+            String key = RedisSessionManager.getSessionAttrNameKey(name);
+            synchronized (this) {
+                Object current = this.sessionAttrs.get(name);
+                if (current != null && redisSessionManager.isDirtyChecking() && !this.delta.containsKey(key)) {
+                    if (isImmutable(current) && current.equals(value)) {
+                        redisSessionManager.onUnchangedAttributeSkipped();
+                        return;
+                    }
+                    // the stored form, to compare the new value with
+                    recordFingerprint(name, current);
+                }
+            }
+            loadIndexedPrincipalName(name);
+            synchronized (this) {
+                // set local value
+                markAttrLoaded(name);
+                this.sessionAttrs.put(name, value);
+                // set redis value
+                this.delta.put(key, value);
+            }
+            flushImmediateIfNecessary();
         }
     }
 
     @Override
     public void removeAttribute(String name) {
-        // set redis value
-        sessionCache.hDel(redisSessionManager.getSessionKey(id), RedisSessionManager.getSessionAttrNameKey(name));
-        // set local value
-        this.sessionAttrs.remove(name);
+        loadIndexedPrincipalName(name);
+        synchronized (this) {
+            // set local value
+            markAttrLoaded(name);
+            this.sessionAttrs.remove(name);
+            // set redis value
+            this.delta.put(RedisSessionManager.getSessionAttrNameKey(name), null);
+        }
+        flushImmediateIfNecessary();
     }
 
     @Override
@@ -200,7 +629,87 @@ public class RedisSession implements Session<RedisSessionManager> {
         this.redisSessionManager = manager;
     }
 
+    /**
+     * @return true if all the attributes have been loaded
+     */
+    boolean isFullyLoaded() {
+        return this.loadedAttrNames == null;
+    }
+
+    /**
+     * @return the hash entries of the session as written to redis
+     */
+    synchronized Map<String, Object> getWrittenEntries() {
+        Map<String, Object> entries = new HashMap<>(this.sessionAttrs.size() + 3);
+        entries.put(RedisSessionManager.CREATION_TIME_ATTR, this.creationTime.toEpochMilli());
+        entries.put(RedisSessionManager.MAX_INACTIVE_ATTR, this.maxInactiveInterval.getSeconds());
+        if (this.lastWrittenAccessedTime != null) {
+            entries.put(RedisSessionManager.LAST_ACCESSED_ATTR, this.lastWrittenAccessedTime.toEpochMilli());
+        }
+        for (Map.Entry<String, Object> entry : this.sessionAttrs.entrySet()) {
+            entries.put(RedisSessionManager.getSessionAttrNameKey(entry.getKey()), entry.getValue());
+        }
+        return entries;
+    }
+
+    /**
+     * @return the principal name the session is indexed under, null if none
+     */
+    String getIndexedPrincipalName() {
+        return this.indexedPrincipalName;
+    }
+
+    /**
+     * Loads the principal name about to be replaced if not loaded yet, so that the index
+     * entry under the old name can be removed.
+     */
+    private void loadIndexedPrincipalName(String name) {
+        if (this.loadedAttrNames != null && !this.loadedAttrNames.contains(name)
+                && FindByPrincipalNameSessionManager.PRINCIPAL_NAME_ATTRIBUTE.equals(name)
+                && redisSessionManager.isPrincipalIndexEnabled() && !this.isNew) {
+            getAttribute(name);
+        }
+    }
+
+    private static String principalName(Object value) {
+        return value != null ? value.toString() : null;
+    }
+
+    private void markAttrLoaded(String name) {
+        if (this.loadedAttrNames != null) {
+            this.loadedAttrNames.add(name);
+        }
+    }
+
     private static String generateId() {
         return UUID.randomUUID().toString();
     }
+
+    /**
+     * The hash fields of the pending changes, encoded to be written.
+     */
+    static final class PendingWrite {
+
+        private final Map<String, Object> delta;
+
+        final Map<String, Object> fieldsToSet = new HashMap<>();
+
+        final List<String> fieldsToDelete = new ArrayList<>();
+
+        /**
+         * Whether the principal name changes, and the new one, null if removed.
+         */
+        boolean principalNameChanged;
+
+        String principalName;
+
+        /**
+         * The size of the attribute values to set, as encoded by the last save call.
+         */
+        long bytesChanged;
+
+        private PendingWrite(Map<String, Object> delta) {
+            this.delta = delta;
+        }
+    }
 }
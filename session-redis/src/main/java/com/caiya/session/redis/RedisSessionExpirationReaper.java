@@ -0,0 +1,140 @@
+package com.caiya.session.redis;
+
+import com.caiya.session.SessionExpiredListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Removes the expired sessions of a {@link RedisSessionManager} and notifies the
+ * {@link SessionExpiredListener}s.
+ * <p>
+ * Redis removes the expires key of a session on time, but keeps the session hash five
+ * minutes longer and tells nobody. The reaper walks the expiration index of the manager
+ * (see {@link RedisSessionManager#setExpirationIndexEnabled(boolean)}) from the earliest
+ * expiration, in bounded batches, and never scans the keyspace. Each run handles at most
+ * {@link #setMaxBatches(int)} batches per shard of the index, so it is meant to be
+ * scheduled at a fixed delay, e.g.
+ * <pre>
+ * scheduler.scheduleWithFixedDelay(reaper, 1, 1, TimeUnit.MINUTES);
+ * </pre>
+ * Running it on several nodes at once is safe, a session is only removed and notified once.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public class RedisSessionExpirationReaper implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(RedisSessionExpirationReaper.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    public static final int DEFAULT_MAX_BATCHES = 10;
+
+    private final RedisSessionManager sessionManager;
+
+    private final List<SessionExpiredListener<RedisSession>> listeners = new CopyOnWriteArrayList<>();
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    private int maxBatches = DEFAULT_MAX_BATCHES;
+
+    private final LongAdder reaped = new LongAdder();
+
+    public RedisSessionExpirationReaper(RedisSessionManager sessionManager) {
+        if (sessionManager == null)
+            throw new IllegalArgumentException("sessionManager cannot be null");
+        if (!sessionManager.isExpirationIndexEnabled())
+            throw new IllegalArgumentException("the expiration index of the sessionManager is not enabled");
+
+        this.sessionManager = sessionManager;
+    }
+
+    /**
+     * Sets the maximum number of sessions handled per batch. Default is {@value #DEFAULT_BATCH_SIZE}.
+     *
+     * @param batchSize the batch size
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0)
+            throw new IllegalArgumentException("batchSize must be positive");
+
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the maximum number of batches per shard of the expiration index and per run.
+     * Default is {@value #DEFAULT_MAX_BATCHES}.
+     *
+     * @param maxBatches the maximum number of batches
+     */
+    public void setMaxBatches(int maxBatches) {
+        if (maxBatches <= 0)
+            throw new IllegalArgumentException("maxBatches must be positive");
+
+        this.maxBatches = maxBatches;
+    }
+
+    public void addListener(SessionExpiredListener<RedisSession> listener) {
+        if (listener == null)
+            throw new IllegalArgumentException("listener cannot be null");
+
+        listeners.add(listener);
+    }
+
+    /**
+     * Runs up to the maximum number of batches, exceptions are logged so that a scheduled
+     * execution is not cancelled.
+     */
+    @Override
+    public void run() {
+        try {
+            reap();
+        } catch (RuntimeException e) {
+            logger.error("reaping expired sessions failed", e);
+        }
+    }
+
+    /**
+     * Runs up to the maximum number of batches on each shard of the expiration index.
+     *
+     * @return the number of expiration index entries handled
+     */
+    public int reap() {
+        int handled = 0;
+        for (String expirationIndexKey : sessionManager.getExpirationIndexKeys()) {
+            for (int i = 0; i < maxBatches; i++) {
+                int count = sessionManager.reapExpiredSessions(expirationIndexKey, batchSize, this::notifyListeners);
+                handled += count;
+                if (count < batchSize) {
+                    break;
+                }
+            }
+        }
+        if (handled > 0) {
+            logger.debug("reaped expired sessions, handled:{}", handled);
+        }
+        return handled;
+    }
+
+    private void notifyListeners(RedisSession session) {
+        reaped.increment();
+        for (SessionExpiredListener<RedisSession> listener : listeners) {
+            try {
+                listener.sessionExpired(session);
+            } catch (RuntimeException e) {
+                logger.error("session expired listener failed, id:" + session.getId(), e);
+            }
+        }
+    }
+
+    /**
+     * @return the number of expired sessions removed by this reaper
+     */
+    public long getReaped() {
+        return reaped.sum();
+    }
+}
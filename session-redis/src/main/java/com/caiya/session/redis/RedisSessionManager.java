@@ -1,17 +1,25 @@
 package com.caiya.session.redis;
 
 import com.caiya.cache.CacheApi;
+import com.caiya.session.FindByPrincipalNameSessionManager;
 import com.caiya.session.Session;
 import com.caiya.session.SessionException;
+import com.caiya.session.SessionExpiredListener;
 import com.caiya.session.SessionIdGenerator;
-import com.caiya.session.SessionManager;
+import com.caiya.session.codec.AttributeCodecs;
+import com.caiya.session.codec.JdkAttributeCodec;
+import com.caiya.session.metrics.SessionMetrics;
 import com.caiya.session.util.StandardSessionIdGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
 import java.time.Duration;
-import java.util.Map;
+import java.time.Instant;
+import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Redis Session Manager.
@@ -19,7 +27,7 @@ import java.util.concurrent.TimeUnit;
  * @author wangnan
  * @since 1.0
  */
-public class RedisSessionManager implements SessionManager<RedisSession> {
+public class RedisSessionManager implements FindByPrincipalNameSessionManager<RedisSession> {
 
     protected static final Logger logger = LoggerFactory.getLogger(RedisSessionManager.class);
 
@@ -33,148 +41,1775 @@ public class RedisSessionManager implements SessionManager<RedisSession> {
      */
     public static final String DEFAULT_NAMESPACE = "project:session";
 
+    /**
+     * Default {@link #setExpirationIndexShards(int)}.
+     */
+    public static final int DEFAULT_EXPIRATION_INDEX_SHARDS = 16;
+
     /**
      * The key in the Hash representing
      * {@link Session#getCreationTime()}.
      */
-    static final String CREATION_TIME_ATTR = "creationTime";
+    static final String CREATION_TIME_ATTR = "creationTime";
+
+    /**
+     * The key in the Hash representing
+     * {@link Session#getMaxInactiveInterval()}
+     * .
+     */
+    static final String MAX_INACTIVE_ATTR = "maxInactiveInterval";
+
+    /**
+     * The key in the Hash representing
+     * {@link Session#getLastAccessedTime()}.
+     */
+    static final String LAST_ACCESSED_ATTR = "lastAccessedTime";
+
+    /**
+     * The prefix of the key used for session attributes. The suffix is the name of
+     * the session attribute. For example, if the session contained an attribute named
+     * attributeName, then there would be an entry in the hash named
+     * sessionAttr:attributeName that mapped to its value.
+     */
+    static final String SESSION_ATTR_PREFIX = "sessionAttr:";
+
+    /**
+     * The maximum number of session ids removed from a principal index by one script call,
+     * well below the size of the lua stack.
+     */
+    static final int PRINCIPAL_INDEX_REMOVALS_PER_CALL = 1000;
+
+    /**
+     * The namespace for every key used by Spring Session in Redis.
+     */
+    private String namespace = DEFAULT_NAMESPACE + ":";
+
+    private CacheApi<String, Object> sessionCache;
+
+    /**
+     * How the keys of a session are built from its id.
+     */
+    private RedisKeyLayout keyLayout = RedisKeyLayout.LEGACY;
+
+    /**
+     * Whether sessions not found with the {@link RedisKeyLayout#HASH_TAGGED} layout are
+     * looked up with the legacy one, and migrated if found.
+     */
+    private boolean legacyKeyFallback = true;
+
+    /**
+     * If non-null, this value is used to override the default value for
+     * {@link RedisSession#setMaxInactiveInterval}.
+     */
+    private Duration defaultMaxInactiveInterval = Duration.ofSeconds(DEFAULT_MAX_INACTIVE_INTERVAL_SECONDS);
+
+    /**
+     * Specifies when the changes of a {@link RedisSession} are written to redis.
+     */
+    private RedisFlushMode flushMode = RedisFlushMode.IMMEDIATE;
+
+    /**
+     * Last accessed time updates closer than this to the last written one are kept in memory only.
+     */
+    private Duration touchInterval = Duration.ZERO;
+
+    /**
+     * If positive, the touch interval is this fraction of the max inactive interval of the session.
+     */
+    private double touchIntervalRatio;
+
+    private final LongAdder touchesWritten = new LongAdder();
+
+    private final LongAdder touchesSkipped = new LongAdder();
+
+    /**
+     * Whether {@link #findById(String)} leaves the attributes to be loaded on first access.
+     */
+    private boolean lazyAttributeLoading;
+
+    /**
+     * If non-null, used to do the operations which need several commands in a single round trip.
+     */
+    private RedisScriptExecutor scriptExecutor;
+
+    /**
+     * Supplies the current time given to the scripts, the system clock by default.
+     */
+    private Clock clock = Clock.systemUTC();
+
+    /**
+     * If non-null, sessions are looked up in this in-process cache first.
+     */
+    private RedisSessionNearCache nearCache;
+
+    /**
+     * If non-null, attribute values are encoded with these codecs before being written.
+     */
+    private AttributeCodecs attributeCodecs;
+
+    /**
+     * Whether the attributes are only written if their serialized form changed.
+     */
+    private boolean dirtyChecking;
+
+    private final LongAdder unchangedAttributesSkipped = new LongAdder();
+
+    private final LongAdder changedAttributesDetected = new LongAdder();
+
+    /**
+     * Used to fingerprint the attributes without attribute codecs nor script executor.
+     */
+    private final JdkAttributeCodec fingerprintCodec = new JdkAttributeCodec();
+
+    /**
+     * Whether the expiration time of each saved session is kept in a sorted set.
+     */
+    private boolean expirationIndexEnabled;
+
+    private int expirationIndexShards = DEFAULT_EXPIRATION_INDEX_SHARDS;
+
+    /**
+     * Whether the ids of the sessions of each principal are kept in a sorted set.
+     */
+    private boolean principalIndexEnabled;
+
+    /**
+     * The maximum number of sessions of a principal, 0 if unlimited.
+     */
+    private int maxSessionsPerPrincipal;
+
+    private RedisMaxSessionsPolicy maxSessionsPolicy = RedisMaxSessionsPolicy.EVICT_OLDEST;
+
+    private final LongAdder sessionsEvicted = new LongAdder();
+
+    private final LongAdder sessionsRejected = new LongAdder();
+
+    private RedisSessionQuota quota;
+
+    private SessionMetrics metrics;
+
+    protected SessionIdGenerator sessionIdGenerator;
+
+    protected Class<? extends SessionIdGenerator> sessionIdGeneratorClass;
+
+    RedisSessionExpirationPolicy redisSessionExpirationPolicy;
+
+    @SuppressWarnings("unused")
+    public CacheApi getSessionCache() {
+        return sessionCache;
+    }
+
+    @Override
+    public void setDefaultMaxInactiveInterval(Duration defaultMaxInactiveInterval) {
+        this.defaultMaxInactiveInterval = defaultMaxInactiveInterval;
+    }
+
+    public Duration getDefaultMaxInactiveInterval() {
+        return defaultMaxInactiveInterval;
+    }
+
+    /**
+     * Sets the redis flush mode. Default flush mode is {@link RedisFlushMode#IMMEDIATE}.
+     *
+     * @param flushMode the new redis flush mode
+     */
+    public void setFlushMode(RedisFlushMode flushMode) {
+        if (flushMode == null)
+            throw new IllegalArgumentException("flushMode cannot be null");
+
+        this.flushMode = flushMode;
+    }
+
+    public RedisFlushMode getFlushMode() {
+        return flushMode;
+    }
+
+    /**
+     * Sets whether the attributes of a session are loaded on first access instead of
+     * with the session. Only takes effect with a {@link RedisScriptExecutor}. Default is false.
+     * <p>
+     * The first {@link RedisSession#getAttribute(String)} of each attribute costs one round
+     * trip. Callers reading several attributes should name them up front, with
+     * {@link #findById(String, String...)} or {@link RedisSession#loadAttributes(String...)},
+     * which fetch them together in one round trip.
+     *
+     * @param lazyAttributeLoading true to load attributes lazily
+     */
+    public void setLazyAttributeLoading(boolean lazyAttributeLoading) {
+        this.lazyAttributeLoading = lazyAttributeLoading;
+    }
+
+    /**
+     * Sets the touch interval. A last accessed time update within this interval from the
+     * last written one only changes the session in memory, and does not refresh the
+     * expiration in redis. Default is {@link Duration#ZERO}, i.e. every update is written.
+     *
+     * @param touchInterval the touch interval
+     */
+    public void setTouchInterval(Duration touchInterval) {
+        if (touchInterval == null || touchInterval.isNegative())
+            throw new IllegalArgumentException("touchInterval cannot be null or negative");
+
+        this.touchInterval = touchInterval;
+    }
+
+    /**
+     * Sets the touch interval as a fraction of the max inactive interval of each session,
+     * e.g. 0.1 writes the last accessed time of a 30 minutes session at most every 3 minutes.
+     * If positive, takes precedence over {@link #setTouchInterval(Duration)}.
+     *
+     * @param touchIntervalRatio the fraction, between 0 (inclusive) and 1 (exclusive)
+     */
+    public void setTouchIntervalRatio(double touchIntervalRatio) {
+        if (touchIntervalRatio < 0 || touchIntervalRatio >= 1)
+            throw new IllegalArgumentException("touchIntervalRatio must be in [0, 1)");
+
+        this.touchIntervalRatio = touchIntervalRatio;
+    }
+
+    /**
+     * @return the number of last accessed time updates written to redis
+     */
+    public long getTouchesWritten() {
+        return touchesWritten.sum();
+    }
+
+    /**
+     * @return the number of last accessed time updates kept in memory only
+     */
+    public long getTouchesSkipped() {
+        return touchesSkipped.sum();
+    }
+
+    /**
+     * Decides whether a last accessed time update has to be written, and counts the decision.
+     *
+     * @param session          the session
+     * @param lastWrittenTime  the last accessed time last written to redis, may be null
+     * @param lastAccessedTime the new last accessed time
+     * @return true if the update has to be written
+     */
+    boolean shouldWriteTouch(RedisSession session, Instant lastWrittenTime, Instant lastAccessedTime) {
+        Duration interval = touchIntervalRatio > 0
+                ? Duration.ofMillis((long) (session.getMaxInactiveInterval().toMillis() * touchIntervalRatio))
+                : touchInterval;
+        if (lastWrittenTime != null && !interval.isZero()
+                && Duration.between(lastWrittenTime, lastAccessedTime).compareTo(interval) < 0) {
+            touchesSkipped.increment();
+            return false;
+        }
+        touchesWritten.increment();
+        return true;
+    }
+
+    /**
+     * Sets the script executor, which must target the same redis as the session cache.
+     * If set, a session is looked up in a single round trip instead of two, and the
+     * changes of a session are saved with one atomic script instead of four commands.
+     * <p>
+     * The scripts use all the keys of a session at once, so with a redis cluster the
+     * {@link RedisKeyLayout#HASH_TAGGED} key layout must be set first.
+     *
+     * @param scriptExecutor the script executor, may be null unless a near cache or a quota is set
+     * @throws IllegalStateException if the executor targets a redis cluster and the key
+     *                               layout is {@link RedisKeyLayout#LEGACY}
+     */
+    public void setScriptExecutor(RedisScriptExecutor scriptExecutor) {
+        if (scriptExecutor == null && nearCache != null)
+            throw new IllegalStateException("the near cache requires a script executor");
+        if (scriptExecutor == null && quota != null)
+            throw new IllegalStateException("the session quota requires a script executor");
+        if (scriptExecutor != null && scriptExecutor.isCluster() && keyLayout == RedisKeyLayout.LEGACY)
+            throw new IllegalStateException("a redis cluster requires the HASH_TAGGED key layout, which must be set first");
+
+        this.scriptExecutor = scriptExecutor;
+    }
+
+    public RedisScriptExecutor getScriptExecutor() {
+        return scriptExecutor;
+    }
+
+    /**
+     * Sets the clock supplying the current time to the scripts: the expiration times of the
+     * expiration and principal indexes, the due sessions looked up by the reaper and the
+     * refreshes of the quota. The time to live of the keys is still kept by redis.
+     *
+     * @param clock the clock, the system one by default
+     */
+    public void setClock(Clock clock) {
+        if (clock == null)
+            throw new IllegalArgumentException("clock cannot be null");
+
+        this.clock = clock;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * Sets the near cache. It requires a {@link RedisScriptExecutor}, which publishes the
+     * invalidation messages, and a subscription to {@link #getInvalidationChannel()}.
+     *
+     * @param nearCache the near cache, may be null
+     * @throws IllegalStateException if no script executor is set
+     */
+    public void setNearCache(RedisSessionNearCache nearCache) {
+        if (nearCache != null && scriptExecutor == null)
+            throw new IllegalStateException("the near cache requires a script executor, which must be set first");
+
+        this.nearCache = nearCache;
+    }
+
+    public RedisSessionNearCache getNearCache() {
+        return nearCache;
+    }
+
+    /**
+     * Sets the quota of the sessions of the namespace. It requires a
+     * {@link RedisScriptExecutor} and the expiration index, in which the sessions are
+     * counted. Default is null.
+     *
+     * @param quota the quota, may be null
+     * @throws IllegalStateException if no script executor is set or the expiration index
+     *                               is not enabled
+     */
+    public void setQuota(RedisSessionQuota quota) {
+        if (quota != null && (scriptExecutor == null || !expirationIndexEnabled))
+            throw new IllegalStateException("the session quota requires a script executor and the expiration index, which must be set first");
+
+        this.quota = quota;
+    }
+
+    public RedisSessionQuota getQuota() {
+        return quota;
+    }
+
+    /**
+     * Sets the metrics to which the size of the attribute values written is recorded as
+     * {@link SessionMetrics#recordBytesChanged(long)}, to be compared with the bytes recorded
+     * by an {@link InstrumentedRedisScriptExecutor}. Requires a {@link RedisScriptExecutor}.
+     * Default is null.
+     *
+     * @param metrics the metrics, may be null
+     */
+    public void setMetrics(SessionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public SessionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the pub/sub channel on which session changes are published for the near caches
+     */
+    public String getInvalidationChannel() {
+        return this.namespace + "invalidations";
+    }
+
+    /**
+     * Sets the codecs of the attribute values. Values are then written as the bytes of their
+     * codec instead of being handed to the hash value serializer of the session cache, and
+     * both kinds of stored values can be read, so the codecs can be enabled on a running
+     * system. A {@code byte[]} attribute written before, whose first byte happens to be the
+     * identifier of a registered codec, would be misread. The codecs only apply to the
+     * writes of a {@link RedisScriptExecutor}, the {@link CacheApi} serializing whatever it
+     * writes. Default is null.
+     *
+     * @param attributeCodecs the attribute codecs, may be null
+     */
+    public void setAttributeCodecs(AttributeCodecs attributeCodecs) {
+        this.attributeCodecs = attributeCodecs;
+    }
+
+    public AttributeCodecs getAttributeCodecs() {
+        return attributeCodecs;
+    }
+
+    /**
+     * Sets whether the attributes are checked for changes when a session is saved. The
+     * serialized form of a mutable attribute is fingerprinted when the attribute is first
+     * read, and the attribute is written at save time only if its fingerprint changed,
+     * whether or not it has been set again. Setting an attribute to a value equal to the
+     * stored one writes nothing. This costs one serialization per read mutable attribute
+     * and per save, and saves the writes of the attributes set again defensively.
+     * Default is false.
+     *
+     * @param dirtyChecking true to check the attributes for changes
+     */
+    public void setDirtyChecking(boolean dirtyChecking) {
+        this.dirtyChecking = dirtyChecking;
+    }
+
+    public boolean isDirtyChecking() {
+        return dirtyChecking;
+    }
+
+    /**
+     * @return the number of attributes set again to an unchanged value, and not written
+     */
+    public long getUnchangedAttributesSkipped() {
+        return unchangedAttributesSkipped.sum();
+    }
+
+    /**
+     * @return the number of attributes changed in place without being set again, and written
+     */
+    public long getChangedAttributesDetected() {
+        return changedAttributesDetected.sum();
+    }
+
+    void onUnchangedAttributeSkipped() {
+        unchangedAttributesSkipped.increment();
+    }
+
+    void onChangedAttributeDetected() {
+        changedAttributesDetected.increment();
+    }
+
+    /**
+     * Returns a fingerprint of the serialized form of an attribute value: two values with
+     * the same fingerprint are written as the same bytes.
+     *
+     * @param attributeName the attribute name
+     * @param value         the value
+     * @return the fingerprint
+     */
+    long fingerprint(String attributeName, Object value) {
+        byte[] bytes;
+        if (attributeCodecs != null) {
+            bytes = attributeCodecs.encodeUncompressed(attributeName, value);
+        } else if (scriptExecutor != null) {
+            bytes = scriptExecutor.serializeValue(value);
+        } else {
+            bytes = fingerprintCodec.encode(value);
+        }
+        // 64-bit FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash ^ bytes.length;
+    }
+
+    /**
+     * Sets whether the expiration time of each saved session is kept in a sorted set, which
+     * a {@link RedisSessionExpirationReaper} uses to find the expired sessions. Requires a
+     * {@link RedisScriptExecutor}. Default is false.
+     *
+     * @param expirationIndexEnabled true to maintain the expiration index
+     * @throws IllegalStateException if disabled while a quota is set
+     */
+    public void setExpirationIndexEnabled(boolean expirationIndexEnabled) {
+        if (!expirationIndexEnabled && quota != null)
+            throw new IllegalStateException("the session quota requires the expiration index");
+
+        this.expirationIndexEnabled = expirationIndexEnabled;
+    }
+
+    public boolean isExpirationIndexEnabled() {
+        return expirationIndexEnabled;
+    }
+
+    /**
+     * Sets the number of sorted sets the expiration index is spread over, so that the
+     * sessions saved by all the nodes do not all update the same key. A session is indexed
+     * in the shard of its cluster slot. Default is {@link #DEFAULT_EXPIRATION_INDEX_SHARDS}.
+     * <p>
+     * With the {@link RedisKeyLayout#LEGACY} layout, the index is updated by the script
+     * saving the session; with the hash tagged one, the shards are in other slots than the
+     * session keys, and the index is updated in the same pipeline as the save if the
+     * {@link RedisScriptExecutor} pipelines, in another round trip otherwise.
+     *
+     * @param expirationIndexShards the number of shards
+     */
+    public void setExpirationIndexShards(int expirationIndexShards) {
+        if (expirationIndexShards <= 0)
+            throw new IllegalArgumentException("expirationIndexShards must be positive");
+
+        this.expirationIndexShards = expirationIndexShards;
+    }
+
+    public int getExpirationIndexShards() {
+        return expirationIndexShards;
+    }
+
+    /**
+     * @param sessionId the session id
+     * @return the key of the expiration index shard of the session, a sorted set of session
+     * ids scored by expiration time
+     */
+    String getExpirationIndexKey(String sessionId) {
+        return getExpirationIndexKey(RedisClusterSlots.slot(sessionId) % expirationIndexShards);
+    }
+
+    /**
+     * @return the keys of all the expiration index shards
+     */
+    List<String> getExpirationIndexKeys() {
+        List<String> keys = new ArrayList<>(expirationIndexShards);
+        for (int shard = 0; shard < expirationIndexShards; shard++) {
+            keys.add(getExpirationIndexKey(shard));
+        }
+        return keys;
+    }
+
+    private String getExpirationIndexKey(int shard) {
+        return this.namespace + "expirations:" + shard;
+    }
+
+    /**
+     * @return whether the script saving a session updates the expiration index itself,
+     * which needs the index in the same slot as the session keys
+     */
+    private boolean isExpirationIndexedOnSave() {
+        return expirationIndexEnabled && keyLayout == RedisKeyLayout.LEGACY;
+    }
+
+    /**
+     * Sets whether the ids of the sessions of each principal, as named by their
+     * {@link #PRINCIPAL_NAME_ATTRIBUTE} attribute, are kept in a sorted set scored by
+     * expiration time, used by {@link #findByPrincipalName(String)},
+     * {@link #deleteByPrincipalName(String)} and {@link #setMaxSessionsPerPrincipal(int)}.
+     * Requires a {@link RedisScriptExecutor}. Default is false.
+     * <p>
+     * A sorted set is in another cluster slot than the sessions, so it is updated by separate
+     * calls: the session is added before its principal name is written, removed from the
+     * index of its previous principal right after, and its expiration time is updated with
+     * each write refreshing the expiration. The lookups check the principal name of each
+     * session found and drop the stale ids, the expired ones are dropped as new sessions are
+     * added, and by the {@link RedisSessionExpirationReaper} if the expiration index is enabled.
+     *
+     * @param principalIndexEnabled true to maintain the principal index
+     */
+    public void setPrincipalIndexEnabled(boolean principalIndexEnabled) {
+        this.principalIndexEnabled = principalIndexEnabled;
+    }
+
+    public boolean isPrincipalIndexEnabled() {
+        return principalIndexEnabled;
+    }
+
+    /**
+     * @param principalName the principal name
+     * @return the key of the set of the session ids of the principal
+     */
+    String getPrincipalIndexKey(String principalName) {
+        return this.namespace + "index:principal:" + principalName;
+    }
+
+    /**
+     * Sets the maximum number of sessions of a principal, checked atomically when a session
+     * is bound to the principal, see {@link #setMaxSessionsPolicy(RedisMaxSessionsPolicy)}.
+     * Requires the principal index. Default is 0, unlimited.
+     *
+     * @param maxSessionsPerPrincipal the maximum number of sessions, 0 if unlimited
+     */
+    public void setMaxSessionsPerPrincipal(int maxSessionsPerPrincipal) {
+        if (maxSessionsPerPrincipal < 0)
+            throw new IllegalArgumentException("maxSessionsPerPrincipal cannot be negative");
+
+        this.maxSessionsPerPrincipal = maxSessionsPerPrincipal;
+    }
+
+    public int getMaxSessionsPerPrincipal() {
+        return maxSessionsPerPrincipal;
+    }
+
+    /**
+     * Sets what to do when a session is bound to a principal which has the maximum number
+     * of sessions. Default is {@link RedisMaxSessionsPolicy#EVICT_OLDEST}.
+     *
+     * @param maxSessionsPolicy the policy
+     */
+    public void setMaxSessionsPolicy(RedisMaxSessionsPolicy maxSessionsPolicy) {
+        if (maxSessionsPolicy == null)
+            throw new IllegalArgumentException("maxSessionsPolicy cannot be null");
+
+        this.maxSessionsPolicy = maxSessionsPolicy;
+    }
+
+    public RedisMaxSessionsPolicy getMaxSessionsPolicy() {
+        return maxSessionsPolicy;
+    }
+
+    /**
+     * @return the number of sessions deleted to make room for a new session of their principal
+     */
+    public long getSessionsEvicted() {
+        return sessionsEvicted.sum();
+    }
+
+    /**
+     * @return the number of sessions which could not be bound to their principal
+     */
+    public long getSessionsRejected() {
+        return sessionsRejected.sum();
+    }
+
+    /**
+     * Sets the key layout. Default is {@link RedisKeyLayout#LEGACY}.
+     *
+     * @param keyLayout the key layout
+     * @throws IllegalStateException if {@link RedisKeyLayout#LEGACY} while the script
+     *                               executor targets a redis cluster
+     */
+    public void setKeyLayout(RedisKeyLayout keyLayout) {
+        if (keyLayout == null)
+            throw new IllegalArgumentException("keyLayout cannot be null");
+        if (keyLayout == RedisKeyLayout.LEGACY && scriptExecutor != null && scriptExecutor.isCluster())
+            throw new IllegalStateException("a redis cluster requires the HASH_TAGGED key layout");
+
+        this.keyLayout = keyLayout;
+    }
+
+    public RedisKeyLayout getKeyLayout() {
+        return keyLayout;
+    }
+
+    /**
+     * Sets whether, with the {@link RedisKeyLayout#HASH_TAGGED} layout, a session not found
+     * is looked up again with the legacy layout, and moved to the new one if found. The
+     * legacy keys are deleted as well when a session is deleted by id or principal name.
+     * This costs two more round trips for each unknown session id and two more commands
+     * for each deleted session, so it should be turned off once the sessions written with
+     * the legacy layout have expired. Default is true.
+     *
+     * @param legacyKeyFallback true to look up the legacy keys
+     */
+    public void setLegacyKeyFallback(boolean legacyKeyFallback) {
+        this.legacyKeyFallback = legacyKeyFallback;
+    }
+
+    /**
+     * @return the namespace of the keys, without the trailing colon
+     */
+    String getNamespace() {
+        return this.namespace.substring(0, this.namespace.length() - 1);
+    }
+
+    public void setRedisKeyNamespace(String namespace) {
+        if (namespace == null || namespace.trim().isEmpty())
+            throw new IllegalArgumentException("namespace cannot be null or empty");
+
+        this.namespace = namespace.trim() + ":";
+    }
+
+    /**
+     * Gets the Hash key for this session by prefixing it appropriately.
+     *
+     * @param sessionId the session id
+     * @return the Hash key for this session by prefixing it appropriately.
+     */
+    String getSessionKey(String sessionId) {
+        return this.namespace + "sessions:" + keyId(sessionId);
+    }
+
+    String getExpiredKey(String sessionId) {
+        return getExpiredKeyPrefix() + keyId(sessionId);
+    }
+
+    private String keyId(String sessionId) {
+        return keyLayout == RedisKeyLayout.HASH_TAGGED ? "{" + sessionId + "}" : sessionId;
+    }
+
+    private String getLegacySessionKey(String sessionId) {
+        return this.namespace + "sessions:" + sessionId;
+    }
+
+    private String getLegacyExpiredKey(String sessionId) {
+        return getExpiredKeyPrefix() + sessionId;
+    }
+
+    private String getExpiredKeyPrefix() {
+        return this.namespace + "sessions:" + "expires:";
+    }
+
+    /**
+     * Gets the key for the specified session attribute.
+     *
+     * @param attributeName the attribute name
+     * @return the attribute key name
+     */
+    static String getSessionAttrNameKey(String attributeName) {
+        return SESSION_ATTR_PREFIX + attributeName;
+    }
+
+    public RedisSessionManager(CacheApi<String, Object> sessionCache) {
+        if (sessionCache == null)
+            throw new IllegalArgumentException("sessionCache cannot be null");
+
+        this.sessionCache = sessionCache;
+        this.redisSessionExpirationPolicy = new RedisSessionExpirationPolicy();
+    }
+
+    @Override
+    public RedisSession createSession(String sessionId, Duration maxInactiveInterval) {
+        if (sessionId == null || sessionId.isEmpty())
+            throw new IllegalArgumentException("session id can not be empty");
+
+        RedisSession session = newSession(sessionId, maxInactiveInterval, false);
+        if (flushMode == RedisFlushMode.IMMEDIATE) {
+            session.save();
+        }
+        return session;
+    }
+
+    @Override
+    public RedisSession createSession(String sessionId) {
+        return createSession(sessionId, defaultMaxInactiveInterval);
+    }
+
+    /**
+     * Creates a session with a generated id. The id is not checked here, it is claimed
+     * when the session is first written and replaced by a new one if it is already taken.
+     */
+    @Override
+    public RedisSession createSession() {
+        RedisSession session = newSession(generateSessionId(), defaultMaxInactiveInterval, true);
+        if (flushMode == RedisFlushMode.IMMEDIATE) {
+            session.save();
+        }
+        return session;
+    }
+
+    /**
+     * Creates a session without writing it.
+     *
+     * @param sessionId           the session id, generated if null
+     * @param maxInactiveInterval the max inactive interval
+     * @return the new session
+     */
+    RedisSession newSession(String sessionId, Duration maxInactiveInterval) {
+        return sessionId == null ? newSession(generateSessionId(), maxInactiveInterval, true)
+                : newSession(sessionId, maxInactiveInterval, false);
+    }
+
+    private RedisSession newSession(String sessionId, Duration maxInactiveInterval, boolean idGenerated) {
+        if (quota != null) {
+            maxInactiveInterval = quota.admit(this, maxInactiveInterval);
+        }
+        return new RedisSession(sessionCache, sessionId, maxInactiveInterval, idGenerated, this);
+    }
+
+    @Override
+    public RedisSession findById(String id) {
+        RedisSession cached = findCachedById(id);
+        if (cached != null) {
+            return cached;
+        }
+        if (lazyAttributeLoading && scriptExecutor != null) {
+            return findById(id, new String[0]);
+        }
+
+        if (scriptExecutor != null) {
+            long stamp = nearCacheStamp();
+            return sessionFound(id, findSessionCall(id).execute(scriptExecutor), stamp);
+        }
+        if (!isAlive(sessionCache.ttl(getExpiredKey(id)))) {
+            return null;
+        }
+        Map<String, Object> entries = sessionCache.hGetAll(getSessionKey(id));
+        return entries.isEmpty() ? findLegacyById(id) : new RedisSession(sessionCache, id, entries, this);
+    }
+
+    /**
+     * @param id the session id
+     * @return the session held by the near cache, or null
+     */
+    RedisSession findCachedById(String id) {
+        Map<String, byte[]> cached = nearCache != null ? nearCache.get(id) : null;
+        if (cached == null) {
+            return null;
+        }
+        Map<String, Object> entries = new HashMap<>(cached.size());
+        for (Map.Entry<String, byte[]> entry : cached.entrySet()) {
+            entries.put(entry.getKey(), decodeStoredValue(entry.getKey(), entry.getValue()));
+        }
+        return new RedisSession(sessionCache, id, entries, this);
+    }
+
+    /**
+     * @return the near cache stamp to take before reading or writing a session, 0 without
+     * a near cache
+     */
+    long nearCacheStamp() {
+        return nearCache != null ? nearCache.stamp() : 0;
+    }
+
+    /**
+     * Creates the session from the reply of {@link #findSessionCall(String)}, looking it up
+     * with the legacy key layout if not found.
+     *
+     * @param id    the session id
+     * @param reply the reply
+     * @param stamp the near cache stamp taken before the call
+     * @return the session or {@code null} if not found
+     */
+    RedisSession sessionFound(String id, List<?> reply, long stamp) {
+        return sessionFound(id, reply, stamp, true);
+    }
+
+    /**
+     * @param id             the session id
+     * @param reply          the reply of {@link #findSessionCall(String)}
+     * @param stamp          the near cache stamp taken before the call
+     * @param legacyFallback whether to look the session up with the legacy key layout if
+     *                       not found, with blocking commands
+     * @return the session or {@code null} if not found
+     */
+    RedisSession sessionFound(String id, List<?> reply, long stamp, boolean legacyFallback) {
+        Map<String, Object> entries = entriesFound(reply);
+        if (entries.isEmpty()) {
+            return legacyFallback ? findLegacyById(id) : null;
+        }
+
+        RedisSession session = new RedisSession(sessionCache, id, entries, this);
+        if (nearCache != null) {
+            Map<String, byte[]> stored = new HashMap<>(entries.size());
+            for (int i = 0; i + 1 < reply.size(); i += 2) {
+                stored.put(new String((byte[]) reply.get(i), StandardCharsets.UTF_8), (byte[]) reply.get(i + 1));
+            }
+            nearCache.put(id, stored, session.getLastAccessedTime().plus(session.getMaxInactiveInterval()), stamp);
+        }
+        return session;
+    }
+
+    /**
+     * Finds the session and loads only the given attributes with it, the other ones are
+     * loaded on first access. Without a {@link RedisScriptExecutor} all the attributes
+     * are loaded.
+     *
+     * @param id             the session id
+     * @param attributeNames the names of the attributes to load
+     * @return the session or {@code null} if not found
+     */
+    @Override
+    public RedisSession findById(String id, String... attributeNames) {
+        if (scriptExecutor == null) {
+            Map<String, Object> entries = isAlive(sessionCache.ttl(getExpiredKey(id)))
+                    ? sessionCache.hGetAll(getSessionKey(id)) : Collections.<String, Object>emptyMap();
+            return entries.isEmpty() ? null : new RedisSession(sessionCache, id, entries, this);
+        }
+
+        RedisSession session = sessionFieldsLoaded(id, attributeNames,
+                findSessionFieldsCall(id, attributeNames).execute(scriptExecutor));
+        return session != null ? session : findLegacyById(id);
+    }
+
+    private static List<String> sessionFields(String... attributeNames) {
+        List<String> fields = new ArrayList<>(3 + attributeNames.length);
+        fields.add(CREATION_TIME_ATTR);
+        fields.add(MAX_INACTIVE_ATTR);
+        fields.add(LAST_ACCESSED_ATTR);
+        for (String attributeName : attributeNames) {
+            fields.add(getSessionAttrNameKey(attributeName));
+        }
+        return fields;
+    }
+
+    private RedisScriptCall<List> findSessionFieldsCall(String id, String... attributeNames) {
+        return new RedisScriptCall<>(RedisSessionScripts.FIND_SESSION_FIELDS,
+                Arrays.asList(getSessionKey(id), getExpiredKey(id)), sessionFields(attributeNames));
+    }
+
+    private RedisSession sessionFieldsLoaded(String id, String[] attributeNames, List<?> reply) {
+        if (reply == null || reply.isEmpty() || reply.get(0) == null) {
+            return null;
+        }
+
+        List<String> fields = sessionFields(attributeNames);
+        Map<String, Object> entries = new HashMap<>(fields.size());
+        for (int i = 0; i < fields.size(); i++) {
+            if (reply.get(i) != null) {
+                entries.put(fields.get(i), decodeStoredValue(fields.get(i), (byte[]) reply.get(i)));
+            }
+        }
+        return new RedisSession(sessionCache, id, entries, Arrays.asList(attributeNames), this);
+    }
+
+    /**
+     * Looks all the candidates up in one pipelined round trip with a pipelining script
+     * executor, or one after the other until one is found otherwise. The sessions still
+     * stored with the legacy key layout are only looked up if none of the candidates is
+     * found with the current one.
+     */
+    @Override
+    public RedisSession findFirstById(List<String> ids) {
+        if (scriptExecutor == null || ids.size() < 2) {
+            return FindByPrincipalNameSessionManager.super.findFirstById(ids);
+        }
+
+        List<String> candidates = new ArrayList<>();
+        RedisSession found = scriptExecutor.isPipelining() ? findFirstPipelined(ids, candidates)
+                : findFirstSerially(ids, candidates);
+        if (found != null) {
+            return found;
+        }
+        for (String id : candidates) {
+            RedisSession session = findLegacyById(id);
+            if (session != null) {
+                return session;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param ids        the session ids, in order of preference
+     * @param candidates filled with the ids looked up in redis
+     * @return the first session found, or null
+     */
+    private RedisSession findFirstPipelined(List<String> ids, List<String> candidates) {
+        // only the candidates before the first one held by the near cache are looked up
+        List<RedisScriptCall<?>> calls = new ArrayList<>();
+        RedisSession cached = null;
+        for (String id : new LinkedHashSet<>(ids)) {
+            cached = findCachedById(id);
+            if (cached != null) {
+                break;
+            }
+            candidates.add(id);
+            calls.add(lazyAttributeLoading ? findSessionFieldsCall(id) : findSessionCall(id));
+        }
+        long stamp = nearCacheStamp();
+        List<Object> replies = calls.isEmpty() ? Collections.emptyList() : scriptExecutor.executePipelined(calls);
+        for (int i = 0; i < candidates.size(); i++) {
+            Object reply = replies.get(i);
+            if (reply instanceof RuntimeException)
+                throw (RuntimeException) reply;
+
+            RedisSession session = candidateFound(candidates.get(i), (List<?>) reply, stamp);
+            if (session != null) {
+                return session;
+            }
+        }
+        return cached;
+    }
+
+    /**
+     * @param ids        the session ids, in order of preference
+     * @param candidates filled with the ids looked up in redis
+     * @return the first session found, or null
+     */
+    private RedisSession findFirstSerially(List<String> ids, List<String> candidates) {
+        for (String id : new LinkedHashSet<>(ids)) {
+            RedisSession cached = findCachedById(id);
+            if (cached != null) {
+                return cached;
+            }
+            candidates.add(id);
+            long stamp = nearCacheStamp();
+            RedisSession session = candidateFound(id, (lazyAttributeLoading ? findSessionFieldsCall(id) : findSessionCall(id))
+                    .execute(scriptExecutor), stamp);
+            if (session != null) {
+                return session;
+            }
+        }
+        return null;
+    }
+
+    private RedisSession candidateFound(String id, List<?> reply, long stamp) {
+        return lazyAttributeLoading ? sessionFieldsLoaded(id, new String[0], reply) : sessionFound(id, reply, stamp, false);
+    }
+
+    /**
+     * Looks the session up with the legacy key layout, and moves it to the current layout
+     * if found. The legacy keys are in different cluster slots, so plain commands are used.
+     *
+     * @param id the session id
+     * @return the session or {@code null} if not found
+     */
+    RedisSession findLegacyById(String id) {
+        if (!isLegacyKeyFallback()) {
+            return null;
+        }
+        String legacyExpiredKey = getLegacyExpiredKey(id);
+        if (!isAlive(sessionCache.ttl(legacyExpiredKey))) {
+            return null;
+        }
+        String legacySessionKey = getLegacySessionKey(id);
+        Map<String, Object> entries = readHash(legacySessionKey);
+        if (entries.isEmpty()) {
+            return null;
+        }
+
+        logger.info("migrating session to the {} key layout, id:{}", keyLayout, id);
+        RedisSession session = new RedisSession(sessionCache, id, entries, this);
+        session.saveAll();
+        sessionCache.del(legacyExpiredKey);
+        sessionCache.del(legacySessionKey);
+        return session;
+    }
+
+    /**
+     * Loads the given attributes of the session with one <code>HMGET</code>.
+     *
+     * @param session        the session
+     * @param attributeNames the attribute names
+     * @return the values of the attributes found, by name
+     */
+    Map<String, Object> loadAttributes(RedisSession session, List<String> attributeNames) {
+        List<String> fields = new ArrayList<>(attributeNames.size());
+        for (String attributeName : attributeNames) {
+            fields.add(getSessionAttrNameKey(attributeName));
+        }
+        List<?> reply = scriptExecutor.execute(RedisSessionScripts.GET_FIELDS,
+                Collections.singletonList(getSessionKey(session.getId())), fields);
+        Map<String, Object> attributes = new HashMap<>();
+        for (int i = 0; reply != null && i < reply.size() && i < attributeNames.size(); i++) {
+            if (reply.get(i) != null) {
+                attributes.put(attributeNames.get(i), decodeStoredValue(fields.get(i), (byte[]) reply.get(i)));
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * Loads all the attributes of the session.
+     *
+     * @param session the session
+     * @return the attributes by name
+     */
+    Map<String, Object> loadAttributes(RedisSession session) {
+        Map<String, Object> attributes = new HashMap<>();
+        for (Map.Entry<String, Object> entry : readHash(getSessionKey(session.getId())).entrySet()) {
+            if (entry.getKey().startsWith(SESSION_ATTR_PREFIX)) {
+                attributes.put(entry.getKey().substring(SESSION_ATTR_PREFIX.length()), entry.getValue());
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * Reads all the fields of a session hash, through the script executor if any since the
+     * codec-encoded attribute values it writes cannot be read back by the {@link CacheApi}.
+     *
+     * @param key the session key
+     * @return the decoded entries
+     */
+    private Map<String, Object> readHash(String key) {
+        if (scriptExecutor == null) {
+            return sessionCache.hGetAll(key);
+        }
+        List<?> reply = scriptExecutor.execute(RedisSessionScripts.GET_ALL_FIELDS, Collections.singletonList(key),
+                Collections.emptyList());
+        return reply != null ? toEntries(reply) : Collections.<String, Object>emptyMap();
+    }
+
+    RedisScriptCall<List> findSessionCall(String id) {
+        return new RedisScriptCall<>(RedisSessionScripts.FIND_SESSION,
+                Arrays.asList(getSessionKey(id), getExpiredKey(id)), Collections.emptyList());
+    }
+
+    /**
+     * @param reply the reply of {@link #findSessionCall(String)}
+     * @return the decoded entries, empty if not found
+     */
+    Map<String, Object> entriesFound(List<?> reply) {
+        if (reply == null || reply.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        if (quota != null) {
+            quota.sample(reply);
+        }
+
+        return toEntries(reply);
+    }
+
+    /**
+     * @param reply the reply of a HGETALL
+     * @return the deserialized hash entries
+     */
+    private Map<String, Object> toEntries(List<?> reply) {
+        Map<String, Object> entries = new HashMap<>(reply.size());
+        for (int i = 0; i + 1 < reply.size(); i += 2) {
+            String field = new String((byte[]) reply.get(i), StandardCharsets.UTF_8);
+            entries.put(field, decodeStoredValue(field, (byte[]) reply.get(i + 1)));
+        }
+        return entries;
+    }
+
+    /**
+     * @param field the hash field
+     * @param value the hash value as stored in redis
+     * @return the decoded value
+     */
+    private Object decodeStoredValue(String field, byte[] value) {
+        if (attributeCodecs != null && field.startsWith(SESSION_ATTR_PREFIX) && attributeCodecs.isDecodable(value)) {
+            return attributeCodecs.decode(value);
+        }
+        return scriptExecutor.deserializeValue(value);
+    }
+
+    /**
+     * Attribute values are written as encoded by the {@link AttributeCodecs}, the other
+     * values are serialized by the script executor.
+     *
+     * @param field the hash field
+     * @param value the value to write
+     * @return the hash value as stored in redis
+     */
+    byte[] storedValue(String field, Object value) {
+        if (attributeCodecs != null && field.startsWith(SESSION_ATTR_PREFIX)) {
+            return attributeCodecs.encode(field.substring(SESSION_ATTR_PREFIX.length()), value);
+        }
+        return scriptExecutor.serializeValue(value);
+    }
+
+    /**
+     * Records when the session expires in the expiration index, or removes it from the
+     * index if it never expires. Does nothing if the index is not enabled.
+     *
+     * @param session the session whose expiration has just been refreshed
+     */
+    void indexExpiration(Session session) {
+        RedisScriptCall<Long> call = indexExpirationCall(session);
+        if (call != null) {
+            call.execute(scriptExecutor);
+        }
+    }
+
+    /**
+     * @param session the session
+     * @return the call updating the expiration index, or null if the index is disabled
+     */
+    RedisScriptCall<Long> indexExpirationCall(Session session) {
+        if (!expirationIndexEnabled) {
+            return null;
+        }
+        if (scriptExecutor == null)
+            throw new IllegalStateException("the expiration index requires a script executor");
+
+        return new RedisScriptCall<>(RedisSessionScripts.INDEX_EXPIRATION,
+                Collections.singletonList(getExpirationIndexKey(session.getId())),
+                Arrays.asList(expirationIndexScore(session), session.getId()));
+    }
+
+    /**
+     * @param session     the saved session
+     * @param fieldsToSet the hash fields set by the save
+     * @return the call updating the expiration index after the save, or null if the index
+     * is disabled, updated by the save itself, or the expiration not refreshed
+     */
+    RedisScriptCall<Long> savedExpirationCall(Session session, Map<String, Object> fieldsToSet) {
+        return fieldsToSet.isEmpty() || isExpirationIndexedOnSave() ? null : indexExpirationCall(session);
+    }
+
+    /**
+     * @return the expiration time of the session in milliseconds, <code>+inf</code> if it
+     * never expires, so that it is still counted, or -1 if it is deleted
+     */
+    private Object expirationIndexScore(Session session) {
+        long seconds = session.getMaxInactiveInterval().getSeconds();
+        if (seconds == 0) {
+            return -1;
+        }
+        return seconds > 0 ? clock.millis() + TimeUnit.SECONDS.toMillis(seconds) : "+inf";
+    }
+
+    /**
+     * @param ttl the time to live of an expires key
+     * @return true if the key exists, with or without an expiration
+     */
+    private static boolean isAlive(Long ttl) {
+        return ttl != null && (ttl > 0 || ttl == -1);
+    }
+
+    /**
+     * Removes a batch of expired sessions found in a shard of the expiration index. The
+     * expires key of each candidate is checked first, so a session which has been saved in
+     * the meantime is only rescheduled. The candidates are checked in one pipelined round
+     * trip, and the index entries rescheduled or removed in another.
+     *
+     * @param expirationIndexKey the key of the shard, see {@link #getExpirationIndexKeys()}
+     * @param batchSize          the maximum number of index entries to handle
+     * @param listener           notified of each removed session, may be null
+     * @return the number of index entries handled, less than the batch size if no more are due
+     */
+    int reapExpiredSessions(String expirationIndexKey, int batchSize, SessionExpiredListener<RedisSession> listener) {
+        if (scriptExecutor == null)
+            throw new IllegalStateException("the expiration index requires a script executor");
+
+        List<String> indexKey = Collections.singletonList(expirationIndexKey);
+        long now = clock.millis();
+        List<?> due = scriptExecutor.execute(RedisSessionScripts.FIND_EXPIRED, indexKey, Arrays.asList(now, batchSize));
+        if (due == null || due.isEmpty()) {
+            return 0;
+        }
+
+        List<String> ids = new ArrayList<>(due.size() / 2);
+        List<RedisScriptCall<?>> expireCalls = new ArrayList<>(due.size() / 2);
+        for (int i = 0; i + 1 < due.size(); i += 2) {
+            String id = new String((byte[]) due.get(i), StandardCharsets.UTF_8);
+            ids.add(id);
+            expireCalls.add(new RedisScriptCall<>(RedisSessionScripts.EXPIRE_SESSION,
+                    Arrays.asList(getSessionKey(id), getExpiredKey(id)), Collections.emptyList()));
+        }
+        List<Object> replies = scriptExecutor.executePipelined(expireCalls);
+
+        List<Object> handled = new ArrayList<>(due.size());
+        List<RedisScriptCall<?>> indexCalls = new ArrayList<>();
+        List<RedisSession> expired = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            String id = ids.get(i);
+            Object reply = replies.get(i);
+            if (reply instanceof RuntimeException)
+                throw (RuntimeException) reply;
+
+            if (reply instanceof Long) {
+                // saved in the meantime, the index entry is stale
+                long ttl = (Long) reply;
+                indexCalls.add(new RedisScriptCall<>(RedisSessionScripts.INDEX_EXPIRATION, indexKey,
+                        Arrays.<Object>asList(ttl == -1 ? "+inf" : now + ttl, id)));
+                continue;
+            }
+            handled.add(id);
+            handled.add(due.get(2 * i + 1));
+            List<?> entries = (List<?>) reply;
+            if (entries == null || entries.isEmpty()) {
+                continue;
+            }
+            RedisSession session = new RedisSession(sessionCache, id, toEntries(entries), this);
+            if (nearCache != null) {
+                nearCache.invalidate(id);
+            }
+            if (principalIndexEnabled && session.getIndexedPrincipalName() != null) {
+                indexCalls.add(principalIndexCall(session.getIndexedPrincipalName(), "", 0, Collections.singletonList(id)));
+            }
+            expired.add(session);
+        }
+        if (!handled.isEmpty()) {
+            indexCalls.add(new RedisScriptCall<>(RedisSessionScripts.REMOVE_EXPIRATIONS, indexKey, handled));
+        }
+        if (!indexCalls.isEmpty()) {
+            for (Object result : scriptExecutor.executePipelined(indexCalls)) {
+                if (result instanceof RuntimeException)
+                    throw (RuntimeException) result;
+            }
+        }
+        if (listener != null) {
+            for (RedisSession session : expired) {
+                listener.sessionExpired(session);
+            }
+        }
+        return due.size() / 2;
+    }
+
+    /**
+     * Deletes both keys of the session without loading it. With a script executor, the keys
+     * are unlinked in one atomic and non-blocking call. The expiration index entry is left
+     * to the reaper, which drops it as the keys are gone. The keys of the legacy layout are
+     * deleted as well while they are looked up.
+     */
+    @Override
+    public boolean deleteById(String id) {
+        if (id == null)
+            throw new IllegalArgumentException("id cannot be null");
+
+        if (scriptExecutor != null) {
+            return deleteSessions(Collections.singletonList(id)) > 0;
+        }
+
+        String expireKey = getExpiredKey(id);
+        boolean existed = Boolean.TRUE.equals(this.sessionCache.exists(expireKey));
+        // in different cluster slots in the legacy layout
+        this.sessionCache.del(expireKey);
+        this.sessionCache.del(getSessionKey(id));
+        if (isLegacyKeyFallback()) {
+            // in different cluster slots
+            String legacyExpiredKey = getLegacyExpiredKey(id);
+            existed |= Boolean.TRUE.equals(this.sessionCache.exists(legacyExpiredKey));
+            this.sessionCache.del(legacyExpiredKey);
+            this.sessionCache.del(getLegacySessionKey(id));
+        }
+        return existed;
+    }
+
+    /**
+     * Deletes the keys of the sessions without loading them. With a script executor, a
+     * single call is made for all the sessions, or one per cluster slot in the hash tagged
+     * layout.
+     */
+    @Override
+    public int deleteByIds(Collection<String> ids) {
+        if (ids == null)
+            throw new IllegalArgumentException("ids cannot be null");
+        if (scriptExecutor == null) {
+            return FindByPrincipalNameSessionManager.super.deleteByIds(ids);
+        }
+
+        int deleted = 0;
+        for (List<String> slotIds : groupBySlot(ids)) {
+            deleted += deleteSessions(slotIds);
+        }
+        return deleted;
+    }
 
     /**
-     * The key in the Hash representing
-     * {@link Session#getMaxInactiveInterval()}
-     * .
+     * @param ids session ids
+     * @return the ids grouped by cluster slot in the hash tagged layout, all together otherwise
      */
-    static final String MAX_INACTIVE_ATTR = "maxInactiveInterval";
+    Collection<List<String>> groupBySlot(Collection<String> ids) {
+        if (keyLayout != RedisKeyLayout.HASH_TAGGED) {
+            return Collections.singletonList(new ArrayList<>(ids));
+        }
+        Map<Integer, List<String>> idsBySlot = new HashMap<>();
+        for (String id : ids) {
+            idsBySlot.computeIfAbsent(RedisClusterSlots.slot(id), slot -> new ArrayList<>()).add(id);
+        }
+        return idsBySlot.values();
+    }
+
+    private int deleteSessions(Collection<String> ids) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        if (!isLegacyKeyFallback()) {
+            Long existed = deleteSessionsCall(ids).execute(scriptExecutor);
+            return existed != null ? existed.intValue() : 0;
+        }
+
+        List<RedisScriptCall<?>> calls = new ArrayList<>();
+        calls.add(deleteSessionsCall(ids));
+        calls.addAll(deleteLegacySessionsCalls(ids));
+        List<Object> results = scriptExecutor.executePipelined(calls);
+        return sessionsDeleted(results, 0, 1) + sessionsDeleted(results, 1, 1 + ids.size());
+    }
 
     /**
-     * The key in the Hash representing
-     * {@link Session#getLastAccessedTime()}.
+     * @return true if the legacy keys of the sessions are looked up and deleted as well
      */
-    static final String LAST_ACCESSED_ATTR = "lastAccessedTime";
+    boolean isLegacyKeyFallback() {
+        return keyLayout == RedisKeyLayout.HASH_TAGGED && legacyKeyFallback;
+    }
 
     /**
-     * The prefix of the key used for session attributes. The suffix is the name of
-     * the session attribute. For example, if the session contained an attribute named
-     * attributeName, then there would be an entry in the hash named
-     * sessionAttr:attributeName that mapped to its value.
+     * Returns the calls unlinking the keys of the sessions in the legacy layout, one per key
+     * since they are in different cluster slots. The calls on the expires keys, whose
+     * results count the sessions which existed, come first.
+     *
+     * @param ids the session ids
+     * @return the calls, two per session
      */
-    static final String SESSION_ATTR_PREFIX = "sessionAttr:";
+    List<RedisScriptCall<Long>> deleteLegacySessionsCalls(Collection<String> ids) {
+        List<RedisScriptCall<Long>> calls = new ArrayList<>(ids.size() * 2);
+        for (String id : ids) {
+            calls.add(new RedisScriptCall<>(RedisSessionScripts.UNLINK_KEYS,
+                    Collections.singletonList(getLegacyExpiredKey(id)), Collections.emptyList()));
+        }
+        for (String id : ids) {
+            calls.add(new RedisScriptCall<>(RedisSessionScripts.UNLINK_KEYS,
+                    Collections.singletonList(getLegacySessionKey(id)), Collections.emptyList()));
+        }
+        return calls;
+    }
 
     /**
-     * The namespace for every key used by Spring Session in Redis.
+     * @param results the results of pipelined calls
+     * @param from    the index of the first deleting call, inclusive
+     * @param to      the index of the last deleting call, exclusive
+     * @return the number of sessions which existed
      */
-    private String namespace = DEFAULT_NAMESPACE + ":";
+    private static int sessionsDeleted(List<Object> results, int from, int to) {
+        int deleted = 0;
+        for (int i = from; i < to; i++) {
+            Object result = results.get(i);
+            if (result instanceof RuntimeException)
+                throw (RuntimeException) result;
 
-    private CacheApi<String, Object> sessionCache;
+            deleted += result != null ? ((Long) result).intValue() : 0;
+        }
+        return deleted;
+    }
 
     /**
-     * If non-null, this value is used to override the default value for
-     * {@link RedisSession#setMaxInactiveInterval}.
+     * Removes the sessions from the near cache of this node, and returns the call deleting
+     * their keys, which returns the number of sessions which existed.
+     *
+     * @param ids the session ids, in the same cluster slot in the hash tagged layout
      */
-    private Duration defaultMaxInactiveInterval = Duration.ofSeconds(DEFAULT_MAX_INACTIVE_INTERVAL_SECONDS);
-
-    protected SessionIdGenerator sessionIdGenerator;
+    RedisScriptCall<Long> deleteSessionsCall(Collection<String> ids) {
+        List<String> keys = new ArrayList<>(ids.size() * 2);
+        List<Object> args = new ArrayList<>(ids.size() + 1);
+        args.add(nearCache != null ? getInvalidationChannel() : "");
+        for (String id : ids) {
+            keys.add(getSessionKey(id));
+            keys.add(getExpiredKey(id));
+            if (nearCache != null) {
+                nearCache.invalidate(id);
+                args.add(nearCache.invalidationMessage(id));
+            }
+        }
+        return new RedisScriptCall<>(RedisSessionScripts.DELETE_SESSIONS, keys, args);
+    }
 
-    protected Class<? extends SessionIdGenerator> sessionIdGeneratorClass;
+    /**
+     * Adds the session to the index of its new principal name before the name is written,
+     * and deletes the sessions evicted to make room. Does nothing if the index is not
+     * enabled or if the principal name is not set by the write.
+     * <p>
+     * The index of a principal with the maximum number of sessions is pruned before the
+     * policy is applied, since the ids of the sessions deleted by id are left in it.
+     *
+     * @param session the session
+     * @param write   the changes about to be written
+     * @return false if the session is rejected, the principal having too many sessions
+     */
+    boolean bindPrincipal(RedisSession session, RedisSession.PendingWrite write) {
+        RedisScriptCall<List> call = bindPrincipalCall(session, write, false);
+        if (call == null) {
+            return true;
+        }
+        List<?> reply = call.execute(scriptExecutor);
+        if (isPrincipalFull(reply)) {
+            prunePrincipalIndex(write.principalName);
+            reply = bindPrincipalCall(session, write, true).execute(scriptExecutor);
+        }
+        List<String> evicted = principalBound(write, reply);
+        if (evicted == null) {
+            return false;
+        }
+        if (!evicted.isEmpty()) {
+            deleteByIds(evicted);
+        }
+        return true;
+    }
 
-    RedisSessionExpirationPolicy redisSessionExpirationPolicy;
+    /**
+     * @param session     the session
+     * @param write       the changes about to be written
+     * @param applyPolicy whether to apply the {@link RedisMaxSessionsPolicy} if the principal
+     *                    has the maximum number of sessions, rather than reject the session
+     * @return the call adding the session to the index of its new principal name, or null if
+     * the index is disabled or the principal name is not set by the write
+     */
+    RedisScriptCall<List> bindPrincipalCall(RedisSession session, RedisSession.PendingWrite write, boolean applyPolicy) {
+        if (!principalIndexEnabled || !write.principalNameChanged || write.principalName == null) {
+            return null;
+        }
+        if (scriptExecutor == null)
+            throw new IllegalStateException("the principal index requires a script executor");
 
-    @SuppressWarnings("unused")
-    public CacheApi getSessionCache() {
-        return sessionCache;
+        return new RedisScriptCall<>(RedisSessionScripts.BIND_PRINCIPAL,
+                Collections.singletonList(getPrincipalIndexKey(write.principalName)),
+                Arrays.asList(session.getId(), principalIndexScore(session), clock.millis(), maxSessionsPerPrincipal,
+                        !applyPolicy || maxSessionsPolicy == RedisMaxSessionsPolicy.REJECT ? "1" : "0"));
     }
 
-    @Override
-    public void setDefaultMaxInactiveInterval(Duration defaultMaxInactiveInterval) {
-        this.defaultMaxInactiveInterval = defaultMaxInactiveInterval;
+    /**
+     * @param reply the reply of {@link #bindPrincipalCall(RedisSession, RedisSession.PendingWrite, boolean)}
+     * @return true if the session was rejected, the principal having the maximum number of sessions
+     */
+    boolean isPrincipalFull(List<?> reply) {
+        return reply == null || reply.isEmpty() || ((Number) reply.get(0)).longValue() == 0;
     }
 
-    public void setRedisKeyNamespace(String namespace) {
-        if (namespace == null || namespace.trim().isEmpty())
-            throw new IllegalArgumentException("namespace cannot be null or empty");
+    /**
+     * Drops the ids of the sessions which no longer exist from the index of the principal,
+     * checking them all in one pipelined round trip without loading the sessions.
+     *
+     * @param principalName the principal name
+     */
+    void prunePrincipalIndex(String principalName) {
+        List<String> ids = findPrincipalSessionIds(principalName);
+        List<RedisScriptCall<?>> calls = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            calls.add(new RedisScriptCall<>(RedisSessionScripts.EXISTS_KEYS,
+                    Collections.singletonList(getExpiredKey(id)), Collections.emptyList()));
+        }
+        List<Object> results = calls.isEmpty() ? Collections.emptyList() : scriptExecutor.executePipelined(calls);
+        List<String> staleIds = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            Object result = results.get(i);
+            if (result instanceof RuntimeException)
+                throw (RuntimeException) result;
 
-        this.namespace = namespace.trim() + ":";
+            if (result == null || (Long) result == 0) {
+                staleIds.add(ids.get(i));
+            }
+        }
+        for (RedisScriptCall<Long> call : principalRemovalCalls(principalName, staleIds)) {
+            call.execute(scriptExecutor);
+        }
     }
 
     /**
-     * Gets the Hash key for this session by prefixing it appropriately.
-     *
-     * @param sessionId the session id
-     * @return the Hash key for this session by prefixing it appropriately.
+     * @param write the changes about to be written
+     * @param reply the reply of {@link #bindPrincipalCall(RedisSession, RedisSession.PendingWrite, boolean)}
+     *              applying the policy, or not if the principal was not full
+     * @return the ids of the sessions to delete to make room, or null if the session is rejected
      */
-    String getSessionKey(String sessionId) {
-        return this.namespace + "sessions:" + sessionId;
+    List<String> principalBound(RedisSession.PendingWrite write, List<?> reply) {
+        if (isPrincipalFull(reply)) {
+            sessionsRejected.increment();
+            logger.info("too many sessions, rejected, principal:{}", write.principalName);
+            return null;
+        }
+        if (reply.size() == 1) {
+            return Collections.emptyList();
+        }
+        List<String> evicted = new ArrayList<>(reply.size() - 1);
+        for (int i = 1; i < reply.size(); i++) {
+            evicted.add(new String((byte[]) reply.get(i), StandardCharsets.UTF_8));
+        }
+        sessionsEvicted.add(evicted.size());
+        logger.info("too many sessions, evicting {}, principal:{}", evicted.size(), write.principalName);
+        return evicted;
     }
 
-    String getExpiredKey(String sessionId) {
-        return getExpiredKeyPrefix() + sessionId;
+    /**
+     * Moves the session added to the index of its new principal name to its new id, if the
+     * id of the new session turned out to be taken. Does nothing if the session was not added.
+     *
+     * @param session the session, with its new id
+     * @param write   the changes being written
+     * @param oldId   the id the session was added with
+     */
+    void rebindPrincipal(RedisSession session, RedisSession.PendingWrite write, String oldId) {
+        RedisScriptCall<Long> call = principalRebindCall(session, write, oldId);
+        if (call != null) {
+            call.execute(scriptExecutor);
+        }
     }
 
-    private String getExpiredKeyPrefix() {
-        return this.namespace + "sessions:" + "expires:";
+    /**
+     * @return the call moving the session to its new id in the index of its new principal
+     * name, or null if the session was not added
+     * @see #rebindPrincipal(RedisSession, RedisSession.PendingWrite, String)
+     */
+    RedisScriptCall<Long> principalRebindCall(RedisSession session, RedisSession.PendingWrite write, String oldId) {
+        if (bindPrincipalCall(session, write, false) == null) {
+            return null;
+        }
+        return principalIndexCall(write.principalName, session.getId(), principalIndexScore(session), Collections.singletonList(oldId));
     }
 
     /**
-     * Gets the key for the specified session attribute.
+     * Updates the principal index after the session has been written. Does nothing if the
+     * index is not enabled.
      *
-     * @param attributeName the attribute name
-     * @return the attribute key name
+     * @param session the session, still with the principal name it is indexed under
+     * @param write   the written changes
      */
-    static String getSessionAttrNameKey(String attributeName) {
-        return SESSION_ATTR_PREFIX + attributeName;
+    void indexPrincipal(RedisSession session, RedisSession.PendingWrite write) {
+        RedisScriptCall<Long> call = principalIndexCall(session, write);
+        if (call != null) {
+            call.execute(scriptExecutor);
+        }
     }
 
-    public RedisSessionManager(CacheApi<String, Object> sessionCache) {
-        if (sessionCache == null)
-            throw new IllegalArgumentException("sessionCache cannot be null");
+    /**
+     * @param session the session, still with the principal name it is indexed under
+     * @param write   the written changes
+     * @return the call removing the session from the index of its previous principal name if
+     * changed, or else updating its expiration time in the index if refreshed; null if none
+     */
+    RedisScriptCall<Long> principalIndexCall(RedisSession session, RedisSession.PendingWrite write) {
+        if (!principalIndexEnabled) {
+            return null;
+        }
+        if (scriptExecutor == null)
+            throw new IllegalStateException("the principal index requires a script executor");
 
-        this.sessionCache = sessionCache;
-        this.redisSessionExpirationPolicy = new RedisSessionExpirationPolicy();
+        String indexedPrincipalName = session.getIndexedPrincipalName();
+        if (indexedPrincipalName == null || (!write.principalNameChanged && write.fieldsToSet.isEmpty())) {
+            return null;
+        }
+        if (write.principalNameChanged) {
+            return principalIndexCall(indexedPrincipalName, "", 0, Collections.singletonList(session.getId()));
+        }
+        return new RedisScriptCall<>(RedisSessionScripts.TOUCH_PRINCIPAL, Collections.singletonList(getPrincipalIndexKey(indexedPrincipalName)),
+                Arrays.asList(principalIndexScore(session), session.getId()));
     }
 
-    @Override
-    public RedisSession createSession(String sessionId, Duration maxInactiveInterval) {
-        if (sessionId == null || sessionId.isEmpty())
-            throw new IllegalArgumentException("session id can not be empty");
-        // TODOs 限制最大会话数量
+    /**
+     * Replaces the old id of a renamed session by the new one in the principal index. Does
+     * nothing if the index is not enabled.
+     *
+     * @param session the session, with its new id
+     * @param oldId   the old id
+     */
+    void reindexPrincipal(RedisSession session, String oldId) {
+        RedisScriptCall<Long> call = principalRenameCall(session, oldId);
+        if (call != null) {
+            call.execute(scriptExecutor);
+        }
+    }
 
-        return new RedisSession(sessionCache, sessionId, maxInactiveInterval, this);
+    /**
+     * @param session the session, with its new id
+     * @param oldId   the old id
+     * @return the call replacing the old id by the new one in the principal index, or null
+     * if the index is disabled or the session has no principal name
+     */
+    RedisScriptCall<Long> principalRenameCall(RedisSession session, String oldId) {
+        if (!principalIndexEnabled || session.getIndexedPrincipalName() == null) {
+            return null;
+        }
+        return principalIndexCall(session.getIndexedPrincipalName(), session.getId(), principalIndexScore(session),
+                Collections.singletonList(oldId));
     }
 
-    @Override
-    public RedisSession createSession(String sessionId) {
-        return createSession(sessionId, defaultMaxInactiveInterval);
+    private RedisScriptCall<Long> principalIndexCall(String principalName, String idToAdd, Object score, Collection<String> idsToRemove) {
+        List<Object> args = new ArrayList<>(2 + idsToRemove.size());
+        args.add(idToAdd);
+        args.add(score);
+        args.addAll(idsToRemove);
+        return new RedisScriptCall<>(RedisSessionScripts.INDEX_PRINCIPAL,
+                Collections.singletonList(getPrincipalIndexKey(principalName)), args);
     }
 
-    @Override
-    public RedisSession createSession() {
-        return createSession(generateSessionId());
+    /**
+     * @param principalName the principal name
+     * @param ids           the session ids to remove from the index of the principal
+     * @return the calls removing the ids, at most {@value #PRINCIPAL_INDEX_REMOVALS_PER_CALL}
+     * each since the script unpacks them onto the lua stack, none if there is no id
+     */
+    private List<RedisScriptCall<Long>> principalRemovalCalls(String principalName, List<String> ids) {
+        List<RedisScriptCall<Long>> calls = new ArrayList<>();
+        for (int from = 0; from < ids.size(); from += PRINCIPAL_INDEX_REMOVALS_PER_CALL) {
+            List<String> chunk = ids.subList(from, Math.min(ids.size(), from + PRINCIPAL_INDEX_REMOVALS_PER_CALL));
+            calls.add(principalIndexCall(principalName, "", 0, chunk));
+        }
+        return calls;
+    }
+
+    /**
+     * @return the expiration time of the session if its expiration is refreshed now, an
+     * upper bound otherwise, or <code>+inf</code> if the session never expires, so that it
+     * is not taken for an expired one
+     */
+    private Object principalIndexScore(Session session) {
+        long seconds = session.getMaxInactiveInterval().getSeconds();
+        return seconds > 0 ? clock.millis() + TimeUnit.SECONDS.toMillis(seconds) : "+inf";
+    }
+
+    /**
+     * @param principalName the principal name
+     * @return the session ids in the index of the principal
+     */
+    private List<String> findPrincipalSessionIds(String principalName) {
+        if (principalName == null)
+            throw new IllegalArgumentException("principalName cannot be null");
+        if (!principalIndexEnabled || scriptExecutor == null)
+            throw new IllegalStateException("the principal index is not enabled");
+
+        List<?> members = scriptExecutor.execute(RedisSessionScripts.FIND_PRINCIPAL_SESSIONS,
+                Collections.singletonList(getPrincipalIndexKey(principalName)), Collections.emptyList());
+        if (members == null || members.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> ids = new ArrayList<>(members.size());
+        for (Object member : members) {
+            ids.add(new String((byte[]) member, StandardCharsets.UTF_8));
+        }
+        return ids;
     }
 
+    /**
+     * Loads the sessions in the index of the principal in one pipelined round trip. The ids
+     * of the sessions which no longer exist, or whose principal name has changed, are
+     * removed from the index.
+     */
     @Override
-    public RedisSession findById(String id) {
-        if (sessionCache.ttl(getExpiredKey(id)) <= 0) {
-            return null;
+    public Map<String, RedisSession> findByPrincipalName(String principalName) {
+        List<String> ids = findPrincipalSessionIds(principalName);
+        if (ids.isEmpty()) {
+            return Collections.emptyMap();
         }
 
-        String key = getSessionKey(id);
-        Map<String, Object> entries = sessionCache.hGetAll(key);
-        if (entries.isEmpty()) {
-            return null;
+        List<RedisScriptCall<?>> calls = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            calls.add(findSessionCall(id));
         }
+        long stamp = nearCacheStamp();
+        List<Object> replies = scriptExecutor.executePipelined(calls);
+        Map<String, RedisSession> sessions = new LinkedHashMap<>(ids.size());
+        List<String> staleIds = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            Object reply = replies.get(i);
+            if (reply instanceof RuntimeException)
+                throw (RuntimeException) reply;
 
-        return new RedisSession(sessionCache, id, entries, this);
+            RedisSession session = sessionFound(ids.get(i), (List<?>) reply, stamp, false);
+            if (session != null && principalName.equals(session.getIndexedPrincipalName())) {
+                sessions.put(session.getId(), session);
+            } else {
+                staleIds.add(ids.get(i));
+            }
+        }
+        for (RedisScriptCall<Long> call : principalRemovalCalls(principalName, staleIds)) {
+            call.execute(scriptExecutor);
+        }
+        return sessions;
     }
 
+    /**
+     * Deletes the sessions in the index of the principal and the index itself in one
+     * pipelined round trip, without loading the sessions.
+     */
     @Override
-    public void deleteById(String id) {
-        RedisSession session = findById(id);
-        if (session == null) {
+    public int deleteByPrincipalName(String principalName) {
+        List<String> ids = findPrincipalSessionIds(principalName);
+        if (ids.isEmpty()) {
+            return 0;
+        }
+
+        List<RedisScriptCall<?>> calls = new ArrayList<>();
+        for (List<String> slotIds : groupBySlot(ids)) {
+            calls.add(deleteSessionsCall(slotIds));
+        }
+        int sessionCalls = calls.size();
+        if (isLegacyKeyFallback()) {
+            calls.addAll(deleteLegacySessionsCalls(ids));
+        }
+        calls.addAll(principalRemovalCalls(principalName, ids));
+        List<Object> results = scriptExecutor.executePipelined(calls);
+        int deleted = sessionsDeleted(results, 0, sessionCalls);
+        if (isLegacyKeyFallback()) {
+            deleted += sessionsDeleted(results, sessionCalls, sessionCalls + ids.size());
+        }
+        return deleted;
+    }
+
+    /**
+     * Removes the session from the near cache of this node and tells the other nodes to
+     * do the same. Does nothing without a near cache.
+     *
+     * @param id the session id
+     */
+    void invalidateNearCache(String id) {
+        if (nearCache == null) {
             return;
         }
+        nearCache.invalidate(id);
+        scriptExecutor.execute(RedisSessionScripts.PUBLISH, Collections.singletonList(getSessionKey(id)),
+                Arrays.asList(getInvalidationChannel(), nearCache.invalidationMessage(id)));
+    }
 
-        String expireKey = getExpiredKey(session.getId());
-        this.sessionCache.del(expireKey);
+    /**
+     * Updates the near cache after the session has been saved.
+     *
+     * @param session the saved session
+     * @param stamp   the near cache stamp taken before the save
+     */
+    void onSessionSaved(RedisSession session, long stamp) {
+        if (nearCache == null) {
+            return;
+        }
+        if (session.isFullyLoaded()) {
+            Map<String, Object> entries = session.getWrittenEntries();
+            Map<String, byte[]> stored = new HashMap<>(entries.size());
+            for (Map.Entry<String, Object> entry : entries.entrySet()) {
+                stored.put(entry.getKey(), storedValue(entry.getKey(), entry.getValue()));
+            }
+            nearCache.put(session.getId(), stored, session.getLastAccessedTime().plus(session.getMaxInactiveInterval()), stamp);
+        } else {
+            nearCache.invalidate(session.getId());
+        }
     }
 
     @Override
@@ -206,13 +1841,23 @@ public class RedisSessionManager implements SessionManager<RedisSession> {
 
     }
 
+    @Override
+    public void save(RedisSession session) {
+        session.commit();
+    }
+
+    /**
+     * Changes the id of the session to a generated one. In the hash tagged layout, the id
+     * of a stored session is generated in the same cluster slot, so that both keys can be
+     * renamed by a single script in a redis cluster.
+     */
     @Override
     public String changeSessionId(RedisSession session) {
         int maxTryTimes = 0;
         do {
             maxTryTimes++;
-            String newId = generateSessionId();
-            if (changeSessionId(session, newId)) {
+            String newId = generateSessionId(session);
+            if (newId != null && changeSessionId(session, newId)) {
                 return newId;
             }
         } while (maxTryTimes <= 3);
@@ -221,6 +1866,24 @@ public class RedisSessionManager implements SessionManager<RedisSession> {
         throw new IllegalStateException("unfortunately, this time does not generate a valid session id, may try again");
     }
 
+    /**
+     * @param session the session whose id is changed
+     * @return a new id for the session, in the same cluster slot in the hash tagged layout,
+     * or null if none could be found
+     */
+    String generateSessionId(RedisSession session) {
+        String newId = generateSessionId();
+        if (keyLayout == RedisKeyLayout.HASH_TAGGED && !session.isNew()) {
+            newId = RedisClusterSlots.withSlotOf(newId, session.getId());
+        }
+        return newId;
+    }
+
+    /**
+     * Changes the id of the session, unless the new id is taken. With a script executor,
+     * both keys are renamed in one atomic script, which fails if the new id is taken; in a
+     * redis cluster the new id must then be in the same slot, see {@link #changeSessionId(RedisSession)}.
+     */
     @Override
     public boolean changeSessionId(RedisSession session, String newId) {
         if (session == null)
@@ -228,6 +1891,10 @@ public class RedisSessionManager implements SessionManager<RedisSession> {
         if (newId == null || newId.trim().isEmpty())
             throw new IllegalArgumentException("the new session id cannot be empty");
 
+        if (scriptExecutor != null) {
+            return session.changeIdIfAbsent(newId);
+        }
+
         // check if exists and change it, attention this is not thread-safe.
         boolean exists = sessionCache.exists(getSessionKey(newId));
         if (!exists) {
@@ -238,31 +1905,82 @@ public class RedisSessionManager implements SessionManager<RedisSession> {
         return false;
     }
 
+    /**
+     * Renames both keys of a stored session with a single atomic script. The expiration
+     * index entry of the old id is left to the reaper, which drops it as the keys are gone.
+     *
+     * @param session the session, still with its current id
+     * @param newId   the new id
+     * @return false if a session with the new id exists
+     * @throws SessionException if the session no longer exists
+     */
+    boolean renameSession(RedisSession session, String newId) {
+        return sessionRenamed(session, renameSessionCall(session, newId).execute(scriptExecutor));
+    }
+
+    /**
+     * Removes the session from the near cache of this node, and returns the call renaming
+     * its keys.
+     */
+    RedisScriptCall<Long> renameSessionCall(RedisSession session, String newId) {
+        String id = session.getId();
+        if (nearCache != null) {
+            nearCache.invalidate(id);
+        }
+        return new RedisScriptCall<>(RedisSessionScripts.RENAME_SESSION,
+                Arrays.asList(getSessionKey(id), getExpiredKey(id), getSessionKey(newId), getExpiredKey(newId)),
+                Arrays.asList(nearCache != null ? getInvalidationChannel() : "",
+                        nearCache != null ? nearCache.invalidationMessage(id) : ""));
+    }
+
+    /**
+     * @param session the session, still with its current id
+     * @param result  the result of {@link #renameSessionCall(RedisSession, String)}
+     * @return false if a session with the new id exists
+     * @throws SessionException if the session no longer exists
+     */
+    boolean sessionRenamed(RedisSession session, Long result) {
+        if (result == null || result < 0)
+            throw new SessionException("the session no longer exists: " + session.getId());
+
+        return result > 0;
+    }
+
     /**
      * Generate and return a new session identifier.
+     * <p>
+     * The identifier is not checked against the existing sessions, a new session claims
+     * its identifier when it is first written, see {@link #regenerateSessionId(RedisSession, int)}.
      *
      * @return a new session id
      */
     protected String generateSessionId() {
-        String result = null;
-
         SessionIdGenerator sessionIdGenerator = getSessionIdGenerator();
         if (sessionIdGenerator == null) {
             sessionIdGenerator = new StandardSessionIdGenerator();
         }
-        int tryTimes = 0;
-        do {
-            if (result != null) {
-                // should rarely be here
-                logger.warn("duplicated session id!!");
-                if (++tryTimes >= 10) {
-                    throw new SessionException("generate duplicated session id too many times!!");
-                }
-            }
-            result = sessionIdGenerator.generateSessionId();
-        } while (sessionCache.exists(result));
+        return sessionIdGenerator.generateSessionId();
+    }
+
+    /**
+     * Returns a new identifier for a new session whose identifier is already taken.
+     *
+     * @param session    the new session which could not be written
+     * @param collisions the number of collisions so far for this session
+     * @return a new session id
+     * @throws SessionException if the identifier was given by the caller, or if too many
+     *                          identifiers were taken
+     */
+    String regenerateSessionId(RedisSession session, int collisions) {
+        if (!session.isIdGenerated())
+            throw new SessionException("session id already exists: " + session.getId());
 
-        return result;
+        // should rarely be here
+        logger.warn("duplicated session id!!");
+        if (collisions >= 10)
+            throw new SessionException("generate duplicated session id too many times!!");
+
+        return generateSessionId();
     }
 
     public void saveChangeSessionId(String sessionId, String originalSessionId) {
@@ -271,6 +1989,93 @@ public class RedisSessionManager implements SessionManager<RedisSession> {
         sessionCache.rename(originalExpiredKey, expiredKey);
     }
 
+    /**
+     * Writes the changed fields of the session and refreshes both expirations with a single
+     * atomic script. If the max inactive interval is not positive, both keys are deleted instead.
+     *
+     * @param session the session
+     * @param write   the hash fields to set and to delete
+     * @param claim   whether to claim the session id, i.e. write nothing if a session with
+     *                the same id already exists
+     * @return false if the session id could not be claimed
+     */
+    boolean saveDelta(RedisSession session, RedisSession.PendingWrite write, boolean claim) {
+        RedisScriptCall<Long> call = saveDeltaCall(session, write, claim);
+        RedisScriptCall<Long> indexCall = savedExpirationCall(session, write.fieldsToSet);
+        Long result;
+        if (indexCall != null && !claim && scriptExecutor.isPipelining()) {
+            // a claim must succeed before the id is indexed
+            List<Object> results = scriptExecutor.executePipelined(Arrays.<RedisScriptCall<?>>asList(call, indexCall));
+            for (Object reply : results) {
+                if (reply instanceof RuntimeException)
+                    throw (RuntimeException) reply;
+            }
+            result = (Long) results.get(0);
+            indexCall = null;
+        } else {
+            result = call.execute(scriptExecutor);
+        }
+        if (result != null && result < 0) {
+            return false;
+        }
+        if (indexCall != null) {
+            indexCall.execute(scriptExecutor);
+        }
+        return true;
+    }
+
+    /**
+     * Also sets the size of the attribute values written, recorded once the write succeeds,
+     * see {@link #recordBytesChanged(RedisSession.PendingWrite)}.
+     *
+     * @return the call of the script writing the changed fields, which returns -1 if the
+     * session id could not be claimed
+     * @see #saveDelta(RedisSession, RedisSession.PendingWrite, boolean)
+     */
+    RedisScriptCall<Long> saveDeltaCall(RedisSession session, RedisSession.PendingWrite write, boolean claim) {
+        Map<String, Object> fieldsToSet = write.fieldsToSet;
+        List<String> fieldsToDelete = write.fieldsToDelete;
+        long sessionExpireInSeconds = session.getMaxInactiveInterval().getSeconds();
+        long fiveMinutesAfterExpires = sessionExpireInSeconds + TimeUnit.MINUTES.toSeconds(5);
+
+        List<Object> args = new ArrayList<>(8 + fieldsToDelete.size() + fieldsToSet.size() * 2);
+        args.add(sessionExpireInSeconds);
+        args.add(fiveMinutesAfterExpires);
+        args.add(nearCache != null ? getInvalidationChannel() : "");
+        args.add(nearCache != null ? nearCache.invalidationMessage(session.getId()) : "");
+        args.add(claim ? "1" : "0");
+        boolean indexed = isExpirationIndexedOnSave();
+        args.add(indexed ? expirationIndexScore(session) : "");
+        args.add(indexed ? session.getId() : "");
+        args.add(fieldsToDelete.size());
+        args.addAll(fieldsToDelete);
+        long bytesChanged = 0;
+        for (Map.Entry<String, Object> entry : fieldsToSet.entrySet()) {
+            byte[] value = storedValue(entry.getKey(), entry.getValue());
+            args.add(entry.getKey());
+            args.add(value);
+            if (entry.getKey().startsWith(SESSION_ATTR_PREFIX)) {
+                bytesChanged += value.length;
+            }
+        }
+        write.bytesChanged = bytesChanged;
+        List<String> keys = indexed
+                ? Arrays.asList(getSessionKey(session.getId()), getExpiredKey(session.getId()), getExpirationIndexKey(session.getId()))
+                : Arrays.asList(getSessionKey(session.getId()), getExpiredKey(session.getId()));
+        return new RedisScriptCall<>(RedisSessionScripts.SAVE_SESSION, keys, args);
+    }
+
+    /**
+     * Records the size of the attribute values of a successful write to the metrics, if set.
+     *
+     * @param write the written changes
+     */
+    void recordBytesChanged(RedisSession.PendingWrite write) {
+        if (metrics != null) {
+            metrics.recordBytesChanged(write.bytesChanged);
+        }
+    }
+
     final class RedisSessionExpirationPolicy {
 
         public void onExpirationUpdated(Session session) {
@@ -279,6 +2084,12 @@ public class RedisSessionManager implements SessionManager<RedisSession> {
             long fiveMinutesAfterExpires = sessionExpireInSeconds + TimeUnit.MINUTES.toSeconds(5);
             if (sessionExpireInSeconds == 0) {
                 sessionCache.del(sessionKey);
+            } else if (sessionExpireInSeconds < 0) {
+                // never expires, recreate the expires key without a time to live; the
+                // cache api cannot persist the session key, so it gets the longest one
+                sessionCache.del(sessionKey);
+                sessionCache.append(sessionKey, "");
+                sessionCache.expire(getSessionKey(session.getId()), Integer.MAX_VALUE);
             } else {
                 // define 30 mins
                 sessionCache.append(sessionKey, "");
@@ -287,6 +2098,7 @@ public class RedisSessionManager implements SessionManager<RedisSession> {
                 // define 35 mins
                 sessionCache.expire(getSessionKey(session.getId()), fiveMinutesAfterExpires);
             }
+            indexExpiration(session);
 
         }
 
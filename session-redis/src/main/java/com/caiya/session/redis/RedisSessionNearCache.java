@@ -0,0 +1,278 @@
+package com.caiya.session.redis;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded in-process cache of the sessions loaded by a {@link RedisSessionManager}, so
+ * that a node serving the same session again shortly does not go to redis.
+ * <p>
+ * Entries are evicted least recently used first when the cache is full, after the
+ * configured time to live, and never live longer than the session itself may. Every save
+ * publishes an invalidation message on the channel of the manager
+ * ({@link RedisSessionManager#getInvalidationChannel()}); each node must subscribe to it
+ * and pass the messages to {@link #onInvalidationMessage(String)}, e.g. with a
+ * {@link JedisClusterNearCacheSubscriber}.
+ * <p>
+ * Sessions are cached in their stored form, as the hash values read from or written to
+ * redis, and every hit decodes its own copy of the attributes, so that the requests
+ * served by the same node never share an attribute value. A load which raced with an
+ * invalidation of the same session is not cached: the loader takes a {@link #stamp()}
+ * before reading redis and passes it to {@link #put(String, Map, Instant, long)}.
+ * <p>
+ * The messages published while a node is not subscribed are lost: the subscriber calls
+ * {@link #onUnsubscribed()} when its subscription is lost, which clears the cache and
+ * disables it, and {@link #onSubscribed()} once subscribed again.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public class RedisSessionNearCache {
+
+    private static final char MESSAGE_SEPARATOR = ':';
+
+    private final int maximumSize;
+
+    private final Duration timeToLive;
+
+    /**
+     * Identifies this cache in the invalidation messages, so that it ignores its own ones.
+     */
+    private final String nodeId = UUID.randomUUID().toString();
+
+    /**
+     * Guarded by itself.
+     */
+    private final LinkedHashMap<String, CachedSession> sessions;
+
+    /**
+     * The sequence number of the last invalidation, guarded by {@link #sessions}.
+     */
+    private long invalidationSequence;
+
+    /**
+     * The sequence number of the last invalidation of the recently invalidated sessions,
+     * guarded by {@link #sessions}. Bounded like the sessions.
+     */
+    private final LinkedHashMap<String, Long> recentInvalidations;
+
+    /**
+     * The highest sequence number dropped from {@link #recentInvalidations}, guarded by
+     * {@link #sessions}. A stamp older than it cannot be checked and is rejected.
+     */
+    private long forgottenInvalidation;
+
+    /**
+     * Whether the invalidation messages are received, guarded by {@link #sessions}.
+     * Nothing is cached while they are not.
+     */
+    private boolean subscribed = true;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * Creates a new instance.
+     *
+     * @param maximumSize the maximum number of cached sessions
+     * @param timeToLive  how long a session is cached at most
+     */
+    public RedisSessionNearCache(int maximumSize, Duration timeToLive) {
+        if (maximumSize <= 0)
+            throw new IllegalArgumentException("maximumSize must be positive");
+        if (timeToLive == null || timeToLive.isNegative() || timeToLive.isZero())
+            throw new IllegalArgumentException("timeToLive must be positive");
+
+        this.maximumSize = maximumSize;
+        this.timeToLive = timeToLive;
+        this.sessions = new LinkedHashMap<String, CachedSession>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedSession> eldest) {
+                return size() > RedisSessionNearCache.this.maximumSize;
+            }
+        };
+        this.recentInvalidations = new LinkedHashMap<String, Long>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                if (size() > RedisSessionNearCache.this.maximumSize) {
+                    forgottenInvalidation = eldest.getValue();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached hash entries of the session, in their stored form.
+     *
+     * @param id the session id
+     * @return the entries, or {@code null} if not cached
+     */
+    Map<String, byte[]> get(String id) {
+        CachedSession cached;
+        synchronized (sessions) {
+            cached = sessions.get(id);
+            if (cached != null && !cached.expiresAt.isAfter(Instant.now())) {
+                sessions.remove(id);
+                cached = null;
+            }
+        }
+        if (cached == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return cached.entries;
+    }
+
+    /**
+     * @return the stamp to take before reading or writing a session in redis, and to pass
+     * to {@link #put(String, Map, Instant, long)} afterwards
+     */
+    long stamp() {
+        synchronized (sessions) {
+            return invalidationSequence;
+        }
+    }
+
+    /**
+     * Caches the hash entries of the session, unless it was invalidated since the stamp
+     * was taken.
+     *
+     * @param id               the session id
+     * @param entries          all the hash entries of the session, in their stored form
+     * @param sessionExpiresAt the earliest time the session may expire in redis
+     * @param stamp            the stamp taken before the entries were read or written
+     * @return true if cached
+     */
+    boolean put(String id, Map<String, byte[]> entries, Instant sessionExpiresAt, long stamp) {
+        Instant expiresAt = Instant.now().plus(timeToLive);
+        if (sessionExpiresAt.isBefore(expiresAt)) {
+            expiresAt = sessionExpiresAt;
+        }
+        CachedSession cached = new CachedSession(Collections.unmodifiableMap(new HashMap<>(entries)), expiresAt);
+        synchronized (sessions) {
+            Long invalidation = recentInvalidations.get(id);
+            if (!subscribed || stamp < forgottenInvalidation || (invalidation != null && invalidation > stamp)) {
+                return false;
+            }
+            sessions.put(id, cached);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the session from this cache only, the loads of the session in flight are
+     * not cached.
+     *
+     * @param id the session id
+     */
+    void invalidate(String id) {
+        synchronized (sessions) {
+            sessions.remove(id);
+            recentInvalidations.remove(id);
+            recentInvalidations.put(id, ++invalidationSequence);
+        }
+    }
+
+    /**
+     * Clears the cache and caches nothing more until {@link #onSubscribed()}, the
+     * invalidation messages being lost.
+     */
+    public void onUnsubscribed() {
+        synchronized (sessions) {
+            clear();
+            subscribed = false;
+        }
+    }
+
+    /**
+     * Clears the cache, the messages published before the subscription having been lost,
+     * and enables it again.
+     */
+    public void onSubscribed() {
+        synchronized (sessions) {
+            clear();
+            subscribed = true;
+        }
+    }
+
+    /**
+     * Removes all the sessions, the loads in flight are not cached. Guarded by
+     * {@link #sessions}.
+     */
+    private void clear() {
+        sessions.clear();
+        recentInvalidations.clear();
+        forgottenInvalidation = ++invalidationSequence;
+    }
+
+    /**
+     * @param id the session id
+     * @return the message telling the other nodes that the session changed
+     */
+    String invalidationMessage(String id) {
+        return nodeId + MESSAGE_SEPARATOR + id;
+    }
+
+    /**
+     * Handles a message received on the invalidation channel.
+     *
+     * @param message the message
+     */
+    public void onInvalidationMessage(String message) {
+        int index = message.indexOf(MESSAGE_SEPARATOR);
+        if (index < 0 || (index == nodeId.length() && message.startsWith(nodeId))) {
+            return;
+        }
+        invalidate(message.substring(index + 1));
+        invalidations.increment();
+    }
+
+    public int size() {
+        synchronized (sessions) {
+            return sessions.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of sessions invalidated by the other nodes
+     */
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    private static final class CachedSession {
+
+        private final Map<String, byte[]> entries;
+
+        private final Instant expiresAt;
+
+        CachedSession(Map<String, byte[]> entries, Instant expiresAt) {
+            this.entries = entries;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package com.caiya.session.redis;
+
+import com.caiya.session.SessionQuotaExceededException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounds the number of sessions of the namespace of a {@link RedisSessionManager}
+ * ({@link RedisSessionManager#setRedisKeyNamespace(String)}), and of all the namespaces
+ * sharing the same registry, so that one application creating too many sessions cannot
+ * starve the others of memory.
+ * <p>
+ * Past the soft limit, the new sessions get a shorter max inactive interval, so that the
+ * anonymous sessions of crawlers and scripts go away quickly; the application may extend
+ * the interval once the user has logged in. Past the hard limit, creating a session fails
+ * with a {@link SessionQuotaExceededException} instead of pushing redis into eviction.
+ * <p>
+ * The number of sessions is counted in the expiration index of the manager (see
+ * {@link RedisSessionManager#setExpirationIndexEnabled(boolean)}) at most once per refresh
+ * interval, and recorded in the registry hash, whose values are summed up for the global
+ * count. The sessions which never expire are counted as well. The entries of the registry
+ * expire unless recorded again, so that a namespace no longer in use leaves the global
+ * count. The sessions created by this node in between are counted locally, the ones deleted
+ * are counted until they would have expired. The size of the sessions is estimated from a
+ * sample of the sessions loaded.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public class RedisSessionQuota {
+
+    private static final Logger logger = LoggerFactory.getLogger(RedisSessionQuota.class);
+
+    /**
+     * The default key of the registry hash, shared by the namespaces.
+     */
+    public static final String DEFAULT_REGISTRY_KEY = "session:namespaces";
+
+    public static final Duration DEFAULT_REFRESH_INTERVAL = Duration.ofSeconds(1);
+
+    public static final Duration DEFAULT_REGISTRY_ENTRY_TIME_TO_LIVE = Duration.ofMinutes(5);
+
+    public static final Duration DEFAULT_REDUCED_MAX_INACTIVE_INTERVAL = Duration.ofMinutes(5);
+
+    public static final int DEFAULT_SAMPLE_RATE = 100;
+
+    private long softLimit;
+
+    private long hardLimit;
+
+    private long globalSoftLimit;
+
+    private long globalHardLimit;
+
+    private Duration reducedMaxInactiveInterval = DEFAULT_REDUCED_MAX_INACTIVE_INTERVAL;
+
+    private String registryKey = DEFAULT_REGISTRY_KEY;
+
+    private long refreshIntervalMillis = DEFAULT_REFRESH_INTERVAL.toMillis();
+
+    private long registryEntryTimeToLiveMillis = DEFAULT_REGISTRY_ENTRY_TIME_TO_LIVE.toMillis();
+
+    private int sampleRate = DEFAULT_SAMPLE_RATE;
+
+    private final AtomicLong nextRefreshAt = new AtomicLong();
+
+    private final AtomicLong sessions = new AtomicLong();
+
+    private final AtomicLong globalSessions = new AtomicLong();
+
+    /**
+     * Guarded by this.
+     */
+    private double bytesPerSession;
+
+    /**
+     * Guarded by this.
+     */
+    private long samples;
+
+    private final LongAdder sessionsShortened = new LongAdder();
+
+    private final LongAdder sessionsRefused = new LongAdder();
+
+    /**
+     * Sets the number of sessions of the namespace past which the new sessions get the
+     * reduced max inactive interval. Default is 0, none.
+     *
+     * @param softLimit the soft limit, 0 if none
+     */
+    public void setSoftLimit(long softLimit) {
+        if (softLimit < 0)
+            throw new IllegalArgumentException("softLimit cannot be negative");
+
+        this.softLimit = softLimit;
+    }
+
+    /**
+     * Sets the number of sessions of the namespace past which no session can be created.
+     * Default is 0, none.
+     *
+     * @param hardLimit the hard limit, 0 if none
+     */
+    public void setHardLimit(long hardLimit) {
+        if (hardLimit < 0)
+            throw new IllegalArgumentException("hardLimit cannot be negative");
+
+        this.hardLimit = hardLimit;
+    }
+
+    /**
+     * Sets the number of sessions of all the namespaces past which the new sessions get the
+     * reduced max inactive interval. Default is 0, none.
+     *
+     * @param globalSoftLimit the global soft limit, 0 if none
+     */
+    public void setGlobalSoftLimit(long globalSoftLimit) {
+        if (globalSoftLimit < 0)
+            throw new IllegalArgumentException("globalSoftLimit cannot be negative");
+
+        this.globalSoftLimit = globalSoftLimit;
+    }
+
+    /**
+     * Sets the number of sessions of all the namespaces past which no session can be
+     * created. Default is 0, none.
+     *
+     * @param globalHardLimit the global hard limit, 0 if none
+     */
+    public void setGlobalHardLimit(long globalHardLimit) {
+        if (globalHardLimit < 0)
+            throw new IllegalArgumentException("globalHardLimit cannot be negative");
+
+        this.globalHardLimit = globalHardLimit;
+    }
+
+    /**
+     * Sets the max inactive interval of the sessions created past a soft limit, if shorter
+     * than the requested one. Default is 5 minutes.
+     *
+     * @param reducedMaxInactiveInterval the reduced max inactive interval
+     */
+    public void setReducedMaxInactiveInterval(Duration reducedMaxInactiveInterval) {
+        if (reducedMaxInactiveInterval == null || reducedMaxInactiveInterval.isNegative() || reducedMaxInactiveInterval.isZero())
+            throw new IllegalArgumentException("reducedMaxInactiveInterval must be positive");
+
+        this.reducedMaxInactiveInterval = reducedMaxInactiveInterval;
+    }
+
+    /**
+     * Sets the key of the registry hash. The namespaces sharing a registry make up the
+     * global count. Default is {@value #DEFAULT_REGISTRY_KEY}.
+     *
+     * @param registryKey the registry key
+     */
+    public void setRegistryKey(String registryKey) {
+        if (registryKey == null || registryKey.trim().isEmpty())
+            throw new IllegalArgumentException("registryKey cannot be null or empty");
+
+        this.registryKey = registryKey.trim();
+    }
+
+    /**
+     * Sets how often the sessions are counted in redis. Default is 1 second.
+     *
+     * @param refreshInterval the refresh interval, zero to count on each creation
+     */
+    public void setRefreshInterval(Duration refreshInterval) {
+        if (refreshInterval == null || refreshInterval.isNegative())
+            throw new IllegalArgumentException("refreshInterval cannot be negative");
+
+        this.refreshIntervalMillis = refreshInterval.toMillis();
+    }
+
+    /**
+     * Sets how long the entry of a namespace stays in the registry once recorded. The entry
+     * is recorded again each time the sessions are counted, as a session is created past
+     * the refresh interval, so it should be well above the refresh interval. Default is 5
+     * minutes.
+     *
+     * @param registryEntryTimeToLive the time to live of the registry entries
+     */
+    public void setRegistryEntryTimeToLive(Duration registryEntryTimeToLive) {
+        if (registryEntryTimeToLive == null || registryEntryTimeToLive.isNegative() || registryEntryTimeToLive.isZero())
+            throw new IllegalArgumentException("registryEntryTimeToLive must be positive");
+
+        this.registryEntryTimeToLiveMillis = registryEntryTimeToLive.toMillis();
+    }
+
+    /**
+     * Sets the sampling rate of the size of the sessions loaded, one in {@code sampleRate}.
+     * Default is {@value #DEFAULT_SAMPLE_RATE}.
+     *
+     * @param sampleRate the sampling rate
+     */
+    public void setSampleRate(int sampleRate) {
+        if (sampleRate <= 0)
+            throw new IllegalArgumentException("sampleRate must be positive");
+
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Checks the limits before a session is created, counting the sessions in redis if the
+     * refresh interval has elapsed.
+     *
+     * @param sessionManager      the session manager
+     * @param maxInactiveInterval the requested max inactive interval
+     * @return the max inactive interval of the new session
+     * @throws SessionQuotaExceededException if a hard limit is reached
+     */
+    Duration admit(RedisSessionManager sessionManager, Duration maxInactiveInterval) {
+        refreshIfDue(sessionManager);
+        long count = sessions.get();
+        long globalCount = globalSessions.get();
+        if (hardLimit > 0 && count >= hardLimit || globalHardLimit > 0 && globalCount >= globalHardLimit) {
+            sessionsRefused.increment();
+            throw new SessionQuotaExceededException("too many sessions, namespace:" + sessionManager.getNamespace()
+                    + ", sessions:" + count + ", all namespaces:" + globalCount);
+        }
+        sessions.incrementAndGet();
+        globalSessions.incrementAndGet();
+        if ((softLimit > 0 && count >= softLimit || globalSoftLimit > 0 && globalCount >= globalSoftLimit)
+                && (maxInactiveInterval == null || maxInactiveInterval.compareTo(reducedMaxInactiveInterval) > 0)) {
+            sessionsShortened.increment();
+            return reducedMaxInactiveInterval;
+        }
+        return maxInactiveInterval;
+    }
+
+    private void refreshIfDue(RedisSessionManager sessionManager) {
+        long now = sessionManager.getClock().millis();
+        long refreshAt = nextRefreshAt.get();
+        if (now < refreshAt || !nextRefreshAt.compareAndSet(refreshAt, now + refreshIntervalMillis)) {
+            // counted recently, or being counted by another thread
+            return;
+        }
+        RedisScriptExecutor scriptExecutor = sessionManager.getScriptExecutor();
+        List<RedisScriptCall<?>> calls = new ArrayList<>(sessionManager.getExpirationIndexShards());
+        for (String indexKey : sessionManager.getExpirationIndexKeys()) {
+            calls.add(new RedisScriptCall<>(RedisSessionScripts.COUNT_SESSIONS, Collections.singletonList(indexKey),
+                    Collections.singletonList(now)));
+        }
+        long count = 0;
+        for (Object result : scriptExecutor.executePipelined(calls)) {
+            if (result instanceof RuntimeException)
+                throw (RuntimeException) result;
+
+            count += result != null ? (Long) result : 0;
+        }
+        Long globalCount = scriptExecutor.execute(RedisSessionScripts.REGISTER_NAMESPACE,
+                Collections.singletonList(registryKey),
+                Arrays.asList(sessionManager.getNamespace(), count, now, registryEntryTimeToLiveMillis));
+        sessions.set(count);
+        globalSessions.set(globalCount != null ? globalCount : 0);
+        logger.debug("sessions counted, namespace:{}, sessions:{}, all namespaces:{}", sessionManager.getNamespace(), count, globalCount);
+    }
+
+    /**
+     * Samples the size of a loaded session.
+     *
+     * @param reply the hash fields and values of the session as read from redis
+     */
+    void sample(List<?> reply) {
+        if (reply == null || reply.isEmpty() || (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0)) {
+            return;
+        }
+        long bytes = 0;
+        for (Object item : reply) {
+            if (item instanceof byte[]) {
+                bytes += ((byte[]) item).length;
+            }
+        }
+        synchronized (this) {
+            samples++;
+            // the mean of the first samples, then a moving average
+            bytesPerSession += (bytes - bytesPerSession) / Math.min(samples, 100);
+        }
+    }
+
+    /**
+     * @return the number of sessions of the namespace, as last counted plus the ones created since
+     */
+    public long getSessions() {
+        return sessions.get();
+    }
+
+    /**
+     * @return the number of sessions of all the namespaces, as last counted plus the ones
+     * created by this node since
+     */
+    public long getGlobalSessions() {
+        return globalSessions.get();
+    }
+
+    /**
+     * @return the estimated size of the fields and values of a session, in bytes
+     */
+    public synchronized long getBytesPerSession() {
+        return Math.round(bytesPerSession);
+    }
+
+    /**
+     * @return the estimated size of the sessions of the namespace, in bytes
+     */
+    public long getEstimatedBytes() {
+        return getBytesPerSession() * getSessions();
+    }
+
+    /**
+     * @return the number of sessions created with the reduced max inactive interval
+     */
+    public long getSessionsShortened() {
+        return sessionsShortened.sum();
+    }
+
+    /**
+     * @return the number of sessions which could not be created
+     */
+    public long getSessionsRefused() {
+        return sessionsRefused.sum();
+    }
+}
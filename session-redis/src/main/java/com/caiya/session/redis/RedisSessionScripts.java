@@ -0,0 +1,372 @@
+package com.caiya.session.redis;
+
+import java.util.List;
+
+/**
+ * The lua scripts used by the {@link RedisSessionManager} when a
+ * {@link RedisScriptExecutor} is set.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+final class RedisSessionScripts {
+
+    /**
+     * Returns the session hash if the expires key is still alive, an empty list otherwise.
+     * <p>
+     * KEYS[1] the session key, KEYS[2] the expires key.
+     */
+    static final RedisScript<List> FIND_SESSION = new RedisScript<>("findSession",
+            "if redis.call('EXISTS', KEYS[2]) == 0 then\n" +
+                    "    return {}\n" +
+                    "end\n" +
+                    "return redis.call('HGETALL', KEYS[1])\n",
+            List.class);
+
+    /**
+     * Returns the values of the given hash fields if the expires key is still alive, an
+     * empty list otherwise.
+     * <p>
+     * KEYS[1] the session key, KEYS[2] the expires key, ARGV the fields.
+     */
+    static final RedisScript<List> FIND_SESSION_FIELDS = new RedisScript<>("findSessionFields",
+            "if redis.call('EXISTS', KEYS[2]) == 0 then\n" +
+                    "    return {}\n" +
+                    "end\n" +
+                    "return redis.call('HMGET', KEYS[1], unpack(ARGV))\n",
+            List.class);
+
+    /**
+     * Returns the values of the given hash fields.
+     * <p>
+     * KEYS[1] the session key, ARGV the fields.
+     */
+    static final RedisScript<List> GET_FIELDS = new RedisScript<>("getFields",
+            "return redis.call('HMGET', KEYS[1], unpack(ARGV))\n",
+            List.class);
+
+    /**
+     * Returns all the fields and values of the hash.
+     * <p>
+     * KEYS[1] the session key.
+     */
+    static final RedisScript<List> GET_ALL_FIELDS = new RedisScript<>("getAllFields",
+            "return redis.call('HGETALL', KEYS[1])\n",
+            List.class);
+
+    /**
+     * Deletes and sets the given hash fields and refreshes the expiration of both keys,
+     * the expiration is only refreshed if any field is set. A zero max inactive interval
+     * deletes the session, a negative one makes it never expire. Publishes the invalidation
+     * message if a channel is given.
+     * When claiming, nothing is written and -1 is returned if either key already exists.
+     * If given, the expiration index is updated along with the expiration.
+     * <p>
+     * KEYS[1] the session key, KEYS[2] the expires key, KEYS[3] the expiration index or
+     * none if it is not updated by this script.<br>
+     * ARGV[1] the expiration of the expires key in seconds, ARGV[2] the expiration of the
+     * session key in seconds, ARGV[3] the invalidation channel or an empty string, ARGV[4]
+     * the invalidation message, ARGV[5] '1' to claim the session id of a new session,
+     * ARGV[6] the expiration time in milliseconds or +inf and ARGV[7] the session id, both only
+     * used with KEYS[3], ARGV[8] the number n of fields to delete, ARGV[9..8+n] the fields
+     * to delete, followed by the field and value pairs to set.
+     */
+    static final RedisScript<Long> SAVE_SESSION = new RedisScript<>("saveSession",
+            "if ARGV[5] == '1' and redis.call('EXISTS', KEYS[1], KEYS[2]) > 0 then\n" +
+                    "    return -1\n" +
+                    "end\n" +
+                    "local deletes = tonumber(ARGV[8])\n" +
+                    "if deletes > 0 then\n" +
+                    "    redis.call('HDEL', KEYS[1], unpack(ARGV, 9, 8 + deletes))\n" +
+                    "end\n" +
+                    "if ARGV[3] ~= '' then\n" +
+                    "    redis.call('PUBLISH', ARGV[3], ARGV[4])\n" +
+                    "end\n" +
+                    "if #ARGV < 9 + deletes then\n" +
+                    "    return 0\n" +
+                    "end\n" +
+                    "local seconds = tonumber(ARGV[1])\n" +
+                    "if seconds == 0 then\n" +
+                    "    if #KEYS > 2 then\n" +
+                    "        redis.call('ZREM', KEYS[3], ARGV[7])\n" +
+                    "    end\n" +
+                    "    return redis.call('DEL', KEYS[1], KEYS[2])\n" +
+                    "end\n" +
+                    "redis.call('HMSET', KEYS[1], unpack(ARGV, 9 + deletes, #ARGV))\n" +
+                    "if seconds > 0 then\n" +
+                    "    redis.call('SET', KEYS[2], '', 'EX', ARGV[1])\n" +
+                    "    redis.call('EXPIRE', KEYS[1], ARGV[2])\n" +
+                    "else\n" +
+                    "    redis.call('SET', KEYS[2], '')\n" +
+                    "    redis.call('PERSIST', KEYS[1])\n" +
+                    "end\n" +
+                    "if #KEYS > 2 then\n" +
+                    "    redis.call('ZADD', KEYS[3], ARGV[6], ARGV[7])\n" +
+                    "end\n" +
+                    "return 1\n",
+            Long.class);
+
+    /**
+     * Renames both keys of a session, unless a session with the new id exists. Returns 1
+     * if renamed, 0 if the new id is taken, -1 if the session no longer exists. Publishes
+     * the invalidation message if a channel is given.
+     * <p>
+     * KEYS[1] the session key, KEYS[2] the expires key, KEYS[3] the new session key,
+     * KEYS[4] the new expires key.<br>
+     * ARGV[1] the invalidation channel or an empty string, ARGV[2] the invalidation message.
+     */
+    static final RedisScript<Long> RENAME_SESSION = new RedisScript<>("renameSession",
+            "if redis.call('EXISTS', KEYS[3], KEYS[4]) > 0 then\n" +
+                    "    return 0\n" +
+                    "end\n" +
+                    "if redis.call('EXISTS', KEYS[1]) == 0 then\n" +
+                    "    return -1\n" +
+                    "end\n" +
+                    "redis.call('RENAME', KEYS[1], KEYS[3])\n" +
+                    "if redis.call('EXISTS', KEYS[2]) == 1 then\n" +
+                    "    redis.call('RENAME', KEYS[2], KEYS[4])\n" +
+                    "end\n" +
+                    "if ARGV[1] ~= '' then\n" +
+                    "    redis.call('PUBLISH', ARGV[1], ARGV[2])\n" +
+                    "end\n" +
+                    "return 1\n",
+            Long.class);
+
+    /**
+     * Removes the keys of the given sessions with a non-blocking UNLINK (redis 4.0 or later),
+     * and returns the number of sessions whose expires key was still alive. Publishes the
+     * invalidation messages if a channel is given.
+     * <p>
+     * KEYS the session key and expires key pairs.<br>
+     * ARGV[1] the invalidation channel or an empty string, ARGV[2..] the invalidation messages.
+     */
+    static final RedisScript<Long> DELETE_SESSIONS = new RedisScript<>("deleteSessions",
+            "local existed = 0\n" +
+                    "for i = 1, #KEYS, 2 do\n" +
+                    "    existed = existed + redis.call('EXISTS', KEYS[i + 1])\n" +
+                    "    redis.call('UNLINK', KEYS[i], KEYS[i + 1])\n" +
+                    "end\n" +
+                    "if ARGV[1] ~= '' then\n" +
+                    "    for i = 2, #ARGV do\n" +
+                    "        redis.call('PUBLISH', ARGV[1], ARGV[i])\n" +
+                    "    end\n" +
+                    "end\n" +
+                    "return existed\n",
+            Long.class);
+
+    /**
+     * Removes the given keys with a non-blocking UNLINK (redis 4.0 or later), and returns
+     * the number of keys removed.
+     * <p>
+     * KEYS the keys, in the same cluster slot.
+     */
+    static final RedisScript<Long> UNLINK_KEYS = new RedisScript<>("unlinkKeys",
+            "return redis.call('UNLINK', unpack(KEYS))\n",
+            Long.class);
+
+    /**
+     * Returns the number of the given keys which exist.
+     * <p>
+     * KEYS the keys, in the same cluster slot.
+     */
+    static final RedisScript<Long> EXISTS_KEYS = new RedisScript<>("existsKeys",
+            "return redis.call('EXISTS', unpack(KEYS))\n",
+            Long.class);
+
+    /**
+     * Publishes a message.
+     * <p>
+     * KEYS[1] any key, only used to route the script in a cluster, ARGV[1] the channel,
+     * ARGV[2] the message.
+     */
+    static final RedisScript<Long> PUBLISH = new RedisScript<>("publish",
+            "return redis.call('PUBLISH', ARGV[1], ARGV[2])\n",
+            Long.class);
+
+    /**
+     * Adds the session to the expiration index, or removes it if the score is negative.
+     * <p>
+     * KEYS[1] the expiration index, ARGV[1] the expiration time in milliseconds, or +inf if
+     * the session never expires, ARGV[2] the session id.
+     */
+    static final RedisScript<Long> INDEX_EXPIRATION = new RedisScript<>("indexExpiration",
+            "if ARGV[1] ~= '+inf' and tonumber(ARGV[1]) < 0 then\n" +
+                    "    return redis.call('ZREM', KEYS[1], ARGV[2])\n" +
+                    "end\n" +
+                    "return redis.call('ZADD', KEYS[1], ARGV[1], ARGV[2])\n",
+            Long.class);
+
+    /**
+     * Makes the principal index in KEYS[1] expire with the session expiring last.
+     */
+    private static final String EXPIRE_PRINCIPAL_INDEX =
+            "local last = redis.call('ZRANGE', KEYS[1], -1, -1, 'WITHSCORES')\n" +
+                    "if last[2] == 'inf' then\n" +
+                    "    redis.call('PERSIST', KEYS[1])\n" +
+                    "elseif last[2] then\n" +
+                    "    redis.call('PEXPIREAT', KEYS[1], last[2])\n" +
+                    "end\n";
+
+    /**
+     * Removes session ids from a principal index and adds one, e.g. the new id of a renamed
+     * session. A principal index is a sorted set of session ids scored by expiration time,
+     * which disappears with its last member, and expires with the session expiring last.
+     * <p>
+     * KEYS[1] the principal index, ARGV[1] the session id to add or an empty string,
+     * ARGV[2] its expiration time, ARGV[3..] the session ids to remove, which are unpacked
+     * onto the lua stack so at most a few thousand. Returns the number of ids removed.
+     */
+    static final RedisScript<Long> INDEX_PRINCIPAL = new RedisScript<>("indexPrincipal",
+            "local removed = 0\n" +
+                    "if #ARGV > 2 then\n" +
+                    "    removed = redis.call('ZREM', KEYS[1], unpack(ARGV, 3))\n" +
+                    "end\n" +
+                    "if ARGV[1] ~= '' then\n" +
+                    "    redis.call('ZADD', KEYS[1], ARGV[2], ARGV[1])\n" +
+                    EXPIRE_PRINCIPAL_INDEX +
+                    "end\n" +
+                    "return removed\n",
+            Long.class);
+
+    /**
+     * Adds a session id to a principal index, unless the principal has reached the maximum
+     * number of sessions. The expired entries are dropped first; then either the sessions
+     * expiring first are removed to make room, or the session is rejected.
+     * <p>
+     * KEYS[1] the principal index, ARGV[1] the session id, ARGV[2] its expiration time,
+     * ARGV[3] the current time, ARGV[4] the maximum number of sessions or 0, ARGV[5] '1' to
+     * reject the session rather than remove others. Returns 0 if rejected, otherwise 1
+     * followed by the removed session ids, whose keys are left to the caller.
+     */
+    static final RedisScript<List> BIND_PRINCIPAL = new RedisScript<>("bindPrincipal",
+            "redis.call('ZREMRANGEBYSCORE', KEYS[1], '-inf', '(' .. ARGV[3])\n" +
+                    "local max = tonumber(ARGV[4])\n" +
+                    "local excess = 0\n" +
+                    "if max > 0 and not redis.call('ZSCORE', KEYS[1], ARGV[1]) then\n" +
+                    "    excess = redis.call('ZCARD', KEYS[1]) - max + 1\n" +
+                    "end\n" +
+                    "local reply = {1}\n" +
+                    "if excess > 0 then\n" +
+                    "    if ARGV[5] == '1' then\n" +
+                    "        return {0}\n" +
+                    "    end\n" +
+                    "    local evicted = redis.call('ZRANGE', KEYS[1], 0, excess - 1)\n" +
+                    "    redis.call('ZREMRANGEBYRANK', KEYS[1], 0, excess - 1)\n" +
+                    "    for i = 1, #evicted do\n" +
+                    "        reply[i + 1] = evicted[i]\n" +
+                    "    end\n" +
+                    "end\n" +
+                    "redis.call('ZADD', KEYS[1], ARGV[2], ARGV[1])\n" +
+                    EXPIRE_PRINCIPAL_INDEX +
+                    "return reply\n",
+            List.class);
+
+    /**
+     * Updates the expiration time of a session id in a principal index, and the expiration
+     * of the index, if the id is still there. Returns 1 if the expiration time changed.
+     * <p>
+     * KEYS[1] the principal index, ARGV[1] the expiration time, ARGV[2] the session id.
+     */
+    static final RedisScript<Long> TOUCH_PRINCIPAL = new RedisScript<>("touchPrincipal",
+            "if redis.call('ZADD', KEYS[1], 'XX', 'CH', ARGV[1], ARGV[2]) == 0 then\n" +
+                    "    return 0\n" +
+                    "end\n" +
+                    EXPIRE_PRINCIPAL_INDEX +
+                    "return 1\n",
+            Long.class);
+
+    /**
+     * Returns the session ids of a principal index, in expiration order.
+     * <p>
+     * KEYS[1] the principal index.
+     */
+    static final RedisScript<List> FIND_PRINCIPAL_SESSIONS = new RedisScript<>("findPrincipalSessions",
+            "return redis.call('ZRANGE', KEYS[1], 0, -1)\n",
+            List.class);
+
+    /**
+     * Returns the number of sessions of the expiration index not expired yet.
+     * <p>
+     * KEYS[1] the expiration index, ARGV[1] the current time.
+     */
+    static final RedisScript<Long> COUNT_SESSIONS = new RedisScript<>("countSessions",
+            "return redis.call('ZCOUNT', KEYS[1], ARGV[1], '+inf')\n",
+            Long.class);
+
+    /**
+     * Records the number of sessions of a namespace in the registry shared by the
+     * namespaces, and returns the number of sessions of all of them. Each entry holds the
+     * number of sessions and the time it was recorded at; the entries not recorded again
+     * within their time to live are removed, those of a namespace no longer in use, and so
+     * is the registry itself.
+     * <p>
+     * KEYS[1] the registry, ARGV[1] the namespace, ARGV[2] its number of sessions, ARGV[3]
+     * the current time in milliseconds, ARGV[4] the time to live of the entries in
+     * milliseconds.
+     */
+    static final RedisScript<Long> REGISTER_NAMESPACE = new RedisScript<>("registerNamespace",
+            "redis.call('HSET', KEYS[1], ARGV[1], ARGV[2] .. ':' .. ARGV[3])\n" +
+                    "redis.call('PEXPIRE', KEYS[1], ARGV[4])\n" +
+                    "local staleBefore = tonumber(ARGV[3]) - tonumber(ARGV[4])\n" +
+                    "local entries = redis.call('HGETALL', KEYS[1])\n" +
+                    "local total = 0\n" +
+                    "for i = 1, #entries, 2 do\n" +
+                    "    local count, recordedAt = string.match(entries[i + 1], '^(%d+):(%d+)$')\n" +
+                    "    if count and tonumber(recordedAt) >= staleBefore then\n" +
+                    "        total = total + tonumber(count)\n" +
+                    "    else\n" +
+                    "        redis.call('HDEL', KEYS[1], entries[i])\n" +
+                    "    end\n" +
+                    "end\n" +
+                    "return total\n",
+            Long.class);
+
+    /**
+     * Returns the ids and expiration times of the sessions due to expire, earliest first.
+     * <p>
+     * KEYS[1] the expiration index, ARGV[1] the current time in milliseconds, ARGV[2] the
+     * maximum number of sessions to return.
+     */
+    static final RedisScript<List> FIND_EXPIRED = new RedisScript<>("findExpired",
+            "return redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1], 'WITHSCORES', 'LIMIT', 0, ARGV[2])\n",
+            List.class);
+
+    /**
+     * Removes the session hash if the expires key is gone, with a non-blocking UNLINK
+     * (redis 4.0 or later). Returns the remaining time to live of the expires key in
+     * milliseconds if it is still alive, or -1 if it never expires, the removed hash
+     * otherwise.
+     * <p>
+     * KEYS[1] the session key, KEYS[2] the expires key.
+     */
+    static final RedisScript<Object> EXPIRE_SESSION = new RedisScript<>("expireSession",
+            "local ttl = redis.call('PTTL', KEYS[2])\n" +
+                    "if ttl > 0 or ttl == -1 then\n" +
+                    "    return ttl\n" +
+                    "end\n" +
+                    "local entries = redis.call('HGETALL', KEYS[1])\n" +
+                    "if #entries > 0 then\n" +
+                    "    redis.call('UNLINK', KEYS[1])\n" +
+                    "end\n" +
+                    "return entries\n",
+            Object.class);
+
+    /**
+     * Removes sessions from the expiration index, unless their expiration time has changed
+     * in the meantime.
+     * <p>
+     * KEYS[1] the expiration index, ARGV the session id and expiration time pairs.
+     */
+    static final RedisScript<Long> REMOVE_EXPIRATIONS = new RedisScript<>("removeExpirations",
+            "local removed = 0\n" +
+                    "for i = 1, #ARGV, 2 do\n" +
+                    "    if tonumber(redis.call('ZSCORE', KEYS[1], ARGV[i])) == tonumber(ARGV[i + 1]) then\n" +
+                    "        removed = removed + redis.call('ZREM', KEYS[1], ARGV[i])\n" +
+                    "    end\n" +
+                    "end\n" +
+                    "return removed\n",
+            Long.class);
+
+    private RedisSessionScripts() {
+    }
+}
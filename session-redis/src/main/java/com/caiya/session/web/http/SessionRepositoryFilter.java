@@ -212,6 +212,7 @@ public class SessionRepositoryFilter<S extends Session> extends OncePerRequestFi
                 S session = wrappedSession.getSession();
                 clearRequestedSessionCache();
                 SessionRepositoryFilter.this.sessionManager.add(session);
+                SessionRepositoryFilter.this.sessionManager.save(session);
                 String sessionId = session.getId();
                 if (!isRequestedSessionIdValid()
                         || !sessionId.equals(getRequestedSessionId())) {
@@ -235,7 +236,7 @@ public class SessionRepositoryFilter<S extends Session> extends OncePerRequestFi
         }
 
         @Override
-        @SuppressWarnings({"unused", "unchecked"})
+        @SuppressWarnings("unused")
         public String changeSessionId() {
             HttpSession session = getSession(false);
 
@@ -244,7 +245,7 @@ public class SessionRepositoryFilter<S extends Session> extends OncePerRequestFi
                         "Cannot change session ID. There is no session associated with this request.");
             }
             S currentSession = getCurrentSession().getSession();
-            return currentSession.getManager().changeSessionId(currentSession);
+            return SessionRepositoryFilter.this.sessionManager.changeSessionId(currentSession);
         }
 
         @Override
@@ -338,13 +339,10 @@ public class SessionRepositoryFilter<S extends Session> extends OncePerRequestFi
             if (!this.requestedSessionCached) {
                 List<String> sessionIds = SessionRepositoryFilter.this.httpSessionIdResolver
                         .resolveSessionIds(this);
-                for (String sessionId : sessionIds) {
-                    S session = SessionRepositoryFilter.this.sessionManager
-                            .findById(sessionId);
-                    if (session != null) {
-                        this.requestedSession = session;
-                        break;
-                    }
+                if (!sessionIds.isEmpty()) {
+                    // all the candidates at once, duplicate cookies are common
+                    this.requestedSession = SessionRepositoryFilter.this.sessionManager
+                            .findFirstById(sessionIds);
                 }
                 this.requestedSessionCached = true;
             }
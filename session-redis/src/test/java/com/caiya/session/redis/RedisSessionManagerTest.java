@@ -0,0 +1,1104 @@
+package com.caiya.session.redis;
+
+import com.caiya.cache.CacheApi;
+import com.caiya.session.FindByPrincipalNameSessionManager;
+import com.caiya.session.MaxSessionsExceededException;
+import com.caiya.session.SessionException;
+import com.caiya.session.SessionQuotaExceededException;
+import com.caiya.session.codec.AttributeCodecs;
+import com.caiya.session.codec.CompactAttributeCodec;
+import com.caiya.session.metrics.InstrumentedSessionManager;
+import com.caiya.session.metrics.SessionOperation;
+import com.caiya.session.metrics.SimpleSessionMetrics;
+import com.caiya.session.redis.support.InMemoryRedis;
+import com.caiya.session.util.StandardSessionIdGenerator;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * RedisSessionManager tests against an {@link InMemoryRedis}.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public class RedisSessionManagerTest {
+
+    private InMemoryRedis redis;
+
+    private CacheApi<String, Object> cache;
+
+    private RedisSessionManager sessionManager;
+
+    @Before
+    public void before() {
+        redis = new InMemoryRedis();
+        cache = redis.cacheApi();
+        sessionManager = new RedisSessionManager(cache);
+    }
+
+    @Test
+    public void immediateFlushModeWritesOnSetAttribute() {
+        sessionManager.setFlushMode(RedisFlushMode.IMMEDIATE);
+        RedisSession session = sessionManager.createSession();
+        assertNotNull(sessionManager.findById(session.getId()));
+
+        long roundTrips = redis.getRoundTrips();
+        session.setAttribute("a", 1);
+        assertTrue(redis.getRoundTrips() > roundTrips);
+        assertEquals(Integer.valueOf(1), sessionManager.findById(session.getId()).getAttribute("a"));
+
+        session.removeAttribute("a");
+        assertNull(sessionManager.findById(session.getId()).getAttribute("a"));
+    }
+
+    @Test
+    public void onCommitFlushModeWritesOnSave() {
+        sessionManager.setFlushMode(RedisFlushMode.ON_COMMIT);
+        RedisSession session = sessionManager.createSession();
+
+        long roundTrips = redis.getRoundTrips();
+        session.setAttribute("a", 1);
+        session.setAttribute("b", 2);
+        session.removeAttribute("b");
+        assertEquals(roundTrips, redis.getRoundTrips());
+        assertNull(sessionManager.findById(session.getId()));
+
+        sessionManager.save(session);
+        RedisSession found = sessionManager.findById(session.getId());
+        assertNotNull(found);
+        assertEquals(Integer.valueOf(1), found.getAttribute("a"));
+        assertNull(found.getAttribute("b"));
+
+        // later changes stay pending until the next save
+        roundTrips = redis.getRoundTrips();
+        session.setAttribute("a", 2);
+        assertEquals(roundTrips, redis.getRoundTrips());
+        assertEquals(Integer.valueOf(1), sessionManager.findById(session.getId()).getAttribute("a"));
+
+        sessionManager.save(session);
+        assertEquals(Integer.valueOf(2), sessionManager.findById(session.getId()).getAttribute("a"));
+    }
+
+    @Test
+    public void scriptSavesInOneRoundTrip() {
+        sessionManager.setScriptExecutor(redis.scriptExecutor());
+        RedisSession session = sessionManager.createSession();
+
+        long roundTrips = redis.getRoundTrips();
+        session.setAttribute("user", "zhangsan");
+        assertEquals(roundTrips + 1, redis.getRoundTrips());
+
+        long ttl = cache.ttl(sessionManager.getExpiredKey(session.getId()));
+        assertTrue(ttl > RedisSessionManager.DEFAULT_MAX_INACTIVE_INTERVAL_SECONDS - 10);
+        ttl = cache.ttl(sessionManager.getSessionKey(session.getId()));
+        assertTrue(ttl > RedisSessionManager.DEFAULT_MAX_INACTIVE_INTERVAL_SECONDS);
+
+        // readable by the plain commands as well
+        sessionManager.setScriptExecutor(null);
+        assertEquals("zhangsan", sessionManager.findById(session.getId()).getAttribute("user"));
+    }
+
+    @Test
+    public void scriptDeletesSessionWithZeroInterval() {
+        sessionManager.setScriptExecutor(redis.scriptExecutor());
+        RedisSession session = sessionManager.createSession();
+
+        session.setMaxInactiveInterval(Duration.ZERO);
+        assertFalse(cache.exists(sessionManager.getSessionKey(session.getId())));
+        assertFalse(cache.exists(sessionManager.getExpiredKey(session.getId())));
+        assertNull(sessionManager.findById(session.getId()));
+    }
+
+    @Test
+    public void touchesWithinIntervalAreNotWritten() {
+        sessionManager.setTouchInterval(Duration.ofSeconds(30));
+        RedisSession session = sessionManager.createSession();
+        Instant created = session.getLastAccessedTime();
+
+        long roundTrips = redis.getRoundTrips();
+        session.setLastAccessedTime(created.plusSeconds(10));
+        assertEquals(roundTrips, redis.getRoundTrips());
+        assertEquals(created.plusSeconds(10), session.getLastAccessedTime());
+        assertEquals(created.toEpochMilli(), sessionManager.findById(session.getId()).getLastAccessedTime().toEpochMilli());
+
+        session.setLastAccessedTime(created.plusSeconds(31));
+        assertEquals(created.plusSeconds(31).toEpochMilli(),
+                sessionManager.findById(session.getId()).getLastAccessedTime().toEpochMilli());
+        assertEquals(1, sessionManager.getTouchesSkipped());
+        assertEquals(1, sessionManager.getTouchesWritten());
+    }
+
+    @Test
+    public void lazyAttributeLoading() {
+        sessionManager.setScriptExecutor(redis.scriptExecutor());
+        sessionManager.setLazyAttributeLoading(true);
+        RedisSession session = sessionManager.createSession();
+        session.setAttribute("user", "zhangsan");
+        session.setAttribute("cart", new long[1024]);
+
+        long roundTrips = redis.getRoundTrips();
+        RedisSession found = sessionManager.findById(session.getId());
+        assertEquals("zhangsan", found.getAttribute("user"));
+        assertEquals("zhangsan", found.getAttribute("user"));
+        assertNull(found.getAttribute("missing"));
+        assertEquals(roundTrips + 3, redis.getRoundTrips());
+
+        found = sessionManager.findById(session.getId(), "user");
+        assertEquals("zhangsan", found.getAttribute("user"));
+        assertEquals(roundTrips + 4, redis.getRoundTrips());
+
+        found = sessionManager.findById(session.getId());
+        found.loadAttributes("user", "cart", "missing");
+        assertEquals("zhangsan", found.getAttribute("user"));
+        assertEquals(1024, found.<long[]>getAttribute("cart").length);
+        assertNull(found.getAttribute("missing"));
+        assertEquals(roundTrips + 6, redis.getRoundTrips());
+
+        found.setAttribute("user", "lisi");
+        assertEquals(new HashSet<>(Arrays.asList("user", "cart")), found.getAttributeNames());
+        assertEquals("lisi", found.getAttribute("user"));
+    }
+
+    @Test
+    public void nearCacheIsInvalidatedByOtherNodes() {
+        RedisSessionManager node1 = nearCachedSessionManager();
+        RedisSessionManager node2 = nearCachedSessionManager();
+        RedisSession session = node1.createSession();
+        session.setAttribute("user", "zhangsan");
+
+        long roundTrips = redis.getRoundTrips();
+        assertEquals("zhangsan", node1.findById(session.getId()).getAttribute("user"));
+        assertEquals(roundTrips, redis.getRoundTrips());
+        assertEquals(1, node1.getNearCache().getHits());
+
+        node2.findById(session.getId()).setAttribute("user", "lisi");
+        assertEquals(1, node1.getNearCache().getInvalidations());
+        assertEquals("lisi", node1.findById(session.getId()).getAttribute("user"));
+        assertEquals(1, node1.getNearCache().getMisses());
+
+        node2.deleteById(session.getId());
+        assertNull(node1.findById(session.getId()));
+    }
+
+    @Test
+    public void nearCacheHitsDoNotShareAttributeValues() {
+        RedisSessionManager node = nearCachedSessionManager();
+        RedisSession session = node.createSession();
+        session.setAttribute("cart", new ArrayList<>(Collections.singletonList("sku-1")));
+
+        List<String> cart = node.findById(session.getId()).getAttribute("cart");
+        cart.add("sku-2");
+        assertEquals(Collections.singletonList("sku-1"), node.findById(session.getId()).getAttribute("cart"));
+        assertEquals(2, node.getNearCache().getHits());
+    }
+
+    @Test
+    public void nearCacheDoesNotCacheLoadsRacingWithInvalidations() {
+        RedisSessionManager node = nearCachedSessionManager();
+        RedisSessionNearCache nearCache = node.getNearCache();
+        Map<String, byte[]> entries = Collections.singletonMap("sessionAttr:user", new byte[0]);
+        Instant expiresAt = Instant.now().plusSeconds(60);
+
+        long stamp = nearCache.stamp();
+        nearCache.invalidate("a");
+        assertFalse(nearCache.put("a", entries, expiresAt, stamp));
+        assertTrue(nearCache.put("b", entries, expiresAt, stamp));
+        assertTrue(nearCache.put("a", entries, expiresAt, nearCache.stamp()));
+
+        // too old to be checked once the invalidation is forgotten
+        stamp = nearCache.stamp();
+        for (int i = 0; i <= 100; i++) {
+            nearCache.invalidate("other-" + i);
+        }
+        assertFalse(nearCache.put("c", entries, expiresAt, stamp));
+    }
+
+    @Test
+    public void nearCacheCachesNothingWhileUnsubscribed() {
+        RedisSessionNearCache nearCache = new RedisSessionNearCache(100, Duration.ofMinutes(1));
+        Map<String, byte[]> entries = Collections.singletonMap("sessionAttr:user", new byte[0]);
+        Instant expiresAt = Instant.now().plusSeconds(60);
+        assertTrue(nearCache.put("a", entries, expiresAt, nearCache.stamp()));
+
+        long stamp = nearCache.stamp();
+        nearCache.onUnsubscribed();
+        assertEquals(0, nearCache.size());
+        assertFalse(nearCache.put("a", entries, expiresAt, nearCache.stamp()));
+
+        nearCache.onSubscribed();
+        // loaded while the invalidations were lost
+        assertFalse(nearCache.put("a", entries, expiresAt, stamp));
+        assertTrue(nearCache.put("a", entries, expiresAt, nearCache.stamp()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void nearCacheRequiresScriptExecutor() {
+        sessionManager.setNearCache(new RedisSessionNearCache(100, Duration.ofMinutes(1)));
+    }
+
+    @Test
+    public void clusterScriptExecutorRequiresHashTaggedKeys() {
+        RedisScriptExecutor cluster = new ClusterScriptExecutor(redis.scriptExecutor());
+        try {
+            sessionManager.setScriptExecutor(cluster);
+            fail("the legacy keys of a session are in different slots");
+        } catch (IllegalStateException expected) {
+            assertNull(sessionManager.getScriptExecutor());
+        }
+
+        sessionManager.setKeyLayout(RedisKeyLayout.HASH_TAGGED);
+        sessionManager.setScriptExecutor(cluster);
+        try {
+            sessionManager.setKeyLayout(RedisKeyLayout.LEGACY);
+            fail("the legacy keys of a session are in different slots");
+        } catch (IllegalStateException expected) {
+            assertEquals(RedisKeyLayout.HASH_TAGGED, sessionManager.getKeyLayout());
+        }
+    }
+
+    @Test
+    public void legacySessionsAreMigratedToHashTaggedKeys() {
+        RedisSession session = sessionManager.createSession();
+        session.setAttribute("user", "zhangsan");
+        String legacySessionKey = sessionManager.getSessionKey(session.getId());
+
+        RedisSessionManager hashTagged = new RedisSessionManager(cache);
+        hashTagged.setKeyLayout(RedisKeyLayout.HASH_TAGGED);
+        hashTagged.setScriptExecutor(redis.scriptExecutor());
+        assertTrue(hashTagged.getSessionKey(session.getId()).endsWith("{" + session.getId() + "}"));
+
+        RedisSession found = hashTagged.findById(session.getId());
+        assertEquals("zhangsan", found.getAttribute("user"));
+        assertEquals(session.getCreationTime().toEpochMilli(), found.getCreationTime().toEpochMilli());
+        assertFalse(cache.exists(legacySessionKey));
+        assertTrue(cache.exists(hashTagged.getSessionKey(session.getId())));
+
+        long roundTrips = redis.getRoundTrips();
+        assertEquals("zhangsan", hashTagged.findById(session.getId()).getAttribute("user"));
+        assertEquals(roundTrips + 1, redis.getRoundTrips());
+    }
+
+    @Test
+    public void legacySessionsAreDeletedWithHashTaggedKeys() {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            RedisSession legacy = sessionManager.createSession();
+            legacy.setAttribute("user", "zhangsan");
+            ids.add(legacy.getId());
+        }
+        String prefix = RedisSessionManager.DEFAULT_NAMESPACE + ":sessions:";
+        assertEquals(6, redis.countKeys(prefix));
+
+        RedisSessionManager hashTagged = new RedisSessionManager(cache);
+        hashTagged.setKeyLayout(RedisKeyLayout.HASH_TAGGED);
+        hashTagged.setScriptExecutor(redis.scriptExecutor());
+        long roundTrips = redis.getRoundTrips();
+        assertTrue(hashTagged.deleteById(ids.get(0)));
+        assertEquals(roundTrips + 1, redis.getRoundTrips());
+        assertEquals(4, redis.countKeys(prefix));
+        assertEquals(1, hashTagged.deleteByIds(ids.subList(1, 2)));
+        assertEquals(2, redis.countKeys(prefix));
+
+        hashTagged.setScriptExecutor(null);
+        assertTrue(hashTagged.deleteById(ids.get(2)));
+        assertEquals(0, redis.countKeys(prefix));
+        assertFalse(hashTagged.deleteById(ids.get(2)));
+    }
+
+    /**
+     * Moves the clock of both the session manager and the redis stand-in forward.
+     */
+    private void advanceClock(Duration duration) {
+        Clock clock = Clock.offset(sessionManager.getClock(), duration);
+        sessionManager.setClock(clock);
+        redis.setClock(clock);
+    }
+
+    @Test
+    public void reaperRemovesExpiredSessions() {
+        sessionManager.setScriptExecutor(redis.scriptExecutor());
+        sessionManager.setExpirationIndexEnabled(true);
+        sessionManager.setExpirationIndexShards(1);
+        RedisSession expiring = sessionManager.createSession();
+        expiring.setAttribute("user", "zhangsan");
+        expiring.setMaxInactiveInterval(Duration.ofSeconds(1));
+        RedisSession other = sessionManager.createSession();
+        other.setAttribute("user", "lisi");
+        other.setMaxInactiveInterval(Duration.ofSeconds(1));
+        RedisSession alive = sessionManager.createSession();
+
+        List<RedisSession> expired = new ArrayList<>();
+        RedisSessionExpirationReaper reaper = new RedisSessionExpirationReaper(sessionManager);
+        reaper.setBatchSize(2);
+        reaper.addListener(expired::add);
+        assertEquals(0, reaper.reap());
+
+        advanceClock(Duration.ofSeconds(2));
+        assertTrue(cache.exists(sessionManager.getSessionKey(expiring.getId())));
+        long roundTrips = redis.getRoundTrips();
+        assertEquals(2, reaper.reap());
+        // the due sessions, their expires keys, the index updates, then no more due sessions
+        assertEquals(roundTrips + 4, redis.getRoundTrips());
+        assertEquals(new HashSet<>(Arrays.asList("zhangsan", "lisi")),
+                expired.stream().map(session -> session.getAttribute("user")).collect(Collectors.toSet()));
+        assertFalse(cache.exists(sessionManager.getSessionKey(expiring.getId())));
+        assertFalse(cache.exists(sessionManager.getSessionKey(other.getId())));
+        assertNotNull(sessionManager.findById(alive.getId()));
+        assertEquals(0, reaper.reap());
+        assertEquals(2, reaper.getReaped());
+    }
+
+    @Test
+    public void expirationIndexIsUpdatedInTheRoundTripOfTheSave() {
+        sessionManager.setScriptExecutor(redis.scriptExecutor());
+        sessionManager.setExpirationIndexEnabled(true);
+        RedisSession session = sessionManager.createSession();
+        long roundTrips = redis.getRoundTrips();
+        session.setAttribute("user", "zhangsan");
+        assertEquals(roundTrips + 1, redis.getRoundTrips());
+        assertEquals(1, redis.countKeys(sessionManager.getExpirationIndexKey(session.getId())));
+
+        RedisSessionManager hashTagged = new RedisSessionManager(cache);
+        hashTagged.setKeyLayout(RedisKeyLayout.HASH_TAGGED);
+        hashTagged.setScriptExecutor(redis.scriptExecutor());
+        hashTagged.setExpirationIndexEnabled(true);
+        hashTagged.setRedisKeyNamespace("tagged:session");
+        Set<String> shards = new HashSet<>();
+        for (int i = 0; i < 64; i++) {
+            RedisSession tagged = hashTagged.createSession();
+            roundTrips = redis.getRoundTrips();
+            tagged.setAttribute("user", "zhangsan");
+            assertEquals(roundTrips + 1, redis.getRoundTrips());
+            shards.add(hashTagged.getExpirationIndexKey(tagged.getId()));
+        }
+        assertTrue(shards.size() > 1);
+        assertEquals(shards.size(), redis.countKeys("tagged:session:expirations:"));
+    }
+
+    @Test
+    public void attributeCodecsReadValuesWrittenBefore() {
+        sessionManager.setScriptExecutor(redis.scriptExecutor());
+        RedisSession session = sessionManager.createSession();
+        session.setAttribute("before", "zhangsan");
+
+        sessionManager.setAttributeCodecs(AttributeCodecs.compact());
+        session.setAttribute("after", new ArrayList<>(Arrays.asList(1L, 2L)));
+        // without a script executor the values go through the serializer of the cache
+        sessionManager.setScriptExecutor(null);
+        session.setAttribute("plain", "lisi");
+        sessionManager.setScriptExecutor(redis.scriptExecutor());
+
+        RedisSession found = sessionManager.findById(session.getId());
+        assertEquals("zhangsan", found.getAttribute("before"));
+        assertEquals(Arrays.asList(1L, 2L), found.getAttribute("after"));
+        assertEquals("lisi", found.getAttribute("plain"));
+    }
+
+    @Test
+    public void attributeCodecsWriteTheEncodedBytesAsIs() {
+        sessionManager.setScriptExecutor(redis.scriptExecutor());
+        AttributeCodecs attributeCodecs = AttributeCodecs.compact();
+        sessionManager.setAttributeCodecs(attributeCodecs);
+        RedisSession session = sessionManager.createSession();
+        session.setAttribute("cart", new ArrayList<>(Arrays.asList(1L, 2L)));
+
+        byte[] stored = redis.hGetRaw(sessionManager.getSessionKey(session.getId()), "sessionAttr:cart");
+        assertEquals(CompactAttributeCodec.ID, stored[0]);
+        assertArrayEquals(attributeCodecs.encode("cart", new ArrayList<>(Arrays.asList(1L, 2L))), stored);
+        sessionManager.setLazyAttributeLoading(true);
+        assertEquals(Collections.singleton("cart"), sessionManager.findById(session.getId()).getAttributeNames());
+    }
+
+    @Test
+    public void attributeCodecsDecodeEachValueOnce() {
+        sessionManager.setScriptExecutor(redis.scriptExecutor());
+        sessionManager.setAttributeCodecs(AttributeCodecs.compact());
+        // byte arrays starting with the identifiers of the compact and jdk codecs
+        byte[] compactLike = new byte[]{0x01, 0x02, 0x03};
+        byte[] jdkLike = new byte[]{(byte) 0xAC, (byte) 0xED, 0x00, 0x05};
+        RedisSession session = sessionManager.createSession();
+        session.setAttribute("compactLike", compactLike);
+        session.setAttribute("jdkLike", jdkLike);
+
+        RedisSession found = sessionManager.findById(session.getId());
+        assertArrayEquals(compactLike, (byte[]) found.getAttribute("compactLike"));
+        assertArrayEquals(jdkLike, (byte[]) found.getAttribute("jdkLike"));
+        found = sessionManager.findById(session.getId(), "compactLike", "jdkLike");
+        assertArrayEquals(compactLike, (byte[]) found.getAttribute("compactLike"));
+        assertArrayEquals(jdkLike, (byte[]) found.getAttribute("jdkLike"));
+    }
+
+    @Test
+    public void dirtyCheckingWritesOnlyChangedAttributes() {
+        sessionManager.setScriptExecutor(redis.scriptExecutor());
+        sessionManager.setDirtyChecking(true);
+        RedisSession session = sessionManager.createSession();
+        session.setAttribute("user", "zhangsan");
+        session.setAttribute("cart", new ArrayList<>(Arrays.asList(1L)));
+
+        RedisSession found = sessionManager.findById(session.getId());
+        long roundTrips = redis.getRoundTrips();
+        found.setAttribute("user", "zhangsan");
+        found.setAttribute("cart", found.getAttribute("cart"));
+        sessionManager.save(found);
+        assertEquals(roundTrips, redis.getRoundTrips());
+        assertEquals(2, sessionManager.getUnchangedAttributesSkipped());
+
+        List<Long> cart = found.getAttribute("cart");
+        cart.add(2L);
+        sessionManager.save(found);
+        assertEquals(roundTrips + 1, redis.getRoundTrips());
+        assertEquals(1, sessionManager.getChangedAttributesDetected());
+        assertEquals(Arrays.asList(1L, 2L), sessionManager.findById(session.getId()).getAttribute("cart"));
+    }
+
+    private RedisSessionManager nearCachedSessionManager() {
+        RedisSessionManager sessionManager = new RedisSessionManager(cache);
+        sessionManager.setScriptExecutor(redis.scriptExecutor());
+        RedisSessionNearCache nearCache = new RedisSessionNearCache(100, Duration.ofMinutes(1));
+        sessionManager.setNearCache(nearCache);
+        redis.subscribe(sessionManager.getInvalidationChannel(), nearCache::onInvalidationMessage);
+        return sessionManager;
+    }
+
+    @Test
+    public void newSessionsClaimTheirIds() {
+        sessionManager.setScriptExecutor(redis.scriptExecutor());
+        RedisSession existing = sessionManager.createSession("taken");
+        existing.setAttribute("user", "zhangsan");
+
+        Iterator<String> ids = Arrays.asList("taken", "fresh").iterator();
+        sessionManager.setSessionIdGenerator(new StandardSessionIdGenerator() {
+            @Override
+            public String generateSessionId(String route) {
+                return ids.next();
+            }
+        });
+        long roundTrips = redis.getRoundTrips();
+        RedisSession session = sessionManager.createSession();
+        // one rejected claim and one write, no existence probe
+        assertEquals(roundTrips + 2, redis.getRoundTrips());
+        assertEquals("fresh", session.getId());
+        assertNotNull(sessionManager.findById("fresh"));
+        assertEquals("zhangsan", sessionManager.findById("taken").getAttribute("user"));
+
+        try {
+            sessionManager.createSession("taken");
+            fail("the id given by the caller is taken");
+        } catch (SessionException e) {
+            // expected
+        }
+        assertEquals("zhangsan", sessionManager.findById("taken").getAttribute("user"));
+    }
+
+    @Test
+    public void bytesChangedAreRecordedOnceForTheWrittenAttributes() {
+        sessionManager.setScriptExecutor(redis.scriptExecutor());
+        RedisSession existing = sessionManager.createSession("taken");
+        existing.setAttribute("user", "zhangsan");
+        SimpleSessionMetrics metrics = new SimpleSessionMetrics();
+        sessionManager.setMetrics(metrics);
+        sessionManager.setFlushMode(RedisFlushMode.ON_COMMIT);
+
+        Iterator<String> ids = Arrays.asList("taken", "fresh").iterator();
+        sessionManager.setSessionIdGenerator(new StandardSessionIdGenerator() {
+            @Override
+            public String generateSessionId(String route) {
+                return ids.next();
+            }
+        });
+        RedisSession session = sessionManager.createSession();
+        session.setAttribute("user", "lisi");
+        session.setAttribute("user", "wangwu");
+        sessionManager.save(session);
+        assertEquals("fresh", session.getId());
+        // the rejected claim is not counted, nor the fields other than the attributes
+        byte[] written = redis.hGetRaw(sessionManager.getSessionKey("fresh"), RedisSessionManager.SESSION_ATTR_PREFIX + "user");
+        assertEquals(written.length, metrics.getBytesChanged());
+
+        // only the changed attribute is counted
+        session.setAttribute("role", "admin");
+        sessionManager.save(session);
+        byte[] role = redis.hGetRaw(sessionManager.getSessionKey("fresh"), RedisSessionManager.SESSION_ATTR_PREFIX + "role");
+        assertEquals(written.length + role.length, metrics.getBytesChanged());
+    }
+
+    @Test
+    public void changeSessionIdIsAtomicUnderConcurrency() throws Exception {
+        assertEquals(12739, RedisClusterSlots.slot("123456789"));
+        sessionManager.setScriptExecutor(redis.scriptExecutor());
+        sessionManager.setKeyLayout(RedisKeyLayout.HASH_TAGGED);
+        RedisSession other = sessionManager.createSession();
+        other.setAttribute("user", "lisi");
+        List<RedisSession> sessions = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            RedisSession session = sessionManager.createSession();
+            session.setAttribute("user", "user" + i);
+            sessions.add(session);
+        }
+
+        // every thread rotates the id of its own session, and tries to take the other one's
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (RedisSession session : sessions) {
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 50; i++) {
+                    String id = session.getId();
+                    String newId = sessionManager.changeSessionId(session);
+                    assertEquals(RedisClusterSlots.slot(id), RedisClusterSlots.slot(newId));
+                    assertFalse(sessionManager.changeSessionId(session, other.getId()));
+                    assertEquals(newId, session.getId());
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        Set<String> ids = new HashSet<>();
+        for (int i = 0; i < sessions.size(); i++) {
+            String id = sessions.get(i).getId();
+            assertTrue(ids.add(id));
+            assertEquals("user" + i, sessionManager.findById(id).getAttribute("user"));
+        }
+        assertEquals("lisi", sessionManager.findById(other.getId()).getAttribute("user"));
+        // one hash and one expires key per session, nothing left behind
+        assertEquals(2 * (sessions.size() + 1), redis.countKeys(RedisSessionManager.DEFAULT_NAMESPACE + ":sessions:"));
+    }
+
+    @Test
+    public void deleteByIdRemovesBothKeysWithoutLoading() {
+        sessionManager.setScriptExecutor(redis.scriptExecutor());
+        sessionManager.setKeyLayout(RedisKeyLayout.HASH_TAGGED);
+        RedisSession session = sessionManager.createSession();
+        session.setAttribute("user", "zhangsan");
+
+        long roundTrips = redis.getRoundTrips();
+        assertTrue(sessionManager.deleteById(session.getId()));
+        assertEquals(roundTrips + 1, redis.getRoundTrips());
+        assertFalse(cache.exists(sessionManager.getSessionKey(session.getId())));
+        assertFalse(cache.exists(sessionManager.getExpiredKey(session.getId())));
+        assertFalse(sessionManager.deleteById(session.getId()));
+
+        List<String> ids = new ArrayList<>();
+        Set<Integer> slots = new HashSet<>();
+        for (int i = 0; i < 5; i++) {
+            RedisSession created = sessionManager.createSession();
+            ids.add(created.getId());
+            slots.add(RedisClusterSlots.slot(created.getId()));
+        }
+        ids.add("missing");
+        slots.add(RedisClusterSlots.slot("missing"));
+        roundTrips = redis.getRoundTrips();
+        assertEquals(5, sessionManager.deleteByIds(ids));
+        // one call per cluster slot
+        assertEquals(roundTrips + slots.size(), redis.getRoundTrips());
+        assertEquals(0, redis.countKeys(RedisSessionManager.DEFAULT_NAMESPACE + ":sessions:"));
+
+        sessionManager.setScriptExecutor(null);
+        RedisSession plain = sessionManager.createSession();
+        plain.setAttribute("user", "lisi");
+        assertTrue(sessionManager.deleteById(plain.getId()));
+        assertFalse(cache.exists(sessionManager.getSessionKey(plain.getId())));
+        assertFalse(sessionManager.deleteById(plain.getId()));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void deleteByIdWithoutScriptExecutorDeletesOneKeyAtATime() {
+        // as a redis cluster, on which the legacy keys of a session are in different slots
+        CacheApi<String, Object> clusterCache = (CacheApi<String, Object>) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{CacheApi.class}, (proxy, method, args) -> {
+                    if ("del".equals(method.getName()) && args[0] instanceof Object[] && ((Object[]) args[0]).length > 1)
+                        throw new IllegalStateException("CROSSSLOT Keys in request don't hash to the same slot");
+
+                    return method.invoke(cache, args);
+                });
+        sessionManager = new RedisSessionManager(clusterCache);
+        RedisSession session = sessionManager.createSession();
+        session.setAttribute("user", "zhangsan");
+
+        assertTrue(sessionManager.deleteById(session.getId()));
+        assertFalse(cache.exists(sessionManager.getSessionKey(session.getId())));
+        assertFalse(cache.exists(sessionManager.getExpiredKey(session.getId())));
+        assertFalse(sessionManager.deleteById(session.getId()));
+    }
+
+    @Test
+    public void asyncManagerPipelinesConcurrentCalls() {
+        sessionManager.setScriptExecutor(redis.scriptExecutor());
+        sessionManager.setFlushMode(RedisFlushMode.ON_COMMIT);
+        redis.setRoundTripLatency(Duration.ofMillis(5));
+        RedisAsyncSessionManager asyncManager = new RedisAsyncSessionManager(sessionManager);
+
+        long roundTrips = redis.getRoundTrips();
+        List<CompletableFuture<RedisSession>> created = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            created.add(asyncManager.createSession().toCompletableFuture());
+        }
+        List<RedisSession> sessions = new ArrayList<>();
+        for (CompletableFuture<RedisSession> future : created) {
+            sessions.add(future.join());
+        }
+        // the calls made while a batch is in flight share the next round trip
+        assertTrue(redis.getRoundTrips() - roundTrips < sessions.size() / 2);
+
+        List<CompletableFuture<Void>> saved = new ArrayList<>();
+        for (int i = 0; i < sessions.size(); i++) {
+            sessions.get(i).setAttribute("user", "user" + i);
+            saved.add(asyncManager.save(sessions.get(i)).toCompletableFuture());
+        }
+        saved.forEach(CompletableFuture::join);
+        for (int i = 0; i < sessions.size(); i++) {
+            RedisSession found = asyncManager.findById(sessions.get(i).getId()).toCompletableFuture().join();
+            assertEquals("user" + i, found.getAttribute("user"));
+        }
+        assertNull(asyncManager.findById("missing").toCompletableFuture().join());
+
+        RedisSession session = sessions.get(0);
+        String id = session.getId();
+        String newId = asyncManager.changeSessionId(session).toCompletableFuture().join();
+        assertEquals(newId, session.getId());
+        assertNull(sessionManager.findById(id));
+        assertEquals("user0", sessionManager.findById(newId).getAttribute("user"));
+
+        try {
+            asyncManager.createSession(sessions.get(1).getId()).toCompletableFuture().join();
+            fail("the id given by the caller is taken");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof SessionException);
+        }
+
+        List<String> ids = new ArrayList<>();
+        sessions.forEach(s -> ids.add(s.getId()));
+        assertEquals(Integer.valueOf(sessions.size()), asyncManager.deleteByIds(ids).toCompletableFuture().join());
+        assertFalse(asyncManager.deleteById(newId).toCompletableFuture().join());
+        assertTrue(asyncManager.getBatches() < asyncManager.getCalls());
+    }
+
+    @Test
+    public void asyncManagerCompletesStagesWithTheCompletionExecutor() {
+        sessionManager.setKeyLayout(RedisKeyLayout.HASH_TAGGED);
+        sessionManager.setScriptExecutor(new ClusterScriptExecutor(redis.scriptExecutor()));
+        try {
+            new RedisAsyncSessionManager(sessionManager);
+            fail("the calls of the cluster executor are sent one after the other");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        sessionManager.setScriptExecutor(redis.scriptExecutor());
+        AtomicInteger completions = new AtomicInteger();
+        ExecutorService pipelineExecutor = Executors.newSingleThreadExecutor();
+        ExecutorService completionExecutor = Executors.newFixedThreadPool(2);
+        try {
+            RedisAsyncSessionManager asyncManager = new RedisAsyncSessionManager(sessionManager, pipelineExecutor,
+                    task -> {
+                        completions.incrementAndGet();
+                        completionExecutor.execute(task);
+                    }, RedisAsyncSessionManager.DEFAULT_MAX_BATCH_SIZE);
+            RedisSession session = asyncManager.createSession().toCompletableFuture().join();
+            assertEquals(session.getId(), asyncManager.findById(session.getId()).toCompletableFuture().join().getId());
+            assertEquals(asyncManager.getCalls(), completions.get());
+        } finally {
+            pipelineExecutor.shutdown();
+            completionExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void asyncManagerRunsBlockingCommandsWithTheBlockingExecutor() {
+        RedisSession legacy = sessionManager.createSession();
+        legacy.setAttribute("user", "zhangsan");
+        RedisSessionManager hashTagged = new RedisSessionManager(cache);
+        hashTagged.setKeyLayout(RedisKeyLayout.HASH_TAGGED);
+        hashTagged.setScriptExecutor(redis.scriptExecutor());
+        hashTagged.setFlushMode(RedisFlushMode.ON_COMMIT);
+
+        AtomicInteger blockingTasks = new AtomicInteger();
+        ExecutorService pipelineExecutor = Executors.newSingleThreadExecutor();
+        ExecutorService blockingExecutor = Executors.newSingleThreadExecutor();
+        try {
+            RedisAsyncSessionManager asyncManager = new RedisAsyncSessionManager(hashTagged, pipelineExecutor,
+                    Runnable::run, task -> {
+                        blockingTasks.incrementAndGet();
+                        blockingExecutor.execute(task);
+                    }, RedisAsyncSessionManager.DEFAULT_MAX_BATCH_SIZE);
+            RedisSession found = asyncManager.findById(legacy.getId()).toCompletableFuture().join();
+            assertEquals("zhangsan", found.getAttribute("user"));
+            assertEquals(1, blockingTasks.get());
+            assertEquals("zhangsan", asyncManager.findById(legacy.getId()).toCompletableFuture().join().getAttribute("user"));
+            assertEquals(1, blockingTasks.get());
+        } finally {
+            pipelineExecutor.shutdown();
+            blockingExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Forwards to the stand-in executor as if it targeted a redis cluster, without pipelining.
+     */
+    private static final class ClusterScriptExecutor implements RedisScriptExecutor {
+
+        private final RedisScriptExecutor delegate;
+
+        ClusterScriptExecutor(RedisScriptExecutor delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public <T> T execute(RedisScript<T> script, List<String> keys, List<?> args) {
+            return delegate.execute(script, keys, args);
+        }
+
+        @Override
+        public boolean isCluster() {
+            return true;
+        }
+
+        @Override
+        public byte[] serializeValue(Object value) {
+            return delegate.serializeValue(value);
+        }
+
+        @Override
+        public Object deserializeValue(byte[] bytes) {
+            return delegate.deserializeValue(bytes);
+        }
+    }
+
+    @Test
+    public void findFirstByIdChecksAllCandidatesInOneRoundTrip() {
+        sessionManager.setScriptExecutor(redis.scriptExecutor());
+        RedisSession first = sessionManager.createSession();
+        first.setAttribute("user", "zhangsan");
+        RedisSession second = sessionManager.createSession();
+        second.setAttribute("user", "lisi");
+
+        long roundTrips = redis.getRoundTrips();
+        RedisSession found = sessionManager.findFirstById(Arrays.asList("missing", second.getId(), first.getId()));
+        assertEquals(roundTrips + 1, redis.getRoundTrips());
+        assertEquals(second.getId(), found.getId());
+        assertEquals("lisi", found.getAttribute("user"));
+        assertNull(sessionManager.findFirstById(Arrays.asList("missing", "missing", "gone")));
+
+        sessionManager.setLazyAttributeLoading(true);
+        found = sessionManager.findFirstById(Arrays.asList("missing", first.getId()));
+        assertEquals("zhangsan", found.getAttribute("user"));
+    }
+
+    @Test
+    public void findFirstByIdStopsAtTheFirstCandidateFoundWithoutPipelining() {
+        sessionManager.setKeyLayout(RedisKeyLayout.HASH_TAGGED);
+        sessionManager.setScriptExecutor(new ClusterScriptExecutor(redis.scriptExecutor()));
+        RedisSession first = sessionManager.createSession();
+        first.setAttribute("user", "zhangsan");
+        RedisSession second = sessionManager.createSession();
+        second.setAttribute("user", "lisi");
+
+        long roundTrips = redis.getRoundTrips();
+        RedisSession found = sessionManager.findFirstById(Arrays.asList("missing", second.getId(), first.getId()));
+        assertEquals(roundTrips + 2, redis.getRoundTrips());
+        assertEquals("lisi", found.getAttribute("user"));
+    }
+
+    @Test
+    public void principalIndexFindsAndDeletesSessionsOfAUser() {
+        sessionManager.setScriptExecutor(redis.scriptExecutor());
+        sessionManager.setKeyLayout(RedisKeyLayout.HASH_TAGGED);
+        sessionManager.setExpirationIndexEnabled(true);
+        sessionManager.setPrincipalIndexEnabled(true);
+        String principal = FindByPrincipalNameSessionManager.PRINCIPAL_NAME_ATTRIBUTE;
+        RedisSession first = sessionManager.createSession();
+        first.setAttribute(principal, "zhangsan");
+        RedisSession second = sessionManager.createSession();
+        second.setAttribute(principal, "zhangsan");
+        RedisSession other = sessionManager.createSession();
+        other.setAttribute(principal, "lisi");
+
+        Map<String, RedisSession> found = sessionManager.findByPrincipalName("zhangsan");
+        assertEquals(new HashSet<>(Arrays.asList(first.getId(), second.getId())), found.keySet());
+        String oldId = first.getId();
+        sessionManager.changeSessionId(first);
+        assertEquals(new HashSet<>(Arrays.asList(first.getId(), second.getId())),
+                sessionManager.findByPrincipalName("zhangsan").keySet());
+
+        // moved to the index of the new principal, even if not loaded yet
+        sessionManager.setLazyAttributeLoading(true);
+        sessionManager.findById(second.getId(), "user").setAttribute(principal, "lisi");
+        assertEquals(Collections.singleton(first.getId()), sessionManager.findByPrincipalName("zhangsan").keySet());
+        assertEquals(2, sessionManager.findByPrincipalName("lisi").size());
+        assertFalse(cache.exists(sessionManager.getSessionKey(oldId)));
+
+        // stale ids are dropped by the lookups
+        sessionManager.deleteById(first.getId());
+        assertTrue(sessionManager.findByPrincipalName("zhangsan").isEmpty());
+        assertEquals(0, redis.countKeys(sessionManager.getPrincipalIndexKey("zhangsan")));
+
+        // and the ids of the expired sessions by the reaper
+        RedisSession expiring = sessionManager.createSession();
+        expiring.setAttribute(principal, "wangwu");
+        expiring.setMaxInactiveInterval(Duration.ofSeconds(1));
+        advanceClock(Duration.ofSeconds(2));
+        assertEquals(1, new RedisSessionExpirationReaper(sessionManager).reap());
+        assertEquals(0, redis.countKeys(sessionManager.getPrincipalIndexKey("wangwu")));
+
+        long roundTrips = redis.getRoundTrips();
+        assertEquals(2, sessionManager.deleteByPrincipalName("lisi"));
+        // the index lookup, then all the deletes together
+        assertEquals(roundTrips + 2, redis.getRoundTrips());
+        assertNull(sessionManager.findById(second.getId()));
+        assertNull(sessionManager.findById(other.getId()));
+        assertEquals(0, redis.countKeys(sessionManager.getPrincipalIndexKey("lisi")));
+        assertEquals(0, sessionManager.deleteByPrincipalName("lisi"));
+    }
+
+    @Test
+    public void principalIndexExpiresWithItsLastSessionAndDropsManyStaleIds() {
+        sessionManager.setScriptExecutor(redis.scriptExecutor());
+        sessionManager.setPrincipalIndexEnabled(true);
+        String principal = FindByPrincipalNameSessionManager.PRINCIPAL_NAME_ATTRIBUTE;
+        RedisSession session = sessionManager.createSession();
+        session.setMaxInactiveInterval(Duration.ofMinutes(10));
+        session.setAttribute(principal, "zhangsan");
+        long ttl = cache.ttl(sessionManager.getPrincipalIndexKey("zhangsan"));
+        assertTrue(ttl > 590 && ttl <= 600);
+        session.setMaxInactiveInterval(Duration.ofMinutes(20));
+        session.setAttribute("user", "zhangsan");
+        assertTrue(cache.ttl(sessionManager.getPrincipalIndexKey("zhangsan")) > 600);
+
+        // more stale ids than a script can unpack at once
+        List<RedisScriptCall<?>> calls = new ArrayList<>();
+        long expiresAt = System.currentTimeMillis() + 60_000;
+        for (int i = 0; i < 8500; i++) {
+            calls.add(new RedisScriptCall<>(RedisSessionScripts.INDEX_PRINCIPAL,
+                    Collections.singletonList(sessionManager.getPrincipalIndexKey("lisi")), Arrays.asList("gone-" + i, expiresAt)));
+        }
+        redis.scriptExecutor().executePipelined(calls);
+        assertTrue(sessionManager.findByPrincipalName("lisi").isEmpty());
+        assertEquals(0, redis.countKeys(sessionManager.getPrincipalIndexKey("lisi")));
+    }
+
+    @Test
+    public void principalIndexKeepsTheSessionsWhichNeverExpire() {
+        sessionManager.setScriptExecutor(redis.scriptExecutor());
+        sessionManager.setPrincipalIndexEnabled(true);
+        String principal = FindByPrincipalNameSessionManager.PRINCIPAL_NAME_ATTRIBUTE;
+        RedisSession forever = sessionManager.createSession();
+        forever.setMaxInactiveInterval(Duration.ofSeconds(-1));
+        forever.setAttribute(principal, "zhangsan");
+        RedisSession other = sessionManager.createSession();
+        other.setAttribute(principal, "zhangsan");
+
+        String indexKey = sessionManager.getPrincipalIndexKey("zhangsan");
+        List<?> ids = redis.scriptExecutor().execute(RedisSessionScripts.FIND_PRINCIPAL_SESSIONS,
+                Collections.singletonList(indexKey), Collections.emptyList());
+        assertEquals(2, ids.size());
+        assertEquals(other.getId(), new String((byte[]) ids.get(0), StandardCharsets.UTF_8));
+        assertEquals(-1L, cache.ttl(indexKey).longValue());
+    }
+
+    @Test
+    public void maxSessionsPerPrincipalEvictsOldestOrRejects() {
+        sessionManager.setScriptExecutor(redis.scriptExecutor());
+        sessionManager.setPrincipalIndexEnabled(true);
+        sessionManager.setMaxSessionsPerPrincipal(2);
+        String principal = FindByPrincipalNameSessionManager.PRINCIPAL_NAME_ATTRIBUTE;
+        RedisSession oldest = sessionManager.createSession();
+        oldest.setMaxInactiveInterval(Duration.ofMinutes(10));
+        oldest.setAttribute(principal, "zhangsan");
+        RedisSession second = sessionManager.createSession();
+        second.setAttribute(principal, "zhangsan");
+        second.setAttribute(principal, "zhangsan");
+
+        RedisSession third = sessionManager.createSession();
+        third.setAttribute(principal, "zhangsan");
+        assertNull(sessionManager.findById(oldest.getId()));
+        assertEquals(new HashSet<>(Arrays.asList(second.getId(), third.getId())),
+                sessionManager.findByPrincipalName("zhangsan").keySet());
+        assertEquals(1, sessionManager.getSessionsEvicted());
+
+        sessionManager.setMaxSessionsPolicy(RedisMaxSessionsPolicy.REJECT);
+        RedisSession rejected = sessionManager.createSession();
+        try {
+            rejected.setAttribute(principal, "zhangsan");
+            fail();
+        } catch (MaxSessionsExceededException e) {
+            assertEquals("zhangsan", e.getPrincipalName());
+        }
+        assertNull(rejected.getAttribute(principal));
+        assertNotNull(sessionManager.findById(rejected.getId()));
+        assertNull(sessionManager.findById(rejected.getId()).getAttribute(principal));
+        assertEquals(2, sessionManager.findByPrincipalName("zhangsan").size());
+        assertEquals(1, sessionManager.getSessionsRejected());
+
+        // room is made by the sessions leaving
+        sessionManager.deleteById(second.getId());
+        rejected.setAttribute(principal, "zhangsan");
+        assertEquals(2, sessionManager.findByPrincipalName("zhangsan").size());
+    }
+
+    @Test
+    public void quotaRequiresTheExpirationIndex() {
+        try {
+            sessionManager.setQuota(new RedisSessionQuota());
+            fail("no script executor");
+        } catch (IllegalStateException expected) {
+        }
+        sessionManager.setScriptExecutor(redis.scriptExecutor());
+        try {
+            sessionManager.setQuota(new RedisSessionQuota());
+            fail("no expiration index");
+        } catch (IllegalStateException expected) {
+            assertNull(sessionManager.getQuota());
+        }
+
+        sessionManager.setExpirationIndexEnabled(true);
+        sessionManager.setQuota(new RedisSessionQuota());
+        try {
+            sessionManager.setExpirationIndexEnabled(false);
+            fail("the quota counts the sessions in the expiration index");
+        } catch (IllegalStateException expected) {
+            assertTrue(sessionManager.isExpirationIndexEnabled());
+        }
+        try {
+            sessionManager.setScriptExecutor(null);
+            fail("the quota counts the sessions with a script");
+        } catch (IllegalStateException expected) {
+            assertNotNull(sessionManager.getScriptExecutor());
+        }
+    }
+
+    @Test
+    public void quotaShortensThenRefusesNewSessions() {
+        sessionManager.setScriptExecutor(redis.scriptExecutor());
+        sessionManager.setExpirationIndexEnabled(true);
+        RedisSessionQuota quota = new RedisSessionQuota();
+        quota.setSoftLimit(2);
+        quota.setHardLimit(3);
+        quota.setReducedMaxInactiveInterval(Duration.ofMinutes(1));
+        quota.setRefreshInterval(Duration.ZERO);
+        quota.setSampleRate(1);
+        sessionManager.setQuota(quota);
+
+        RedisSession first = sessionManager.createSession();
+        first.setAttribute("user", "zhangsan");
+        sessionManager.createSession();
+        assertEquals(sessionManager.getDefaultMaxInactiveInterval(), first.getMaxInactiveInterval());
+        assertEquals(Duration.ofMinutes(1), sessionManager.createSession().getMaxInactiveInterval());
+        try {
+            sessionManager.createSession();
+            fail();
+        } catch (SessionQuotaExceededException e) {
+            assertEquals(1, quota.getSessionsRefused());
+        }
+        assertEquals(1, quota.getSessionsShortened());
+        assertEquals(3, quota.getSessions());
+
+        assertNotNull(sessionManager.findById(first.getId()));
+        assertTrue(quota.getBytesPerSession() > 0);
+        assertEquals(quota.getBytesPerSession() * 3, quota.getEstimatedBytes());
+
+        // the global limit counts the sessions of the other namespaces
+        RedisSessionManager otherManager = new RedisSessionManager(cache);
+        otherManager.setRedisKeyNamespace("other:session");
+        otherManager.setScriptExecutor(redis.scriptExecutor());
+        otherManager.setExpirationIndexEnabled(true);
+        RedisSessionQuota otherQuota = new RedisSessionQuota();
+        otherQuota.setGlobalHardLimit(4);
+        otherQuota.setRefreshInterval(Duration.ZERO);
+        otherManager.setQuota(otherQuota);
+        otherManager.createSession();
+        try {
+            otherManager.createSession();
+            fail();
+        } catch (SessionQuotaExceededException e) {
+            assertEquals(4, otherQuota.getGlobalSessions());
+        }
+    }
+
+    @Test
+    public void quotaCountsSessionsWhichNeverExpireAndDropsStaleNamespaces() {
+        sessionManager.setScriptExecutor(redis.scriptExecutor());
+        sessionManager.setExpirationIndexEnabled(true);
+        RedisSessionQuota quota = new RedisSessionQuota();
+        quota.setRefreshInterval(Duration.ZERO);
+        quota.setRegistryEntryTimeToLive(Duration.ofMinutes(1));
+        sessionManager.setQuota(quota);
+        // a namespace last recorded two minutes ago
+        long recordedAt = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(2);
+        redis.scriptExecutor().execute(RedisSessionScripts.REGISTER_NAMESPACE,
+                Collections.singletonList(RedisSessionQuota.DEFAULT_REGISTRY_KEY),
+                Arrays.asList("gone:session", 100, recordedAt, TimeUnit.MINUTES.toMillis(1)));
+
+        RedisSession forever = sessionManager.createSession();
+        forever.setMaxInactiveInterval(Duration.ofSeconds(-1));
+        forever.setAttribute("user", "zhangsan");
+        assertEquals(-1L, cache.ttl(sessionManager.getExpiredKey(forever.getId())).longValue());
+        assertNotNull(sessionManager.findById(forever.getId()));
+
+        sessionManager.createSession();
+        assertEquals(2, quota.getSessions());
+        assertEquals(2, quota.getGlobalSessions());
+        assertTrue(cache.ttl(RedisSessionQuota.DEFAULT_REGISTRY_KEY) > 0);
+    }
+
+    @Test
+    public void instrumentationRecordsOperationsAndCommands() {
+        SimpleSessionMetrics metrics = new SimpleSessionMetrics();
+        sessionManager.setScriptExecutor(new InstrumentedRedisScriptExecutor(redis.scriptExecutor(), metrics));
+        sessionManager.setFlushMode(RedisFlushMode.ON_COMMIT);
+        sessionManager.setMetrics(metrics);
+        InstrumentedSessionManager<RedisSession> instrumented = new InstrumentedSessionManager<>(sessionManager, metrics);
+
+        RedisSession session = instrumented.createSession();
+        session.setAttribute("user", "zhangsan");
+        instrumented.save(session);
+        assertNotNull(instrumented.findById(session.getId()));
+        instrumented.changeSessionId(session);
+        try {
+            instrumented.changeSessionId(session, "");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals(1, metrics.getFailures(SessionOperation.CHANGE_SESSION_ID));
+        }
+        assertTrue(instrumented.deleteById(session.getId()));
+
+        for (SessionOperation operation : SessionOperation.values()) {
+            assertTrue(metrics.getCount(operation) > 0);
+        }
+        assertTrue(metrics.getPercentileNanos(SessionOperation.SAVE, 0.99) > 0);
+        assertEquals(1, metrics.getCommandCount("saveSession"));
+        assertEquals(1, metrics.getCommandCount("findSession"));
+        assertEquals(1, metrics.getCommandCount("renameSession"));
+        assertEquals(1, metrics.getCommandCount("deleteSessions"));
+        assertTrue(metrics.getBytesRead() > 0);
+        // the metadata, keys and commands cost more than the value itself
+        assertTrue(metrics.getBytesChanged() > 0);
+        assertTrue(metrics.getWriteAmplification() > 1);
+    }
+}
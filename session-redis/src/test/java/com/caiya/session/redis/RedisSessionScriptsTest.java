@@ -0,0 +1,254 @@
+package com.caiya.session.redis;
+
+import com.caiya.cache.redis.JedisCache;
+import com.caiya.serialization.jdk.JdkSerializationSerializer;
+import com.caiya.serialization.jdk.StringSerializer;
+import com.caiya.session.FindByPrincipalNameSessionManager;
+import com.caiya.session.SessionException;
+import com.caiya.session.redis.support.RedisServerResource;
+import com.caiya.session.redis.util.Constant;
+import com.caiya.session.util.StandardSessionIdGenerator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisCluster;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the session manager through the jedis cluster client and the
+ * {@link JedisClusterScriptExecutor}, over the redis protocol: by default against the
+ * {@link com.caiya.session.redis.support.EmbeddedRedisServer}, which emulates the scripts
+ * of {@link RedisSessionScripts}, and against a real redis, which runs them, with
+ * {@code -Dredis.server} or {@code -Dredis.url}, see {@link RedisServerResource}.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public class RedisSessionScriptsTest {
+
+    @ClassRule
+    public static final RedisServerResource redisServer = new RedisServerResource();
+
+    private static final String KEY_PREFIX = Constant.DEFAULT_CACHE_NAME + ":";
+
+    private JedisCluster jedisCluster;
+
+    private RedisSessionManager sessionManager;
+
+    @Before
+    public void setUp() {
+        redisServer.flushAll();
+        jedisCluster = new JedisCluster(Collections.singleton(new HostAndPort(redisServer.getHost(), redisServer.getPort())));
+        sessionManager = newSessionManager();
+    }
+
+    private RedisSessionManager newSessionManager() {
+        JedisCache<String, Object> cache = new JedisCache<>(jedisCluster);
+        StringSerializer stringSerializer = new StringSerializer();
+        JdkSerializationSerializer jdkSerializationSerializer = new JdkSerializationSerializer();
+        cache.setKeySerializer(stringSerializer);
+        cache.setValueSerializer(jdkSerializationSerializer);
+        cache.setHashKeySerializer(stringSerializer);
+        cache.setHashValueSerializer(jdkSerializationSerializer);
+        cache.setKeyPrefix(KEY_PREFIX.getBytes(StandardCharsets.UTF_8));
+        RedisSessionManager sessionManager = new RedisSessionManager(cache);
+        sessionManager.setRedisKeyNamespace(Constant.DEFAULT_SESSION_NAMESPACE);
+        sessionManager.setKeyLayout(RedisKeyLayout.HASH_TAGGED);
+        sessionManager.setScriptExecutor(new JedisClusterScriptExecutor(jedisCluster, KEY_PREFIX.getBytes(StandardCharsets.UTF_8)));
+        return sessionManager;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        jedisCluster.close();
+    }
+
+    private long ttl(String key) {
+        try (Jedis jedis = new Jedis(redisServer.getHost(), redisServer.getPort())) {
+            return jedis.ttl(KEY_PREFIX + key);
+        }
+    }
+
+    @Test
+    public void savesFindsAndDeletesSessions() {
+        RedisSession session = sessionManager.createSession();
+        session.setAttribute("user", "zhangsan");
+        session.setAttribute("role", "admin");
+        session.removeAttribute("role");
+
+        RedisSession found = sessionManager.findById(session.getId());
+        assertEquals("zhangsan", found.getAttribute("user"));
+        assertNull(found.getAttribute("role"));
+        assertEquals("zhangsan", sessionManager.findById(session.getId(), "user").getAttribute("user"));
+        assertTrue(ttl(sessionManager.getExpiredKey(session.getId())) > 0);
+        assertTrue(ttl(sessionManager.getSessionKey(session.getId())) > ttl(sessionManager.getExpiredKey(session.getId())));
+
+        assertTrue(sessionManager.deleteById(session.getId()));
+        assertNull(sessionManager.findById(session.getId()));
+        assertFalse(sessionManager.deleteById(session.getId()));
+    }
+
+    @Test
+    public void newSessionsClaimTheirIds() {
+        sessionManager.createSession("taken").setAttribute("user", "zhangsan");
+        Iterator<String> ids = Arrays.asList("taken", "fresh").iterator();
+        sessionManager.setSessionIdGenerator(new StandardSessionIdGenerator() {
+            @Override
+            public String generateSessionId(String route) {
+                return ids.next();
+            }
+        });
+
+        assertEquals("fresh", sessionManager.createSession().getId());
+        assertEquals("zhangsan", sessionManager.findById("taken").getAttribute("user"));
+        try {
+            sessionManager.createSession("taken");
+            fail("the id given by the caller is taken");
+        } catch (SessionException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void changeSessionIdRenamesBothKeys() {
+        RedisSession session = sessionManager.createSession();
+        session.setAttribute("user", "zhangsan");
+        String oldId = session.getId();
+
+        String newId = sessionManager.changeSessionId(session);
+        assertNotEquals(oldId, newId);
+        assertNull(sessionManager.findById(oldId));
+        assertEquals("zhangsan", sessionManager.findById(newId).getAttribute("user"));
+    }
+
+    @Test
+    public void sessionsWhichNeverExpireHaveNoTimeToLive() {
+        sessionManager.setExpirationIndexEnabled(true);
+        RedisSession session = sessionManager.createSession();
+        session.setMaxInactiveInterval(Duration.ofSeconds(-1));
+        session.setAttribute("user", "zhangsan");
+
+        assertEquals(-1, ttl(sessionManager.getExpiredKey(session.getId())));
+        assertEquals(-1, ttl(sessionManager.getSessionKey(session.getId())));
+        assertEquals("zhangsan", sessionManager.findById(session.getId()).getAttribute("user"));
+
+        session.setMaxInactiveInterval(Duration.ZERO);
+        session.setAttribute("user", "lisi");
+        assertNull(sessionManager.findById(session.getId()));
+    }
+
+    @Test
+    public void reaperRemovesExpiredSessions() {
+        sessionManager.setExpirationIndexEnabled(true);
+        RedisSession expiring = sessionManager.createSession();
+        expiring.setMaxInactiveInterval(Duration.ofSeconds(1));
+        expiring.setAttribute("user", "zhangsan");
+        RedisSession alive = sessionManager.createSession();
+
+        List<RedisSession> expired = new ArrayList<>();
+        RedisSessionExpirationReaper reaper = new RedisSessionExpirationReaper(sessionManager);
+        reaper.addListener(expired::add);
+        assertEquals(0, reaper.reap());
+
+        // the clock of the server cannot be moved, its expiration of the expires key is done by hand
+        sessionManager.setClock(Clock.offset(Clock.systemUTC(), Duration.ofSeconds(2)));
+        try (Jedis jedis = new Jedis(redisServer.getHost(), redisServer.getPort())) {
+            jedis.del(KEY_PREFIX + sessionManager.getExpiredKey(expiring.getId()));
+        }
+        assertEquals(1, reaper.reap());
+        assertEquals(1, expired.size());
+        assertEquals("zhangsan", expired.get(0).getAttribute("user"));
+        assertEquals(-2, ttl(sessionManager.getSessionKey(expiring.getId())));
+        assertNotNull(sessionManager.findById(alive.getId()));
+    }
+
+    @Test
+    public void nearCacheServesNoStaleSessionAfterTheSubscriptionIsLost() throws InterruptedException {
+        RedisSessionNearCache nearCache = new RedisSessionNearCache(100, Duration.ofMinutes(1));
+        sessionManager.setNearCache(nearCache);
+        JedisClusterNearCacheSubscriber subscriber = new JedisClusterNearCacheSubscriber(jedisCluster, sessionManager, nearCache);
+        Thread subscriberThread = new Thread(subscriber, "near-cache-subscriber");
+        subscriberThread.setDaemon(true);
+        subscriberThread.start();
+        try {
+            awaitSubscriptions(subscriber, 1);
+            RedisSession session = sessionManager.createSession();
+            session.setAttribute("user", "zhangsan");
+            assertEquals("zhangsan", sessionManager.findById(session.getId()).getAttribute("user"));
+            assertEquals(1, nearCache.getHits());
+
+            assertEquals(1, redisServer.disconnectSubscribers());
+            // changed by another node while its invalidation message is lost
+            RedisSessionManager otherNode = newSessionManager();
+            otherNode.setNearCache(new RedisSessionNearCache(100, Duration.ofMinutes(1)));
+            otherNode.findById(session.getId()).setAttribute("user", "lisi");
+            awaitSubscriptions(subscriber, 2);
+            assertEquals("lisi", sessionManager.findById(session.getId()).getAttribute("user"));
+        } finally {
+            subscriber.close();
+            subscriberThread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        assertFalse(subscriberThread.isAlive());
+    }
+
+    private static void awaitSubscriptions(JedisClusterNearCacheSubscriber subscriber, long subscriptions)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (subscriber.getSubscriptions() < subscriptions) {
+            assertTrue("not subscribed", System.currentTimeMillis() < deadline);
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+
+    @Test
+    public void principalIndexEvictsTheOldestSessions() {
+        sessionManager.setPrincipalIndexEnabled(true);
+        sessionManager.setMaxSessionsPerPrincipal(2);
+        String principal = FindByPrincipalNameSessionManager.PRINCIPAL_NAME_ATTRIBUTE;
+        RedisSession oldest = sessionManager.createSession();
+        oldest.setMaxInactiveInterval(Duration.ofMinutes(10));
+        oldest.setAttribute(principal, "zhangsan");
+        sessionManager.createSession().setAttribute(principal, "zhangsan");
+        sessionManager.createSession().setAttribute(principal, "zhangsan");
+
+        assertEquals(2, sessionManager.findByPrincipalName("zhangsan").size());
+        assertNull(sessionManager.findById(oldest.getId()));
+        assertEquals(1, sessionManager.getSessionsEvicted());
+        assertTrue(ttl(sessionManager.getPrincipalIndexKey("zhangsan")) > 0);
+
+        assertEquals(2, sessionManager.deleteByPrincipalName("zhangsan"));
+        assertTrue(sessionManager.findByPrincipalName("zhangsan").isEmpty());
+    }
+
+    @Test
+    public void quotaCountsTheSessionsOfTheNamespaces() {
+        sessionManager.setExpirationIndexEnabled(true);
+        RedisSessionQuota quota = new RedisSessionQuota();
+        quota.setRefreshInterval(Duration.ZERO);
+        sessionManager.setQuota(quota);
+        sessionManager.createSession().setAttribute("user", "zhangsan");
+        RedisSession forever = sessionManager.createSession();
+        forever.setMaxInactiveInterval(Duration.ofSeconds(-1));
+        forever.setAttribute("user", "lisi");
+
+        sessionManager.createSession();
+        assertEquals(3, quota.getSessions());
+        assertEquals(3, quota.getGlobalSessions());
+        assertTrue(ttl(RedisSessionQuota.DEFAULT_REGISTRY_KEY) > 0);
+    }
+}
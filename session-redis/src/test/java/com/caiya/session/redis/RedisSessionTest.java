@@ -8,6 +8,7 @@ import com.caiya.session.Session;
 import static org.junit.Assert.*;
 
 import com.caiya.session.SessionManager;
+import com.caiya.session.redis.support.RedisServerResource;
 import com.caiya.session.redis.util.Constant;
 import com.caiya.session.util.StandardSessionIdGenerator;
 import org.junit.*;
@@ -19,9 +20,8 @@ import java.io.Serializable;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Objects;
-import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
@@ -34,6 +34,9 @@ import java.util.concurrent.TimeUnit;
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
 public class RedisSessionTest {
 
+    @ClassRule
+    public static final RedisServerResource redisServer = new RedisServerResource();
+
     private SessionManager sessionManager;
 
     private Session session;
@@ -46,14 +49,7 @@ public class RedisSessionTest {
 
     @Before
     public void before() {
-        Set<HostAndPort> hostAndPorts = new HashSet<>();
-        hostAndPorts.add(new HostAndPort("192.168.1.249", 7000));
-        hostAndPorts.add(new HostAndPort("192.168.1.249", 7001));
-        hostAndPorts.add(new HostAndPort("192.168.1.249", 7002));
-        hostAndPorts.add(new HostAndPort("192.168.1.249", 7003));
-        hostAndPorts.add(new HostAndPort("192.168.1.249", 7004));
-        hostAndPorts.add(new HostAndPort("192.168.1.249", 7005));
-        JedisCluster jedisCluster = new JedisCluster(hostAndPorts);
+        JedisCluster jedisCluster = new JedisCluster(Collections.singleton(new HostAndPort(redisServer.getHost(), redisServer.getPort())));
         JedisCache<String, Object> cache = new JedisCache<>(jedisCluster);
         StringSerializer stringSerializer = new StringSerializer();
         JdkSerializationSerializer jdkSerializationSerializer = new JdkSerializationSerializer();
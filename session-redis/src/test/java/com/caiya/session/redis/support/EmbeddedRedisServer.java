@@ -0,0 +1,463 @@
+package com.caiya.session.redis.support;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * In-JVM server speaking the redis protocol (RESP) in front of an {@link InMemoryRedis},
+ * so that the jedis clients, the <code>JedisCache</code> and the jedis script executors
+ * run unmodified in tests and benchmarks, without a redis installation:
+ * <pre>
+ * EmbeddedRedisServer server = new EmbeddedRedisServer().start();
+ * JedisCluster jedisCluster = new JedisCluster(new HostAndPort(server.getHost(), server.getPort()));
+ * </pre>
+ * Supported are the string, hash, key expiration and RENAME commands, EVAL and EVALSHA of
+ * the scripts of the session manager (see {@link InMemoryRedis}), PUBLISH and
+ * SUBSCRIBE. The server also answers CLUSTER SLOTS and CLUSTER NODES as a single node
+ * cluster owning all the slots, for the cluster clients.
+ * <p>
+ * The round trip latency of the {@link InMemoryRedis} is added once per batch of commands
+ * read from a connection, so that a pipeline costs one round trip as with a real server,
+ * and the command delay ({@link #setCommandDelay(Duration)}) once per command, to simulate
+ * a busy server.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public class EmbeddedRedisServer implements Closeable {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private static final int SLOTS = 16384;
+
+    private final InMemoryRedis redis;
+
+    private final String nodeId = String.format("%040x", System.identityHashCode(this));
+
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The connections which subscribed to a channel.
+     */
+    private final Set<Socket> subscribers = ConcurrentHashMap.newKeySet();
+
+    private volatile ServerSocket serverSocket;
+
+    private volatile long commandDelayNanos;
+
+    public EmbeddedRedisServer() {
+        this(new InMemoryRedis());
+    }
+
+    public EmbeddedRedisServer(InMemoryRedis redis) {
+        if (redis == null)
+            throw new IllegalArgumentException("redis cannot be null");
+
+        this.redis = redis;
+    }
+
+    /**
+     * Starts the server on a free port of the loopback interface.
+     *
+     * @return this server
+     * @throws IOException if the server socket cannot be opened
+     */
+    public EmbeddedRedisServer start() throws IOException {
+        return start(0);
+    }
+
+    /**
+     * Starts the server on the loopback interface.
+     *
+     * @param port the port, 0 for a free one
+     * @return this server
+     * @throws IOException if the server socket cannot be opened
+     */
+    public synchronized EmbeddedRedisServer start(int port) throws IOException {
+        if (serverSocket != null)
+            throw new IllegalStateException("already started");
+
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        Thread acceptor = new Thread(this::accept, "embedded-redis-" + getPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return this;
+    }
+
+    public String getHost() {
+        return serverSocket.getInetAddress().getHostAddress();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return the data of the server, also reachable through its own views
+     */
+    public InMemoryRedis getRedis() {
+        return redis;
+    }
+
+    /**
+     * Sets the latency added to each round trip, zero by default.
+     *
+     * @param latency the simulated round trip latency
+     */
+    public void setRoundTripLatency(Duration latency) {
+        redis.setRoundTripLatency(latency);
+    }
+
+    /**
+     * Sets the delay added to each command, subscriptions excepted, zero by default.
+     *
+     * @param delay the simulated processing time of a command
+     */
+    public void setCommandDelay(Duration delay) {
+        if (delay == null || delay.isNegative())
+            throw new IllegalArgumentException("delay cannot be negative");
+
+        this.commandDelayNanos = delay.toNanos();
+    }
+
+    /**
+     * Closes the connections which subscribed to a channel, as a lost subscription. The
+     * messages published until the clients subscribe again are lost.
+     *
+     * @return the number of connections closed
+     */
+    public int disconnectSubscribers() {
+        int disconnected = 0;
+        for (Socket subscriber : subscribers) {
+            try {
+                subscriber.close();
+                disconnected++;
+            } catch (IOException e) {
+                // closed anyway
+            }
+        }
+        return disconnected;
+    }
+
+    /**
+     * Stops accepting connections and closes the open ones.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (serverSocket == null) {
+            return;
+        }
+        serverSocket.close();
+        for (Socket client : clients) {
+            client.close();
+        }
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                clients.add(socket);
+                Thread handler = new Thread(new Connection(socket), "embedded-redis-" + getPort() + "-" + socket.getPort());
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private final class Connection implements Runnable {
+
+        private final Socket socket;
+
+        private final Map<String, Consumer<String>> subscriptions = new LinkedHashMap<>();
+
+        private InputStream in;
+
+        private OutputStream out;
+
+        private Connection(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            try {
+                in = new BufferedInputStream(socket.getInputStream());
+                out = new BufferedOutputStream(socket.getOutputStream());
+                List<byte[]> command;
+                while ((command = readCommand()) != null) {
+                    if (command.isEmpty()) {
+                        continue;
+                    }
+                    boolean quit = handle(command);
+                    if (in.available() == 0 || quit) {
+                        // end of the batch sent by the client
+                        if (subscriptions.isEmpty()) {
+                            redis.roundTrip();
+                        }
+                        synchronized (out) {
+                            out.flush();
+                        }
+                    }
+                    if (quit) {
+                        break;
+                    }
+                }
+            } catch (EOFException | SocketException e) {
+                // disconnected
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                for (Map.Entry<String, Consumer<String>> subscription : subscriptions.entrySet()) {
+                    redis.unsubscribe(subscription.getKey(), subscription.getValue());
+                }
+                clients.remove(socket);
+                subscribers.remove(socket);
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignored
+                }
+            }
+        }
+
+        /**
+         * @return true if the connection must be closed
+         */
+        private boolean handle(List<byte[]> command) throws IOException {
+            String name = text(command.get(0)).toUpperCase(Locale.ROOT);
+            List<byte[]> args = command.subList(1, command.size());
+            switch (name) {
+                case "QUIT":
+                    reply("OK");
+                    return true;
+                case "SUBSCRIBE":
+                    for (byte[] arg : args) {
+                        String channel = text(arg);
+                        if (!subscriptions.containsKey(channel)) {
+                            Consumer<String> listener = message -> push(channel, message);
+                            subscriptions.put(channel, listener);
+                            redis.subscribe(channel, listener);
+                            subscribers.add(socket);
+                        }
+                        reply(Arrays.asList(bytes("subscribe"), arg, (long) subscriptions.size()));
+                    }
+                    return false;
+                case "UNSUBSCRIBE":
+                    List<String> channels = new ArrayList<>();
+                    for (byte[] arg : args) {
+                        channels.add(text(arg));
+                    }
+                    if (channels.isEmpty()) {
+                        channels.addAll(subscriptions.keySet());
+                    }
+                    if (channels.isEmpty()) {
+                        reply(Arrays.asList(bytes("unsubscribe"), null, 0L));
+                    }
+                    for (String channel : channels) {
+                        Consumer<String> listener = subscriptions.remove(channel);
+                        if (listener != null) {
+                            redis.unsubscribe(channel, listener);
+                        }
+                        reply(Arrays.asList(bytes("unsubscribe"), bytes(channel), (long) subscriptions.size()));
+                    }
+                    return false;
+                case "PING":
+                    if (!subscriptions.isEmpty()) {
+                        reply(Arrays.asList(bytes("pong"), args.isEmpty() ? bytes("") : args.get(0)));
+                        return false;
+                    }
+                    break;
+                case "CLUSTER":
+                    reply(cluster(args.isEmpty() ? "" : text(args.get(0)).toUpperCase(Locale.ROOT)));
+                    return false;
+                default:
+                    if (!subscriptions.isEmpty()) {
+                        error("ERR only (P)SUBSCRIBE / (P)UNSUBSCRIBE / PING / QUIT allowed in this context");
+                        return false;
+                    }
+            }
+            long delayNanos = commandDelayNanos;
+            if (delayNanos > 0) {
+                LockSupport.parkNanos(delayNanos);
+            }
+            Object reply;
+            try {
+                reply = redis.execute(command);
+            } catch (RuntimeException e) {
+                String message = String.valueOf(e.getMessage());
+                error(message.matches("^[A-Z]+ .*") ? message : "ERR " + message);
+                return false;
+            }
+            reply(reply);
+            return false;
+        }
+
+        private Object cluster(String subcommand) {
+            String address = getHost() + ":" + getPort();
+            switch (subcommand) {
+                case "SLOTS":
+                    List<Object> node = Arrays.asList(bytes(getHost()), (long) getPort(), bytes(nodeId));
+                    return Collections.singletonList(Arrays.asList(0L, (long) SLOTS - 1, node));
+                case "NODES":
+                    return bytes(nodeId + " " + address + "@" + (getPort() + 10000)
+                            + " myself,master - 0 0 1 connected 0-" + (SLOTS - 1) + "\n");
+                case "INFO":
+                    return bytes("cluster_state:ok\r\ncluster_slots_assigned:" + SLOTS + "\r\ncluster_slots_ok:" + SLOTS
+                            + "\r\ncluster_known_nodes:1\r\ncluster_size:1\r\n");
+                case "MYID":
+                    return bytes(nodeId);
+                default:
+                    return new IllegalStateException("ERR unknown subcommand '" + subcommand.toLowerCase(Locale.ROOT) + "'");
+            }
+        }
+
+        /**
+         * Delivers a message published on a subscribed channel, from the publishing thread.
+         */
+        private void push(String channel, String message) {
+            try {
+                synchronized (out) {
+                    write(Arrays.asList(bytes("message"), bytes(channel), bytes(message)));
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // the subscriber is gone, unsubscribed when its connection ends
+            }
+        }
+
+        private void reply(Object reply) throws IOException {
+            synchronized (out) {
+                write(reply);
+            }
+        }
+
+        private void error(String message) throws IOException {
+            synchronized (out) {
+                out.write('-');
+                out.write(bytes(message));
+                out.write(CRLF);
+            }
+        }
+
+        private void write(Object reply) throws IOException {
+            if (reply == null) {
+                out.write(bytes("$-1"));
+                out.write(CRLF);
+            } else if (reply instanceof byte[]) {
+                byte[] bulk = (byte[]) reply;
+                out.write('$');
+                out.write(bytes(String.valueOf(bulk.length)));
+                out.write(CRLF);
+                out.write(bulk);
+                out.write(CRLF);
+            } else if (reply instanceof String) {
+                out.write('+');
+                out.write(bytes((String) reply));
+                out.write(CRLF);
+            } else if (reply instanceof Long || reply instanceof Integer) {
+                out.write(':');
+                out.write(bytes(String.valueOf(reply)));
+                out.write(CRLF);
+            } else if (reply instanceof List) {
+                List<?> items = (List<?>) reply;
+                out.write('*');
+                out.write(bytes(String.valueOf(items.size())));
+                out.write(CRLF);
+                for (Object item : items) {
+                    write(item);
+                }
+            } else if (reply instanceof RuntimeException) {
+                error(((RuntimeException) reply).getMessage());
+            } else {
+                write(bytes(String.valueOf(reply)));
+            }
+        }
+
+        /**
+         * @return the command, empty for a blank inline command, null at the end of the stream
+         */
+        private List<byte[]> readCommand() throws IOException {
+            int first = in.read();
+            if (first == -1) {
+                return null;
+            }
+            if (first != '*') {
+                // inline command, e.g. typed in telnet
+                List<byte[]> command = new ArrayList<>();
+                for (String word : ((char) first + readLine()).trim().split("\\s+")) {
+                    if (!word.isEmpty()) {
+                        command.add(bytes(word));
+                    }
+                }
+                return command;
+            }
+            int count = Integer.parseInt(readLine());
+            List<byte[]> command = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                if (in.read() != '$')
+                    throw new IOException("protocol error, bulk string expected");
+
+                byte[] bulk = new byte[Integer.parseInt(readLine())];
+                for (int read = 0; read < bulk.length; ) {
+                    int n = in.read(bulk, read, bulk.length - read);
+                    if (n == -1)
+                        throw new EOFException();
+                    read += n;
+                }
+                readLine();
+                command.add(bulk);
+            }
+            return command;
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c == -1)
+                    throw new EOFException();
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,1005 @@
+package com.caiya.session.redis.support;
+
+import com.caiya.cache.CacheApi;
+import com.caiya.session.redis.RedisScript;
+import com.caiya.session.redis.RedisScriptCall;
+import com.caiya.session.redis.RedisScriptExecutor;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-in of a redis server, used by tests and benchmarks which cannot
+ * reach a real redis.
+ * <p>
+ * Both the {@link CacheApi} and the {@link RedisScriptExecutor} views work on the same
+ * data, every call counts as one round trip and can be slowed down by
+ * {@link #setRoundTripLatency(Duration)} to simulate the network. Scripts are not
+ * interpreted, the stand-in emulates each known script by its name, or by its SHA1 digest
+ * when sent by a redis client through the {@link EmbeddedRedisServer}.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public class InMemoryRedis {
+
+    /**
+     * The names of the scripts of the session manager by SHA1 digest.
+     */
+    private static final Map<String, String> KNOWN_SCRIPTS = knownScripts();
+
+    /**
+     * The number of values a script can unpack onto the lua stack.
+     */
+    private static final int LUA_STACK_SIZE = 8000;
+
+    private final Map<String, Object> values = new HashMap<>();
+
+    private final Map<String, Long> expireAts = new HashMap<>();
+
+    private final Map<String, List<Consumer<String>>> subscribers = new HashMap<>();
+
+    private final Set<String> loadedScripts = new HashSet<>();
+
+    private final AtomicLong roundTrips = new AtomicLong();
+
+    private volatile long roundTripNanos;
+
+    private volatile Clock clock = Clock.systemUTC();
+
+    /**
+     * Sets the latency added to each call, zero by default.
+     *
+     * @param latency the simulated round trip latency
+     */
+    public void setRoundTripLatency(Duration latency) {
+        this.roundTripNanos = latency.toNanos();
+    }
+
+    /**
+     * Sets the clock of the expirations, so that tests can expire keys without waiting.
+     *
+     * @param clock the clock, the system one by default
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * @return the number of calls (round trips) made so far
+     */
+    public long getRoundTrips() {
+        return roundTrips.get();
+    }
+
+    /**
+     * @param prefix a key prefix
+     * @return the number of live keys starting with the prefix, not counted as a round trip
+     */
+    public synchronized int countKeys(String prefix) {
+        int count = 0;
+        for (String key : new ArrayList<>(values.keySet())) {
+            if (key.startsWith(prefix) && get(key) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param key   a hash key
+     * @param field a hash field
+     * @return the value of the field as stored, or null; not counted as a round trip
+     */
+    public synchronized byte[] hGetRaw(String key, String field) {
+        Map<String, byte[]> hash = hash(key, false);
+        return hash != null ? hash.get(field) : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public CacheApi<String, Object> cacheApi() {
+        return (CacheApi<String, Object>) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{CacheApi.class}, (proxy, method, args) -> {
+                    if (method.getDeclaringClass() == Object.class) {
+                        return method.invoke(this, args);
+                    }
+                    roundTrip();
+                    Object result;
+                    synchronized (this) {
+                        result = command(method.getName(), args);
+                    }
+                    return adapt(result, method);
+                });
+    }
+
+    /**
+     * Subscribes to a channel, messages are delivered synchronously by the publishing call.
+     *
+     * @param channel  the channel
+     * @param listener the listener of the messages
+     */
+    public synchronized void subscribe(String channel, Consumer<String> listener) {
+        subscribers.computeIfAbsent(channel, key -> new ArrayList<>()).add(listener);
+    }
+
+    public synchronized void unsubscribe(String channel, Consumer<String> listener) {
+        List<Consumer<String>> listeners = subscribers.get(channel);
+        if (listeners != null && listeners.remove(listener) && listeners.isEmpty()) {
+            subscribers.remove(channel);
+        }
+    }
+
+    public RedisScriptExecutor scriptExecutor() {
+        return new StandInScriptExecutor();
+    }
+
+    void roundTrip() {
+        roundTrips.incrementAndGet();
+        long nanos = roundTripNanos;
+        if (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+        }
+    }
+
+    // ---------------------------------------------------------------- CacheApi commands
+
+    @SuppressWarnings("unchecked")
+    private Object command(String name, Object[] args) {
+        String key = args[0] instanceof String ? (String) args[0] : null;
+        switch (name) {
+            case "hMSet":
+                for (Map.Entry<String, Object> entry : ((Map<String, Object>) args[1]).entrySet()) {
+                    hash(key, true).put(entry.getKey(), serialize(entry.getValue()));
+                }
+                return null;
+            case "hGetAll":
+                Map<String, Object> entries = new LinkedHashMap<>();
+                Map<String, byte[]> hash = hash(key, false);
+                if (hash != null) {
+                    for (Map.Entry<String, byte[]> entry : hash.entrySet()) {
+                        entries.put(entry.getKey(), deserialize(entry.getValue()));
+                    }
+                }
+                return entries;
+            case "hDel":
+                long deleted = 0;
+                Map<String, byte[]> fields = hash(key, false);
+                if (fields != null) {
+                    for (Object field : flatten(args, 1)) {
+                        if (fields.remove(String.valueOf(field)) != null) {
+                            deleted++;
+                        }
+                    }
+                    deleteIfEmpty(key);
+                }
+                return deleted;
+            case "ttl":
+                return ttl(key);
+            case "exists":
+                return get(key) != null;
+            case "del":
+                return del(flatten(args, 0));
+            case "append":
+                byte[] current = get(key) instanceof byte[] ? (byte[]) get(key) : new byte[0];
+                byte[] appended = String.valueOf(args[1]).getBytes(StandardCharsets.UTF_8);
+                byte[] value = Arrays.copyOf(current, current.length + appended.length);
+                System.arraycopy(appended, 0, value, current.length, appended.length);
+                values.put(key, value);
+                return (long) value.length;
+            case "expire":
+                long seconds = ((Number) args[1]).longValue();
+                if (args.length > 2 && args[2] instanceof TimeUnit) {
+                    seconds = ((TimeUnit) args[2]).toSeconds(seconds);
+                }
+                return expire(key, seconds);
+            case "rename":
+                rename(key, (String) args[1]);
+                return null;
+            default:
+                throw new UnsupportedOperationException("not supported by the stand-in: " + name);
+        }
+    }
+
+    private static Object adapt(Object result, Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == void.class || type == Void.class) {
+            return null;
+        }
+        if (result instanceof Number) {
+            Number number = (Number) result;
+            if (type == int.class || type == Integer.class) {
+                return number.intValue();
+            }
+            if (type == long.class || type == Long.class) {
+                return number.longValue();
+            }
+            if (type == boolean.class || type == Boolean.class) {
+                return number.longValue() > 0;
+            }
+        }
+        return result;
+    }
+
+    private static List<Object> flatten(Object[] args, int from) {
+        List<Object> list = new ArrayList<>();
+        for (int i = from; i < args.length; i++) {
+            if (args[i] instanceof Object[]) {
+                list.addAll(Arrays.asList((Object[]) args[i]));
+            } else if (args[i] instanceof Collection) {
+                list.addAll((Collection<?>) args[i]);
+            } else {
+                list.add(args[i]);
+            }
+        }
+        return list;
+    }
+
+    // ---------------------------------------------------------------- RESP commands, see EmbeddedRedisServer
+
+    /**
+     * Executes a command as sent by a redis client. The reply is null (nil), a byte[] (bulk
+     * string), a String (status), a Long (integer) or a List of those (array).
+     *
+     * @param command the command name followed by its arguments
+     * @return the reply
+     * @throws IllegalStateException with the redis error message
+     */
+    synchronized Object execute(List<byte[]> command) {
+        String name = text(command.get(0)).toUpperCase(Locale.ROOT);
+        List<byte[]> args = command.subList(1, command.size());
+        String key = args.isEmpty() ? null : text(args.get(0));
+        switch (name) {
+            case "PING":
+                return args.isEmpty() ? "PONG" : args.get(0);
+            case "ECHO":
+                return arg(args, 0);
+            case "SELECT":
+            case "AUTH":
+            case "CLIENT":
+            case "READONLY":
+            case "READWRITE":
+                return "OK";
+            case "FLUSHALL":
+            case "FLUSHDB":
+                values.clear();
+                expireAts.clear();
+                return "OK";
+            case "DBSIZE":
+                return (long) countKeys("");
+            case "KEYS":
+                Pattern pattern = glob(text(arg(args, 0)));
+                List<Object> keys = new ArrayList<>();
+                for (String candidate : new ArrayList<>(values.keySet())) {
+                    if (pattern.matcher(candidate).matches() && get(candidate) != null) {
+                        keys.add(candidate.getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+                return keys;
+            case "TYPE":
+                Object value = get(text(arg(args, 0)));
+                return value == null ? "none" : value instanceof byte[] ? "string" : value instanceof SortedSet ? "zset" : "hash";
+            case "EXISTS":
+                long existing = 0;
+                for (byte[] candidate : args) {
+                    existing += get(text(candidate)) != null ? 1 : 0;
+                }
+                return existing;
+            case "DEL":
+            case "UNLINK":
+                return del(texts(args));
+            case "EXPIRE":
+                return expire(key, number(arg(args, 1))) ? 1L : 0L;
+            case "PEXPIRE":
+                return pExpire(key, number(arg(args, 1))) ? 1L : 0L;
+            case "TTL":
+                return ttl(key);
+            case "PTTL":
+                long ttl = ttl(key);
+                return ttl < 0 ? ttl : expireAts.get(key) - clock.millis();
+            case "PERSIST":
+                return get(key) != null && expireAts.remove(key) != null ? 1L : 0L;
+            case "RENAME":
+                rename(key, text(arg(args, 1)));
+                return "OK";
+            case "RENAMENX":
+                if (get(key) != null && get(text(arg(args, 1))) != null) {
+                    return 0L;
+                }
+                rename(key, text(arg(args, 1)));
+                return 1L;
+            case "GET":
+                return string(key);
+            case "SET":
+                return set(key, arg(args, 1), args.subList(2, args.size()));
+            case "SETEX":
+                set(key, arg(args, 2), Collections.emptyList());
+                expire(key, number(arg(args, 1)));
+                return "OK";
+            case "SETNX":
+                return set(key, arg(args, 1), Collections.singletonList("NX".getBytes(StandardCharsets.UTF_8))) != null ? 1L : 0L;
+            case "APPEND":
+                byte[] current = string(key);
+                byte[] appended = arg(args, 1);
+                byte[] concatenated = Arrays.copyOf(current == null ? new byte[0] : current, (current == null ? 0 : current.length) + appended.length);
+                System.arraycopy(appended, 0, concatenated, concatenated.length - appended.length, appended.length);
+                values.put(key, concatenated);
+                return (long) concatenated.length;
+            case "INCR":
+            case "INCRBY":
+            case "DECR":
+            case "DECRBY":
+                long delta = name.endsWith("BY") ? number(arg(args, 1)) : 1;
+                byte[] number = string(key);
+                long incremented = (number == null ? 0 : number(number)) + (name.startsWith("DECR") ? -delta : delta);
+                values.put(key, String.valueOf(incremented).getBytes(StandardCharsets.UTF_8));
+                return incremented;
+            case "HSET":
+            case "HMSET":
+                if (args.size() < 3 || args.size() % 2 == 0)
+                    throw new IllegalStateException("ERR wrong number of arguments for '" + name.toLowerCase(Locale.ROOT) + "' command");
+                Map<String, byte[]> hash = hash(key, true);
+                long added = 0;
+                for (int i = 1; i + 1 < args.size(); i += 2) {
+                    added += hash.put(text(args.get(i)), args.get(i + 1)) == null ? 1 : 0;
+                }
+                return "HMSET".equals(name) ? "OK" : added;
+            case "HSETNX":
+                Map<String, byte[]> fields = hash(key, true);
+                return fields.putIfAbsent(text(arg(args, 1)), arg(args, 2)) == null ? 1L : 0L;
+            case "HGET":
+                Map<String, byte[]> found = hash(key, false);
+                return found == null ? null : found.get(text(arg(args, 1)));
+            case "HMGET":
+                return hMGetRaw(key, args.subList(1, args.size()));
+            case "HGETALL":
+                return hGetAllRaw(key);
+            case "HDEL":
+                long deleted = 0;
+                Map<String, byte[]> existingFields = hash(key, false);
+                for (int i = 1; existingFields != null && i < args.size(); i++) {
+                    deleted += existingFields.remove(text(args.get(i))) != null ? 1 : 0;
+                }
+                deleteIfEmpty(key);
+                return deleted;
+            case "HEXISTS":
+                Map<String, byte[]> checked = hash(key, false);
+                return checked != null && checked.containsKey(text(arg(args, 1))) ? 1L : 0L;
+            case "HLEN":
+                Map<String, byte[]> counted = hash(key, false);
+                return counted == null ? 0L : (long) counted.size();
+            case "HKEYS":
+            case "HVALS":
+                List<Object> reply = new ArrayList<>();
+                Map<String, byte[]> listed = hash(key, false);
+                if (listed != null) {
+                    for (Map.Entry<String, byte[]> entry : listed.entrySet()) {
+                        reply.add("HKEYS".equals(name) ? entry.getKey().getBytes(StandardCharsets.UTF_8) : entry.getValue());
+                    }
+                }
+                return reply;
+            case "PUBLISH":
+                return publish(text(arg(args, 0)), text(arg(args, 1)));
+            case "EVAL":
+                String sha1 = new RedisScript<>("eval", text(arg(args, 0)), Object.class).getSha1();
+                loadedScripts.add(sha1);
+                return eval(sha1, args.subList(1, args.size()));
+            case "EVALSHA":
+                if (!loadedScripts.contains(text(arg(args, 0)).toLowerCase(Locale.ROOT)))
+                    throw new IllegalStateException("NOSCRIPT No matching script. Please use EVAL.");
+                return eval(text(args.get(0)).toLowerCase(Locale.ROOT), args.subList(1, args.size()));
+            case "SCRIPT":
+                return scriptCommand(text(arg(args, 0)).toUpperCase(Locale.ROOT), args.subList(1, args.size()));
+            default:
+                throw new IllegalStateException("ERR unknown command '" + name.toLowerCase(Locale.ROOT) + "'");
+        }
+    }
+
+    private static byte[] arg(List<byte[]> args, int index) {
+        if (index >= args.size())
+            throw new IllegalStateException("ERR wrong number of arguments");
+
+        return args.get(index);
+    }
+
+    private static long number(byte[] bytes) {
+        try {
+            return Long.parseLong(text(bytes));
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("ERR value is not an integer or out of range");
+        }
+    }
+
+    private static List<String> texts(List<byte[]> args) {
+        List<String> texts = new ArrayList<>(args.size());
+        for (byte[] arg : args) {
+            texts.add(text(arg));
+        }
+        return texts;
+    }
+
+    private static Pattern glob(String glob) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char c : glob.toCharArray()) {
+            if (c == '*' || c == '?') {
+                regex.append(Pattern.quote(literal.toString())).append(c == '*' ? ".*" : ".");
+                literal.setLength(0);
+            } else {
+                literal.append(c);
+            }
+        }
+        return Pattern.compile(regex.append(Pattern.quote(literal.toString())).toString(), Pattern.DOTALL);
+    }
+
+    private byte[] string(String key) {
+        Object value = get(key);
+        if (value != null && !(value instanceof byte[])) {
+            throw new IllegalStateException("WRONGTYPE Operation against a key holding the wrong kind of value");
+        }
+        return (byte[]) value;
+    }
+
+    /**
+     * SET with its EX, PX, NX and XX options.
+     */
+    private String set(String key, byte[] value, List<byte[]> options) {
+        long expireMillis = 0;
+        boolean ifAbsent = false;
+        boolean ifPresent = false;
+        for (int i = 0; i < options.size(); i++) {
+            String option = text(options.get(i)).toUpperCase(Locale.ROOT);
+            if ("EX".equals(option) || "PX".equals(option)) {
+                long amount = number(arg(options, ++i));
+                expireMillis = "EX".equals(option) ? TimeUnit.SECONDS.toMillis(amount) : amount;
+            } else if ("NX".equals(option)) {
+                ifAbsent = true;
+            } else if ("XX".equals(option)) {
+                ifPresent = true;
+            } else {
+                throw new IllegalStateException("ERR syntax error");
+            }
+        }
+        boolean exists = get(key) != null;
+        if (ifAbsent && exists || ifPresent && !exists) {
+            return null;
+        }
+        values.put(key, value);
+        expireAts.remove(key);
+        if (expireMillis > 0) {
+            pExpire(key, expireMillis);
+        }
+        return "OK";
+    }
+
+    private Object eval(String sha1, List<byte[]> args) {
+        String name = KNOWN_SCRIPTS.get(sha1);
+        if (name == null)
+            throw new IllegalStateException("ERR script not supported by the stand-in: " + sha1);
+
+        int keyCount = (int) number(arg(args, 0));
+        if (keyCount < 0 || keyCount >= args.size())
+            throw new IllegalStateException("ERR Number of keys can't be greater than number of args");
+
+        return script(name, texts(args.subList(1, keyCount + 1)), new ArrayList<>(args.subList(keyCount + 1, args.size())));
+    }
+
+    private Object scriptCommand(String subcommand, List<byte[]> args) {
+        switch (subcommand) {
+            case "LOAD":
+                String sha1 = new RedisScript<>("load", text(arg(args, 0)), Object.class).getSha1();
+                loadedScripts.add(sha1);
+                return sha1.getBytes(StandardCharsets.UTF_8);
+            case "EXISTS":
+                List<Object> reply = new ArrayList<>();
+                for (byte[] arg : args) {
+                    reply.add(loadedScripts.contains(text(arg).toLowerCase(Locale.ROOT)) ? 1L : 0L);
+                }
+                return reply;
+            case "FLUSH":
+                loadedScripts.clear();
+                return "OK";
+            default:
+                throw new IllegalStateException("ERR unknown subcommand '" + subcommand.toLowerCase(Locale.ROOT) + "'");
+        }
+    }
+
+    private static Map<String, String> knownScripts() {
+        Map<String, String> names = new HashMap<>();
+        try {
+            // package-private in the main code, so found by reflection
+            for (Field field : Class.forName("com.caiya.session.redis.RedisSessionScripts").getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) && field.getType() == RedisScript.class) {
+                    field.setAccessible(true);
+                    RedisScript<?> script = (RedisScript<?>) field.get(null);
+                    names.put(script.getSha1(), script.getName());
+                }
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("cannot list the session scripts", e);
+        }
+        return names;
+    }
+
+    // ---------------------------------------------------------------- data access, callers hold the lock
+
+    private Object get(String key) {
+        Long expireAt = expireAts.get(key);
+        if (expireAt != null && expireAt <= clock.millis()) {
+            values.remove(key);
+            expireAts.remove(key);
+            return null;
+        }
+        return values.get(key);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, byte[]> hash(String key, boolean create) {
+        Object value = get(key);
+        if (value == null && create) {
+            value = new LinkedHashMap<String, byte[]>();
+            values.put(key, value);
+        }
+        if (value != null && !(value instanceof Map)) {
+            throw new IllegalStateException("WRONGTYPE Operation against a key holding the wrong kind of value");
+        }
+        return (Map<String, byte[]>) value;
+    }
+
+    private void deleteIfEmpty(String key) {
+        Object value = values.get(key);
+        if (value instanceof Map && ((Map) value).isEmpty() || value instanceof SortedSet && ((SortedSet) value).scores.isEmpty()) {
+            values.remove(key);
+            expireAts.remove(key);
+        }
+    }
+
+    private long ttl(String key) {
+        if (get(key) == null) {
+            return -2;
+        }
+        Long expireAt = expireAts.get(key);
+        if (expireAt == null) {
+            return -1;
+        }
+        return (expireAt - clock.millis() + 500) / 1000;
+    }
+
+    private boolean expire(String key, long seconds) {
+        return pExpire(key, TimeUnit.SECONDS.toMillis(seconds));
+    }
+
+    private boolean pExpire(String key, long millis) {
+        if (get(key) == null) {
+            return false;
+        }
+        if (millis <= 0) {
+            values.remove(key);
+            expireAts.remove(key);
+        } else {
+            expireAts.put(key, clock.millis() + millis);
+        }
+        return true;
+    }
+
+    private long del(Collection<?> keys) {
+        long deleted = 0;
+        for (Object key : keys) {
+            if (get(String.valueOf(key)) != null) {
+                deleted++;
+            }
+            values.remove(String.valueOf(key));
+            expireAts.remove(String.valueOf(key));
+        }
+        return deleted;
+    }
+
+    private void rename(String key, String newKey) {
+        Object value = get(key);
+        if (value == null) {
+            throw new IllegalStateException("ERR no such key");
+        }
+        Long expireAt = expireAts.remove(key);
+        values.remove(key);
+        values.put(newKey, value);
+        if (expireAt != null) {
+            expireAts.put(newKey, expireAt);
+        } else {
+            expireAts.remove(newKey);
+        }
+    }
+
+    // ---------------------------------------------------------------- scripts
+
+    private Object script(String name, List<String> keys, List<byte[]> args) {
+        switch (name) {
+            case "findSession":
+                if (get(keys.get(1)) == null) {
+                    return Collections.emptyList();
+                }
+                return hGetAllRaw(keys.get(0));
+            case "findSessionFields":
+                if (get(keys.get(1)) == null) {
+                    return Collections.emptyList();
+                }
+                return hMGetRaw(keys.get(0), args);
+            case "getFields":
+                return hMGetRaw(keys.get(0), args);
+            case "getAllFields":
+                return hGetAllRaw(keys.get(0));
+            case "publish":
+                return publish(text(args.get(0)), text(args.get(1)));
+            case "deleteSessions":
+                long existed = 0;
+                for (int i = 0; i + 1 < keys.size(); i += 2) {
+                    existed += get(keys.get(i + 1)) != null ? 1 : 0;
+                    del(Arrays.asList(keys.get(i), keys.get(i + 1)));
+                }
+                for (int i = 1; args.get(0).length > 0 && i < args.size(); i++) {
+                    publish(text(args.get(0)), text(args.get(i)));
+                }
+                return existed;
+            case "unlinkKeys":
+                return del(keys);
+            case "existsKeys":
+                return keys.stream().filter(key -> get(key) != null).count();
+            case "renameSession":
+                if (get(keys.get(2)) != null || get(keys.get(3)) != null) {
+                    return 0L;
+                }
+                if (get(keys.get(0)) == null) {
+                    return -1L;
+                }
+                rename(keys.get(0), keys.get(2));
+                if (get(keys.get(1)) != null) {
+                    rename(keys.get(1), keys.get(3));
+                }
+                if (args.get(0).length > 0) {
+                    publish(text(args.get(0)), text(args.get(1)));
+                }
+                return 1L;
+            case "saveSession":
+                return saveSession(keys, args);
+            case "indexExpiration":
+                if (score(args.get(0)) < 0) {
+                    return zSet(keys.get(0), false) != null && zSet(keys.get(0), false).remove(text(args.get(1))) != null ? 1L : 0L;
+                }
+                return zSet(keys.get(0), true).put(text(args.get(1)), score(args.get(0))) == null ? 1L : 0L;
+            case "findExpired":
+                return zRangeByScore(keys.get(0), score(args.get(0)), Integer.parseInt(text(args.get(1))));
+            case "expireSession":
+                long ttl = ttl(keys.get(1));
+                if (ttl > 0) {
+                    return expireAts.get(keys.get(1)) - clock.millis();
+                }
+                if (ttl == -1) {
+                    return -1L;
+                }
+                List<Object> removed = hGetAllRaw(keys.get(0));
+                del(Collections.singletonList(keys.get(0)));
+                return removed;
+            case "removeExpirations":
+                long count = 0;
+                Map<String, Double> scores = zSet(keys.get(0), false);
+                for (int i = 0; scores != null && i + 1 < args.size(); i += 2) {
+                    String member = text(args.get(i));
+                    if (Double.valueOf(text(args.get(i + 1))).equals(scores.get(member))) {
+                        scores.remove(member);
+                        count++;
+                    }
+                }
+                return count;
+            case "indexPrincipal":
+                if (args.size() - 2 >= LUA_STACK_SIZE) {
+                    throw new IllegalStateException("ERR Error running script: too many results to unpack");
+                }
+                Map<String, Double> members = zSet(keys.get(0), true);
+                long removedIds = 0;
+                for (int i = 2; i < args.size(); i++) {
+                    removedIds += members.remove(text(args.get(i))) != null ? 1 : 0;
+                }
+                if (args.get(0).length > 0) {
+                    members.put(text(args.get(0)), score(args.get(1)));
+                    expireWithLastMember(keys.get(0));
+                }
+                deleteIfEmpty(keys.get(0));
+                return removedIds;
+            case "bindPrincipal":
+                return bindPrincipal(keys.get(0), args);
+            case "touchPrincipal":
+                Map<String, Double> touched = zSet(keys.get(0), false);
+                if (touched == null || !touched.containsKey(text(args.get(1)))) {
+                    return 0L;
+                }
+                touched.put(text(args.get(1)), score(args.get(0)));
+                expireWithLastMember(keys.get(0));
+                return 1L;
+            case "findPrincipalSessions":
+                return zRange(keys.get(0), Integer.MAX_VALUE);
+            case "countSessions":
+                Map<String, Double> expirations = zSet(keys.get(0), false);
+                double from = score(args.get(0));
+                return expirations == null ? 0L : expirations.values().stream().filter(score -> score >= from).count();
+            case "registerNamespace":
+                Map<String, byte[]> registry = hash(keys.get(0), true);
+                registry.put(text(args.get(0)), (text(args.get(1)) + ":" + text(args.get(2))).getBytes(StandardCharsets.UTF_8));
+                pExpire(keys.get(0), Long.parseLong(text(args.get(3))));
+                long staleBefore = Long.parseLong(text(args.get(2))) - Long.parseLong(text(args.get(3)));
+                long total = 0;
+                for (Iterator<byte[]> it = registry.values().iterator(); it.hasNext(); ) {
+                    String[] entry = text(it.next()).split(":");
+                    if (entry.length == 2 && Long.parseLong(entry[1]) >= staleBefore) {
+                        total += Long.parseLong(entry[0]);
+                    } else {
+                        it.remove();
+                    }
+                }
+                return total;
+            default:
+                throw new UnsupportedOperationException("script not supported by the stand-in: " + name);
+        }
+    }
+
+    private long saveSession(List<String> keys, List<byte[]> args) {
+        String sessionKey = keys.get(0);
+        String expiresKey = keys.get(1);
+        String indexKey = keys.size() > 2 ? keys.get(2) : null;
+        if ("1".equals(text(args.get(4))) && (get(sessionKey) != null || get(expiresKey) != null)) {
+            return -1;
+        }
+        int deletes = Integer.parseInt(text(args.get(7)));
+        Map<String, byte[]> hash = hash(sessionKey, false);
+        for (int i = 8; i < 8 + deletes && hash != null; i++) {
+            hash.remove(text(args.get(i)));
+        }
+        deleteIfEmpty(sessionKey);
+        if (args.get(2).length > 0) {
+            publish(text(args.get(2)), text(args.get(3)));
+        }
+        if (args.size() < 9 + deletes) {
+            return 0;
+        }
+        long expireSeconds = Long.parseLong(text(args.get(0)));
+        if (expireSeconds == 0) {
+            if (indexKey != null && zSet(indexKey, false) != null) {
+                zSet(indexKey, false).remove(text(args.get(6)));
+            }
+            return del(Arrays.asList(sessionKey, expiresKey));
+        }
+        hash = hash(sessionKey, true);
+        for (int i = 8 + deletes; i + 1 < args.size(); i += 2) {
+            hash.put(text(args.get(i)), args.get(i + 1));
+        }
+        values.put(expiresKey, new byte[0]);
+        if (expireSeconds > 0) {
+            expire(expiresKey, expireSeconds);
+            expire(sessionKey, Long.parseLong(text(args.get(1))));
+        } else {
+            expireAts.remove(expiresKey);
+            expireAts.remove(sessionKey);
+        }
+        if (indexKey != null) {
+            zSet(indexKey, true).put(text(args.get(6)), score(args.get(5)));
+        }
+        return 1;
+    }
+
+    private Map<String, Double> zSet(String key, boolean create) {
+        Object value = get(key);
+        if (value == null && create) {
+            value = new SortedSet();
+            values.put(key, value);
+        }
+        if (value != null && !(value instanceof SortedSet)) {
+            throw new IllegalStateException("WRONGTYPE Operation against a key holding the wrong kind of value");
+        }
+        return value == null ? null : ((SortedSet) value).scores;
+    }
+
+    private List<Object> bindPrincipal(String key, List<byte[]> args) {
+        String id = text(args.get(0));
+        Map<String, Double> scores = zSet(key, true);
+        double now = score(args.get(2));
+        scores.values().removeIf(score -> score < now);
+        int max = Integer.parseInt(text(args.get(3)));
+        int excess = max > 0 && !scores.containsKey(id) ? scores.size() - max + 1 : 0;
+        List<Object> reply = new ArrayList<>();
+        if (excess > 0 && "1".equals(text(args.get(4)))) {
+            deleteIfEmpty(key);
+            reply.add(0L);
+            return reply;
+        }
+        reply.add(1L);
+        if (excess > 0) {
+            for (Object evicted : zRange(key, excess)) {
+                scores.remove(text((byte[]) evicted));
+                reply.add(evicted);
+            }
+        }
+        scores.put(id, score(args.get(1)));
+        expireWithLastMember(key);
+        return reply;
+    }
+
+    /**
+     * @param arg a score argument, a number or an infinity like <code>+inf</code>
+     * @return the score
+     */
+    private static double score(byte[] arg) {
+        String score = text(arg).toLowerCase(Locale.ROOT);
+        switch (score) {
+            case "inf":
+            case "+inf":
+                return Double.POSITIVE_INFINITY;
+            case "-inf":
+                return Double.NEGATIVE_INFINITY;
+            default:
+                return Double.parseDouble(score);
+        }
+    }
+
+    private void expireWithLastMember(String key) {
+        double last = Collections.max(zSet(key, false).values());
+        if (Double.isInfinite(last)) {
+            expireAts.remove(key);
+        } else {
+            expireAts.put(key, (long) last);
+        }
+    }
+
+    private List<Object> zRange(String key, int limit) {
+        List<Object> reply = new ArrayList<>();
+        Map<String, Double> scores = zSet(key, false);
+        if (scores == null) {
+            return reply;
+        }
+        scores.entrySet().stream()
+                .sorted(Map.Entry.comparingByValue())
+                .limit(limit)
+                .forEach(entry -> reply.add(entry.getKey().getBytes(StandardCharsets.UTF_8)));
+        return reply;
+    }
+
+    private List<Object> zRangeByScore(String key, double max, int limit) {
+        List<Object> reply = new ArrayList<>();
+        Map<String, Double> scores = zSet(key, false);
+        if (scores == null) {
+            return reply;
+        }
+        scores.entrySet().stream()
+                .filter(entry -> entry.getValue() <= max)
+                .sorted(Map.Entry.comparingByValue())
+                .limit(limit)
+                .forEach(entry -> {
+                    reply.add(entry.getKey().getBytes(StandardCharsets.UTF_8));
+                    reply.add(String.valueOf(entry.getValue().longValue()).getBytes(StandardCharsets.UTF_8));
+                });
+        return reply;
+    }
+
+    private long publish(String channel, String message) {
+        List<Consumer<String>> listeners = subscribers.get(channel);
+        if (listeners == null) {
+            return 0;
+        }
+        for (Consumer<String> listener : listeners) {
+            listener.accept(message);
+        }
+        return listeners.size();
+    }
+
+    private static String text(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private List<Object> hMGetRaw(String key, List<byte[]> fields) {
+        List<Object> reply = new ArrayList<>(fields.size());
+        Map<String, byte[]> hash = hash(key, false);
+        for (byte[] field : fields) {
+            reply.add(hash == null ? null : hash.get(text(field)));
+        }
+        return reply;
+    }
+
+    private List<Object> hGetAllRaw(String key) {
+        List<Object> reply = new ArrayList<>();
+        Map<String, byte[]> hash = hash(key, false);
+        if (hash != null) {
+            for (Map.Entry<String, byte[]> entry : hash.entrySet()) {
+                reply.add(entry.getKey().getBytes(StandardCharsets.UTF_8));
+                reply.add(entry.getValue());
+            }
+        }
+        return reply;
+    }
+
+    private static byte[] serialize(Object value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        try (ObjectOutputStream oos = new ObjectOutputStream(out)) {
+            oos.writeObject(value);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return ois.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static final class SortedSet {
+
+        private final Map<String, Double> scores = new HashMap<>();
+    }
+
+    private final class StandInScriptExecutor implements RedisScriptExecutor {
+
+        @Override
+        public <T> T execute(RedisScript<T> script, List<String> keys, List<?> args) {
+            roundTrip();
+            synchronized (InMemoryRedis.this) {
+                return script.getResultType().cast(script(script.getName(), keys, rawArgs(args)));
+            }
+        }
+
+        /**
+         * All the calls in a single round trip.
+         */
+        @Override
+        public List<Object> executePipelined(List<RedisScriptCall<?>> calls) {
+            roundTrip();
+            List<Object> results = new ArrayList<>(calls.size());
+            synchronized (InMemoryRedis.this) {
+                for (RedisScriptCall<?> call : calls) {
+                    try {
+                        results.add(script(call.getScript().getName(), call.getKeys(), rawArgs(call.getArgs())));
+                    } catch (RuntimeException e) {
+                        results.add(e);
+                    }
+                }
+            }
+            return results;
+        }
+
+        @Override
+        public boolean isPipelining() {
+            return true;
+        }
+
+        private List<byte[]> rawArgs(List<?> args) {
+            List<byte[]> rawArgs = new ArrayList<>();
+            for (Object arg : args) {
+                rawArgs.add(arg instanceof byte[] ? (byte[]) arg : String.valueOf(arg).getBytes(StandardCharsets.UTF_8));
+            }
+            return rawArgs;
+        }
+
+        @Override
+        public byte[] serializeValue(Object value) {
+            return serialize(value);
+        }
+
+        @Override
+        public Object deserializeValue(byte[] bytes) {
+            return deserialize(bytes);
+        }
+    }
+}
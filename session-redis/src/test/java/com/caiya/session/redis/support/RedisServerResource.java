@@ -0,0 +1,226 @@
+package com.caiya.session.redis.support;
+
+import org.junit.rules.ExternalResource;
+import redis.clients.jedis.Jedis;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The redis server of the tests going through the jedis clients, as a
+ * {@link org.junit.ClassRule} or started by hand.
+ * <p>
+ * By default an {@link EmbeddedRedisServer} runs in the JVM, so that the tests need no
+ * redis installation. Opting in to a real server runs the scripts themselves: with
+ * {@code -Dredis.url=host:port} the tests use that server, which is left as is, and with
+ * {@code -Dredis.server=path/to/redis-server} that binary is started on a free port as a
+ * one-node cluster owning all the slots, so that both the jedis and the jedis cluster
+ * clients connect. A server opted in to which cannot be reached or started fails the
+ * tests instead of skipping them.
+ *
+ * @author wangnan
+ * @since 1.1
+ */
+public class RedisServerResource extends ExternalResource implements Closeable {
+
+    private static final long STARTUP_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private String host = "127.0.0.1";
+
+    private int port;
+
+    private Process process;
+
+    private File directory;
+
+    private EmbeddedRedisServer embeddedServer;
+
+    @Override
+    protected void before() throws Throwable {
+        start();
+    }
+
+    @Override
+    protected void after() {
+        close();
+    }
+
+    /**
+     * Starts the embedded server, or the redis-server opted in to, or checks that the one
+     * given by {@code -Dredis.url} answers.
+     *
+     * @return this resource
+     * @throws IOException if the server opted in to cannot be reached or started
+     */
+    public RedisServerResource start() throws IOException {
+        String url = System.getProperty("redis.url");
+        String binary = System.getProperty("redis.server");
+        if (url != null && !url.trim().isEmpty()) {
+            String[] hostAndPort = url.trim().split(":");
+            host = hostAndPort[0];
+            port = Integer.parseInt(hostAndPort[1]);
+            try (Jedis jedis = new Jedis(host, port)) {
+                jedis.ping();
+            } catch (RuntimeException e) {
+                throw new IOException("redis server not reachable, redis.url:" + url, e);
+            }
+        } else if (binary != null && !binary.trim().isEmpty()) {
+            startProcess(binary.trim());
+        } else {
+            embeddedServer = new EmbeddedRedisServer().start();
+            host = embeddedServer.getHost();
+            port = embeddedServer.getPort();
+        }
+        return this;
+    }
+
+    private void startProcess(String binary) throws IOException {
+        port = freePort();
+        directory = Files.createTempDirectory("redis-server").toFile();
+        List<String> command = Arrays.asList(binary,
+                "--port", String.valueOf(port), "--bind", host, "--dir", directory.getAbsolutePath(),
+                "--save", "", "--appendonly", "no", "--cluster-enabled", "yes");
+        try {
+            process = new ProcessBuilder(command).redirectErrorStream(true)
+                    .redirectOutput(new File(directory, "redis.log")).start();
+        } catch (IOException e) {
+            deleteDirectory();
+            throw new IOException("cannot start " + binary, e);
+        }
+        awaitClusterReady();
+    }
+
+    private void awaitClusterReady() throws IOException {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+        boolean slotsAdded = false;
+        while (true) {
+            try (Jedis jedis = new Jedis(host, port)) {
+                if (!slotsAdded) {
+                    int[] slots = new int[16384];
+                    for (int i = 0; i < slots.length; i++) {
+                        slots[i] = i;
+                    }
+                    jedis.clusterAddSlots(slots);
+                    slotsAdded = true;
+                }
+                if (jedis.clusterInfo().contains("cluster_state:ok")) {
+                    return;
+                }
+            } catch (RuntimeException e) {
+                // not listening yet
+                if (!process.isAlive()) {
+                    close();
+                    throw new IOException("redis-server exited, see its log", e);
+                }
+            }
+            if (System.currentTimeMillis() > deadline) {
+                close();
+                throw new IOException("redis-server not ready after " + STARTUP_TIMEOUT_MILLIS + " ms");
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new IOException("interrupted while starting redis-server", e);
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Deletes all the keys, between the tests sharing the server.
+     */
+    public void flushAll() {
+        try (Jedis jedis = new Jedis(host, port)) {
+            jedis.flushAll();
+        }
+    }
+
+    /**
+     * Closes the connections subscribed to a channel, as a lost subscription.
+     *
+     * @return the number of connections closed
+     */
+    public int disconnectSubscribers() {
+        if (embeddedServer != null) {
+            return embeddedServer.disconnectSubscribers();
+        }
+        int disconnected = 0;
+        try (Jedis jedis = new Jedis(host, port)) {
+            for (String client : jedis.clientList().split("\n")) {
+                if (client.contains(" cmd=subscribe")) {
+                    String address = client.substring(client.indexOf("addr=") + 5);
+                    jedis.clientKill(address.substring(0, address.indexOf(' ')));
+                    disconnected++;
+                }
+            }
+        }
+        return disconnected;
+    }
+
+    /**
+     * Stops the server if started, does nothing with {@code -Dredis.url}.
+     */
+    @Override
+    public void close() {
+        if (embeddedServer != null) {
+            try {
+                embeddedServer.close();
+            } catch (IOException e) {
+                // the connections are gone anyway
+            }
+            embeddedServer = null;
+        }
+        if (process != null) {
+            process.destroy();
+            try {
+                if (!process.waitFor(STARTUP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+            process = null;
+        }
+        deleteDirectory();
+    }
+
+    private void deleteDirectory() {
+        if (directory != null) {
+            File[] files = directory.listFiles();
+            for (File file : files != null ? files : new File[0]) {
+                file.delete();
+            }
+            directory.delete();
+            directory = null;
+        }
+    }
+
+    /**
+     * @return the embedded server, or null if a real one was opted in to
+     */
+    public EmbeddedRedisServer getEmbeddedServer() {
+        return embeddedServer;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+}
@@ -42,14 +42,28 @@ public class UserSessionHolder {
         if (sessionId == null || sessionId.trim().equals("")) {
             return null;
         }
-        Session session = sessionManager.findById(sessionId);
+        Session session = sessionManager.findById(sessionId, SessionConstant.USER);
         if (session != null) {
             // touch session
             session.setLastAccessedTime(Instant.now());
+            saveSession(session);
         }
         return session;
     }
 
+    /**
+     * 保存session的变更（非立即写入模式下需要手动调用）
+     *
+     * @param session Session
+     * @throws SessionException SessionException
+     */
+    @SuppressWarnings("unchecked")
+    public void saveSession(Session session) throws SessionException {
+        if (session != null) {
+            sessionManager.save(session);
+        }
+    }
+
     /**
      * 创建session
      *
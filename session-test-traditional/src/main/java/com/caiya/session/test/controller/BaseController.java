@@ -37,6 +37,10 @@ public class BaseController {
         return session;
     }
 
+    protected void saveSession(Session session) {
+        userSessionHolder.saveSession(session);
+    }
+
     protected User getUser() {
         Session session = getSession(false);
         if (session == null) {
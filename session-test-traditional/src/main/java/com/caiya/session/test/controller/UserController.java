@@ -32,7 +32,9 @@ public class UserController extends BaseController {
             // 设置密码为null
             userDB.setPassword(null);
             // 保存用户会话
-            super.getSession(true).setAttribute(SessionConstant.USER, userDB);
+            Session session = super.getSession(true);
+            session.setAttribute(SessionConstant.USER, userDB);
+            super.saveSession(session);
         }
 
         return userDB;
@@ -57,6 +59,7 @@ public class UserController extends BaseController {
             if (user != null) {
                 session.removeAttribute(SessionConstant.USER);
                 session.setMaxInactiveInterval(Duration.ofSeconds(0));
+                super.saveSession(session);
             }
         }
 
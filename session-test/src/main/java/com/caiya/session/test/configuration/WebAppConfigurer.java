@@ -2,6 +2,12 @@ package com.caiya.session.test.configuration;
 
 import com.caiya.cache.redis.spring.RedisCache;
 import com.caiya.session.SessionManager;
+import com.caiya.session.codec.AttributeCodecs;
+import com.caiya.session.codec.CompactAttributeCodec;
+import com.caiya.session.codec.DeflateAttributeCompressor;
+import com.caiya.session.codec.JdkAttributeCodec;
+import com.caiya.session.redis.JedisClusterScriptExecutor;
+import com.caiya.session.redis.RedisKeyLayout;
 import com.caiya.session.redis.RedisSession;
 import com.caiya.session.redis.RedisSessionManager;
 import com.caiya.session.test.interceptor.UserSessionInterceptor;
@@ -14,9 +20,12 @@ import com.caiya.session.web.http.SessionRepositoryFilter;
 import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisClusterConnection;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+import redis.clients.jedis.JedisCluster;
 
 import javax.annotation.Resource;
 import java.nio.charset.StandardCharsets;
@@ -33,6 +42,9 @@ public class WebAppConfigurer extends WebMvcConfigurerAdapter {
     @Resource
     private RedisTemplate<String, Object> redisTemplate;
 
+    @Resource
+    private JedisConnectionFactory jedisConnectionFactory;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         registry.addInterceptor(new UserSessionInterceptor())
@@ -40,10 +52,28 @@ public class WebAppConfigurer extends WebMvcConfigurerAdapter {
                 .excludePathPatterns("/", "/test", "/error", "/user/login", "/user/logout");
     }
 
+    /**
+     * 脚本执行使用的集群连接，随容器关闭
+     */
+    @Bean(destroyMethod = "close")
+    public RedisClusterConnection sessionClusterConnection() {
+        return jedisConnectionFactory.getClusterConnection();
+    }
+
     private SessionManager<RedisSession> sessionManager() {
-        RedisSessionManager sessionManager = new RedisSessionManager(new RedisCache<>(CacheConstant.DEFAULT_CACHE_NAME, (CacheConstant.DEFAULT_CACHE_NAME + ":").getBytes(StandardCharsets.UTF_8), redisTemplate));
+        byte[] keyPrefix = (CacheConstant.DEFAULT_CACHE_NAME + ":").getBytes(StandardCharsets.UTF_8);
+        RedisSessionManager sessionManager = new RedisSessionManager(new RedisCache<>(CacheConstant.DEFAULT_CACHE_NAME, keyPrefix, redisTemplate));
         sessionManager.setDefaultMaxInactiveInterval(SessionConstant.DEFAULT_EXPIRATION);
         sessionManager.setRedisKeyNamespace(SessionConstant.DEFAULT_SESSION_NAMESPACE);
+        // 会话的所有key在集群的同一个slot上，可以使用lua脚本
+        sessionManager.setKeyLayout(RedisKeyLayout.HASH_TAGGED);
+        JedisCluster jedisCluster = (JedisCluster) sessionClusterConnection().getNativeConnection();
+        sessionManager.setScriptExecutor(new JedisClusterScriptExecutor(jedisCluster, keyPrefix));
+        // 会话属性默认仍使用JDK序列化(保留共享引用、支持循环引用)，可读取紧凑编码的属性；超过16KB的属性值压缩后存储
+        // 紧凑编码(AttributeCodecs.compact())不保留共享引用且不支持循环引用，仅适用于树形结构的属性
+        sessionManager.setAttributeCodecs(new AttributeCodecs(new JdkAttributeCodec())
+                .addCodec(new CompactAttributeCodec())
+                .setCompression(new DeflateAttributeCompressor(), 16 * 1024));
         return sessionManager;
     }
 
@@ -1,5 +1,6 @@
 package com.caiya.session.test;
 
+import com.caiya.session.redis.support.RedisServerResource;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.slf4j.Logger;
@@ -10,6 +11,9 @@ import org.springframework.context.annotation.ComponentScan;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
 /**
  * 单元测试基类.
  */
@@ -18,6 +22,17 @@ import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 @ActiveProfiles(value = "local")
 public class BaseTest {
 
+    static {
+        // 内嵌的redis服务(或-Dredis.url/-Dredis.server指定的真实redis)，随测试进程结束
+        try {
+            RedisServerResource redisServer = new RedisServerResource().start();
+            Runtime.getRuntime().addShutdownHook(new Thread(redisServer::close));
+            System.setProperty("cache.redis.hostNames", redisServer.getHost() + ":" + redisServer.getPort());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     protected final Logger logger = LoggerFactory.getLogger(this.getClass());
 
 